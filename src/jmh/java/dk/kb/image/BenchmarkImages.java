@@ -0,0 +1,113 @@
+package dk.kb.image;
+
+import dk.kb.util.Resolver;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Images for the benchmarks in a given size and {@link BufferedImage} type, so that the cost per pixel can be
+ * compared across sources and the pixel layouts that {@link RasterPixelReader} handles differently.
+ */
+final class BenchmarkImages {
+    /**
+     * Fixed seed, so that the synthetic images are the same in all runs.
+     */
+    private static final long SEED = 87;
+
+    private BenchmarkImages() {
+    }
+
+    /**
+     * @param source     a test resource such as {@code flower.jpg}, {@code noise} for random colors or
+     *                   {@code gradient} for smooth color transitions.
+     * @param megapixels the approximate number of pixels in the image. Checked-in images are scaled to this size,
+     *                   keeping the aspect ratio.
+     * @param type       the name of the type without {@code TYPE_}, e.g. {@code 3BYTE_BGR} as decoded by ImageIO for
+     *                   JPEG or {@code INT_RGB}.
+     * @return the image.
+     */
+    static BufferedImage create(String source, double megapixels, String type) throws IOException {
+        BufferedImage original;
+        switch (source) {
+            case "noise":
+                original = noise(4, 3);
+                break;
+            case "gradient":
+                original = gradient(400, 300);
+                break;
+            default:
+                try (InputStream in = Resolver.resolveStream(source)) {
+                    original = ImageIO.read(in);
+                }
+                if (original == null) {
+                    throw new IOException("Unable to read the image '" + source + "'");
+                }
+        }
+        double scale = Math.sqrt(megapixels * 1_000_000 / ((double) original.getWidth() * original.getHeight()));
+        int width = Math.max(1, (int) Math.round(original.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(original.getHeight() * scale));
+        if ("noise".equals(source)) {
+            // Scaling would blur the noise, so it is generated in the target size instead
+            return convert(noise(width, height), type, width, height);
+        }
+        return convert(original, type, width, height);
+    }
+
+    private static BufferedImage convert(BufferedImage img, String type, int width, int height) {
+        BufferedImage result = new BufferedImage(width, height, toType(type));
+        Graphics2D g = result.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(img, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+    private static int toType(String type) {
+        switch (type) {
+            case "3BYTE_BGR":
+                return BufferedImage.TYPE_3BYTE_BGR;
+            case "4BYTE_ABGR":
+                return BufferedImage.TYPE_4BYTE_ABGR;
+            case "INT_RGB":
+                return BufferedImage.TYPE_INT_RGB;
+            case "INT_ARGB":
+                return BufferedImage.TYPE_INT_ARGB;
+            case "BYTE_GRAY":
+                return BufferedImage.TYPE_BYTE_GRAY;
+            default:
+                throw new IllegalArgumentException("Unsupported image type '" + type + "'");
+        }
+    }
+
+    private static BufferedImage noise(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(SEED);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return img;
+    }
+
+    private static BufferedImage gradient(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, new Color(x * 255 / width, y * 255 / height, 128).getRGB());
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,97 @@
+package dk.kb.image;
+
+import dk.kb.image.model.v1.DominantColorDto;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the analyses of a decoded image, as run by the endpoints. Besides operations per second, the
+ * {@code megapixels} counter reports megapixels per second, which is comparable across image sizes. Run with
+ * {@code -prof gc} for the allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColorAnalysisBenchmark {
+    /**
+     * A test resource, or noise or gradient for synthetic images, see {@link BenchmarkImages#create}.
+     */
+    @Param({"flower.jpg", "concert.jpg", "noise", "gradient"})
+    public String image;
+
+    @Param({"1", "12"})
+    public double megapixels;
+
+    @Param({"3BYTE_BGR", "4BYTE_ABGR", "INT_RGB", "INT_ARGB", "BYTE_GRAY"})
+    public String type;
+
+    private BufferedImage img;
+    private long pixels;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        img = BenchmarkImages.create(image, megapixels, type);
+        pixels = (long) img.getWidth() * img.getHeight();
+    }
+
+    @Benchmark
+    public List<DominantColorDto> okLabColors(Pixels counter) throws IOException {
+        counter.pixels += pixels;
+        return new MostUsedOkLabColor().getMostUsedColors(img, 10);
+    }
+
+    @Benchmark
+    public List<DominantColorDto> rgbColors(Pixels counter) throws IOException {
+        counter.pixels += pixels;
+        return new MostUsedRgbColors().getMostUsedColors(img, 10);
+    }
+
+    @Benchmark
+    public int colorCount(Pixels counter) throws IOException {
+        counter.pixels += pixels;
+        return Facade.getColorCount(img);
+    }
+
+    @Benchmark
+    public byte[] greyscale(Pixels counter) throws IOException {
+        counter.pixels += pixels;
+        return Facade.getGreyscale(img);
+    }
+
+    /**
+     * Counts the analysed pixels, reported by JMH per second like the operations.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Pixels {
+        private long pixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pixels = 0;
+        }
+
+        public double megapixels() {
+            return pixels / 1_000_000.0;
+        }
+    }
+}
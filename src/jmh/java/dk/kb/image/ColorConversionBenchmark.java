@@ -0,0 +1,63 @@
+package dk.kb.image;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the per pixel color conversions behind exact OKlab bucketing, in pixels per second. Each invocation
+ * converts the same block of random pixels, so the results do not depend on the content of an image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColorConversionBenchmark {
+    static final int PIXELS = 1 << 16;
+
+    private int[] pixels;
+    private Float bucket;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(87);
+        pixels = new int[PIXELS];
+        for (int i = 0; i < PIXELS; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        List<Float> buckets = PalettePicker.smkOkLabBuckets();
+        bucket = buckets.get(buckets.size() / 2);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public void convertRGBtoOKlab(Blackhole blackhole) {
+        for (int pixel : pixels) {
+            blackhole.consume(ColorConversion.convertRGBtoOKlab(pixel));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public void calculateCiede2000Distance(Blackhole blackhole) {
+        for (int pixel : pixels) {
+            blackhole.consume(ColorConversion.calculateCiede2000Distance(pixel, bucket));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package dk.kb.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Garbage collection pauses and heap sizes from a log written by the JVM with {@code -Xlog:gc:file=<file>}, e.g.
+ * <pre>
+ * [12.345s][info][gc] GC(7) Pause Young (Normal) (G1 Evacuation Pause) 412M-&gt;96M(1024M) 8.123ms
+ * </pre>
+ * Lines that are not pauses, such as concurrent phases, are ignored.
+ */
+class GcLog {
+    private static final Pattern PAUSE = Pattern.compile(
+            "GC\\(\\d+\\) Pause .*? (\\d+)([KMG])->(\\d+)([KMG])\\((\\d+)([KMG])\\) ([\\d.]+)ms");
+
+    private long pauses = 0;
+    private double totalPauseMS = 0;
+    private double maxPauseMS = 0;
+    private long maxHeapBeforeMB = 0;
+    private long maxHeapAfterMB = 0;
+    private long maxCommittedMB = 0;
+
+    /**
+     * Parse the part of the log after the offset.
+     * @param offset the length of the log when the measurement started, see {@link Files#size(Path)}.
+     * @return the pauses after the offset, or null if the log does not exist.
+     */
+    static GcLog parse(Path log, long offset) throws IOException {
+        if (!Files.exists(log)) {
+            return null;
+        }
+        GcLog gc = new GcLog();
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            channel.position(Math.min(offset, channel.size()));
+            try (InputStream in = Channels.newInputStream(channel)) {
+                String content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                for (String line : content.split("\n")) {
+                    gc.add(line);
+                }
+            }
+        }
+        return gc;
+    }
+
+    /**
+     * Add the line if it is a pause.
+     */
+    void add(String line) {
+        Matcher matcher = PAUSE.matcher(line);
+        if (!matcher.find()) {
+            return;
+        }
+        double pauseMS = Double.parseDouble(matcher.group(7));
+        pauses++;
+        totalPauseMS += pauseMS;
+        maxPauseMS = Math.max(maxPauseMS, pauseMS);
+        maxHeapBeforeMB = Math.max(maxHeapBeforeMB, toMB(matcher.group(1), matcher.group(2)));
+        maxHeapAfterMB = Math.max(maxHeapAfterMB, toMB(matcher.group(3), matcher.group(4)));
+        maxCommittedMB = Math.max(maxCommittedMB, toMB(matcher.group(5), matcher.group(6)));
+    }
+
+    private static long toMB(String value, String unit) {
+        long number = Long.parseLong(value);
+        switch (unit) {
+            case "K":
+                return number / 1024;
+            case "G":
+                return number * 1024;
+            default:
+                return number;
+        }
+    }
+
+    long getPauses() {
+        return pauses;
+    }
+
+    double getTotalPauseMS() {
+        return totalPauseMS;
+    }
+
+    double getMaxPauseMS() {
+        return maxPauseMS;
+    }
+
+    /**
+     * @return the largest heap before a collection, i.e. how full the heap got.
+     */
+    long getMaxHeapBeforeMB() {
+        return maxHeapBeforeMB;
+    }
+
+    /**
+     * @return the largest heap after a collection, an estimate of the live data under load.
+     */
+    long getMaxHeapAfterMB() {
+        return maxHeapAfterMB;
+    }
+
+    long getMaxCommittedMB() {
+        return maxCommittedMB;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "GcLog(pauses=%d, totalPause=%.1fms, maxPause=%.1fms, " +
+                                          "maxHeapBefore=%dMB, maxHeapAfter=%dMB, maxCommitted=%dMB)",
+                             pauses, totalPauseMS, maxPauseMS, maxHeapBeforeMB, maxHeapAfterMB, maxCommittedMB);
+    }
+}
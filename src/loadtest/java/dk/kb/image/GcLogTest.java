@@ -0,0 +1,42 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class GcLogTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testParse(@TempDir Path dir) throws IOException {
+        String before = "[0.010s][info][gc] Using G1\n" +
+                        "[1.000s][info][gc] GC(0) Pause Young (Normal) (G1 Evacuation Pause) 900M->100M(1024M) 99.0ms\n";
+        String during = "[2.000s][info][gc] GC(1) Pause Young (Normal) (G1 Evacuation Pause) 412M->96M(1024M) 8.5ms\n" +
+                        "[2.500s][info][gc] GC(2) Concurrent Mark Cycle 45.123ms\n" +
+                        "[3.000s][info][gc] GC(3) Pause Remark 300M->250M(1024M) 1.5ms\n" +
+                        "[4.000s][info][gc] GC(4) Pause Full (G1 Compaction Pause) 2G->512M(2G) 120.0ms\n" +
+                        "[5.000s][info][gc] GC(5) Pause Young (Normal) (G1 Evacuation Pause) 81920K->10240K(2G) 2.0ms\n";
+        Path file = dir.resolve("gc.log");
+        Files.write(file, (before + during).getBytes(StandardCharsets.UTF_8));
+
+        GcLog gc = GcLog.parse(file, before.getBytes(StandardCharsets.UTF_8).length);
+        log.info("Parsed {}", gc);
+        assertEquals(4, gc.getPauses(), "The concurrent phase and the pause before the offset should be ignored");
+        assertEquals(132.0, gc.getTotalPauseMS(), 0.001);
+        assertEquals(120.0, gc.getMaxPauseMS(), 0.001);
+        assertEquals(2048, gc.getMaxHeapBeforeMB());
+        assertEquals(512, gc.getMaxHeapAfterMB());
+        assertEquals(2048, gc.getMaxCommittedMB());
+
+        assertNull(GcLog.parse(dir.resolve("missing.log"), 0));
+    }
+}
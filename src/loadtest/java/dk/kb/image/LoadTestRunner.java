@@ -0,0 +1,565 @@
+package dk.kb.image;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test of a running instance of the webservice, started by the {@code loadtest} profile in the pom.
+ * <p>
+ * A fixed number of workers send requests back to back, each picking an endpoint and an image from weighted mixes,
+ * so the measured cost includes multipart parsing, decoding and serialization of the response. Requests during the
+ * warmup are sent but not measured. The report has throughput, latency percentiles and errors for each endpoint and
+ * the garbage collection pauses of the server during the measurement, read from its {@code -Xlog:gc} file.
+ * </p>
+ * <p>
+ * The run fails with an exception if the error rate or the 99th percentile latency exceeds the given limits, so the
+ * build fails when the load test is used as a release gate. The pom runs the test and the check as separate phases,
+ * like failsafe: {@code --phase=run} writes the report, also when the test itself fails, so that the server is
+ * always stopped in {@code post-integration-test}, and {@code --phase=check} fails the build in {@code verify}.
+ * </p>
+ */
+public class LoadTestRunner {
+    private static final Logger log = LoggerFactory.getLogger(LoadTestRunner.class);
+
+    static final String USAGE =
+            "Usage: LoadTestRunner --url=http://localhost:9076/ds-image-analysis/v1 [--phase=all|run|check]\n" +
+            "       [--concurrency=8] [--warmup=30] [--duration=120] [--startup-timeout=120]\n" +
+            "       [--images=flower.jpg:1,concert.jpg:1,blue-bricks.jpg:1]\n" +
+            "       [--endpoints=main-OKlab-colors:4,colorcount:1,greyscale:1]\n" +
+            "       [--report=target/loadtest-report.json] [--gc-log=<server gc log>]\n" +
+            "       [--max-error-rate=0.001] [--max-p99=<milliseconds>]";
+
+    /**
+     * Form fields besides the image for the endpoints that need them.
+     */
+    private static final Map<String, Map<String, String>> ENDPOINT_FIELDS = new HashMap<>();
+    static {
+        ENDPOINT_FIELDS.put("main-OKlab-colors", Collections.singletonMap("top-colors", "10"));
+        ENDPOINT_FIELDS.put("main-rgb-colors", Collections.singletonMap("top-colors", "10"));
+        ENDPOINT_FIELDS.put("analyse", Collections.singletonMap("top-colors", "10"));
+    }
+
+    private static final String BOUNDARY = "loadtest-boundary-7d3f9a1c";
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(2);
+
+    /**
+     * The parts of the load test to perform.
+     */
+    enum Phase {
+        /**
+         * Run the load test, write the report and check the limits.
+         */
+        ALL,
+        /**
+         * Run the load test and write the report, without failing if the load test fails or exceeds the limits.
+         */
+        RUN,
+        /**
+         * Check the limits against the report written by {@link #RUN}.
+         */
+        CHECK
+    }
+
+    private final Phase phase;
+    private final URI url;
+    private final int concurrency;
+    private final long warmupMS;
+    private final long durationMS;
+    private final long startupTimeoutMS;
+    private final Weighted<String> images;
+    private final Weighted<String> endpoints;
+    private final Path report;
+    private final Path gcLog;
+    private final double maxErrorRate;
+    private final double maxP99MS;
+
+    /**
+     * Run a load test, see {@link #USAGE}.
+     * @throws IllegalStateException if the error rate or latency exceeds the limits.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadTestRunner runner = fromArgs(args);
+        switch (runner.phase) {
+            case RUN:
+                runner.runWithoutFailing();
+                break;
+            case CHECK:
+                runner.check(runner.readReport());
+                break;
+            default:
+                runner.check(runner.run());
+        }
+    }
+
+    /**
+     * @param args options as {@code --name=value}, see {@link #USAGE}.
+     * @throws IllegalArgumentException if the arguments are invalid.
+     */
+    public static LoadTestRunner fromArgs(String... args) {
+        return new LoadTestRunner(CommandLineOptions.parse(USAGE, null, args));
+    }
+
+    private LoadTestRunner(CommandLineOptions options) {
+        String phaseName = options.getString("phase", "all");
+        try {
+            phase = Phase.valueOf(phaseName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown phase '" + phaseName + "'\n" + USAGE);
+        }
+        String base = options.getString("url", null);
+        if (base == null && phase != Phase.CHECK) {
+            throw new IllegalArgumentException("No --url was given\n" + USAGE);
+        }
+        url = base == null ? null : URI.create(base.endsWith("/") ? base : base + "/");
+        concurrency = (int) options.getNumber("concurrency", 8);
+        warmupMS = (long) (options.getNumber("warmup", 30) * 1000);
+        durationMS = (long) (options.getNumber("duration", 120) * 1000);
+        startupTimeoutMS = (long) (options.getNumber("startup-timeout", 120) * 1000);
+        images = Weighted.parse(options.getString("images", "flower.jpg:1,concert.jpg:1,blue-bricks.jpg:1"));
+        endpoints = Weighted.parse(
+                options.getString("endpoints", "main-OKlab-colors:4,colorcount:1,greyscale:1"));
+        report = Paths.get(options.getString("report", "target/loadtest-report.json"));
+        String gcLogOption = options.getString("gc-log", null);
+        gcLog = gcLogOption == null || gcLogOption.isEmpty() ? null : Paths.get(gcLogOption);
+        maxErrorRate = options.getNumber("max-error-rate", 0.001);
+        maxP99MS = options.getNumber("max-p99", 0);
+        options.checkAllRead();
+        if (concurrency < 1 || durationMS < 1000 || warmupMS < 0) {
+            throw new IllegalArgumentException("concurrency must be at least 1 and duration at least 1 second");
+        }
+    }
+
+    /**
+     * Wait for the server, send requests for the warmup and the duration and write the report.
+     * @return the report, as written to the report file.
+     */
+    public Map<String, Object> run() throws IOException, InterruptedException {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        HttpRequest[][] requests = createRequests();
+        waitForServer(client);
+
+        log.info("Sending requests with {} workers for {}s warmup and {}s measurement to {}",
+                 concurrency, warmupMS / 1000, durationMS / 1000, url);
+        long measureStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmupMS);
+        long end = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMS);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        List<Future<Map<String, Recorder>>> results = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            long seed = i;
+            results.add(workers.submit(() -> work(client, requests, new Random(seed), measureStart, end)));
+        }
+        workers.shutdown();
+
+        TimeUnit.NANOSECONDS.sleep(measureStart - System.nanoTime());
+        long gcLogOffset = gcLog != null && Files.exists(gcLog) ? Files.size(gcLog) : 0;
+        log.info("Warmup finished, measuring");
+        if (!workers.awaitTermination(durationMS + 2 * REQUEST_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+            workers.shutdownNow();
+            throw new IllegalStateException("The workers did not finish within the request timeout");
+        }
+
+        Map<String, Recorder> recorders = new TreeMap<>();
+        for (Future<Map<String, Recorder>> result : results) {
+            try {
+                result.get().forEach((endpoint, recorder) ->
+                                             recorders.computeIfAbsent(endpoint, e -> new Recorder()).add(recorder));
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("A worker failed", e.getCause());
+            }
+        }
+        Map<String, Object> result = createReport(recorders, gcLog == null ? null : GcLog.parse(gcLog, gcLogOffset));
+        writeReport(result);
+        return result;
+    }
+
+    /**
+     * {@link #run()} the load test, but write a report with the failure instead of throwing if it fails, so that
+     * {@link #check(Map)} fails the build later.
+     */
+    void runWithoutFailing() throws IOException, InterruptedException {
+        try {
+            run();
+        } catch (IOException | RuntimeException e) {
+            log.error("The load test failed", e);
+            writeReport(Collections.singletonMap("failure", e.toString()));
+        }
+    }
+
+    private void writeReport(Map<String, Object> result) throws IOException {
+        if (report.getParent() != null) {
+            Files.createDirectories(report.getParent());
+        }
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(report.toFile(), result);
+        log.info("Wrote report to {}", report);
+    }
+
+    /**
+     * @return the report written by {@link #run()} or {@link #runWithoutFailing()}.
+     * @throws IllegalStateException if there is no report.
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Object> readReport() throws IOException {
+        if (!Files.exists(report)) {
+            throw new IllegalStateException("Load test failed: there is no report at " + report);
+        }
+        return new ObjectMapper().readValue(report.toFile(), Map.class);
+    }
+
+    /**
+     * @return the requests for all combinations of endpoint and image, indexed as the weighted mixes.
+     */
+    private HttpRequest[][] createRequests() throws IOException {
+        HttpRequest[][] requests = new HttpRequest[endpoints.size()][images.size()];
+        for (int i = 0; i < images.size(); i++) {
+            String image = images.get(i);
+            byte[] content = readImage(image);
+            for (int e = 0; e < endpoints.size(); e++) {
+                String endpoint = endpoints.get(e);
+                byte[] body = multipart(image, content, ENDPOINT_FIELDS.getOrDefault(endpoint, Collections.emptyMap()));
+                requests[e][i] = HttpRequest.newBuilder(url.resolve(endpoint))
+                        .timeout(REQUEST_TIMEOUT)
+                        .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                        .build();
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * @param image a resource on the class path, e.g. one of the test images, or a file.
+     */
+    private static byte[] readImage(String image) throws IOException {
+        URL resource = LoadTestRunner.class.getClassLoader().getResource(image);
+        if (resource != null) {
+            try (InputStream in = resource.openStream()) {
+                return in.readAllBytes();
+            }
+        }
+        Path file = Paths.get(image);
+        if (!Files.isRegularFile(file)) {
+            throw new IllegalArgumentException("The image '" + image + "' is neither a resource nor a file");
+        }
+        return Files.readAllBytes(file);
+    }
+
+    static byte[] multipart(String filename, byte[] image, Map<String, String> fields) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(image.length + 1024);
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            body.write(("--" + BOUNDARY + "\r\n" +
+                        "Content-Disposition: form-data; name=\"" + field.getKey() + "\"\r\n\r\n" +
+                        field.getValue() + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        body.write(("--" + BOUNDARY + "\r\n" +
+                    "Content-Disposition: form-data; name=\"image\"; filename=\"" +
+                    Paths.get(filename).getFileName() + "\"\r\n" +
+                    "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(image);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return body.toByteArray();
+    }
+
+    private void waitForServer(HttpClient client) throws InterruptedException {
+        HttpRequest status = HttpRequest.newBuilder(url.resolve("monitor/status"))
+                .timeout(Duration.ofSeconds(10))
+                .build();
+        long deadline = System.currentTimeMillis() + startupTimeoutMS;
+        while (true) {
+            try {
+                if (client.send(status, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                log.debug("The server is not ready: {}", e.toString());
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("The server at " + url + " did not respond within " +
+                                                startupTimeoutMS / 1000 + " seconds");
+            }
+            Thread.sleep(500);
+        }
+    }
+
+    /**
+     * Send requests until the end and record those started after the warmup.
+     * @return the recorded requests for each endpoint.
+     */
+    private Map<String, Recorder> work(HttpClient client, HttpRequest[][] requests, Random random,
+                                       long measureStart, long end) {
+        Map<String, Recorder> recorders = new HashMap<>();
+        long start;
+        while ((start = System.nanoTime()) < end) {
+            int endpoint = endpoints.pick(random);
+            HttpRequest request = requests[endpoint][images.pick(random)];
+            long bytes = 0;
+            String error = null;
+            try {
+                HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream in = response.body()) {
+                    bytes = in.transferTo(OutputStream.nullOutputStream());
+                }
+                if (response.statusCode() != 200) {
+                    error = "HTTP " + response.statusCode();
+                }
+            } catch (IOException e) {
+                error = e.getClass().getSimpleName();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (start >= measureStart) {
+                recorders.computeIfAbsent(endpoints.get(endpoint), e -> new Recorder())
+                        .record(System.nanoTime() - start, bytes, error);
+            }
+        }
+        return recorders;
+    }
+
+    private Map<String, Object> createReport(Map<String, Recorder> recorders, GcLog gc) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("url", url.toString());
+        result.put("concurrency", concurrency);
+        result.put("durationSeconds", durationMS / 1000.0);
+        result.put("images", images.toString());
+        result.put("endpoints", endpoints.toString());
+
+        Recorder total = new Recorder();
+        Map<String, Object> perEndpoint = new LinkedHashMap<>();
+        for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+            perEndpoint.put(entry.getKey(), entry.getValue().summarize(durationMS));
+            log.info("{}: {}", entry.getKey(), entry.getValue().describe(durationMS));
+            total.add(entry.getValue());
+        }
+        result.put("total", total.summarize(durationMS));
+        log.info("Total: {}", total.describe(durationMS));
+        result.put("endpointResults", perEndpoint);
+
+        if (gc != null) {
+            Map<String, Object> gcResult = new LinkedHashMap<>();
+            gcResult.put("pauses", gc.getPauses());
+            gcResult.put("totalPauseMS", gc.getTotalPauseMS());
+            gcResult.put("maxPauseMS", gc.getMaxPauseMS());
+            gcResult.put("pauseShare", gc.getTotalPauseMS() / durationMS);
+            gcResult.put("maxHeapBeforeMB", gc.getMaxHeapBeforeMB());
+            gcResult.put("maxHeapAfterMB", gc.getMaxHeapAfterMB());
+            gcResult.put("maxCommittedMB", gc.getMaxCommittedMB());
+            result.put("gc", gcResult);
+            log.info("Server {}", gc);
+        }
+        return result;
+    }
+
+    /**
+     * @throws IllegalStateException if the report exceeds the limits for errors or latency.
+     */
+    @SuppressWarnings("unchecked")
+    void check(Map<String, Object> report) {
+        if (report.containsKey("failure")) {
+            throw new IllegalStateException("Load test failed: " + report.get("failure"));
+        }
+        // Numbers are Integer or Double when the report has been read back from JSON
+        Map<String, Object> total = (Map<String, Object>) report.get("total");
+        long requests = ((Number) total.get("requests")).longValue();
+        double errorRate = ((Number) total.get("errorRate")).doubleValue();
+        double p99MS = ((Number) total.get("p99MS")).doubleValue();
+        List<String> failures = new ArrayList<>();
+        if (requests == 0) {
+            failures.add("no requests were completed");
+        } else if (errorRate > maxErrorRate) {
+            failures.add(String.format(Locale.ROOT, "the error rate %.4f exceeds %.4f", errorRate, maxErrorRate));
+        }
+        if (maxP99MS > 0 && p99MS > maxP99MS) {
+            failures.add(String.format(Locale.ROOT, "the 99th percentile latency %.1fms exceeds %.1fms",
+                                       p99MS, maxP99MS));
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Load test failed: " + String.join(", ", failures));
+        }
+    }
+
+    /**
+     * Latencies, response sizes and errors of the requests to an endpoint.
+     */
+    static class Recorder {
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private long bytes = 0;
+        private final Map<String, Long> errors = new TreeMap<>();
+
+        void record(long latencyNS, long responseBytes, String error) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNS;
+            bytes += responseBytes;
+            if (error != null) {
+                errors.merge(error, 1L, Long::sum);
+            }
+        }
+
+        void add(Recorder other) {
+            for (int i = 0; i < other.count; i++) {
+                record(other.latencies[i], 0, null);
+            }
+            bytes += other.bytes;
+            other.errors.forEach((error, errorCount) -> errors.merge(error, errorCount, Long::sum));
+        }
+
+        long getErrorCount() {
+            long sum = 0;
+            for (long errorCount : errors.values()) {
+                sum += errorCount;
+            }
+            return sum;
+        }
+
+        /**
+         * @param fraction between 0 and 1.
+         * @return the latency in milliseconds that the fraction of the requests were at or below.
+         */
+        double percentileMS(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int index = Math.max(0, (int) Math.ceil(fraction * count) - 1);
+            return sorted[Math.min(index, count - 1)] / 1_000_000.0;
+        }
+
+        Map<String, Object> summarize(long durationMS) {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("requests", (long) count);
+            summary.put("requestsPerSecond", count * 1000.0 / durationMS);
+            summary.put("responseMBPerSecond", bytes / 1048576.0 * 1000 / durationMS);
+            summary.put("errors", getErrorCount());
+            summary.put("errorRate", count == 0 ? 0.0 : (double) getErrorCount() / count);
+            summary.put("errorTypes", new TreeMap<>(errors));
+            summary.put("p50MS", percentileMS(0.5));
+            summary.put("p90MS", percentileMS(0.9));
+            summary.put("p99MS", percentileMS(0.99));
+            summary.put("p999MS", percentileMS(0.999));
+            summary.put("maxMS", percentileMS(1));
+            return summary;
+        }
+
+        String describe(long durationMS) {
+            return String.format(Locale.ROOT, "%d requests, %.1f/s, p50=%.1fms, p90=%.1fms, p99=%.1fms, " +
+                                              "p99.9=%.1fms, max=%.1fms, errors=%s",
+                                 count, count * 1000.0 / durationMS, percentileMS(0.5), percentileMS(0.9),
+                                 percentileMS(0.99), percentileMS(0.999), percentileMS(1), errors);
+        }
+    }
+
+    /**
+     * Values with weights, picked at random in proportion to the weights.
+     */
+    static class Weighted<T> {
+        private final List<T> values = new ArrayList<>();
+        private final List<Integer> cumulative = new ArrayList<>();
+        private int total = 0;
+
+        /**
+         * @param mix values with optional integer weights, e.g. {@code flower.jpg:3,concert.jpg}. The default weight
+         *            is 1.
+         */
+        static Weighted<String> parse(String mix) {
+            Weighted<String> weighted = new Weighted<>();
+            for (String entry : mix.split(",")) {
+                entry = entry.trim();
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                int colon = entry.lastIndexOf(':');
+                int weight = 1;
+                if (colon != -1) {
+                    try {
+                        weight = Integer.parseInt(entry.substring(colon + 1));
+                        entry = entry.substring(0, colon);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Expected value:weight but got '" + entry + "'");
+                    }
+                }
+                weighted.add(entry, weight);
+            }
+            if (weighted.size() == 0) {
+                throw new IllegalArgumentException("No values in the mix '" + mix + "'");
+            }
+            return weighted;
+        }
+
+        void add(T value, int weight) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("The weight of '" + value + "' must be at least 1");
+            }
+            total += weight;
+            values.add(value);
+            cumulative.add(total);
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        T get(int index) {
+            return values.get(index);
+        }
+
+        /**
+         * @return the index of a value picked in proportion to its weight.
+         */
+        int pick(Random random) {
+            int target = random.nextInt(total);
+            for (int i = 0; i < cumulative.size(); i++) {
+                if (target < cumulative.get(i)) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("The cumulative weights must end with the total");
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder mix = new StringBuilder();
+            for (int i = 0; i < values.size(); i++) {
+                mix.append(i == 0 ? "" : ",").append(values.get(i)).append(':')
+                        .append(cumulative.get(i) - (i == 0 ? 0 : cumulative.get(i - 1)));
+            }
+            return mix.toString();
+        }
+    }
+}
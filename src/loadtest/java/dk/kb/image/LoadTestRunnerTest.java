@@ -0,0 +1,131 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LoadTestRunnerTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    private HttpServer server;
+    private final AtomicInteger withTopColors = new AtomicInteger();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/monitor/status", exchange -> respond(exchange, 200));
+        server.createContext("/v1/main-OKlab-colors", exchange -> {
+            byte[] request = exchange.getRequestBody().readAllBytes();
+            if (new String(request, StandardCharsets.ISO_8859_1).contains("name=\"top-colors\"")) {
+                withTopColors.incrementAndGet();
+            }
+            respond(exchange, 200);
+        });
+        server.createContext("/v1/colorcount", exchange -> respond(exchange, 500));
+        server.start();
+    }
+
+    private static void respond(HttpExchange exchange, int status) throws IOException {
+        exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+        byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRun(@TempDir Path dir) throws IOException, InterruptedException {
+        Path gcLog = dir.resolve("gc.log");
+        Files.write(gcLog, "[1.000s][info][gc] GC(0) Pause Young (Normal) (G1 Evacuation Pause) 90M->10M(256M) 3.0ms\n"
+                .getBytes(StandardCharsets.UTF_8));
+        LoadTestRunner runner = LoadTestRunner.fromArgs(
+                "--url=http://localhost:" + server.getAddress().getPort() + "/v1",
+                "--concurrency=2", "--warmup=0", "--duration=1", "--startup-timeout=5",
+                "--images=flower.jpg:2,concert.jpg", "--endpoints=main-OKlab-colors:9,colorcount:1",
+                "--report=" + dir.resolve("report.json"), "--gc-log=" + gcLog);
+        Map<String, Object> report = runner.run();
+        log.info("Report: {}", report);
+        assertTrue(Files.exists(dir.resolve("report.json")));
+
+        Map<String, Object> endpoints = (Map<String, Object>) report.get("endpointResults");
+        Map<String, Object> okLab = (Map<String, Object>) endpoints.get("main-OKlab-colors");
+        Map<String, Object> colorCount = (Map<String, Object>) endpoints.get("colorcount");
+        assertTrue((long) okLab.get("requests") > 0);
+        assertEquals(0L, okLab.get("errors"));
+        assertTrue(withTopColors.get() >= (long) okLab.get("requests"),
+                   "Requests for OKlab colors should have the top-colors field");
+        assertEquals(colorCount.get("requests"), colorCount.get("errors"));
+        assertTrue(((Map<String, Object>) colorCount.get("errorTypes")).containsKey("HTTP 500"));
+        assertEquals(0L, ((Map<String, Object>) report.get("gc")).get("pauses"),
+                     "Pauses before the measurement should not be counted");
+
+        IllegalStateException failure = assertThrows(IllegalStateException.class, () -> runner.check(report));
+        assertTrue(failure.getMessage().contains("error rate"));
+    }
+
+    @Test
+    public void testWeighted() {
+        LoadTestRunner.Weighted<String> weighted = LoadTestRunner.Weighted.parse("a:3, b ,c:6");
+        assertEquals("a:3,b:1,c:6", weighted.toString());
+        int[] picks = new int[weighted.size()];
+        Random random = new Random(87);
+        for (int i = 0; i < 10000; i++) {
+            picks[weighted.pick(random)]++;
+        }
+        assertEquals(3000, picks[0], 300);
+        assertEquals(1000, picks[1], 300);
+        assertEquals(6000, picks[2], 300);
+
+        assertThrows(IllegalArgumentException.class, () -> LoadTestRunner.Weighted.parse("a:0"));
+        assertThrows(IllegalArgumentException.class, () -> LoadTestRunner.Weighted.parse(","));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LoadTestRunner.Recorder recorder = new LoadTestRunner.Recorder();
+        for (int i = 100; i >= 1; i--) {
+            recorder.record(i * 1_000_000L, 10, i % 50 == 0 ? "HTTP 503" : null);
+        }
+        assertEquals(50.0, recorder.percentileMS(0.5), 0.001);
+        assertEquals(99.0, recorder.percentileMS(0.99), 0.001);
+        assertEquals(100.0, recorder.percentileMS(1), 0.001);
+        assertEquals(2, recorder.getErrorCount());
+    }
+
+    @Test
+    public void testArguments() {
+        assertThrows(IllegalArgumentException.class, LoadTestRunner::fromArgs, "The url is required");
+        assertThrows(IllegalArgumentException.class, () -> LoadTestRunner.fromArgs("--url=http://localhost/", "x"));
+        assertThrows(IllegalArgumentException.class,
+                     () -> LoadTestRunner.fromArgs("--url=http://localhost/", "--unknown=1"));
+        assertThrows(IllegalArgumentException.class,
+                     () -> LoadTestRunner.fromArgs("--url=http://localhost/", "--concurrency=0"));
+    }
+}
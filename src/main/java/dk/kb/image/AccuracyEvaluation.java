@@ -0,0 +1,438 @@
+package dk.kb.image;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Command line evaluation of the accuracy and speed of approximate OKlab color analysis compared to the exact
+ * analysis, for choosing the defaults of the endpoints.
+ * <p>
+ * For each image in a directory tree, the OKlab histogram is calculated with the exact pipeline, where all pixels of
+ * the image in full resolution are counted with the lookup from {@link LookupTableCache}, and with the approximate
+ * pipeline given by the arguments: sampling (see {@link Sampling}), decoding with a pixel budget and another bucket
+ * lookup. Both timings include decoding, as a smaller pixel budget makes decoding faster. The report has, per image
+ * and summarized for the corpus:
+ * </p>
+ * <ul>
+ *     <li>the speedup of the approximate pipeline, the exact time divided by the approximate time</li>
+ *     <li>the fraction of the exact top-x buckets that are also in the approximate top-x ({@code topOverlap}) and
+ *     the fraction of the ranks that hold the same bucket ({@code rankAgreement})</li>
+ *     <li>the L1 distance between the histograms as fractions of the pixels, from 0 for equal to 2 for disjoint</li>
+ *     <li>the maximum error of the percentage of a bucket, in percentage points</li>
+ * </ul>
+ * <p>
+ * The report is written as JSON, with the configuration, so reports for different approximations can be compared.
+ * </p>
+ */
+public class AccuracyEvaluation {
+    private static final Logger log = LoggerFactory.getLogger(AccuracyEvaluation.class);
+
+    static final String USAGE =
+            "Usage: AccuracyEvaluation <root> [--output=accuracy.json] [--top-colors=10] [--palette=smk]\n" +
+            "       [--sampling=none|stratified|stride] [--precision=0] [--max-samples=1000000]\n" +
+            "       [--pixel-budget=0] [--lookup=table|coarse|exact] [--repetitions=3]\n" +
+            "       [--extensions=jpg,jpeg,png,tif,tiff,gif,bmp]";
+
+    /**
+     * The bucket lookups for the approximate pipeline.
+     */
+    public enum Lookup {
+        /**
+         * The lookup from {@link LookupTableCache}, as used by the exact pipeline.
+         */
+        TABLE,
+        /**
+         * A {@link CoarseBucketLookup} of the table.
+         */
+        COARSE,
+        /**
+         * {@link ExactBucketLookup}, calculating the distances for each color.
+         */
+        EXACT
+    }
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private final Path root;
+    private final Path output;
+    private final int topColors;
+    private final ColorPalette palette;
+    private final Sampling sampling;
+    private final long pixelBudget;
+    private final Lookup lookup;
+    private final int repetitions;
+    private final Set<String> extensions;
+    private final Map<String, Object> configuration = new LinkedHashMap<>();
+
+    /**
+     * Evaluate the approximate analysis of the images in a directory tree, see {@link #USAGE}.
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, Object> summary = fromArgs(args).run();
+        log.info("Finished: {}", summary);
+    }
+
+    /**
+     * @param args the root directory and options as {@code --name=value}, see {@link #USAGE}.
+     * @throws IllegalArgumentException if the arguments are invalid.
+     */
+    public static AccuracyEvaluation fromArgs(String... args) {
+        CommandLineOptions options = CommandLineOptions.parse(USAGE, "root", args);
+        return new AccuracyEvaluation(Paths.get(options.getArgument()), options);
+    }
+
+    private AccuracyEvaluation(Path root, CommandLineOptions options) {
+        this.root = root.toAbsolutePath().normalize();
+        if (!Files.isDirectory(this.root)) {
+            throw new IllegalArgumentException("The root '" + root + "' is not a directory");
+        }
+        output = Paths.get(options.getString("output", "accuracy.json"));
+        topColors = options.getInt("top-colors", 10);
+        palette = ColorPalette.get(options.getString("palette", ColorPalette.getDefault().getName()));
+        String strategy = options.getString("sampling", "none");
+        String precision = options.getString("precision", null);
+        String maxSamples = options.getString("max-samples", null);
+        try {
+            sampling = "none".equalsIgnoreCase(strategy) ? null : Sampling.of(
+                    precision == null ? 0f : Float.parseFloat(precision),
+                    maxSamples == null ? Sampling.DEFAULT_MAX_SAMPLES : Integer.parseInt(maxSamples), strategy);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The precision must be a number and max-samples an integer");
+        }
+        pixelBudget = options.getInt("pixel-budget", 0);
+        String lookupName = options.getString("lookup", "table");
+        try {
+            lookup = Lookup.valueOf(lookupName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown lookup '" + lookupName + "'");
+        }
+        repetitions = options.getInt("repetitions", 3);
+        extensions = options.getExtensions("extensions", "jpg,jpeg,png,tif,tiff,gif,bmp");
+        options.checkAllRead();
+        if (topColors < 1 || repetitions < 1) {
+            throw new IllegalArgumentException("top-colors and repetitions must be at least 1");
+        }
+        configuration.put("root", this.root.toString());
+        configuration.put("topColors", topColors);
+        configuration.put("palette", palette.getName());
+        configuration.put("sampling", sampling == null ? "none" : sampling.toString());
+        configuration.put("pixelBudget", pixelBudget);
+        configuration.put("lookup", lookup.name().toLowerCase(Locale.ROOT));
+        configuration.put("repetitions", repetitions);
+    }
+
+    /**
+     * Evaluate all images in the tree and write the report.
+     * @return the summary of the report.
+     */
+    public Map<String, Object> run() throws IOException {
+        BucketLookup approximateLookup = createLookup();
+        List<Comparison> comparisons = new ArrayList<>();
+        List<Map<String, String>> failures = new ArrayList<>();
+        Iterator<Path> files = new DirectoryAnalysis.SortedWalk(root, extensions, null);
+        while (files.hasNext()) {
+            Path file = files.next();
+            String path = DirectoryAnalysis.toRelative(root.relativize(file));
+            try {
+                Comparison comparison = evaluate(file, approximateLookup);
+                comparison.path = path;
+                log.info("{}: {}", path, comparison);
+                comparisons.add(comparison);
+            } catch (Exception | OutOfMemoryError e) {
+                log.warn("Unable to evaluate '{}': {}", file, e.toString());
+                Map<String, String> failure = new LinkedHashMap<>();
+                failure.put("path", path);
+                failure.put("error", e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+                failures.add(failure);
+            }
+        }
+
+        Map<String, Object> summary = summarize(comparisons);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("configuration", configuration);
+        report.put("summary", summary);
+        report.put("images", comparisons);
+        report.put("failures", failures);
+        if (output.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(output.toAbsolutePath().getParent());
+        }
+        JSON_MAPPER.writerWithDefaultPrettyPrinter().writeValue(output.toFile(), report);
+        log.info("Wrote report for {} images to {}", comparisons.size(), output);
+        return summary;
+    }
+
+    private BucketLookup createLookup() {
+        switch (lookup) {
+            case COARSE:
+                return CoarseBucketLookup.of(LookupTableCache.getLookup(palette));
+            case EXACT:
+                return new ExactBucketLookup(palette.getOkLabColors());
+            default:
+                return LookupTableCache.getLookup(palette);
+        }
+    }
+
+    /**
+     * Run both pipelines on the image the given number of repetitions and compare the histograms.
+     */
+    Comparison evaluate(Path file, BucketLookup approximateLookup) throws IOException {
+        int[] exact = null;
+        int[] approximate = null;
+        long exactNS = Long.MAX_VALUE;
+        long approximateNS = Long.MAX_VALUE;
+        long pixels = 0;
+        for (int i = 0; i < repetitions; i++) {
+            long start = System.nanoTime();
+            try (ImageDecoder decoder = open(file, 0)) {
+                pixels = (long) decoder.getWidth() * decoder.getHeight();
+                MostUsedOkLabColor analysis = new MostUsedOkLabColor(palette);
+                exact = decoder.isStripDecoding() ?
+                        analysis.getHistogram(decoder).getCounts() :
+                        analysis.getHistogram(decoder.readImage()).getCounts();
+            }
+            exactNS = Math.min(exactNS, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            approximate = analyseApproximate(file, approximateLookup);
+            approximateNS = Math.min(approximateNS, System.nanoTime() - start);
+        }
+        Comparison comparison = Comparison.of(exact, approximate, topColors);
+        comparison.pixels = pixels;
+        comparison.exactMS = exactNS / 1_000_000.0;
+        comparison.approximateMS = approximateNS / 1_000_000.0;
+        return comparison;
+    }
+
+    private int[] analyseApproximate(Path file, BucketLookup approximateLookup) throws IOException {
+        MostUsedOkLabColor analysis = new MostUsedOkLabColor(palette, approximateLookup);
+        try (ImageDecoder decoder = open(file, pixelBudget)) {
+            if (sampling != null) {
+                BufferedImage image = decoder.readImage();
+                return analysis.getSampledBucketCount(image, analysis.defineBuckets(), sampling, topColors);
+            }
+            return decoder.isStripDecoding() ?
+                    analysis.getHistogram(decoder).getCounts() :
+                    analysis.getHistogram(decoder.readImage()).getCounts();
+        }
+    }
+
+    private static ImageDecoder open(Path file, long pixelBudget) throws IOException {
+        ImageDecoder decoder = ImageDecoder.open(file, pixelBudget);
+        if (decoder == null) {
+            throw new IOException("The format of the image is not supported");
+        }
+        return decoder;
+    }
+
+    /**
+     * @return the corpus summary: the geometric mean of the speedups, and the mean and worst of the accuracy measures.
+     */
+    static Map<String, Object> summarize(List<Comparison> comparisons) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("images", comparisons.size());
+        if (comparisons.isEmpty()) {
+            return summary;
+        }
+        double logSpeedups = 0;
+        double topOverlap = 0;
+        double rankAgreement = 0;
+        double l1Distance = 0;
+        double maxBucketError = 0;
+        Comparison worstTopOverlap = comparisons.get(0);
+        Comparison worstL1Distance = comparisons.get(0);
+        Comparison worstBucketError = comparisons.get(0);
+        for (Comparison comparison : comparisons) {
+            logSpeedups += Math.log(comparison.getSpeedup());
+            topOverlap += comparison.topOverlap;
+            rankAgreement += comparison.rankAgreement;
+            l1Distance += comparison.l1Distance;
+            maxBucketError += comparison.maxBucketErrorPercent;
+            worstTopOverlap = comparison.topOverlap < worstTopOverlap.topOverlap ? comparison : worstTopOverlap;
+            worstL1Distance = comparison.l1Distance > worstL1Distance.l1Distance ? comparison : worstL1Distance;
+            worstBucketError = comparison.maxBucketErrorPercent > worstBucketError.maxBucketErrorPercent ?
+                    comparison : worstBucketError;
+        }
+        int n = comparisons.size();
+        summary.put("speedup", Math.exp(logSpeedups / n));
+        summary.put("meanTopOverlap", topOverlap / n);
+        summary.put("minTopOverlap", worstTopOverlap.topOverlap);
+        summary.put("minTopOverlapImage", worstTopOverlap.path);
+        summary.put("meanRankAgreement", rankAgreement / n);
+        summary.put("meanL1Distance", l1Distance / n);
+        summary.put("maxL1Distance", worstL1Distance.l1Distance);
+        summary.put("maxL1DistanceImage", worstL1Distance.path);
+        summary.put("meanMaxBucketErrorPercent", maxBucketError / n);
+        summary.put("maxBucketErrorPercent", worstBucketError.maxBucketErrorPercent);
+        summary.put("maxBucketErrorImage", worstBucketError.path);
+        return summary;
+    }
+
+    /**
+     * The comparison of the exact and approximate histograms of an image.
+     */
+    public static class Comparison {
+        private String path;
+        private long pixels;
+        private double exactMS;
+        private double approximateMS;
+        private double topOverlap;
+        private double rankAgreement;
+        private double l1Distance;
+        private double maxBucketErrorPercent;
+
+        /**
+         * Compare the histograms. Only buckets with pixels count in the top-x rankings, so an image with fewer
+         * colors than x is compared on the colors it has.
+         * @param exact       the bucket counts of the exact analysis.
+         * @param approximate the bucket counts of the approximate analysis, e.g. of a sample of the pixels.
+         * @param x           the number of top buckets to compare.
+         */
+        static Comparison of(int[] exact, int[] approximate, int x) {
+            if (exact.length != approximate.length) {
+                throw new IllegalArgumentException("The histograms have " + exact.length + " and " +
+                                                   approximate.length + " buckets");
+            }
+            Comparison comparison = new Comparison();
+            double exactTotal = sum(exact);
+            double approximateTotal = sum(approximate);
+            for (int i = 0; i < exact.length; i++) {
+                double difference = Math.abs(fraction(exact[i], exactTotal) - fraction(approximate[i], approximateTotal));
+                comparison.l1Distance += difference;
+                comparison.maxBucketErrorPercent = Math.max(comparison.maxBucketErrorPercent, difference * 100);
+            }
+
+            int[] exactTop = top(exact, x);
+            int[] approximateTop = top(approximate, x);
+            if (exactTop.length == 0) {
+                comparison.topOverlap = approximateTop.length == 0 ? 1 : 0;
+                comparison.rankAgreement = comparison.topOverlap;
+                return comparison;
+            }
+            int overlap = 0;
+            int sameRank = 0;
+            for (int rank = 0; rank < exactTop.length; rank++) {
+                for (int bucket : approximateTop) {
+                    if (bucket == exactTop[rank]) {
+                        overlap++;
+                        break;
+                    }
+                }
+                if (rank < approximateTop.length && approximateTop[rank] == exactTop[rank]) {
+                    sameRank++;
+                }
+            }
+            comparison.topOverlap = (double) overlap / exactTop.length;
+            comparison.rankAgreement = (double) sameRank / exactTop.length;
+            return comparison;
+        }
+
+        private static long sum(int[] counts) {
+            long sum = 0;
+            for (int count : counts) {
+                sum += count;
+            }
+            return sum;
+        }
+
+        private static double fraction(int count, double total) {
+            return total == 0 ? 0 : count / total;
+        }
+
+        /**
+         * @return the indexes of the top-x buckets with pixels, ordered by count.
+         */
+        private static int[] top(int[] counts, int x) {
+            int[] top = TopBuckets.select(counts, x);
+            int nonEmpty = 0;
+            while (nonEmpty < top.length && counts[top[nonEmpty]] > 0) {
+                nonEmpty++;
+            }
+            return nonEmpty == top.length ? top : Arrays.copyOf(top, nonEmpty);
+        }
+
+        /**
+         * @return the path of the image relative to the root, with {@code /} as separator.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the number of pixels in the image in full resolution.
+         */
+        public long getPixels() {
+            return pixels;
+        }
+
+        /**
+         * @return the fastest time of the exact pipeline, including decoding.
+         */
+        public double getExactMS() {
+            return exactMS;
+        }
+
+        /**
+         * @return the fastest time of the approximate pipeline, including decoding.
+         */
+        public double getApproximateMS() {
+            return approximateMS;
+        }
+
+        /**
+         * @return the exact time divided by the approximate time.
+         */
+        public double getSpeedup() {
+            return approximateMS == 0 ? 1 : exactMS / approximateMS;
+        }
+
+        /**
+         * @return the fraction of the exact top-x buckets that are also in the approximate top-x.
+         */
+        public double getTopOverlap() {
+            return topOverlap;
+        }
+
+        /**
+         * @return the fraction of the exact top-x ranks where the approximate ranking has the same bucket.
+         */
+        public double getRankAgreement() {
+            return rankAgreement;
+        }
+
+        /**
+         * @return the sum of the absolute differences of the bucket fractions, from 0 to 2.
+         */
+        public double getL1Distance() {
+            return l1Distance;
+        }
+
+        /**
+         * @return the largest absolute difference of the percentage of a bucket, in percentage points.
+         */
+        public double getMaxBucketErrorPercent() {
+            return maxBucketErrorPercent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Comparison(speedup=%.2f, topOverlap=%.2f, rankAgreement=%.2f, " +
+                                              "l1Distance=%.4f, maxBucketError=%.3fpp)",
+                                 getSpeedup(), topOverlap, rankAgreement, l1Distance, maxBucketErrorPercent);
+        }
+    }
+}
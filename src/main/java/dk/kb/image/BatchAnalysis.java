@@ -0,0 +1,170 @@
+package dk.kb.image;
+
+import dk.kb.image.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent analysis of many images, such as the parts of a batch request.
+ * <p>
+ * Each image is decoded and analysed as a single task on a shared pool with a fixed number of threads, so decoding
+ * of some images overlaps analysis of others. At most {@link #IN_FLIGHT_PER_THREAD} tasks per thread from a single
+ * batch are submitted at a time, so concurrent batches share the pool and cancelling a batch is cheap.
+ * Results are delivered in completion order on the calling thread, and a failed task is delivered as an error
+ * without affecting the rest of the batch.
+ * </p>
+ * <p>
+ * The size of the pool is set in the configuration with the key {@code config.batch.threads}.
+ * </p>
+ */
+public class BatchAnalysis {
+    private static final Logger log = LoggerFactory.getLogger(BatchAnalysis.class);
+
+    /**
+     * The number of tasks from a batch that are submitted per thread in the pool, so that threads do not wait for
+     * the next task while the results of the previous ones are delivered.
+     */
+    static final int IN_FLIGHT_PER_THREAD = 2;
+
+    private static ExecutorService pool;
+    private static int poolThreads;
+
+    /**
+     * Receives the outcome of each task in a batch.
+     * @param <T> the result of a task.
+     */
+    @FunctionalInterface
+    public interface ResultHandler<T> {
+        /**
+         * @param index  the position of the task in the batch.
+         * @param result the result of the task, null if it failed.
+         * @param error  the reason the task failed, null if it succeeded.
+         * @throws IOException if the result could not be delivered. The remaining tasks are cancelled.
+         */
+        void handle(int index, T result, Exception error) throws IOException;
+    }
+
+    private BatchAnalysis() {
+    }
+
+    /**
+     * @return the shared pool for batch analysis. The pool is created on first call.
+     */
+    static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            poolThreads = ServiceConfig.getBatchThreads();
+            log.info("Creating pool with {} threads for batch analysis", poolThreads);
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory factory = runnable -> {
+                Thread thread = new Thread(runnable, "batch-analysis-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            pool = Executors.newFixedThreadPool(poolThreads, factory);
+        }
+        return pool;
+    }
+
+    /**
+     * Shut down the shared pool. It will be re-created if {@link #getPool()} is called again.
+     */
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Run the tasks on the shared pool and deliver the outcomes in completion order. Returns when all outcomes have
+     * been delivered.
+     * @param tasks   the tasks in the batch.
+     * @param handler receives the outcome of each task on the calling thread.
+     * @throws IOException if the handler failed. Tasks that have not completed are cancelled.
+     */
+    public static <T> void process(List<? extends Callable<T>> tasks, ResultHandler<T> handler) throws IOException {
+        ExecutorService executor = getPool();
+        int maxInFlight;
+        synchronized (BatchAnalysis.class) {
+            maxInFlight = poolThreads * IN_FLIGHT_PER_THREAD;
+        }
+        process(tasks, handler, executor, maxInFlight);
+    }
+
+    /**
+     * Run the tasks on the given executor with at most maxInFlight tasks submitted at a time and deliver the
+     * outcomes in completion order.
+     */
+    static <T> void process(List<? extends Callable<T>> tasks, ResultHandler<T> handler,
+                            ExecutorService executor, int maxInFlight) throws IOException {
+        CompletionService<Outcome<T>> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Outcome<T>>> inFlight = new ArrayList<>();
+        int submitted = 0;
+        int delivered = 0;
+        try {
+            while (delivered < tasks.size()) {
+                while (submitted < tasks.size() && submitted - delivered < maxInFlight) {
+                    inFlight.add(completion.submit(new Outcome<>(submitted, tasks.get(submitted))));
+                    submitted++;
+                }
+                Future<Outcome<T>> future = completion.take();
+                inFlight.remove(future);
+                Outcome<T> outcome = future.get();
+                delivered++;
+                handler.handle(outcome.index, outcome.result, outcome.error);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for batch analysis", e);
+        } catch (ExecutionException e) {
+            // Outcome catches all exceptions, so this only happens on errors such as OutOfMemoryError
+            throw new IOException("Batch analysis failed", e.getCause());
+        } finally {
+            if (!inFlight.isEmpty()) {
+                log.debug("Cancelling {} batch tasks after {}/{} results", inFlight.size(), delivered, tasks.size());
+                for (Future<Outcome<T>> future : inFlight) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a task and holds either its result or the exception it threw.
+     */
+    private static class Outcome<T> implements Callable<Outcome<T>> {
+        private final int index;
+        private final Callable<T> task;
+        private T result;
+        private Exception error;
+
+        Outcome(int index, Callable<T> task) {
+            this.index = index;
+            this.task = task;
+        }
+
+        @Override
+        public Outcome<T> call() {
+            try {
+                result = task.call();
+            } catch (Exception e) {
+                log.debug("Batch task #{} failed", index, e);
+                error = e;
+            }
+            return this;
+        }
+    }
+}
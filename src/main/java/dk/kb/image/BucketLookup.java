@@ -0,0 +1,22 @@
+package dk.kb.image;
+
+/**
+ * Finds the closest bucket in a palette for RGB colors.
+ * Implementations must be safe to use from multiple threads, as large images are counted in parallel.
+ */
+public interface BucketLookup {
+
+    /**
+     * @param rgb an RGB color. Alpha is ignored.
+     * @return the index of the closest bucket in the palette.
+     */
+    int getBucket(int rgb);
+
+    /**
+     * Count the buckets for a block of pixels.
+     * @param pixels        RGB colors of the pixels. Alpha is ignored.
+     * @param length        the number of pixels, starting at index 0.
+     * @param bucketCounter the count for each bucket, updated with the pixels.
+     */
+    void countBuckets(int[] pixels, int length, int[] bucketCounter);
+}
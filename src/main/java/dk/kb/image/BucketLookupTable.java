@@ -0,0 +1,262 @@
+package dk.kb.image;
+
+import dk.kb.image.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Lookup table from every 24 bit RGB color to the index of the closest bucket in a palette.
+ * <p>
+ * The table is stored in a self-describing binary format: A header of {@link #HEADER_SIZE} bytes followed by one
+ * entry of {@link #ENTRY_WIDTH} byte for each of the {@link #ENTRY_COUNT} RGB colors, ordered by {@code rgb & 0xFFFFFF}.
+ * All header values are big endian:
+ * </p>
+ * <pre>
+ * offset  size  content
+ *      0     4  magic "KBLT"
+ *      4     4  format version, currently {@link #VERSION}
+ *      8     8  palette hash, see {@link #paletteHash(List)}
+ *     16     4  entry width in bytes
+ *     20     4  number of entries
+ *     24     4  number of colors in the palette
+ *     28     8  CRC32 of the entries
+ *     36    28  reserved, zeroes
+ * </pre>
+ * <p>
+ * At runtime the table is extracted once from the class path to a local cache directory, configured with
+ * {@code config.lookupTable.cacheDir}, and accessed through a read-only {@link MappedByteBuffer}. This keeps the table
+ * off the heap and lets the operating system share the pages between JVMs on the same host.
+ * </p>
+ */
+public class BucketLookupTable implements BucketLookup {
+    private static final Logger log = LoggerFactory.getLogger(BucketLookupTable.class);
+
+    /**
+     * The class path resource holding the table for {@link PalettePicker#smkOkLabBuckets()} with CIEDE2000 distance.
+     * Generated with {@link ColorConversion#main(String[])}.
+     */
+    public static final String OKLAB_RESOURCE = "OklabBucketEntriesForAllRgbColors.lut";
+
+    static final byte[] MAGIC = "KBLT".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int ENTRY_WIDTH = 1;
+    static final int ENTRY_COUNT = 1 << 24;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static BucketLookupTable okLab;
+
+    private final ByteBuffer entries;
+    private final long paletteHash;
+    private final int paletteSize;
+
+    private BucketLookupTable(ByteBuffer entries, long paletteHash, int paletteSize) {
+        this.entries = entries;
+        this.paletteHash = paletteHash;
+        this.paletteSize = paletteSize;
+    }
+
+    /**
+     * Get the lookup table for the SMK palette in the OKlab colorspace. The table is extracted and mapped on first
+     * call.
+     * @return the table for {@link PalettePicker#smkOkLabBuckets()}.
+     * @throws IllegalStateException if the table could not be loaded or does not match the palette.
+     */
+    public static synchronized BucketLookupTable getOkLab() {
+        if (okLab == null) {
+            try (InputStream resource = Thread.currentThread().getContextClassLoader().getResourceAsStream(OKLAB_RESOURCE)) {
+                if (resource == null) {
+                    throw new IllegalStateException(
+                            "The bucket lookup table resource '" + OKLAB_RESOURCE + "' is not on the class path");
+                }
+                okLab = load(resource, ServiceConfig.getLookupTableCacheDir(), OKLAB_RESOURCE,
+                             PalettePicker.smkOkLabBuckets());
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to load the bucket lookup table '" + OKLAB_RESOURCE + "'", e);
+            }
+        }
+        return okLab;
+    }
+
+    /**
+     * Map a table from the cache directory, extracting it from the resource first if it is not already there or if the
+     * cached copy is invalid.
+     * @param resource the table in the binary format.
+     * @param cacheDir the directory to extract the table to.
+     * @param name     the name of the table, used for the file name in the cache directory.
+     * @param palette  the palette that the table must have been generated for.
+     * @return the mapped table.
+     * @throws IllegalStateException if the table was generated for another palette.
+     */
+    static BucketLookupTable load(InputStream resource, Path cacheDir, String name, List<Float> palette)
+            throws IOException {
+        long expectedHash = paletteHash(palette);
+        Path cached = cacheDir.resolve(String.format(Locale.ROOT, "%s-v%d-%016x", name, VERSION, expectedHash));
+        if (Files.exists(cached)) {
+            try {
+                return open(cached, palette);
+            } catch (IOException | IllegalStateException e) {
+                log.warn("The cached bucket lookup table '{}' is invalid and will be extracted again", cached, e);
+            }
+        }
+        extract(resource, cached);
+        return open(cached, palette);
+    }
+
+    /**
+     * Copy the resource to the target file through a temporary file in the same folder, so that other JVMs never see
+     * a partially written table.
+     */
+    private static void extract(InputStream resource, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.copy(resource, tmp, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            log.info("Extracted bucket lookup table to '{}'", target);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Map a table file and validate its header and checksum.
+     * @param file    the table in the binary format.
+     * @param palette the palette that the table must have been generated for.
+     * @return the mapped table.
+     * @throws IOException           if the file is not a valid table.
+     * @throws IllegalStateException if the table was generated for another palette.
+     */
+    static BucketLookupTable open(Path file, List<Float> palette) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != HEADER_SIZE + (long) ENTRY_WIDTH * ENTRY_COUNT) {
+                throw new IOException("The bucket lookup table '" + file + "' has size " + channel.size() +
+                                      " bytes, expected " + (HEADER_SIZE + (long) ENTRY_WIDTH * ENTRY_COUNT));
+            }
+            // The mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapped.order(ByteOrder.BIG_ENDIAN);
+
+        byte[] magic = new byte[MAGIC.length];
+        mapped.duplicate().get(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("The file '" + file + "' is not a bucket lookup table");
+        }
+        int version = mapped.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("The bucket lookup table '" + file + "' has version " + version +
+                                  ", expected " + VERSION);
+        }
+        if (mapped.getInt(16) != ENTRY_WIDTH || mapped.getInt(20) != ENTRY_COUNT) {
+            throw new IOException("The bucket lookup table '" + file + "' has " + mapped.getInt(20) +
+                                  " entries of " + mapped.getInt(16) + " bytes, expected " + ENTRY_COUNT +
+                                  " entries of " + ENTRY_WIDTH + " bytes");
+        }
+        long paletteHash = mapped.getLong(8);
+        long expectedHash = paletteHash(palette);
+        if (paletteHash != expectedHash || mapped.getInt(24) != palette.size()) {
+            throw new IllegalStateException(String.format(
+                    Locale.ROOT, "The bucket lookup table '%s' was generated for a palette of %d colors with hash " +
+                                 "%016x, but the palette has %d colors with hash %016x. Regenerate the table",
+                    file, mapped.getInt(24), paletteHash, palette.size(), expectedHash));
+        }
+
+        ByteBuffer entries = mapped.duplicate().position(HEADER_SIZE).slice();
+        CRC32 crc = new CRC32();
+        crc.update(entries.duplicate());
+        if (crc.getValue() != mapped.getLong(28)) {
+            throw new IOException("The checksum of the bucket lookup table '" + file + "' does not match its entries");
+        }
+        log.info("Mapped bucket lookup table '{}' for palette {}", file, String.format(Locale.ROOT, "%016x", paletteHash));
+        return new BucketLookupTable(entries, paletteHash, palette.size());
+    }
+
+    /**
+     * Write a table in the binary format.
+     * @param out     destination for the table. The stream is not closed.
+     * @param entries the bucket index for each RGB color, ordered by {@code rgb & 0xFFFFFF}.
+     * @param palette the palette that the entries refer to.
+     */
+    public static void write(OutputStream out, byte[] entries, List<Float> palette) throws IOException {
+        if (entries.length != ENTRY_COUNT * ENTRY_WIDTH) {
+            throw new IllegalArgumentException("There must be " + ENTRY_COUNT + " entries but there were " +
+                                               entries.length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(entries);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(paletteHash(palette));
+        header.putInt(ENTRY_WIDTH);
+        header.putInt(ENTRY_COUNT);
+        header.putInt(palette.size());
+        header.putLong(crc.getValue());
+        out.write(header.array());
+        out.write(entries);
+    }
+
+    /**
+     * Calculate a 64 bit FNV-1a hash of the palette, from the bits of each float in order.
+     * @param palette the colors in the palette.
+     * @return the hash of the palette.
+     */
+    public static long paletteHash(List<Float> palette) {
+        long hash = FNV_OFFSET_BASIS;
+        for (Float color : palette) {
+            int bits = Float.floatToRawIntBits(color);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                hash ^= (bits >>> shift) & 0xFF;
+                hash *= FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public int getBucket(int rgb) {
+        return Byte.toUnsignedInt(entries.get(rgb & 0xFFFFFF));
+    }
+
+    @Override
+    public void countBuckets(int[] pixels, int length, int[] bucketCounter) {
+        final ByteBuffer lookup = entries;
+        for (int i = 0; i < length; i++) {
+            bucketCounter[Byte.toUnsignedInt(lookup.get(pixels[i] & 0xFFFFFF))]++;
+        }
+    }
+
+    public long getPaletteHash() {
+        return paletteHash;
+    }
+
+    public int getPaletteSize() {
+        return paletteSize;
+    }
+}
@@ -0,0 +1,207 @@
+package dk.kb.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates the {@link BucketLookupTable} for the SMK palette in the OKlab colorspace, by finding the bucket with the
+ * smallest CIEDE2000 distance for every 24 bit RGB color.
+ * <p>
+ * Each RGB color is converted to OKlab once and the OKlab values of the buckets are kept in primitive arrays, so the
+ * inner loop over the buckets does not allocate. The RGB colors are split into ranges that are processed on a
+ * {@link ForkJoinPool}, each range writing directly into its part of the preallocated table.
+ * </p>
+ * <p>
+ * The generator is run by Maven in the {@code process-classes} phase, writing the table to
+ * {@code target/classes/}{@link BucketLookupTable#OKLAB_RESOURCE}. Generation is skipped if a valid table for the
+ * current palette is already present.
+ * </p>
+ */
+public class BucketLookupTableGenerator {
+    private static final Logger log = LoggerFactory.getLogger(BucketLookupTableGenerator.class);
+
+    /**
+     * The number of RGB colors processed by a single task. 64K colors means 256 tasks for the full table.
+     */
+    static final int COLORS_PER_TASK = 1 << 16;
+
+    /**
+     * Generate the OKlab lookup table.
+     * @param args the file to write the table to, defaulting to {@code target/classes/}{@link BucketLookupTable#OKLAB_RESOURCE},
+     *             and optionally the number of threads to use, defaulting to the number of available processors.
+     */
+    public static void main(String[] args) throws IOException {
+        Path output = args.length > 0 ? Paths.get(args[0]) : Paths.get("target/classes", BucketLookupTable.OKLAB_RESOURCE);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        writeOkLabTable(output, threads, false);
+    }
+
+    /**
+     * Generate the lookup table for {@link PalettePicker#smkOkLabBuckets()} and write it to the output file.
+     * @param output  the file to write the table to.
+     * @param threads the number of threads to use.
+     * @param force   if false, the table is only generated if the output is missing or not a valid table for the
+     *                palette.
+     */
+    public static void writeOkLabTable(Path output, int threads, boolean force) throws IOException {
+        writeTable(output, PalettePicker.smkOkLabBuckets(), threads, force);
+    }
+
+    /**
+     * Generate the lookup table for a palette and write it to the output file.
+     * @param output  the file to write the table to.
+     * @param palette the buckets as OKlab colors.
+     * @param threads the number of threads to use.
+     * @param force   if false, the table is only generated if the output is missing or not a valid table for the
+     *                palette.
+     */
+    public static void writeTable(Path output, List<Float> palette, int threads, boolean force) throws IOException {
+        if (!force && Files.exists(output)) {
+            try {
+                BucketLookupTable.open(output, palette);
+                log.info("The bucket lookup table '{}' is up to date", output);
+                return;
+            } catch (IOException | IllegalStateException e) {
+                log.info("The bucket lookup table '{}' will be generated again: {}", output, e.getMessage());
+            }
+        }
+
+        long startTime = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        byte[] entries;
+        try {
+            entries = generate(palette, pool);
+        } finally {
+            pool.shutdown();
+        }
+        log.info("Generated bucket lookup table for {} colors with {} threads in {} seconds",
+                 entries.length, threads, (System.nanoTime() - startTime) / 1_000_000_000);
+
+        Path parent = output.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, output.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                BucketLookupTable.write(out, entries, palette);
+            }
+            Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        log.info("Wrote bucket lookup table to '{}'", output);
+    }
+
+    /**
+     * Find the closest bucket for every 24 bit RGB color.
+     * @param palette the buckets as OKlab colors.
+     * @param pool    the pool to process the ranges of colors on.
+     * @return the bucket index for every RGB color, ordered by {@code rgb & 0xFFFFFF}.
+     */
+    static byte[] generate(List<Float> palette, ForkJoinPool pool) {
+        byte[] entries = new byte[BucketLookupTable.ENTRY_COUNT];
+        pool.invoke(new RangeTask(new Buckets(palette), entries, 0, entries.length));
+        return entries;
+    }
+
+    /**
+     * Find the closest bucket for the RGB colors from start (inclusive) to end (exclusive).
+     * @param buckets the buckets to choose from.
+     * @param entries the table to write the bucket indexes to.
+     */
+    static void generate(Buckets buckets, byte[] entries, int start, int end) {
+        float[] lab = new float[3];
+        for (int rgb = start; rgb < end; rgb++) {
+            toLab(rgb, lab);
+            entries[rgb] = (byte) buckets.closest(lab[0], lab[1], lab[2]);
+        }
+    }
+
+    /**
+     * Convert an RGB color to OKlab, the same way as {@link ColorConversion#calculateCiede2000Distance(int, Float)}.
+     */
+    private static void toLab(int rgb, float[] lab) {
+        // Opaque, as the colors in the table are created with new Color(r, g, b)
+        float okLab = ColorConversion.convertRGBtoOKlab(0xFF000000 | rgb);
+        float[] channels = ColorConversion.convertOKlabFloatToFloatArray(okLab);
+        lab[0] = channels[0];
+        lab[1] = channels[1];
+        lab[2] = channels[2];
+    }
+
+    /**
+     * The L, a and b values of the buckets as primitive arrays.
+     */
+    static class Buckets {
+        private final double[] bucketL;
+        private final double[] bucketA;
+        private final double[] bucketB;
+
+        Buckets(List<Float> palette) {
+            bucketL = new double[palette.size()];
+            bucketA = new double[palette.size()];
+            bucketB = new double[palette.size()];
+            for (int i = 0; i < palette.size(); i++) {
+                float[] lab = ColorConversion.convertOKlabFloatToFloatArray(palette.get(i));
+                bucketL[i] = lab[0];
+                bucketA[i] = lab[1];
+                bucketB[i] = lab[2];
+            }
+        }
+
+        /**
+         * @return the index of the bucket with the smallest CIEDE2000 distance to the color. On ties the first
+         *         bucket is used.
+         */
+        int closest(double l, double a, double b) {
+            int bestColor = 0;
+            double minDistance = Double.MAX_VALUE;
+            for (int i = 0; i < bucketL.length; i++) {
+                double distance = ColorConversion.calculateCiede2000Distance(
+                        l, a, b, bucketL[i], bucketA[i], bucketB[i]);
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    bestColor = i;
+                }
+            }
+            return bestColor;
+        }
+    }
+
+    /**
+     * Splits a range of RGB colors in halves until it is small enough to be processed directly.
+     */
+    private static class RangeTask extends RecursiveAction {
+        private final Buckets buckets;
+        private final byte[] entries;
+        private final int start;
+        private final int end;
+
+        RangeTask(Buckets buckets, byte[] entries, int start, int end) {
+            this.buckets = buckets;
+            this.entries = entries;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= COLORS_PER_TASK) {
+                generate(buckets, entries, start, end);
+                return;
+            }
+            int middle = start + (end - start) / 2;
+            invokeAll(new RangeTask(buckets, entries, start, middle), new RangeTask(buckets, entries, middle, end));
+        }
+    }
+}
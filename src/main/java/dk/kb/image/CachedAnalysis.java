@@ -0,0 +1,81 @@
+package dk.kb.image;
+
+import dk.kb.image.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+
+/**
+ * The result of analysing an uploaded image together with the scale the image was decoded at, as held in the shared
+ * {@link ResultCache} for analysis results.
+ * <p>
+ * The cache is keyed by the content hash of the upload, see {@link UploadBuffer}, followed by the operation and its
+ * parameters. It is bounded by {@code config.resultCache.maxEntries} and {@code config.resultCache.maxBytes}.
+ * </p>
+ */
+public class CachedAnalysis {
+    private static final Logger log = LoggerFactory.getLogger(CachedAnalysis.class);
+
+    /**
+     * Rough estimates of the heap used by a result, for bounding the size of the cache.
+     */
+    private static final long BASE_BYTES = 128;
+    private static final long ELEMENT_BYTES = 128;
+
+    private static ResultCache<CachedAnalysis> cache;
+
+    private final Object result;
+    private final String scale;
+
+    /**
+     * @param result the result of the analysis, which must not be modified after it has been cached.
+     * @param scale  the scale the image was decoded at, see {@link ImageDecoder#getScale()}.
+     */
+    public CachedAnalysis(Object result, String scale) {
+        this.result = result;
+        this.scale = scale;
+    }
+
+    /**
+     * @return the shared cache for analysis results, or null if it is disabled. The cache is created on first call.
+     */
+    public static synchronized ResultCache<CachedAnalysis> getCache() {
+        if (cache == null && ServiceConfig.getResultCacheMaxEntries() > 0) {
+            cache = new ResultCache<>(ServiceConfig.getResultCacheMaxEntries(), ServiceConfig.getResultCacheMaxBytes(),
+                                      CachedAnalysis::estimateBytes);
+            log.info("Created {}", cache);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the shared cache for analysis results if it has been created by {@link #getCache()}, else null.
+     */
+    static synchronized ResultCache<CachedAnalysis> getCreatedCache() {
+        return cache;
+    }
+
+    /**
+     * @return the result of the analysis.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getResult() {
+        return (T) result;
+    }
+
+    /**
+     * @return the scale the image was decoded at.
+     */
+    public String getScale() {
+        return scale;
+    }
+
+    /**
+     * @return the estimated number of bytes used by the result.
+     */
+    long estimateBytes() {
+        long elements = result instanceof Collection ? ((Collection<?>) result).size() : 1;
+        return BASE_BYTES + elements * ELEMENT_BYTES;
+    }
+}
@@ -0,0 +1,157 @@
+package dk.kb.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A compact alternative to the full {@link BucketLookupTable}, giving the same bucket for every RGB color.
+ * <p>
+ * The RGB cube is divided into a coarse grid of {@link #CELL_COUNT} cells, using the upper {@link #BITS_PER_CHANNEL}
+ * bits of each channel. Most cells lie inside the region of a single bucket, so the cell stores that bucket directly.
+ * Cells on the boundary between buckets point to a refinement block holding the bucket for each of the
+ * {@link #CELL_SIZE} colors in the cell. The grid takes 1 MB and each refinement block 64 bytes, which is typically a
+ * fraction of the 16 MB of the full table, and lookups for colors inside uniform cells only touch the grid.
+ * </p>
+ */
+public class CoarseBucketLookup implements BucketLookup {
+    private static final Logger log = LoggerFactory.getLogger(CoarseBucketLookup.class);
+
+    /**
+     * The number of upper bits of each channel used for the grid.
+     */
+    static final int BITS_PER_CHANNEL = 6;
+    static final int CELL_COUNT = 1 << (3 * BITS_PER_CHANNEL);
+    /**
+     * The number of RGB colors in each cell.
+     */
+    static final int CELL_SIZE = 1 << (3 * (8 - BITS_PER_CHANNEL));
+
+    private static final int FINE_BITS = 8 - BITS_PER_CHANNEL;
+    private static final int CHANNEL_MASK = (1 << BITS_PER_CHANNEL) - 1;
+    private static final int FINE_MASK = (1 << FINE_BITS) - 1;
+
+    /**
+     * The bucket for uniform cells, or the bitwise complement of the refinement block index for mixed cells.
+     */
+    private final int[] cells;
+    /**
+     * {@link #CELL_SIZE} bucket indexes for each mixed cell, ordered by {@link #fineIndex(int)}.
+     */
+    private final byte[] refinements;
+    private final int mixedCells;
+
+    private CoarseBucketLookup(int[] cells, byte[] refinements, int mixedCells) {
+        this.cells = cells;
+        this.refinements = refinements;
+        this.mixedCells = mixedCells;
+    }
+
+    /**
+     * Build the coarse lookup by querying the source for every RGB color.
+     * @param source an exact lookup, normally a {@link BucketLookupTable}. Buckets must be below 256.
+     * @return a lookup giving the same bucket as the source for every RGB color.
+     */
+    public static CoarseBucketLookup of(BucketLookup source) {
+        long startTime = System.nanoTime();
+        int[] cells = new int[CELL_COUNT];
+        byte[] refinements = new byte[CELL_COUNT / 8 * CELL_SIZE];
+        byte[] block = new byte[CELL_SIZE];
+        int mixedCells = 0;
+        for (int cell = 0; cell < CELL_COUNT; cell++) {
+            int first = -1;
+            boolean uniform = true;
+            for (int fine = 0; fine < CELL_SIZE; fine++) {
+                int bucket = source.getBucket(toRGB(cell, fine));
+                block[fine] = (byte) bucket;
+                if (first == -1) {
+                    first = bucket;
+                } else if (bucket != first) {
+                    uniform = false;
+                }
+            }
+            if (uniform) {
+                cells[cell] = first;
+                continue;
+            }
+            int offset = mixedCells * CELL_SIZE;
+            if (offset + CELL_SIZE > refinements.length) {
+                refinements = Arrays.copyOf(refinements, refinements.length * 2);
+            }
+            System.arraycopy(block, 0, refinements, offset, CELL_SIZE);
+            cells[cell] = ~mixedCells;
+            mixedCells++;
+        }
+        CoarseBucketLookup lookup = new CoarseBucketLookup(
+                cells, Arrays.copyOf(refinements, mixedCells * CELL_SIZE), mixedCells);
+        log.info("Built {} in {} ms", lookup, (System.nanoTime() - startTime) / 1_000_000);
+        return lookup;
+    }
+
+    @Override
+    public int getBucket(int rgb) {
+        int value = cells[cellIndex(rgb)];
+        return value >= 0 ? value : Byte.toUnsignedInt(refinements[(~value) * CELL_SIZE + fineIndex(rgb)]);
+    }
+
+    @Override
+    public void countBuckets(int[] pixels, int length, int[] bucketCounter) {
+        final int[] grid = cells;
+        final byte[] fine = refinements;
+        for (int i = 0; i < length; i++) {
+            int rgb = pixels[i];
+            int value = grid[cellIndex(rgb)];
+            bucketCounter[value >= 0 ? value : Byte.toUnsignedInt(fine[(~value) * CELL_SIZE + fineIndex(rgb)])]++;
+        }
+    }
+
+    /**
+     * @return the index of the grid cell for the color, from the upper bits of each channel.
+     */
+    static int cellIndex(int rgb) {
+        return ((rgb >>> (16 + FINE_BITS)) & CHANNEL_MASK) << (2 * BITS_PER_CHANNEL) |
+               ((rgb >>> (8 + FINE_BITS)) & CHANNEL_MASK) << BITS_PER_CHANNEL |
+               ((rgb >>> FINE_BITS) & CHANNEL_MASK);
+    }
+
+    /**
+     * @return the index of the color within its cell, from the lower bits of each channel.
+     */
+    static int fineIndex(int rgb) {
+        return ((rgb >>> 16) & FINE_MASK) << (2 * FINE_BITS) |
+               ((rgb >>> 8) & FINE_MASK) << FINE_BITS |
+               (rgb & FINE_MASK);
+    }
+
+    /**
+     * @return the 24 bit RGB color for the given cell and index within the cell.
+     */
+    static int toRGB(int cell, int fine) {
+        int red = (cell >>> (2 * BITS_PER_CHANNEL)) << FINE_BITS | (fine >>> (2 * FINE_BITS));
+        int green = ((cell >>> BITS_PER_CHANNEL) & CHANNEL_MASK) << FINE_BITS | ((fine >>> FINE_BITS) & FINE_MASK);
+        int blue = (cell & CHANNEL_MASK) << FINE_BITS | (fine & FINE_MASK);
+        return red << 16 | green << 8 | blue;
+    }
+
+    /**
+     * @return the number of cells that span more than one bucket and have a refinement block.
+     */
+    public int getMixedCells() {
+        return mixedCells;
+    }
+
+    /**
+     * @return the approximate number of bytes used by the lookup.
+     */
+    public long getSizeBytes() {
+        return (long) cells.length * Integer.BYTES + refinements.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "CoarseBucketLookup(cells=%d, mixed=%d (%.1f%%), size=%.1f MB)",
+                             CELL_COUNT, mixedCells, mixedCells * 100.0 / CELL_COUNT, getSizeBytes() / 1048576.0);
+    }
+}
@@ -17,10 +17,11 @@ public class ColorConversion {
 
     /**
      * Main method generates OKLab bucket entries for all hex RGB colors.
-     * The method is used to generate the resource: OklabBucketEntriesForAllRgbColors
+     * The method is used to generate the resource: {@link BucketLookupTable#OKLAB_RESOURCE}
+     * @see BucketLookupTableGenerator#main(String[])
      */
     public static void main(String[] args) throws IOException {
-        ColorConversion.allRgbColorsToOkLabBuckets();
+        BucketLookupTableGenerator.main(args);
     }
     /**
      * Convert a String[] of hex RGB colors into a float[] of OKlab colors.
@@ -110,28 +111,20 @@ public class ColorConversion {
 
     /**
      * Create a file of bytes, that contains entries in OK Lab colorspace buckets for every color in the RGB color space.
-     * This method is used to create the resource BucketEntriesForAllRgbColors and can be used to recreate the file if lost.
-     * The method calculates which color from the chosen palette each color from the RGB color space is closest to and saves the calculated entries as raw bytes.
+     * This method is used to create the resource {@link BucketLookupTable#OKLAB_RESOURCE} and can be used to recreate the file if lost.
+     * The method calculates which color from the chosen palette each color from the RGB color space is closest to and saves the calculated entries
+     * in the format described in {@link BucketLookupTable}.
      */
     public static void allRgbColorsToOkLabBuckets() throws IOException {
-        Color x;
-        List<Float> buckets = PalettePicker.smkOkLabBuckets();
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-        for (int r = 0; r < 256; r++) {
-            for (int g = 0; g < 256; g++) {
-                for (int b = 0; b < 256; b++) {
-                    x = new Color(r, g, b);
-                    writeEntryByteForColorToOutputStream(x, buckets, out);
-                }
-            }
-        }
-        log.info("Writing outputstream size: " + out.size() + " bytes." );
-        try (OutputStream outputStream = new FileOutputStream("src/main/resources/BucketEntriesForAllRgbColors")) {
-            out.writeTo(outputStream);
-        }
+        BucketLookupTableGenerator.writeOkLabTable(
+                new File("src/main/resources", BucketLookupTable.OKLAB_RESOURCE).toPath(),
+                Runtime.getRuntime().availableProcessors(), true);
     }
 
+    /**
+     * Calculate the closest bucket for a single color and write its index to the output stream.
+     * This is the reference implementation for {@link BucketLookupTableGenerator}, which is used for the full table.
+     */
     static void writeEntryByteForColorToOutputStream(Color x, List<Float> buckets, ByteArrayOutputStream out) {
         int colorInt = x.getRGB();
         int bestColor = 0;
@@ -167,12 +160,17 @@ public class ColorConversion {
         float[] bucketFloatArray = ColorConversion.convertOKlabFloatToFloatArray(bucket);
         // Extract L, A and B values from input arrays.
         // Furthermore, converts floats to doubles to make precise calculation
-        double L1 = pixelFloatArray[0];
-        double a1 = pixelFloatArray[1];
-        double b1 = pixelFloatArray[2];
-        double L2 = bucketFloatArray[0];
-        double a2 = bucketFloatArray[1];
-        double b2 = bucketFloatArray[2];
+        return calculateCiede2000Distance(pixelFloatArray[0], pixelFloatArray[1], pixelFloatArray[2],
+                                          bucketFloatArray[0], bucketFloatArray[1], bucketFloatArray[2]);
+    }
+
+    /**
+     * Calculate the CIEDE2000 colour difference between two colours given as L, a and b values in the OKlab colorspace.
+     * This overload does not convert or allocate, for use in tight loops where the OKlab values have been calculated up front.
+     * @return the CIE 2000 colour difference
+     * @see #calculateCiede2000Distance(int, Float)
+     */
+    public static double calculateCiede2000Distance(double L1, double a1, double b1, double L2, double a2, double b2) {
         // Calculates CIEDE2000
         double Lmean = (L1 + L2) / 2.0;
         double C1 =  Math.sqrt(a1*a1 + b1*b1);
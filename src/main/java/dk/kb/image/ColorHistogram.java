@@ -0,0 +1,49 @@
+package dk.kb.image;
+
+import java.util.Locale;
+
+/**
+ * The number of pixels in each bucket of a palette for all pixels of an image. The dominant colors for any number of
+ * top colors can be calculated from the histogram without decoding the image again, see
+ * {@link Facade#getMostUsedOKLabColors(ColorHistogram, int, ColorPalette)} and
+ * {@link Facade#getMostUsedRGBColors(ColorHistogram, int)}.
+ */
+public class ColorHistogram {
+    private final int[] counts;
+    private final long pixels;
+
+    /**
+     * @param counts the number of pixels in each bucket, in the order of the palette. The array is not copied.
+     * @param pixels the number of pixels in the image.
+     */
+    public ColorHistogram(int[] counts, long pixels) {
+        this.counts = counts;
+        this.pixels = pixels;
+    }
+
+    /**
+     * @return the number of pixels in each bucket, in the order of the palette. Must not be modified.
+     */
+    public int[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return the number of pixels in the image.
+     */
+    public long getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return the number of buckets.
+     */
+    public int getBucketCount() {
+        return counts.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "ColorHistogram(buckets=%d, pixels=%d)", counts.length, pixels);
+    }
+}
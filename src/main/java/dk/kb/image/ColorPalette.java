@@ -0,0 +1,206 @@
+package dk.kb.image;
+
+import dk.kb.image.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * A named palette of colors that pixels are bucketed into for OKlab analysis.
+ * <p>
+ * Palettes are kept in a registry. The SMK palette is always present under the name {@link #DEFAULT_NAME}, palettes
+ * defined in {@code config.palettes} are added on first lookup and further palettes can be registered at runtime with
+ * {@link #register(String, List)}.
+ * </p>
+ */
+public class ColorPalette {
+    private static final Logger log = LoggerFactory.getLogger(ColorPalette.class);
+
+    /**
+     * The name of the SMK palette, see {@link PalettePicker#SMK_HEX_PALETTE}.
+     */
+    public static final String DEFAULT_NAME = "smk";
+
+    /**
+     * The bucket lookup tables use a single byte per entry, which limits the number of colors.
+     */
+    public static final int MAX_COLORS = 256;
+
+    private static final Pattern VALID_NAME = Pattern.compile("[a-zA-Z0-9_-]{1,64}");
+    private static final Pattern VALID_HEX = Pattern.compile("#[0-9a-fA-F]{6}");
+
+    private static Map<String, ColorPalette> palettes;
+    private static final Set<String> registered = new HashSet<>();
+
+    private final String name;
+    private final List<String> hexColors;
+    private final List<Float> okLabColors;
+    private final long hash;
+
+    private ColorPalette(String name, List<String> hexColors) {
+        this.name = name;
+        this.hexColors = Collections.unmodifiableList(new ArrayList<>(hexColors));
+        this.okLabColors = Collections.unmodifiableList(
+                ColorConversion.convertHexArrayToOKlabArray(hexColors.toArray(new String[0])));
+        this.hash = BucketLookupTable.paletteHash(okLabColors);
+    }
+
+    /**
+     * @return the SMK palette.
+     */
+    public static ColorPalette getDefault() {
+        return get(DEFAULT_NAME);
+    }
+
+    /**
+     * @param name the name of a registered palette.
+     * @return the palette with the given name.
+     * @throws IllegalArgumentException if no palette with the name is registered.
+     */
+    public static synchronized ColorPalette get(String name) {
+        ColorPalette palette = getRegistry().get(name);
+        if (palette == null) {
+            throw new IllegalArgumentException("Unknown palette '" + name + "'. Known palettes are " + getRegistry().keySet());
+        }
+        return palette;
+    }
+
+    /**
+     * @return all registered palettes, ordered by name.
+     */
+    public static synchronized List<ColorPalette> list() {
+        return new ArrayList<>(getRegistry().values());
+    }
+
+    /**
+     * Register a palette, replacing any existing palette with the same name. The bucket lookup table for the palette
+     * is generated in the background, see {@link LookupTableCache}. The table for a replaced palette is discarded if
+     * no other palette has the same colors.
+     * @param name      the name of the palette. Letters, digits, {@code -} and {@code _}.
+     * @param hexColors between 1 and {@link #MAX_COLORS} distinct colors on the form {@code #RRGGBB}.
+     * @return the registered palette.
+     * @throws IllegalArgumentException if the name or the colors are invalid, if the name is {@link #DEFAULT_NAME} or
+     *                                  if the name is new and {@code config.paletteRegistration.maxPalettes} palettes
+     *                                  have already been registered.
+     */
+    public static ColorPalette register(String name, List<String> hexColors) {
+        return register(name, hexColors, ServiceConfig.getMaxRegisteredPalettes());
+    }
+
+    /**
+     * Register a palette, see {@link #register(String, List)}.
+     * @param maxPalettes the maximum number of palettes that can be registered with new names.
+     */
+    static ColorPalette register(String name, List<String> hexColors, int maxPalettes) {
+        if (DEFAULT_NAME.equals(name)) {
+            throw new IllegalArgumentException("The palette '" + DEFAULT_NAME + "' cannot be replaced");
+        }
+        ColorPalette palette = create(name, hexColors);
+        ColorPalette replaced;
+        boolean discard;
+        synchronized (ColorPalette.class) {
+            Map<String, ColorPalette> registry = getRegistry();
+            if (!registry.containsKey(name) && registered.size() >= maxPalettes) {
+                throw new IllegalArgumentException(
+                        "The palette '" + name + "' cannot be registered as the maximum of " + maxPalettes +
+                        " registered palettes has been reached. Replace an existing palette instead");
+            }
+            if (!registry.containsKey(name)) {
+                registered.add(name);
+            }
+            replaced = registry.put(name, palette);
+            discard = replaced != null &&
+                      registry.values().stream().noneMatch(other -> other.getHash() == replaced.getHash());
+        }
+        log.info("Registered palette '{}' with {} colors", name, hexColors.size());
+        if (discard) {
+            // Outside of the registry lock, as the lookup table cache looks up the default palette under its own lock
+            LookupTableCache.discard(replaced);
+        }
+        LookupTableCache.prepare(palette);
+        return palette;
+    }
+
+    /**
+     * Create a palette without registering it.
+     * @throws IllegalArgumentException if the name or the colors are invalid.
+     */
+    static ColorPalette create(String name, List<String> hexColors) {
+        if (name == null || !VALID_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException(
+                    "The palette name must be 1-64 letters, digits, '-' or '_' but was '" + name + "'");
+        }
+        if (hexColors == null || hexColors.isEmpty() || hexColors.size() > MAX_COLORS) {
+            throw new IllegalArgumentException("A palette must have between 1 and " + MAX_COLORS + " colors but had " +
+                                               (hexColors == null ? 0 : hexColors.size()));
+        }
+        Set<String> unique = new HashSet<>();
+        for (String hex : hexColors) {
+            if (hex == null || !VALID_HEX.matcher(hex).matches()) {
+                throw new IllegalArgumentException("Colors must be on the form #RRGGBB but got '" + hex + "'");
+            }
+            // Pixels go to the first of equal colors, so a duplicate would never be used
+            if (!unique.add(hex.toUpperCase(Locale.ROOT))) {
+                throw new IllegalArgumentException("The color '" + hex + "' is in the palette more than once");
+            }
+        }
+        return new ColorPalette(name, hexColors);
+    }
+
+    private static Map<String, ColorPalette> getRegistry() {
+        if (palettes == null) {
+            palettes = new TreeMap<>();
+            palettes.put(DEFAULT_NAME, new ColorPalette(DEFAULT_NAME, Arrays.asList(PalettePicker.SMK_HEX_PALETTE)));
+            for (Map.Entry<String, List<String>> configured : ServiceConfig.getPalettes().entrySet()) {
+                if (DEFAULT_NAME.equals(configured.getKey())) {
+                    log.warn("Ignoring palette '{}' from the configuration as it would replace the default palette",
+                             DEFAULT_NAME);
+                    continue;
+                }
+                palettes.put(configured.getKey(), create(configured.getKey(), configured.getValue()));
+            }
+            log.info("Palettes {} are available", palettes.keySet());
+        }
+        return palettes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the colors in the palette on the form {@code #RRGGBB}.
+     */
+    public List<String> getHexColors() {
+        return hexColors;
+    }
+
+    /**
+     * @return the colors in the palette in the OKlab colorspace, in the same order as {@link #getHexColors()}.
+     */
+    public List<Float> getOkLabColors() {
+        return okLabColors;
+    }
+
+    /**
+     * @return the hash of the OKlab colors, see {@link BucketLookupTable#paletteHash(List)}.
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "ColorPalette(name='%s', colors=%d, hash=%016x)", name, hexColors.size(), hash);
+    }
+}
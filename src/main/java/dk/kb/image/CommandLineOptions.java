@@ -0,0 +1,133 @@
+package dk.kb.image;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The arguments for the command line tools {@link DirectoryAnalysis}, {@link AccuracyEvaluation} and the load test:
+ * options as {@code --name=value} and optionally a single positional argument, e.g. the root directory.
+ * <p>
+ * Options are removed as they are read, so that {@link #checkAllRead()} can reject unknown options after the tool has
+ * read the ones it supports. All errors are {@link IllegalArgumentException}s that include the usage of the tool.
+ * </p>
+ */
+class CommandLineOptions {
+    private final String usage;
+    private final String argumentName;
+    private final String argument;
+    private final Map<String, String> options;
+
+    private CommandLineOptions(String usage, String argumentName, String argument, Map<String, String> options) {
+        this.usage = usage;
+        this.argumentName = argumentName;
+        this.argument = argument;
+        this.options = options;
+    }
+
+    /**
+     * @param usage        the usage of the tool, added to error messages.
+     * @param argumentName the name of the positional argument, e.g. {@code root}, or null if the tool only accepts
+     *                     options.
+     * @param args         the arguments as given on the command line.
+     * @throws IllegalArgumentException if an option is not {@code --name=value} or more than one positional argument
+     *                                  is given.
+     */
+    static CommandLineOptions parse(String usage, String argumentName, String... args) {
+        String argument = null;
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                if (equals == -1) {
+                    throw new IllegalArgumentException("Expected --name=value but got '" + arg + "'\n" + usage);
+                }
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            } else if (argumentName == null) {
+                throw new IllegalArgumentException("Expected --name=value but got '" + arg + "'\n" + usage);
+            } else if (argument == null) {
+                argument = arg;
+            } else {
+                throw new IllegalArgumentException(
+                        "Only one " + argumentName + " can be given, but got '" + arg + "'\n" + usage);
+            }
+        }
+        return new CommandLineOptions(usage, argumentName, argument, options);
+    }
+
+    /**
+     * @return the positional argument.
+     * @throws IllegalArgumentException if no positional argument was given.
+     */
+    String getArgument() {
+        if (argument == null) {
+            throw new IllegalArgumentException("No " + argumentName + " was given\n" + usage);
+        }
+        return argument;
+    }
+
+    /**
+     * @return the value of the option or defaultValue if the option was not given.
+     */
+    String getString(String name, String defaultValue) {
+        String value = options.remove(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @return the value of the option or defaultValue if the option was not given.
+     * @throws IllegalArgumentException if the value is not an integer.
+     */
+    int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The option --" + name + " must be an integer, but was '" + value + "'");
+        }
+    }
+
+    /**
+     * @return the value of the option or defaultValue if the option was not given or is empty.
+     * @throws IllegalArgumentException if the value is not a number.
+     */
+    double getNumber(String name, double defaultValue) {
+        String value = getString(name, null);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The option --" + name + " must be a number, but was '" + value + "'");
+        }
+    }
+
+    /**
+     * @param defaultValue comma separated file extensions, used if the option was not given.
+     * @return the comma separated file extensions of the option in lower case, without blanks.
+     */
+    Set<String> getExtensions(String name, String defaultValue) {
+        Set<String> extensions = new HashSet<>();
+        for (String extension : getString(name, defaultValue).split(",")) {
+            if (!extension.trim().isEmpty()) {
+                extensions.add(extension.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        return extensions;
+    }
+
+    /**
+     * @throws IllegalArgumentException if any of the given options has not been read.
+     */
+    void checkAllRead() {
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet() + "\n" + usage);
+        }
+    }
+}
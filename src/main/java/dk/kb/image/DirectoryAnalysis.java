@@ -0,0 +1,774 @@
+package dk.kb.image;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kb.image.model.v1.DominantColorDto;
+import org.apache.commons.csv.CSVFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line analysis of all images in a directory tree, for reprocessing full collections without the webservice.
+ * <p>
+ * The tree is walked in a stable order, with the entries of each directory sorted by name. The images are decoded and
+ * analysed with {@link FusedAnalysis} on a pool of workers, with at most {@code --queue} images in flight. The results
+ * are written to the output as CSV or JSON lines in the order of the walk, as soon as all earlier images are done.
+ * </p>
+ * <p>
+ * Every {@code --checkpoint-interval} seconds, and when the run ends or is interrupted, the output is flushed to disk
+ * and a checkpoint with the last written image and the length of the output is saved. If a checkpoint exists when the
+ * analysis is started, the output is truncated to the checkpoint and the walk continues after the last written image,
+ * so an interrupted run over millions of files resumes where it stopped. Without a checkpoint, the output is
+ * overwritten.
+ * </p>
+ * <p>
+ * The configuration is the same as for the webservice, e.g. {@code config.decode.streaming} for strip decoding of
+ * large TIFF images, but the pixel budget and the palette are given as arguments.
+ * </p>
+ */
+public class DirectoryAnalysis {
+    private static final Logger log = LoggerFactory.getLogger(DirectoryAnalysis.class);
+
+    static final String USAGE =
+            "Usage: DirectoryAnalysis <root> [--output=analysis.jsonl] [--format=jsonl|csv]\n" +
+            "       [--analyses=colorcount,rgb,oklab] [--top-colors=5] [--palette=smk] [--pixel-budget=0]\n" +
+            "       [--threads=<processors>] [--queue=<4*threads>] [--extensions=jpg,jpeg,png,tif,tiff,gif,bmp]\n" +
+            "       [--checkpoint=<output>.checkpoint] [--checkpoint-interval=60] [--progress-interval=10]";
+
+    static final int CHECKPOINT_VERSION = 1;
+
+    /**
+     * Output formats.
+     */
+    public enum Format {
+        /**
+         * Comma separated values with a header line. Colors are written as {@code #rrggbb:percent}, separated by space.
+         */
+        CSV,
+        /**
+         * A JSON object on each line, with the same fields as {@code /analyse}.
+         */
+        JSONL
+    }
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    private static final CSVFormat CSV_FORMAT = CSVFormat.DEFAULT;
+
+    private final Path root;
+    private final Path output;
+    private final Path checkpointFile;
+    private final Format format;
+    private final Set<FusedAnalysis.Analysis> analyses;
+    private final int topColors;
+    private final ColorPalette palette;
+    private final long pixelBudget;
+    private final int threads;
+    private final int queue;
+    private final Set<String> extensions;
+    private final long checkpointIntervalMS;
+    private final long progressIntervalMS;
+
+    /**
+     * Analyse the images in a directory tree, see {@link #USAGE}.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Summary summary = fromArgs(args).run();
+        log.info("Finished: {}", summary);
+    }
+
+    /**
+     * @param args the root directory and options as {@code --name=value}, see {@link #USAGE}.
+     * @throws IllegalArgumentException if the arguments are invalid.
+     */
+    public static DirectoryAnalysis fromArgs(String... args) {
+        CommandLineOptions options = CommandLineOptions.parse(USAGE, "root", args);
+        return new DirectoryAnalysis(Paths.get(options.getArgument()), options);
+    }
+
+    private DirectoryAnalysis(Path root, CommandLineOptions options) {
+        this.root = root.toAbsolutePath().normalize();
+        if (!Files.isDirectory(this.root)) {
+            throw new IllegalArgumentException("The root '" + root + "' is not a directory");
+        }
+        output = Paths.get(options.getString("output", "analysis.jsonl"));
+        checkpointFile = Paths.get(options.getString("checkpoint", output + ".checkpoint"));
+        String formatName = options.getString("format", output.toString().endsWith(".csv") ? "csv" : "jsonl");
+        try {
+            format = Format.valueOf(formatName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown format '" + formatName + "'");
+        }
+        analyses = FusedAnalysis.Analysis.of(
+                Collections.singletonList(options.getString("analyses", "colorcount,rgb,oklab")));
+        if (analyses.contains(FusedAnalysis.Analysis.GREYSCALE)) {
+            throw new IllegalArgumentException("Greyscale conversion is not supported for directory analysis");
+        }
+        topColors = options.getInt("top-colors", 5);
+        palette = ColorPalette.get(options.getString("palette", ColorPalette.getDefault().getName()));
+        pixelBudget = options.getInt("pixel-budget", 0);
+        threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+        queue = options.getInt("queue", 4 * threads);
+        extensions = options.getExtensions("extensions", "jpg,jpeg,png,tif,tiff,gif,bmp");
+        checkpointIntervalMS = options.getInt("checkpoint-interval", 60) * 1000L;
+        progressIntervalMS = options.getInt("progress-interval", 10) * 1000L;
+        options.checkAllRead();
+        if (threads < 1 || queue < threads || checkpointIntervalMS < 1000 || progressIntervalMS < 1000) {
+            throw new IllegalArgumentException("threads must be at least 1, queue at least threads and intervals " +
+                                               "at least 1 second");
+        }
+    }
+
+    /**
+     * Analyse all images in the tree that are not covered by the checkpoint, if any.
+     * @return the number of analysed images.
+     * @throws IOException          if the output or checkpoint could not be written.
+     * @throws InterruptedException if the run was interrupted. A checkpoint is saved before returning.
+     */
+    public Summary run() throws IOException, InterruptedException {
+        Checkpoint checkpoint = Checkpoint.load(checkpointFile);
+        if (checkpoint != null && !checkpoint.matches(root, format, analyses)) {
+            throw new IllegalArgumentException("The checkpoint '" + checkpointFile + "' is for another root, format " +
+                                               "or analyses. Delete it to start over");
+        }
+        FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ResultWriter writer;
+        try {
+            long start = 0;
+            if (checkpoint != null) {
+                if (channel.size() < checkpoint.outputBytes) {
+                    throw new IOException("The output '" + output + "' is shorter than recorded in the checkpoint '" +
+                                          checkpointFile + "'");
+                }
+                start = checkpoint.outputBytes;
+                log.info("Resuming after '{}' with {} files analysed before", checkpoint.lastPath, checkpoint.files);
+            }
+            channel.truncate(start);
+            channel.position(start);
+            writer = new ResultWriter(channel, start, checkpoint);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads, daemonThreads("directory-analysis-worker"));
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+                daemonThreads("directory-analysis-timer"));
+        Thread saveOnExit = new Thread(writer::checkpointQuietly, "directory-analysis-checkpoint");
+        Runtime.getRuntime().addShutdownHook(saveOnExit);
+        Progress progress = new Progress(writer);
+        Thread counter = new Thread(progress::count, "directory-analysis-count");
+        counter.setDaemon(true);
+        try {
+            counter.start();
+            timer.scheduleWithFixedDelay(writer::checkpointQuietly, checkpointIntervalMS, checkpointIntervalMS,
+                                         TimeUnit.MILLISECONDS);
+            timer.scheduleWithFixedDelay(progress::log, progressIntervalMS, progressIntervalMS,
+                                         TimeUnit.MILLISECONDS);
+            if (checkpoint == null) {
+                writer.writeHeader();
+            }
+
+            long index = 0;
+            Iterator<Path> files = new SortedWalk(root, extensions, checkpoint == null ? null : checkpoint.lastPath);
+            while (files.hasNext()) {
+                writer.awaitRoom();
+                Path file = files.next();
+                long position = index++;
+                workers.execute(() -> {
+                    try {
+                        writer.add(position, analyse(file));
+                    } catch (Throwable t) {
+                        writer.fail(t);
+                    }
+                });
+            }
+            writer.awaitWritten(index);
+            progress.log();
+        } finally {
+            counter.interrupt();
+            workers.shutdownNow();
+            timer.shutdownNow();
+            try {
+                writer.close();
+            } finally {
+                Runtime.getRuntime().removeShutdownHook(saveOnExit);
+            }
+        }
+        return writer.getSummary();
+    }
+
+    /**
+     * Decode and analyse a single image. Failures are returned as a record with an error.
+     */
+    Record analyse(Path file) {
+        String path = toRelative(root.relativize(file));
+        try (ImageDecoder decoder = ImageDecoder.open(file, pixelBudget)) {
+            if (decoder == null) {
+                return new Record(path, null, null, "The format of the image is not supported");
+            }
+            FusedAnalysis.Result result = decoder.isStripDecoding() ?
+                    Facade.getAnalysis(decoder, analyses, topColors, palette, null) :
+                    Facade.getAnalysis(decoder.readImage(), analyses, topColors, palette, null);
+            return new Record(path, decoder.getScale(), result, null);
+        } catch (Exception | OutOfMemoryError e) {
+            log.debug("Unable to analyse '{}'", file, e);
+            return new Record(path, null, null, e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+        }
+    }
+
+    /**
+     * @return the relative path with {@code /} as separator on all platforms.
+     */
+    static String toRelative(Path path) {
+        StringBuilder relative = new StringBuilder();
+        for (Path name : path) {
+            if (relative.length() > 0) {
+                relative.append('/');
+            }
+            relative.append(name);
+        }
+        return relative.toString();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The result of analysing a single image.
+     */
+    static class Record {
+        final String path;
+        final String scale;
+        final FusedAnalysis.Result result;
+        final String error;
+
+        Record(String path, String scale, FusedAnalysis.Result result, String error) {
+            this.path = path;
+            this.scale = scale;
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Writes the records in the order of the walk and saves checkpoints.
+     */
+    private class ResultWriter {
+        private final FileChannel channel;
+        private final OutputStream out;
+        private final Map<Long, Record> pending = new HashMap<>();
+        private final Semaphore room = new Semaphore(queue);
+        private final long previousFiles;
+        private final long previousErrors;
+        private long next = 0;
+        private long bytes;
+        private long errors = 0;
+        private String lastPath;
+        private Throwable failure = null;
+        private boolean closed = false;
+
+        ResultWriter(FileChannel channel, long bytes, Checkpoint checkpoint) {
+            this.channel = channel;
+            this.bytes = bytes;
+            out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            previousFiles = checkpoint == null ? 0 : checkpoint.files;
+            previousErrors = checkpoint == null ? 0 : checkpoint.errors;
+            lastPath = checkpoint == null ? null : checkpoint.lastPath;
+        }
+
+        synchronized void writeHeader() throws IOException {
+            if (format == Format.CSV) {
+                List<String> columns = new ArrayList<>(Arrays.asList("path", "scale"));
+                if (analyses.contains(FusedAnalysis.Analysis.COLORCOUNT)) {
+                    columns.add("colorCount");
+                }
+                if (analyses.contains(FusedAnalysis.Analysis.RGB)) {
+                    columns.add("rgbColors");
+                }
+                if (analyses.contains(FusedAnalysis.Analysis.OKLAB)) {
+                    columns.add("okLabColors");
+                }
+                columns.add("error");
+                write(CSV_FORMAT.format(columns.toArray()) + "\n");
+            }
+        }
+
+        /**
+         * Wait until there is room for another image in flight.
+         * @throws IOException if writing has failed.
+         */
+        void awaitRoom() throws IOException, InterruptedException {
+            room.acquire();
+            checkFailure();
+        }
+
+        /**
+         * Add the record for the image at the position in the walk and write all records that are now in order.
+         */
+        synchronized void add(long position, Record record) throws IOException {
+            if (closed) {
+                // The run was stopped, so the record would not be in the checkpoint anyway
+                return;
+            }
+            pending.put(position, record);
+            Record ready;
+            while ((ready = pending.remove(next)) != null) {
+                write(format == Format.CSV ? toCsv(ready) : toJson(ready));
+                if (ready.error != null) {
+                    errors++;
+                }
+                lastPath = ready.path;
+                next++;
+                room.release();
+            }
+            notifyAll();
+        }
+
+        private void write(String line) throws IOException {
+            byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+            out.write(encoded);
+            bytes += encoded.length;
+        }
+
+        /**
+         * Stop the run because an image could not be handled.
+         */
+        synchronized void fail(Throwable t) {
+            if (failure == null) {
+                failure = t;
+            }
+            // Unblock the walk so that it sees the failure
+            room.release(queue);
+            notifyAll();
+        }
+
+        private synchronized void checkFailure() throws IOException {
+            if (failure instanceof IOException) {
+                throw new IOException("Writing the results failed", failure);
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Analysis failed", failure);
+            }
+        }
+
+        /**
+         * Wait until the records for all images up to the position have been written.
+         */
+        void awaitWritten(long count) throws IOException, InterruptedException {
+            synchronized (this) {
+                while (next < count && failure == null) {
+                    wait();
+                }
+            }
+            checkFailure();
+        }
+
+        /**
+         * Flush the output to disk and save a checkpoint for the written records.
+         */
+        synchronized void checkpoint() throws IOException {
+            if (closed || failure != null) {
+                return;
+            }
+            out.flush();
+            channel.force(false);
+            new Checkpoint(root, format, analyses, getFiles(), previousErrors + errors, lastPath, bytes)
+                    .save(checkpointFile);
+        }
+
+        void checkpointQuietly() {
+            try {
+                checkpoint();
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to save the checkpoint '{}'", checkpointFile, e);
+            }
+        }
+
+        synchronized long getFiles() {
+            return previousFiles + next;
+        }
+
+        synchronized Summary getSummary() {
+            return new Summary(previousFiles, next, errors);
+        }
+
+        synchronized void close() throws IOException {
+            try {
+                checkpoint();
+            } finally {
+                closed = true;
+                channel.close();
+            }
+        }
+    }
+
+    private String toJson(Record record) throws IOException {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("path", record.path);
+        json.put("scale", record.scale);
+        if (record.result != null) {
+            json.put("colorCount", record.result.getColorCount());
+            json.put("rgbColors", record.result.getRgbColors());
+            json.put("okLabColors", record.result.getOkLabColors());
+        }
+        json.put("error", record.error);
+        return JSON_MAPPER.writeValueAsString(json) + "\n";
+    }
+
+    private String toCsv(Record record) {
+        List<String> fields = new ArrayList<>();
+        fields.add(record.path);
+        fields.add(record.scale);
+        FusedAnalysis.Result result = record.result;
+        if (analyses.contains(FusedAnalysis.Analysis.COLORCOUNT)) {
+            fields.add(result == null ? null : String.valueOf(result.getColorCount()));
+        }
+        if (analyses.contains(FusedAnalysis.Analysis.RGB)) {
+            fields.add(result == null ? null : toCsv(result.getRgbColors()));
+        }
+        if (analyses.contains(FusedAnalysis.Analysis.OKLAB)) {
+            fields.add(result == null ? null : toCsv(result.getOkLabColors()));
+        }
+        fields.add(record.error);
+        return CSV_FORMAT.format(fields.toArray()) + "\n";
+    }
+
+    private static String toCsv(List<DominantColorDto> colors) {
+        StringBuilder field = new StringBuilder();
+        for (DominantColorDto color : colors) {
+            if (field.length() > 0) {
+                field.append(' ');
+            }
+            field.append(color.getHexRGB()).append(':').append(String.format(Locale.ROOT, "%.2f", color.getPercent()));
+        }
+        return field.toString();
+    }
+
+    /**
+     * Counts the images in the tree in the background and logs throughput and the estimated time left.
+     */
+    private class Progress {
+        private final ResultWriter writer;
+        private final long startTime = System.nanoTime();
+        private final AtomicLong total = new AtomicLong(-1);
+
+        Progress(ResultWriter writer) {
+            this.writer = writer;
+        }
+
+        void count() {
+            long count = 0;
+            SortedWalk walk = new SortedWalk(root, extensions, null);
+            while (walk.hasNext() && !Thread.currentThread().isInterrupted()) {
+                walk.next();
+                count++;
+            }
+            if (!Thread.currentThread().isInterrupted()) {
+                total.set(count);
+                log.info("Found {} images below '{}'", count, root);
+            }
+        }
+
+        void log() {
+            Summary summary = writer.getSummary();
+            double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+            double rate = summary.getAnalysed() / Math.max(seconds, 0.001);
+            long files = summary.getFiles();
+            long totalFiles = total.get();
+            if (totalFiles < 0) {
+                log.info("Analysed {} images ({} errors) at {} images/s, counting the remaining images",
+                         files, summary.getErrors(), String.format(Locale.ROOT, "%.1f", rate));
+                return;
+            }
+            long remaining = Math.max(0, totalFiles - files);
+            log.info("Analysed {} of {} images ({} errors) at {} images/s, ETA {}",
+                     files, totalFiles, summary.getErrors(), String.format(Locale.ROOT, "%.1f", rate),
+                     rate > 0 ? formatDuration((long) (remaining / rate)) : "unknown");
+        }
+    }
+
+    /**
+     * @return the duration as {@code h:mm:ss}.
+     */
+    static String formatDuration(long seconds) {
+        return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    /**
+     * The images analysed by a run.
+     */
+    public static class Summary {
+        private final long resumed;
+        private final long analysed;
+        private final long errors;
+
+        Summary(long resumed, long analysed, long errors) {
+            this.resumed = resumed;
+            this.analysed = analysed;
+            this.errors = errors;
+        }
+
+        /**
+         * @return the number of images analysed by earlier runs, according to the checkpoint.
+         */
+        public long getResumed() {
+            return resumed;
+        }
+
+        /**
+         * @return the number of images analysed by this run.
+         */
+        public long getAnalysed() {
+            return analysed;
+        }
+
+        /**
+         * @return the number of images analysed by this run that could not be analysed.
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the number of images analysed by this and earlier runs.
+         */
+        public long getFiles() {
+            return resumed + analysed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Summary(resumed=%d, analysed=%d, errors=%d)", resumed, analysed, errors);
+        }
+    }
+
+    /**
+     * The state of a run that has been written to disk.
+     */
+    static class Checkpoint {
+        final String root;
+        final Format format;
+        final String analyses;
+        final long files;
+        final long errors;
+        final String lastPath;
+        final long outputBytes;
+
+        Checkpoint(Path root, Format format, Set<FusedAnalysis.Analysis> analyses, long files, long errors,
+                   String lastPath, long outputBytes) {
+            this(root.toString(), format, analyses.toString(), files, errors, lastPath, outputBytes);
+        }
+
+        private Checkpoint(String root, Format format, String analyses, long files, long errors, String lastPath,
+                           long outputBytes) {
+            this.root = root;
+            this.format = format;
+            this.analyses = analyses;
+            this.files = files;
+            this.errors = errors;
+            this.lastPath = lastPath;
+            this.outputBytes = outputBytes;
+        }
+
+        boolean matches(Path root, Format format, Set<FusedAnalysis.Analysis> analyses) {
+            return this.root.equals(root.toString()) && this.format == format &&
+                   this.analyses.equals(analyses.toString());
+        }
+
+        /**
+         * Write the checkpoint to a temporary file and move it in place, so a valid checkpoint exists at all times.
+         */
+        void save(Path file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("version", Integer.toString(CHECKPOINT_VERSION));
+            properties.setProperty("root", root);
+            properties.setProperty("format", format.name());
+            properties.setProperty("analyses", analyses);
+            properties.setProperty("files", Long.toString(files));
+            properties.setProperty("errors", Long.toString(errors));
+            if (lastPath != null) {
+                properties.setProperty("lastPath", lastPath);
+            }
+            properties.setProperty("outputBytes", Long.toString(outputBytes));
+
+            Path parent = file.toAbsolutePath().getParent();
+            Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try {
+                try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    properties.store(writer, "DirectoryAnalysis checkpoint");
+                }
+                try {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        /**
+         * @return the checkpoint or null if the file does not exist.
+         * @throws IOException if the file is not a valid checkpoint.
+         */
+        static Checkpoint load(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            try {
+                if (Integer.parseInt(properties.getProperty("version", "0")) != CHECKPOINT_VERSION) {
+                    throw new IOException("The checkpoint '" + file + "' has version " +
+                                          properties.getProperty("version") + ", expected " + CHECKPOINT_VERSION);
+                }
+                return new Checkpoint(properties.getProperty("root"),
+                                      Format.valueOf(properties.getProperty("format")),
+                                      properties.getProperty("analyses"),
+                                      Long.parseLong(properties.getProperty("files")),
+                                      Long.parseLong(properties.getProperty("errors")),
+                                      properties.getProperty("lastPath"),
+                                      Long.parseLong(properties.getProperty("outputBytes")));
+            } catch (RuntimeException e) {
+                throw new IOException("The checkpoint '" + file + "' is not valid", e);
+            }
+        }
+    }
+
+    /**
+     * Iterates the images in a directory tree depth first, with the entries of each directory sorted by name, so the
+     * order is stable between runs. Only the listings of the directories on the current path are held in memory.
+     * Symbolic links to directories are not followed.
+     */
+    static class SortedWalk implements Iterator<Path> {
+        private final Path root;
+        private final Set<String> extensions;
+        private final Path after;
+        private final Deque<Iterator<Path>> stack = new ArrayDeque<>();
+        private Path next;
+
+        /**
+         * @param root       the directory to walk.
+         * @param extensions the file extensions of images, in lower case.
+         * @param after      if not null, images up to and including this path relative to the root, with {@code /}
+         *                   as separator, are skipped without listing the directories that hold them.
+         */
+        SortedWalk(Path root, Set<String> extensions, String after) {
+            this.root = root;
+            this.extensions = extensions;
+            this.after = after == null ? null : root.relativize(root.resolve(after));
+            stack.push(list(root));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !stack.isEmpty()) {
+                Iterator<Path> entries = stack.peek();
+                if (!entries.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                Path entry = entries.next();
+                Path relative = root.relativize(entry);
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    if (after == null || compare(relative, after) > 0 || after.startsWith(relative)) {
+                        stack.push(list(entry));
+                    }
+                } else if (isImage(entry) && (after == null || compare(relative, after) > 0)) {
+                    next = entry;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Path next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Path result = next;
+            next = null;
+            return result;
+        }
+
+        private boolean isImage(Path file) {
+            String name = file.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            return dot != -1 && extensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT)) &&
+                   Files.isRegularFile(file);
+        }
+
+        private static Iterator<Path> list(Path directory) {
+            List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                stream.forEach(entries::add);
+            } catch (IOException e) {
+                log.warn("Unable to list the directory '{}', skipping it", directory, e);
+            }
+            entries.sort((a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString()));
+            return entries.iterator();
+        }
+
+        /**
+         * Compare relative paths in the order of the walk: name by name, with a directory before its content.
+         */
+        static int compare(Path a, Path b) {
+            int names = Math.min(a.getNameCount(), b.getNameCount());
+            for (int i = 0; i < names; i++) {
+                int result = a.getName(i).toString().compareTo(b.getName(i).toString());
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return Integer.compare(a.getNameCount(), b.getNameCount());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package dk.kb.image;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the closest bucket by calculating the CIEDE2000 distance to every color in the palette.
+ * This is used for palettes where the {@link BucketLookupTable} is not ready yet.
+ * <p>
+ * Images typically hold far fewer distinct colors than pixels, so {@link #countBuckets(int[], int, int[])} remembers
+ * the bucket for recently seen colors in a small direct-mapped cache that is local to each call.
+ * </p>
+ */
+public class ExactBucketLookup implements BucketLookup {
+    /**
+     * The number of entries in the per-call color cache. Must be a power of 2.
+     */
+    static final int CACHE_SIZE = 4096;
+
+    private final BucketLookupTableGenerator.Buckets buckets;
+
+    /**
+     * @param palette the buckets as OKlab colors.
+     */
+    public ExactBucketLookup(List<Float> palette) {
+        this.buckets = new BucketLookupTableGenerator.Buckets(palette);
+    }
+
+    @Override
+    public int getBucket(int rgb) {
+        float[] lab = ColorConversion.convertOKlabFloatToFloatArray(
+                ColorConversion.convertRGBtoOKlab(0xFF000000 | rgb));
+        return buckets.closest(lab[0], lab[1], lab[2]);
+    }
+
+    @Override
+    public void countBuckets(int[] pixels, int length, int[] bucketCounter) {
+        int[] cachedColors = new int[CACHE_SIZE];
+        int[] cachedBuckets = new int[CACHE_SIZE];
+        // -1 is never a 24 bit color, so it marks empty slots
+        Arrays.fill(cachedColors, -1);
+        for (int i = 0; i < length; i++) {
+            int rgb = pixels[i] & 0xFFFFFF;
+            int slot = (rgb ^ (rgb >>> 12)) & (CACHE_SIZE - 1);
+            if (cachedColors[slot] != rgb) {
+                cachedColors[slot] = rgb;
+                cachedBuckets[slot] = getBucket(rgb);
+            }
+            bucketCounter[cachedBuckets[slot]]++;
+        }
+    }
+}
@@ -2,76 +2,106 @@ package dk.kb.image;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Map.Entry;
-
-import javax.imageio.ImageIO;
+import java.util.Set;
 
 import dk.kb.image.model.v1.DominantColorDto;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 
 public class Facade {
     /**
-     * Get the input image as greyscale.
+     * Get the input image as greyscale, using the average of the color channels.
      * @return a JPG file as bytes.
      */
     public static byte[] getGreyscale(BufferedImage img) throws IOException{
-        // get image's width and height
-        int width = img.getWidth();
-        int height = img.getHeight();
-  
-        // convert to grayscale
-        // Nested for loop
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {               
-                // Here (x,y)denotes the coordinate of image
-                // for modifying the pixel value.
-                // Get RGB value of single pixel
-                int pixel = img.getRGB(x, y);
-                // Shifts colors bitwise right
-                int a = (pixel >> 24) & 0xff;
-                int r = (pixel >> 16) & 0xff;
-                int g = (pixel >> 8) & 0xff;
-                int b = pixel & 0xff;
-                // calculate average
-                int avg = (r + g + b) / 3;
-                // replace RGB value with avg
-                pixel = (a << 24) | (avg << 16) | (avg << 8)
-                    | avg;
-                // set pixel to grayscale colors
-                img.setRGB(x, y, pixel);
-            }
-        }
+        return getGreyscale(img, GreyscaleConverter.Mode.AVERAGE);
+    }
+
+    /**
+     * Get the input image as greyscale. The input image is not modified.
+     * @param mode how the grey values are calculated from the color channels.
+     * @return a JPG file as bytes.
+     */
+    public static byte[] getGreyscale(BufferedImage img, GreyscaleConverter.Mode mode) throws IOException{
+        return encode(GreyscaleConverter.toGrey(img, mode));
+    }
+
+    /**
+     * Get the image as greyscale, using the average of the color channels, decoding it in strips.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @return a JPG file as bytes.
+     */
+    public static byte[] getGreyscale(ImageDecoder decoder) throws IOException {
+        return getGreyscale(decoder, GreyscaleConverter.Mode.AVERAGE);
+    }
 
+    /**
+     * Get the image as greyscale, decoding it in strips.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @param mode    how the grey values are calculated from the color channels.
+     * @return a JPG file as bytes.
+     */
+    public static byte[] getGreyscale(ImageDecoder decoder, GreyscaleConverter.Mode mode) throws IOException {
+        return encode(getGreyscaleImage(decoder, mode));
+    }
+
+    /**
+     * Get the image as greyscale, decoding it in strips. Only the greyscale result with a single byte per pixel is
+     * held in memory in full, as the encoders need the complete raster.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @param mode    how the grey values are calculated from the color channels.
+     * @return an image of type {@link BufferedImage#TYPE_BYTE_GRAY}, to be encoded with {@link ImageEncoder}.
+     */
+    public static BufferedImage getGreyscaleImage(ImageDecoder decoder, GreyscaleConverter.Mode mode)
+            throws IOException {
+        BufferedImage grey = new BufferedImage(decoder.getWidth(), decoder.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+        byte[] greyPixels = ((DataBufferByte) grey.getRaster().getDataBuffer()).getData();
+        decoder.readStrips((pixels, width, y, rows) ->
+                GreyscaleConverter.convert(pixels, width * rows, greyPixels, y * width, mode));
+        return grey;
+    }
+
+    /**
+     * @return the image encoded as JPEG with the default quality.
+     */
+    private static byte[] encode(BufferedImage img) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        // Write img to ByteArrayOutputStream as jpg
-        ImageIO.write(img, "jpg", baos);
+        ImageEncoder.write(img, ImageEncoder.Format.JPEG, null, baos);
         return baos.toByteArray();
     }
 
     /**
      * Get the amount of unique colors from input image.
-     * @return a string with the count of unique colors form the input image.
-     */
-    public static int getColorCount(BufferedImage img) {
-        // Hashset is a collection that only has one of each value
-        Set<Integer> colors = new HashSet<>();
-        // get image's width and height
-        int width = img.getWidth();
-        int height = img.getHeight();
-
-        // Nested for loop that adds unique colors to the hashset colors
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                int pixel = img.getRGB(x, y);     
-                colors.add(pixel);
+     * The colors are marked in bitmaps, see {@link UniqueColorCounter}, and large images are counted in parallel.
+     * @return the count of unique colors from the input image.
+     */
+    public static int getColorCount(BufferedImage img) throws IOException {
+        return (int) UniqueColorCounter.count(img);
+    }
+
+    /**
+     * Get the amount of unique colors from an image that is decoded in strips. Each strip is counted in parallel
+     * bands if it is large enough, see {@link ParallelAnalysis}.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @return the count of unique colors in the image.
+     */
+    public static int getColorCount(ImageDecoder decoder) throws IOException {
+        UniqueColorCounter counter = new UniqueColorCounter();
+        decoder.readStrips((pixels, width, y, rows) -> {
+            if (ParallelAnalysis.isParallel((long) width * rows)) {
+                ParallelAnalysis.reduceBands(rows, width, (startRow, endRow) -> {
+                    counter.add(pixels, startRow * width, (endRow - startRow) * width);
+                    return counter;
+                }, (counter1, counter2) -> counter1);
+            } else {
+                counter.add(pixels, 0, width * rows);
             }
-        }
-        return colors.size();
+        });
+        return (int) counter.getCount();
     }
 
     /**
@@ -83,8 +113,58 @@ public class Facade {
      * @return the dominant RGB colors from input image as HEX value.
      */
     public static List<DominantColorDto> getMostUsedRGBColors(BufferedImage img, int x) throws IOException {
+        return getMostUsedRGBColors(img, x, null);
+    }
+
+    /**
+     * Get dominant RGB colors from input image, optionally only analysing a sample of the pixels.
+     * @param sampling settings for sampled analysis. If null, all pixels are analysed.
+     * @return the dominant RGB colors from input image as HEX value.
+     * @see Sampling
+     */
+    public static List<DominantColorDto> getMostUsedRGBColors(BufferedImage img, int x, Sampling sampling) throws IOException {
         MostUsedRgbColors findMostUsedRgbColors = new MostUsedRgbColors();
-        return findMostUsedRgbColors.getMostUsedColors(img, x);
+        return findMostUsedRgbColors.getMostUsedColors(img, x, sampling);
+    }
+
+    /**
+     * Get dominant RGB colors from an image that is decoded in strips. All pixels are analysed.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @return the dominant RGB colors from input image as HEX value.
+     */
+    public static List<DominantColorDto> getMostUsedRGBColors(ImageDecoder decoder, int x) throws IOException {
+        MostUsedRgbColors findMostUsedRgbColors = new MostUsedRgbColors();
+        return findMostUsedRgbColors.getMostUsedColors(decoder, x);
+    }
+
+    /**
+     * Count all pixels of the input image into the RGB buckets of the SMK palette.
+     * @return the histogram, from which the dominant colors can be calculated with
+     *         {@link #getMostUsedRGBColors(ColorHistogram, int)}.
+     */
+    public static ColorHistogram getRGBHistogram(BufferedImage img) throws IOException {
+        return new MostUsedRgbColors().getHistogram(img);
+    }
+
+    /**
+     * Count all pixels of an image that is decoded in strips into the RGB buckets of the SMK palette.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @return the histogram, from which the dominant colors can be calculated with
+     *         {@link #getMostUsedRGBColors(ColorHistogram, int)}.
+     */
+    public static ColorHistogram getRGBHistogram(ImageDecoder decoder) throws IOException {
+        return new MostUsedRgbColors().getHistogram(decoder);
+    }
+
+    /**
+     * Get dominant RGB colors from a histogram created with {@link #getRGBHistogram(BufferedImage)}.
+     * @return the dominant RGB colors as HEX value.
+     * @throws IllegalArgumentException if the histogram does not have a bucket for each color in the palette.
+     */
+    public static List<DominantColorDto> getMostUsedRGBColors(ColorHistogram histogram, int x) {
+        MostUsedRgbColors findMostUsedRgbColors = new MostUsedRgbColors();
+        checkBuckets(histogram, findMostUsedRgbColors.defineBuckets().size());
+        return findMostUsedRgbColors.getMostUsedColors(histogram.getCounts(), x, histogram.getPixels());
     }
 
     /**
@@ -100,8 +180,123 @@ public class Facade {
      * @return a JSON array of top X colors RGB hex value and percentage of pixels in given color.
      */
     public static List<DominantColorDto> getMostUsedOKLabColors(BufferedImage img, int x) throws IOException {
-        MostUsedOkLabColor findMostUsedOkLabColors = new MostUsedOkLabColor();
-        return findMostUsedOkLabColors.getMostUsedColors(img, x);
+        return getMostUsedOKLabColors(img, x, null);
+    }
+
+    /**
+     * Get top X most used colors from input image in the OKlab colorspace, optionally only analysing a sample of the pixels.
+     * @param sampling settings for sampled analysis. If null, all pixels are analysed.
+     * @return a JSON array of top X colors RGB hex value and percentage of pixels in given color.
+     * @see Sampling
+     */
+    public static List<DominantColorDto> getMostUsedOKLabColors(BufferedImage img, int x, Sampling sampling) throws IOException {
+        return getMostUsedOKLabColors(img, x, sampling, ColorPalette.getDefault());
+    }
+
+    /**
+     * Get top X most used colors from input image in the OKlab colorspace, bucketed into the given palette.
+     * @param sampling settings for sampled analysis. If null, all pixels are analysed.
+     * @param palette  the palette to bucket the colors into, see {@link ColorPalette#get(String)}.
+     * @return a JSON array of top X colors RGB hex value and percentage of pixels in given color.
+     */
+    public static List<DominantColorDto> getMostUsedOKLabColors(
+            BufferedImage img, int x, Sampling sampling, ColorPalette palette) throws IOException {
+        MostUsedOkLabColor findMostUsedOkLabColors = new MostUsedOkLabColor(palette);
+        return findMostUsedOkLabColors.getMostUsedColors(img, x, sampling);
+    }
+
+    /**
+     * Get top X most used colors in the OKlab colorspace from an image that is decoded in strips. All pixels are analysed.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @return a JSON array of top X colors RGB hex value and percentage of pixels in given color.
+     */
+    public static List<DominantColorDto> getMostUsedOKLabColors(ImageDecoder decoder, int x) throws IOException {
+        return getMostUsedOKLabColors(decoder, x, ColorPalette.getDefault());
+    }
+
+    /**
+     * Get top X most used colors in the OKlab colorspace from an image that is decoded in strips, bucketed into the
+     * given palette. All pixels are analysed.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @param palette the palette to bucket the colors into, see {@link ColorPalette#get(String)}.
+     * @return a JSON array of top X colors RGB hex value and percentage of pixels in given color.
+     */
+    public static List<DominantColorDto> getMostUsedOKLabColors(ImageDecoder decoder, int x, ColorPalette palette)
+            throws IOException {
+        MostUsedOkLabColor findMostUsedOkLabColors = new MostUsedOkLabColor(palette);
+        return findMostUsedOkLabColors.getMostUsedColors(decoder, x);
+    }
+
+    /**
+     * Count all pixels of the input image into the OKlab buckets of the palette.
+     * @param palette the palette to bucket the colors into, see {@link ColorPalette#get(String)}.
+     * @return the histogram, from which the dominant colors can be calculated with
+     *         {@link #getMostUsedOKLabColors(ColorHistogram, int, ColorPalette)}.
+     */
+    public static ColorHistogram getOKLabHistogram(BufferedImage img, ColorPalette palette) throws IOException {
+        return new MostUsedOkLabColor(palette).getHistogram(img);
+    }
+
+    /**
+     * Count all pixels of an image that is decoded in strips into the OKlab buckets of the palette.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @param palette the palette to bucket the colors into, see {@link ColorPalette#get(String)}.
+     * @return the histogram, from which the dominant colors can be calculated with
+     *         {@link #getMostUsedOKLabColors(ColorHistogram, int, ColorPalette)}.
+     */
+    public static ColorHistogram getOKLabHistogram(ImageDecoder decoder, ColorPalette palette) throws IOException {
+        return new MostUsedOkLabColor(palette).getHistogram(decoder);
+    }
+
+    /**
+     * Get top X most used colors in the OKlab colorspace from a histogram created with
+     * {@link #getOKLabHistogram(BufferedImage, ColorPalette)}.
+     * @param palette the palette that the histogram was created for.
+     * @return a JSON array of top X colors RGB hex value and percentage of pixels in given color.
+     * @throws IllegalArgumentException if the histogram does not have a bucket for each color in the palette.
+     */
+    public static List<DominantColorDto> getMostUsedOKLabColors(ColorHistogram histogram, int x,
+                                                                ColorPalette palette) {
+        checkBuckets(histogram, palette.getOkLabColors().size());
+        MostUsedOkLabColor findMostUsedOkLabColors = new MostUsedOkLabColor(palette);
+        return findMostUsedOkLabColors.getMostUsedColors(histogram.getCounts(), x, histogram.getPixels());
+    }
+
+    private static void checkBuckets(ColorHistogram histogram, int paletteSize) {
+        if (histogram.getBucketCount() != paletteSize) {
+            throw new IllegalArgumentException("The histogram has " + histogram.getBucketCount() +
+                                               " buckets but the palette has " + paletteSize + " colors");
+        }
+    }
+
+    /**
+     * Run several analyses of the image in a single pass over the pixels, see {@link FusedAnalysis}.
+     * @param analyses the analyses to run.
+     * @param x        the number of dominant colors to return.
+     * @param palette  the palette for OKlab analysis.
+     * @param mode     how grey values are calculated for greyscale output.
+     * @return the results of the requested analyses.
+     */
+    public static FusedAnalysis.Result getAnalysis(BufferedImage img, Set<FusedAnalysis.Analysis> analyses, int x,
+                                                   ColorPalette palette, GreyscaleConverter.Mode mode)
+            throws IOException {
+        return new FusedAnalysis(analyses, x, palette, mode).analyse(img);
+    }
+
+    /**
+     * Run several analyses of an image that is decoded in strips in a single pass over the pixels,
+     * see {@link FusedAnalysis}.
+     * @param decoder  delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @param analyses the analyses to run.
+     * @param x        the number of dominant colors to return.
+     * @param palette  the palette for OKlab analysis.
+     * @param mode     how grey values are calculated for greyscale output.
+     * @return the results of the requested analyses.
+     */
+    public static FusedAnalysis.Result getAnalysis(ImageDecoder decoder, Set<FusedAnalysis.Analysis> analyses, int x,
+                                                   ColorPalette palette, GreyscaleConverter.Mode mode)
+            throws IOException {
+        return new FusedAnalysis(analyses, x, palette, mode).analyse(decoder);
     }
 
     /**
@@ -0,0 +1,281 @@
+package dk.kb.image;
+
+import dk.kb.image.model.v1.DominantColorDto;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Runs several analyses of the same image in a single pass over the pixels, so that the image is only decoded and
+ * read once.
+ * <p>
+ * The pixels are read in blocks of rows, see {@link RasterPixelReader}, and each block is passed to the tight loop of
+ * every requested analysis while it is still in the CPU cache: unique colors are marked in a
+ * {@link UniqueColorCounter}, RGB and OKlab buckets are counted with the {@link BucketLookup} of the analysis and grey
+ * values are written to a single-channel image, see {@link GreyscaleConverter}. The lookups are resolved once before
+ * the pass. Large images are processed in parallel bands, see {@link ParallelAnalysis}.
+ * </p>
+ * <p>
+ * All pixels are analysed. The results are the same as for the separate analyses without sampling.
+ * </p>
+ */
+public class FusedAnalysis {
+
+    /**
+     * The analyses that can be combined.
+     */
+    public enum Analysis {
+        /**
+         * The number of unique colors, see {@link Facade#getColorCount(BufferedImage)}.
+         */
+        COLORCOUNT,
+        /**
+         * The dominant colors in RGB, see {@link Facade#getMostUsedRGBColors(BufferedImage, int)}.
+         */
+        RGB,
+        /**
+         * The dominant colors in OKlab, see {@link Facade#getMostUsedOKLabColors(BufferedImage, int)}.
+         */
+        OKLAB,
+        /**
+         * The image in greyscale, see {@link GreyscaleConverter}.
+         */
+        GREYSCALE;
+
+        /**
+         * @param analyses names of analyses, case insensitive. Each entry can hold a comma separated list of names.
+         * @return the analyses.
+         * @throws IllegalArgumentException if no analyses are given or a name is unknown.
+         */
+        public static Set<Analysis> of(Collection<String> analyses) {
+            Set<Analysis> result = EnumSet.noneOf(Analysis.class);
+            if (analyses != null) {
+                for (String entry : analyses) {
+                    for (String name : entry.split(",")) {
+                        if (!name.trim().isEmpty()) {
+                            result.add(of(name.trim()));
+                        }
+                    }
+                }
+            }
+            if (result.isEmpty()) {
+                throw new IllegalArgumentException("No analyses requested");
+            }
+            return result;
+        }
+
+        private static Analysis of(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown analysis '" + name + "'");
+            }
+        }
+    }
+
+    private final Set<Analysis> analyses;
+    private final int topColors;
+    private final ColorPalette palette;
+    private final GreyscaleConverter.Mode greyscaleMode;
+
+    /**
+     * @param analyses      the analyses to run.
+     * @param topColors     the number of colors to return for {@link Analysis#RGB} and {@link Analysis#OKLAB}.
+     * @param palette       the palette for {@link Analysis#OKLAB}.
+     * @param greyscaleMode how grey values are calculated for {@link Analysis#GREYSCALE}.
+     */
+    public FusedAnalysis(Set<Analysis> analyses, int topColors, ColorPalette palette,
+                         GreyscaleConverter.Mode greyscaleMode) {
+        this.analyses = EnumSet.copyOf(analyses);
+        this.topColors = topColors;
+        this.palette = palette;
+        this.greyscaleMode = greyscaleMode;
+    }
+
+    /**
+     * Run the analyses on the image. The image is not modified.
+     * @return the results of the requested analyses.
+     */
+    public Result analyse(BufferedImage img) throws IOException {
+        RasterPixelReader reader = new RasterPixelReader(img);
+        int width = reader.getWidth();
+        int height = reader.getHeight();
+        Pass pass = new Pass(width, height);
+        Counts counts;
+        if (ParallelAnalysis.isParallel((long) width * height)) {
+            counts = ParallelAnalysis.reduceBands(
+                    height, width, (startRow, endRow) -> pass.addRows(reader, startRow, endRow), Counts::merge);
+        } else {
+            counts = pass.addRows(reader, 0, height);
+        }
+        return pass.toResult(counts);
+    }
+
+    /**
+     * Run the analyses on an image that is decoded in strips. Only the greyscale result, if requested, is held in
+     * memory in full.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @return the results of the requested analyses.
+     */
+    public Result analyse(ImageDecoder decoder) throws IOException {
+        Pass pass = new Pass(decoder.getWidth(), decoder.getHeight());
+        Counts counts = pass.newCounts();
+        decoder.readStrips((pixels, width, y, rows) -> pass.add(counts, pixels, width * rows, y * width));
+        return pass.toResult(counts);
+    }
+
+    /**
+     * The state that is shared between the bands of a single pass: the lookups, the unique color bitmaps, which are
+     * thread safe, and the greyscale image, where each band writes its own rows.
+     */
+    private class Pass {
+        private final MostUsedRgbColors rgb;
+        private final MostUsedOkLabColor okLab;
+        private final BucketLookup rgbLookup;
+        private final BucketLookup okLabLookup;
+        private final UniqueColorCounter colorCounter;
+        private final BufferedImage greyscale;
+        private final byte[] greyPixels;
+
+        Pass(int width, int height) {
+            rgb = analyses.contains(Analysis.RGB) ? new MostUsedRgbColors() : null;
+            rgbLookup = rgb == null ? null : rgb.getLookup();
+            okLab = analyses.contains(Analysis.OKLAB) ? new MostUsedOkLabColor(palette) : null;
+            okLabLookup = okLab == null ? null : okLab.getLookup();
+            colorCounter = analyses.contains(Analysis.COLORCOUNT) ? new UniqueColorCounter() : null;
+            greyscale = analyses.contains(Analysis.GREYSCALE) ?
+                    new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY) : null;
+            greyPixels = greyscale == null ? null : ((DataBufferByte) greyscale.getRaster().getDataBuffer()).getData();
+        }
+
+        Counts newCounts() {
+            return new Counts(rgb == null ? null : new int[rgb.defineBuckets().size()],
+                              okLab == null ? null : new int[okLab.defineBuckets().size()]);
+        }
+
+        /**
+         * Analyse the rows from startRow (inclusive) to endRow (exclusive) into new counts.
+         */
+        Counts addRows(RasterPixelReader reader, int startRow, int endRow) {
+            Counts counts = newCounts();
+            int width = reader.getWidth();
+            int blockRows = RasterPixelReader.rowsPerBlock(width);
+            int[] pixels = null;
+            for (int y = startRow; y < endRow; y += blockRows) {
+                int rows = Math.min(blockRows, endRow - y);
+                pixels = reader.readRows(y, rows, pixels);
+                add(counts, pixels, width * rows, y * width);
+            }
+            return counts;
+        }
+
+        /**
+         * Pass a block of pixels to all requested analyses.
+         * @param pixels ARGB colors, starting at index 0.
+         * @param length the number of pixels.
+         * @param offset the index of the first pixel in the image, used for the greyscale output.
+         */
+        void add(Counts counts, int[] pixels, int length, int offset) {
+            if (colorCounter != null) {
+                colorCounter.add(pixels, 0, length);
+            }
+            if (rgbLookup != null) {
+                rgbLookup.countBuckets(pixels, length, counts.rgb);
+            }
+            if (okLabLookup != null) {
+                okLabLookup.countBuckets(pixels, length, counts.okLab);
+                ServiceMetrics.countLookups(okLabLookup, length);
+            }
+            if (greyPixels != null) {
+                GreyscaleConverter.convert(pixels, length, greyPixels, offset, greyscaleMode);
+            }
+            counts.pixels += length;
+        }
+
+        Result toResult(Counts counts) {
+            return new Result(
+                    colorCounter == null ? null : (int) colorCounter.getCount(),
+                    rgb == null ? null : rgb.getMostUsedColors(counts.rgb, topColors, counts.pixels),
+                    okLab == null ? null : okLab.getMostUsedColors(counts.okLab, topColors, counts.pixels),
+                    greyscale);
+        }
+    }
+
+    /**
+     * The bucket counts for a band of rows.
+     */
+    private static class Counts {
+        private final int[] rgb;
+        private final int[] okLab;
+        private long pixels = 0;
+
+        Counts(int[] rgb, int[] okLab) {
+            this.rgb = rgb;
+            this.okLab = okLab;
+        }
+
+        static Counts merge(Counts counts1, Counts counts2) {
+            if (counts1.rgb != null) {
+                ParallelAnalysis.mergeCounts(counts1.rgb, counts2.rgb);
+            }
+            if (counts1.okLab != null) {
+                ParallelAnalysis.mergeCounts(counts1.okLab, counts2.okLab);
+            }
+            counts1.pixels += counts2.pixels;
+            return counts1;
+        }
+    }
+
+    /**
+     * The results of a fused analysis. Results for analyses that were not requested are null.
+     */
+    public static class Result {
+        private final Integer colorCount;
+        private final List<DominantColorDto> rgbColors;
+        private final List<DominantColorDto> okLabColors;
+        private final BufferedImage greyscale;
+
+        Result(Integer colorCount, List<DominantColorDto> rgbColors, List<DominantColorDto> okLabColors,
+               BufferedImage greyscale) {
+            this.colorCount = colorCount;
+            this.rgbColors = rgbColors;
+            this.okLabColors = okLabColors;
+            this.greyscale = greyscale;
+        }
+
+        /**
+         * @return the number of unique colors.
+         */
+        public Integer getColorCount() {
+            return colorCount;
+        }
+
+        /**
+         * @return the dominant colors in RGB.
+         */
+        public List<DominantColorDto> getRgbColors() {
+            return rgbColors;
+        }
+
+        /**
+         * @return the dominant colors in OKlab.
+         */
+        public List<DominantColorDto> getOkLabColors() {
+            return okLabColors;
+        }
+
+        /**
+         * @return the image in greyscale as {@link BufferedImage#TYPE_BYTE_GRAY}, to be encoded with
+         *         {@link ImageEncoder}.
+         */
+        public BufferedImage getGreyscale() {
+            return greyscale;
+        }
+    }
+}
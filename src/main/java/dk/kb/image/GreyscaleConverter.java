@@ -0,0 +1,164 @@
+package dk.kb.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Converts images to greyscale in a new {@link BufferedImage#TYPE_BYTE_GRAY} image, leaving the source untouched so
+ * that it can be used for other analyses.
+ * <p>
+ * The pixels are read in blocks of rows from the raster of the source, see {@link RasterPixelReader}, and the grey
+ * values are written directly to the single byte per pixel data buffer of the destination. Large images are
+ * converted in parallel bands of rows, see {@link ParallelAnalysis}.
+ * </p>
+ */
+public class GreyscaleConverter {
+
+    /**
+     * How the grey value is calculated from the red, green and blue channels.
+     */
+    public enum Mode {
+        /**
+         * The average of the channels. This is the default.
+         */
+        AVERAGE,
+        /**
+         * Luma with the ITU-R BT.601 weights 0.299, 0.587 and 0.114 on the gamma encoded channels.
+         */
+        REC601,
+        /**
+         * Luma with the ITU-R BT.709 weights 0.2126, 0.7152 and 0.0722 on the gamma encoded channels.
+         */
+        REC709,
+        /**
+         * The perceptual lightness L from the OKlab colorspace.
+         */
+        OKLAB;
+
+        /**
+         * @param mode the name of the mode, case insensitive. If null or empty, {@link #AVERAGE} is used.
+         * @return the mode.
+         * @throws IllegalArgumentException if the mode is unknown.
+         */
+        public static Mode of(String mode) {
+            if (mode == null || mode.isEmpty()) {
+                return AVERAGE;
+            }
+            try {
+                return valueOf(mode.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown greyscale mode '" + mode + "'");
+            }
+        }
+    }
+
+    /**
+     * sRGB channel values to linear light, for {@link Mode#OKLAB}.
+     */
+    private static final double[] LINEAR = new double[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            double channel = i / 255.0;
+            LINEAR[i] = channel <= 0.04045 ? channel / 12.92 : Math.pow((channel + 0.055) / 1.055, 2.4);
+        }
+    }
+
+    private GreyscaleConverter() {
+    }
+
+    /**
+     * Convert the image to greyscale.
+     * @param img  the source image, which is not modified.
+     * @param mode how the grey values are calculated.
+     * @return a new image of type {@link BufferedImage#TYPE_BYTE_GRAY} with the same dimensions as the source.
+     */
+    public static BufferedImage toGrey(BufferedImage img, Mode mode) throws IOException {
+        RasterPixelReader reader = new RasterPixelReader(img);
+        int width = reader.getWidth();
+        int height = reader.getHeight();
+        BufferedImage grey = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] greyPixels = ((DataBufferByte) grey.getRaster().getDataBuffer()).getData();
+        if (ParallelAnalysis.isParallel((long) width * height)) {
+            ParallelAnalysis.reduceBands(height, width, (startRow, endRow) -> {
+                convertRows(reader, startRow, endRow, greyPixels, mode);
+                return greyPixels;
+            }, (grey1, grey2) -> grey1);
+        } else {
+            convertRows(reader, 0, height, greyPixels, mode);
+        }
+        return grey;
+    }
+
+    /**
+     * Convert the rows from startRow (inclusive) to endRow (exclusive) into the corresponding rows of the destination.
+     */
+    private static void convertRows(RasterPixelReader reader, int startRow, int endRow, byte[] grey, Mode mode) {
+        int width = reader.getWidth();
+        int blockRows = RasterPixelReader.rowsPerBlock(width);
+        int[] pixels = null;
+        for (int y = startRow; y < endRow; y += blockRows) {
+            int rows = Math.min(blockRows, endRow - y);
+            pixels = reader.readRows(y, rows, pixels);
+            convert(pixels, width * rows, grey, y * width, mode);
+        }
+    }
+
+    /**
+     * Convert ARGB pixels to grey values. Alpha is ignored.
+     * @param pixels ARGB colors.
+     * @param length the number of pixels, starting at index 0.
+     * @param grey   destination for the grey values.
+     * @param offset the index in grey for the first pixel.
+     * @param mode   how the grey values are calculated.
+     */
+    public static void convert(int[] pixels, int length, byte[] grey, int offset, Mode mode) {
+        switch (mode) {
+            case AVERAGE:
+                for (int i = 0; i < length; i++) {
+                    int pixel = pixels[i];
+                    grey[offset + i] = (byte) ((((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff)) / 3);
+                }
+                break;
+            case REC601:
+                // The weights scaled to 256, rounded so that they sum to 256
+                for (int i = 0; i < length; i++) {
+                    int pixel = pixels[i];
+                    grey[offset + i] = (byte) ((77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) +
+                                                29 * (pixel & 0xff) + 128) >> 8);
+                }
+                break;
+            case REC709:
+                for (int i = 0; i < length; i++) {
+                    int pixel = pixels[i];
+                    grey[offset + i] = (byte) ((54 * ((pixel >> 16) & 0xff) + 183 * ((pixel >> 8) & 0xff) +
+                                                19 * (pixel & 0xff) + 128) >> 8);
+                }
+                break;
+            case OKLAB:
+                for (int i = 0; i < length; i++) {
+                    grey[offset + i] = (byte) okLabLightness(pixels[i]);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported greyscale mode " + mode);
+        }
+    }
+
+    /**
+     * Calculate the OKlab lightness as described at https://bottosson.github.io/posts/oklab/
+     * @param pixel an RGB color.
+     * @return the lightness L scaled to 0-255.
+     */
+    static int okLabLightness(int pixel) {
+        double red = LINEAR[(pixel >> 16) & 0xff];
+        double green = LINEAR[(pixel >> 8) & 0xff];
+        double blue = LINEAR[pixel & 0xff];
+        double l = Math.cbrt(0.4122214708 * red + 0.5363325363 * green + 0.0514459929 * blue);
+        double m = Math.cbrt(0.2119034982 * red + 0.6806995451 * green + 0.1073969566 * blue);
+        double s = Math.cbrt(0.0883024619 * red + 0.2817188376 * green + 0.6299787005 * blue);
+        double lightness = 0.2104542553 * l + 0.7936177850 * m - 0.0040720468 * s;
+        return (int) Math.max(0, Math.min(255, Math.round(lightness * 255)));
+    }
+}
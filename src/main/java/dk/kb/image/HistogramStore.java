@@ -0,0 +1,793 @@
+package dk.kb.image;
+
+import dk.kb.image.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent store for the {@link ColorHistogram}s of analysed images, so that images are not decoded again after a
+ * restart. As the full histogram is stored, the dominant colors can be calculated for any number of top colors.
+ * <p>
+ * Histograms are keyed by the SHA-256 of the image content, see {@link UploadBuffer}, the {@link Kind} of analysis, the
+ * hash of the palette, see {@link ColorPalette#getHash()}, and the pixel budget the image was decoded within. They are
+ * appended to a single file, configured with {@code config.histogramStore.file} on persistent storage, and read through
+ * a read-only {@link MappedByteBuffer} of the file as it was when opened or last compacted. Records appended since are
+ * read from the file directly, so that an append does not cause the whole file to be mapped again. The offsets of the
+ * records are held in memory in an open addressing hash table of about 32 bytes per record, which is rebuilt by
+ * scanning the file when the store is opened.
+ * </p>
+ * <p>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes followed by the records. All values are big endian:
+ * </p>
+ * <pre>
+ * offset  size  content
+ *      0     4  magic "KBHS"
+ *      4     4  format version, currently {@link #VERSION}
+ *      8     8  reserved, zeroes
+ * </pre>
+ * <pre>
+ * size  record
+ *    4  the length of the rest of the record, including the checksum
+ *   32  SHA-256 of the image content
+ *    1  kind, see {@link Kind}
+ *    8  palette hash
+ *    8  pixel budget
+ *    8  number of pixels in the decoded image
+ *    1  length of the scale in bytes
+ *    n  the scale as US-ASCII, see {@link ImageDecoder#getScale()}
+ *    2  number of buckets
+ *    n  the count for each bucket as an unsigned LEB128 varint, a single byte for counts below 128
+ *    4  CRC32 of the record from the SHA-256 up to the checksum
+ * </pre>
+ * <p>
+ * A record that was only partly written, e.g. because of a crash, fails the checksum and the file is truncated before
+ * it when the store is opened. When the file grows beyond {@code config.histogramStore.maxBytes}, or when more than
+ * half of it is records that have been replaced, it is compacted in the background: the newest records are copied to a
+ * new file of at most {@link #COMPACT_FRACTION} of the maximum size, which then replaces the old file.
+ * </p>
+ */
+public class HistogramStore implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(HistogramStore.class);
+
+    static final byte[] MAGIC = "KBHS".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Compaction keeps the newest records that fit within this fraction of the maximum size, so that the store does
+     * not need to be compacted again right away.
+     */
+    static final double COMPACT_FRACTION = 0.75;
+
+    /**
+     * The file is accessed through a single mapped buffer, which is limited to 2 GB.
+     */
+    static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+    private static final int HASH_BYTES = 32;
+    private static final int KEY_OFFSET = 4;
+    private static final int KIND_OFFSET = KEY_OFFSET + HASH_BYTES;
+    private static final int PALETTE_OFFSET = KIND_OFFSET + 1;
+    private static final int BUDGET_OFFSET = PALETTE_OFFSET + 8;
+    private static final int PIXELS_OFFSET = BUDGET_OFFSET + 8;
+    private static final int SCALE_OFFSET = PIXELS_OFFSET + 8;
+    private static final int MIN_RECORD_LENGTH = SCALE_OFFSET + 1 + 2 + 4 - KEY_OFFSET;
+
+    /**
+     * The analyses that histograms are stored for.
+     */
+    public enum Kind {
+        /**
+         * Buckets of {@link MostUsedRgbColors}.
+         */
+        RGB(1),
+        /**
+         * Buckets of {@link MostUsedOkLabColor}.
+         */
+        OKLAB(2);
+
+        private final byte code;
+
+        Kind(int code) {
+            this.code = (byte) code;
+        }
+    }
+
+    private static HistogramStore store;
+    private static boolean failed = false;
+    private static ExecutorService compactor;
+
+    private final Path file;
+    private final long maxBytes;
+    private final Executor compactionExecutor;
+    private final Object compactionLock = new Object();
+
+    private FileChannel channel;
+    private MappedByteBuffer mapped = null;
+    private long end;
+    private OffsetIndex index = new OffsetIndex();
+    private long deadBytes = 0;
+    private boolean compacting = false;
+    private long hits = 0;
+    private long misses = 0;
+    private long compactions = 0;
+
+    private HistogramStore(Path file, long maxBytes, Executor compactionExecutor) {
+        this.file = file;
+        this.maxBytes = Math.min(maxBytes, MAX_FILE_BYTES);
+        this.compactionExecutor = compactionExecutor;
+    }
+
+    /**
+     * Get the shared store, opening it on first call. If the file is not a valid store, e.g. after a change of the
+     * format version, it is replaced with an empty store.
+     * @return the store or null if it is disabled with {@code config.histogramStore.maxBytes} 0, no
+     *         {@code config.histogramStore.file} is set or it could not be opened.
+     */
+    public static synchronized HistogramStore getStore() {
+        if (store != null || failed || ServiceConfig.getHistogramStoreMaxBytes() <= 0) {
+            return store;
+        }
+        Path file = ServiceConfig.getHistogramStoreFile();
+        if (file == null) {
+            log.info("No config.histogramStore.file is set. Histograms will not be stored");
+            failed = true;
+            return null;
+        }
+        try {
+            try {
+                store = open(file, ServiceConfig.getHistogramStoreMaxBytes(), getCompactor());
+            } catch (IOException e) {
+                log.warn("The histogram store '{}' is invalid and will be replaced with an empty store", file, e);
+                Files.deleteIfExists(file);
+                store = open(file, ServiceConfig.getHistogramStoreMaxBytes(), getCompactor());
+            }
+        } catch (IOException e) {
+            log.error("Unable to open the histogram store '{}'. Histograms will not be stored", file, e);
+            failed = true;
+        }
+        return store;
+    }
+
+    /**
+     * @return the shared store if it has been opened by {@link #getStore()}, else null. The store is never opened by
+     *         this call, so it is safe for monitoring.
+     */
+    static synchronized HistogramStore getOpenStore() {
+        return store;
+    }
+
+    /**
+     * Open the store in the file, creating it if it does not exist.
+     * @param file               the file holding the store.
+     * @param maxBytes           the size of the file that triggers compaction.
+     * @param compactionExecutor runs compactions.
+     * @return the opened store.
+     * @throws IOException if the file could not be read or is not a valid store.
+     */
+    static HistogramStore open(Path file, long maxBytes, Executor compactionExecutor) throws IOException {
+        HistogramStore histogramStore = new HistogramStore(file, maxBytes, compactionExecutor);
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        histogramStore.channel = FileChannel.open(
+                file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            histogramStore.scan();
+        } catch (IOException | RuntimeException e) {
+            histogramStore.channel.close();
+            throw e;
+        }
+        log.info("Opened {}", histogramStore);
+        return histogramStore;
+    }
+
+    /**
+     * Validate the header, index the records and truncate the file after the last valid record.
+     */
+    private void scan() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            writeFully(channel, header(), 0);
+            end = HEADER_SIZE;
+            return;
+        }
+        if (size < HEADER_SIZE || size > MAX_FILE_BYTES) {
+            throw new IOException("The histogram store '" + file + "' has an invalid size of " + size + " bytes");
+        }
+        ByteBuffer buffer = map(size);
+        byte[] magic = new byte[MAGIC.length];
+        buffer.duplicate().get(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("The file '" + file + "' is not a histogram store");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("The histogram store '" + file + "' has version " + version +
+                                  ", expected " + VERSION);
+        }
+        long offset = HEADER_SIZE;
+        while (isValidRecord(buffer, offset, size)) {
+            int length = recordLength(buffer, offset);
+            long replaced = index.put(fingerprint(buffer, offset), offset);
+            if (replaced != -1) {
+                deadBytes += recordLength(buffer, replaced);
+            }
+            offset += length;
+        }
+        if (offset < size) {
+            log.warn("Truncating {} bytes of incomplete or corrupt records at offset {} from the histogram store '{}'",
+                     size - offset, offset, file);
+            channel.truncate(offset);
+            mapped = null;
+            map(offset);
+        }
+        end = offset;
+    }
+
+    private static boolean isValidRecord(ByteBuffer buffer, long offset, long size) {
+        if (offset + KEY_OFFSET > size) {
+            return false;
+        }
+        int length = buffer.getInt((int) offset);
+        if (length < MIN_RECORD_LENGTH || offset + KEY_OFFSET + length > size) {
+            return false;
+        }
+        int checksumOffset = (int) offset + KEY_OFFSET + length - 4;
+        CRC32 crc = new CRC32();
+        crc.update(slice(buffer, offset + KEY_OFFSET, checksumOffset - offset - KEY_OFFSET));
+        return (int) crc.getValue() == buffer.getInt(checksumOffset);
+    }
+
+    /**
+     * Get the stored histogram for an image.
+     * @param contentHash the SHA-256 of the image content as a hex string, see {@link UploadBuffer#getHash()}.
+     * @param kind        the kind of analysis.
+     * @param paletteHash the hash of the palette.
+     * @param pixelBudget the pixel budget that the image was decoded within.
+     * @return the histogram and the scale the image was decoded at, or null if it is not stored.
+     */
+    public synchronized Entry get(String contentHash, Kind kind, long paletteHash, long pixelBudget)
+            throws IOException {
+        byte[] hash = fromHex(contentHash);
+        long offset = index.get(fingerprint(hash, kind.code, paletteHash, pixelBudget));
+        if (offset == -1) {
+            misses++;
+            return null;
+        }
+        ByteBuffer record = readRecord(offset);
+        // The fingerprint is not unique, so the full key is checked
+        byte[] storedHash = new byte[HASH_BYTES];
+        slice(record, KEY_OFFSET, HASH_BYTES).get(storedHash);
+        if (!Arrays.equals(hash, storedHash) || record.get(KIND_OFFSET) != kind.code ||
+            record.getLong(PALETTE_OFFSET) != paletteHash || record.getLong(BUDGET_OFFSET) != pixelBudget) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return decode(record, 0);
+    }
+
+    /**
+     * Append the histogram for an image. A failure to write is logged and not thrown, as the store is only an
+     * optimization.
+     * @param contentHash the SHA-256 of the image content as a hex string, see {@link UploadBuffer#getHash()}.
+     * @param kind        the kind of analysis.
+     * @param paletteHash the hash of the palette.
+     * @param pixelBudget the pixel budget that the image was decoded within.
+     * @param scale       the scale the image was decoded at, see {@link ImageDecoder#getScale()}.
+     * @param histogram   the histogram of all pixels in the decoded image.
+     * @return true if the histogram was stored.
+     */
+    public boolean put(String contentHash, Kind kind, long paletteHash, long pixelBudget, String scale,
+                       ColorHistogram histogram) {
+        byte[] hash = fromHex(contentHash);
+        ByteBuffer record = encode(hash, kind, paletteHash, pixelBudget, scale, histogram);
+        synchronized (this) {
+            if (end + record.remaining() > MAX_FILE_BYTES) {
+                log.warn("Unable to store histogram as the histogram store '{}' has reached the maximum size of " +
+                         "{} bytes", file, MAX_FILE_BYTES);
+                return false;
+            }
+            int length = record.remaining();
+            try {
+                writeFully(channel, record, end);
+            } catch (IOException e) {
+                log.warn("Unable to write histogram to the histogram store '{}'", file, e);
+                return false;
+            }
+            long replaced = index.put(fingerprint(hash, kind.code, paletteHash, pixelBudget), end);
+            end += length;
+            if (replaced != -1) {
+                try {
+                    deadBytes += recordLength(readRecord(replaced), 0);
+                } catch (IOException e) {
+                    log.warn("Unable to read from the histogram store '{}'", file, e);
+                }
+            }
+            if (!compacting && (end > maxBytes || deadBytes > end / 2)) {
+                compacting = true;
+                compactionExecutor.execute(this::compactInBackground);
+            }
+            return true;
+        }
+    }
+
+    private void compactInBackground() {
+        try {
+            compact();
+        } catch (Exception e) {
+            log.error("Unable to compact the histogram store '{}'", file, e);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Copy the newest records that fit within {@link #COMPACT_FRACTION} of the maximum size to a new file and replace
+     * the old file with it. Replaced records are left out. The store can be used while it is compacted: records that
+     * are appended while the new file is written are copied at the end.
+     */
+    void compact() throws IOException {
+        synchronized (compactionLock) {
+            ByteBuffer source;
+            long[] offsets;
+            long snapshotEnd;
+            synchronized (this) {
+                snapshotEnd = end;
+                source = map(end);
+                offsets = index.values();
+            }
+            Arrays.sort(offsets);
+
+            // Keep the newest records, which are at the end of the file
+            long target = (long) (maxBytes * COMPACT_FRACTION) - HEADER_SIZE;
+            long keptBytes = 0;
+            int first = offsets.length;
+            while (first > 0 && keptBytes + recordLength(source, offsets[first - 1]) <= target) {
+                keptBytes += recordLength(source, offsets[--first]);
+            }
+
+            Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                OffsetIndex newIndex = new OffsetIndex();
+                writeFully(out, header(), 0);
+                long position = HEADER_SIZE;
+                for (int i = first; i < offsets.length; i++) {
+                    newIndex.put(fingerprint(source, offsets[i]), position);
+                    position += copyRecord(source, offsets[i], out, position);
+                }
+                synchronized (this) {
+                    long newDeadBytes = 0;
+                    for (long offset = snapshotEnd; offset < end; ) {
+                        ByteBuffer record = readRecord(offset);
+                        long replaced = newIndex.put(fingerprint(record, 0), position);
+                        if (replaced != -1) {
+                            // Records for the same key have the same number of buckets and about the same length
+                            newDeadBytes += recordLength(record, 0);
+                        }
+                        position += copyRecord(record, 0, out, position);
+                        offset += recordLength(record, 0);
+                    }
+                    out.force(true);
+                    // The old file stays open until the new one has replaced it, so a failed move leaves the store
+                    // usable as it was
+                    try {
+                        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    FileChannel compacted = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel.close();
+                    channel = compacted;
+                    mapped = null;
+                    map(position);
+                    log.info("Compacted the histogram store '{}' from {} records in {} bytes to {} records in {} bytes",
+                             file, index.size(), end, newIndex.size(), position);
+                    index = newIndex;
+                    end = position;
+                    deadBytes = newDeadBytes;
+                    compactions++;
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes copied.
+     */
+    private static int copyRecord(ByteBuffer source, long offset, FileChannel out, long position) throws IOException {
+        int length = recordLength(source, offset);
+        writeFully(out, slice(source, offset, length), position);
+        return length;
+    }
+
+    /**
+     * @return the number of histograms in the store.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the size of the file in bytes.
+     */
+    public synchronized long getBytes() {
+        return end;
+    }
+
+    /**
+     * @return the number of histograms that were found in the store.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups for histograms that were not in the store.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of completed compactions.
+     */
+    public synchronized long getCompactions() {
+        return compactions;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mapped = null;
+        channel.close();
+    }
+
+    /**
+     * Stop compaction and close the shared store.
+     */
+    public static synchronized void shutdown() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                log.warn("Unable to close {}", store, e);
+            }
+            store = null;
+        }
+        failed = false;
+    }
+
+    private static synchronized ExecutorService getCompactor() {
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "histogram-store-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compactor;
+    }
+
+    /**
+     * Get a record, from the mapping if it covers the record and else by reading it from the file. The file is only
+     * mapped when the store is opened or compacted, as mapping it again for every appended record would cost a full
+     * mapping of up to 2 GB per {@link #put}.
+     * @return the record, starting at index 0.
+     */
+    private ByteBuffer readRecord(long offset) throws IOException {
+        if (mapped != null && offset + KEY_OFFSET <= mapped.capacity()) {
+            int length = recordLength(mapped, offset);
+            if (offset + length <= mapped.capacity()) {
+                return slice(mapped, offset, length);
+            }
+        }
+        ByteBuffer length = ByteBuffer.allocate(KEY_OFFSET).order(ByteOrder.BIG_ENDIAN);
+        readFully(channel, length, offset);
+        ByteBuffer record = ByteBuffer.allocate(recordLength(length, 0)).order(ByteOrder.BIG_ENDIAN);
+        readFully(channel, record, offset);
+        return record;
+    }
+
+    /**
+     * @return a mapping of the file that covers at least the given number of bytes. Records beyond the mapping are
+     *         read with {@link #readRecord(long)}, so this is only called when the file is opened or compacted.
+     */
+    private ByteBuffer map(long bytes) throws IOException {
+        if (mapped == null || mapped.capacity() < bytes) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(bytes, channel.size()));
+            mapped.order(ByteOrder.BIG_ENDIAN);
+        }
+        return mapped;
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.rewind();
+        return header;
+    }
+
+    static ByteBuffer encode(byte[] hash, Kind kind, long paletteHash, long pixelBudget, String scale,
+                             ColorHistogram histogram) {
+        byte[] scaleBytes = scale.getBytes(StandardCharsets.US_ASCII);
+        int[] counts = histogram.getCounts();
+        if (scaleBytes.length > 0xFF || counts.length > 0xFFFF) {
+            throw new IllegalArgumentException("Unable to store a histogram with scale '" + scale + "' and " +
+                                               counts.length + " buckets");
+        }
+        int countBytes = 0;
+        for (int count : counts) {
+            countBytes += varIntLength(count);
+        }
+        int length = SCALE_OFFSET - KEY_OFFSET + 1 + scaleBytes.length + 2 + countBytes + 4;
+        ByteBuffer record = ByteBuffer.allocate(KEY_OFFSET + length).order(ByteOrder.BIG_ENDIAN);
+        record.putInt(length);
+        record.put(hash);
+        record.put(kind.code);
+        record.putLong(paletteHash);
+        record.putLong(pixelBudget);
+        record.putLong(histogram.getPixels());
+        record.put((byte) scaleBytes.length);
+        record.put(scaleBytes);
+        record.putShort((short) counts.length);
+        for (int count : counts) {
+            putVarInt(record, count);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), KEY_OFFSET, record.position() - KEY_OFFSET);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static Entry decode(ByteBuffer buffer, long offset) {
+        ByteBuffer record = slice(buffer, offset + PIXELS_OFFSET, recordLength(buffer, offset) - PIXELS_OFFSET);
+        long pixels = record.getLong();
+        byte[] scale = new byte[Byte.toUnsignedInt(record.get())];
+        record.get(scale);
+        int[] counts = new int[Short.toUnsignedInt(record.getShort())];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = getVarInt(record);
+        }
+        return new Entry(new ColorHistogram(counts, pixels), new String(scale, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return the length of the record at the offset, including the length field.
+     */
+    private static int recordLength(ByteBuffer buffer, long offset) {
+        return KEY_OFFSET + buffer.getInt((int) offset);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) offset).limit((int) (offset + length));
+        return slice.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("Unexpected end of file at position " + position);
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static long fingerprint(ByteBuffer buffer, long offset) {
+        return fingerprint(buffer.getLong((int) offset + KEY_OFFSET), buffer.get((int) offset + KIND_OFFSET),
+                           buffer.getLong((int) offset + PALETTE_OFFSET), buffer.getLong((int) offset + BUDGET_OFFSET));
+    }
+
+    private static long fingerprint(byte[] hash, byte kind, long paletteHash, long pixelBudget) {
+        return fingerprint(ByteBuffer.wrap(hash).getLong(), kind, paletteHash, pixelBudget);
+    }
+
+    /**
+     * Combine the first 64 bits of the content hash, which are uniformly distributed, with the rest of the key.
+     */
+    private static long fingerprint(long hashPrefix, byte kind, long paletteHash, long pixelBudget) {
+        return hashPrefix ^ mix(paletteHash) ^ mix(pixelBudget * 31 + kind);
+    }
+
+    /**
+     * The finalizer of SplitMix64, which spreads every input bit to all output bits.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    static byte[] fromHex(String hex) {
+        if (hex == null || hex.length() != HASH_BYTES * 2) {
+            throw new IllegalArgumentException("Expected a SHA-256 hash as " + HASH_BYTES * 2 +
+                                               " hex digits but got '" + hex + "'");
+        }
+        byte[] bytes = new byte[HASH_BYTES];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "HistogramStore(file='%s', histograms=%d, bytes=%d/%d, replacedBytes=%d)",
+                             file, index.size(), end, maxBytes, deadBytes);
+    }
+
+    /**
+     * A stored histogram together with the scale the image was decoded at.
+     */
+    public static class Entry {
+        private final ColorHistogram histogram;
+        private final String scale;
+
+        Entry(ColorHistogram histogram, String scale) {
+            this.histogram = histogram;
+            this.scale = scale;
+        }
+
+        public ColorHistogram getHistogram() {
+            return histogram;
+        }
+
+        /**
+         * @return the scale the image was decoded at, see {@link ImageDecoder#getScale()}.
+         */
+        public String getScale() {
+            return scale;
+        }
+    }
+
+    /**
+     * Map from fingerprint to record offset with linear probing in primitive arrays, as a {@code HashMap<Long, Long>}
+     * would use more than twice the memory for millions of records. The fingerprint 0 is stored as 1, which only
+     * causes an extra key check on lookup.
+     */
+    static class OffsetIndex {
+        private long[] keys = new long[1024];
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        /**
+         * @return the offset for the fingerprint or -1 if there is none.
+         */
+        long get(long fingerprint) {
+            long key = fingerprint == 0 ? 1 : fingerprint;
+            for (int slot = slot(key, keys.length); keys[slot] != 0; slot = (slot + 1) & (keys.length - 1)) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the replaced offset or -1 if there was none.
+         */
+        long put(long fingerprint, long offset) {
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            long key = fingerprint == 0 ? 1 : fingerprint;
+            int slot = slot(key, keys.length);
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    long replaced = values[slot];
+                    values[slot] = offset;
+                    return replaced;
+                }
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            keys[slot] = key;
+            values[slot] = offset;
+            size++;
+            return -1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return all offsets in no particular order.
+         */
+        long[] values() {
+            long[] result = new long[size];
+            int count = 0;
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != 0) {
+                    result[count++] = values[slot];
+                }
+            }
+            return result;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(oldKeys[i], keys.length);
+                    while (keys[slot] != 0) {
+                        slot = (slot + 1) & (keys.length - 1);
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int slot(long key, int length) {
+            return (int) (key ^ (key >>> 32)) & (length - 1);
+        }
+    }
+}
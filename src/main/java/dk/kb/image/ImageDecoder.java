@@ -0,0 +1,379 @@
+package dk.kb.image;
+
+import dk.kb.image.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes images with an upper limit on the number of pixels, by letting the {@link ImageReader} skip pixels while
+ * decoding with {@link ImageReadParam#setSourceSubsampling(int, int, int, int)}. Compared to decoding the full image
+ * and scaling it afterwards, this keeps heap usage proportional to the pixel budget instead of the original resolution.
+ * <p>
+ * The same subsampling factor is used horizontally and vertically, so the aspect ratio is kept.
+ * </p>
+ * <p>
+ * Images can also be decoded in horizontal strips with {@link #readStrips(StripConsumer)}, so that the full image is
+ * never held in memory. This uses {@link ImageReadParam#setSourceRegion(Rectangle)} for each strip, which is only
+ * efficient for formats where the reader can seek directly to the region, such as TIFF with its strips and tiles.
+ * Sequential formats such as JPEG and PNG are decoded from the top for every strip, so strip decoding is only used
+ * for the formats in {@code config.decode.streaming.formats}, see {@link #isStripDecoding()}.
+ * </p>
+ */
+public class ImageDecoder implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ImageDecoder.class);
+
+    private final ImageInputStream iis;
+    private final ImageReader reader;
+    private final int originalWidth;
+    private final int originalHeight;
+    private final int subsampling;
+    private long decodeNanos = 0;
+    private long decodedPixels = 0;
+
+    /**
+     * Receives the pixels of an image one strip at a time.
+     */
+    @FunctionalInterface
+    public interface StripConsumer {
+        /**
+         * @param pixels the ARGB pixels of the strip, row by row. Only valid until the method returns.
+         * @param width  the number of pixels in each row.
+         * @param y      the row in the decoded image that the strip starts at.
+         * @param rows   the number of rows in the strip.
+         */
+        void accept(int[] pixels, int width, int y, int rows) throws IOException;
+    }
+
+    private ImageDecoder(ImageInputStream iis, ImageReader reader, long pixelBudget) throws IOException {
+        this.iis = iis;
+        this.reader = reader;
+        reader.setInput(iis, true, true);
+        originalWidth = reader.getWidth(0);
+        originalHeight = reader.getHeight(0);
+        subsampling = getSubsampling(originalWidth, originalHeight, pixelBudget);
+    }
+
+    /**
+     * Open the first image in the stream for decoding. The image is not decoded until {@link #readImage()} or
+     * {@link #readStrips(StripConsumer)} is called. The decoder must be closed after use. The stream is not closed.
+     * @param in          the encoded image.
+     * @param pixelBudget the maximum number of pixels in the decoded image. 0 or less means no limit.
+     * @return a decoder for the image or null if no registered {@link ImageReader} can decode the stream,
+     *         mirroring {@link ImageIO#read(InputStream)}.
+     * @throws IOException if the image header could not be read.
+     */
+    public static ImageDecoder open(InputStream in, long pixelBudget) throws IOException {
+        return open(ImageIO.createImageInputStream(in), pixelBudget);
+    }
+
+    /**
+     * Open the first image in the file for decoding. The file is read with random access directly by the
+     * {@link ImageReader}, without the copy to a cache that is needed for an {@link InputStream}.
+     * The decoder must be closed after use, which also closes the file.
+     * @param file        the encoded image.
+     * @param pixelBudget the maximum number of pixels in the decoded image. 0 or less means no limit.
+     * @return a decoder for the image or null if no registered {@link ImageReader} can decode the file.
+     * @throws IOException if the file could not be opened or the image header could not be read.
+     */
+    public static ImageDecoder open(Path file, long pixelBudget) throws IOException {
+        return open(new FileImageInputStream(file.toFile()), pixelBudget);
+    }
+
+    /**
+     * @param iis the encoded image, which is closed if null is returned or an exception is thrown.
+     */
+    private static ImageDecoder open(ImageInputStream iis, long pixelBudget) throws IOException {
+        if (iis == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            iis.close();
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            ImageDecoder decoder = new ImageDecoder(iis, reader, pixelBudget);
+            decoder.decodeNanos = System.nanoTime() - start;
+            return decoder;
+        } catch (IOException | RuntimeException e) {
+            reader.dispose();
+            iis.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decode the first image in the stream, subsampled so that it holds at most pixelBudget pixels.
+     * The stream is not closed.
+     * @param in          the encoded image.
+     * @param pixelBudget the maximum number of pixels in the decoded image. 0 or less means no limit.
+     * @return the decoded image or null if no registered {@link ImageReader} can decode the stream,
+     *         mirroring {@link ImageIO#read(InputStream)}.
+     * @throws IOException if the image could not be decoded.
+     */
+    public static Decoded decode(InputStream in, long pixelBudget) throws IOException {
+        try (ImageDecoder decoder = open(in, pixelBudget)) {
+            if (decoder == null) {
+                return null;
+            }
+            return new Decoded(decoder.readImage(), decoder.subsampling, decoder.originalWidth, decoder.originalHeight);
+        }
+    }
+
+    /**
+     * Decode the full image in a single {@link BufferedImage}, subsampled to fit the pixel budget.
+     * @return the decoded image.
+     */
+    public BufferedImage readImage() throws IOException {
+        long start = System.nanoTime();
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        BufferedImage img = reader.read(0, param);
+        decodeNanos += System.nanoTime() - start;
+        decodedPixels += (long) img.getWidth() * img.getHeight();
+        log.debug("Decoded {} image of {}x{} pixels with subsampling {} to {}x{} pixels",
+                  getFormatName(), originalWidth, originalHeight, subsampling, img.getWidth(), img.getHeight());
+        return img;
+    }
+
+    /**
+     * Decode the image in horizontal strips of about {@code config.decode.streaming.stripPixels} pixels each and
+     * deliver the pixels of each strip to the consumer. Only a single strip is held in memory at a time.
+     * @param consumer receives the strips from top to bottom.
+     */
+    public void readStrips(StripConsumer consumer) throws IOException {
+        int stripRows = (int) Math.max(1, ServiceConfig.getStripPixels() / getWidth());
+        readStrips(stripRows, consumer);
+    }
+
+    /**
+     * Decode the image in horizontal strips and deliver the pixels of each strip to the consumer.
+     * @param stripRows the wanted number of rows in the decoded strips. The number is adjusted upwards so that strips
+     *                  start at the beginning of the strips or tiles of the encoded image.
+     * @param consumer  receives the strips from top to bottom.
+     */
+    void readStrips(int stripRows, StripConsumer consumer) throws IOException {
+        int sourceRows = getSourceRows(stripRows, subsampling, reader.getTileHeight(0), originalHeight);
+        log.debug("Decoding {} image of {}x{} pixels with subsampling {} in strips of {} source rows",
+                  getFormatName(), originalWidth, originalHeight, subsampling, sourceRows);
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        int[] pixels = null;
+        int y = 0;
+        for (int sourceY = 0; sourceY < originalHeight; sourceY += sourceRows) {
+            long start = System.nanoTime();
+            param.setSourceRegion(
+                    new Rectangle(0, sourceY, originalWidth, Math.min(sourceRows, originalHeight - sourceY)));
+            BufferedImage strip = reader.read(0, param);
+            RasterPixelReader stripReader = new RasterPixelReader(strip);
+            pixels = stripReader.readRows(0, strip.getHeight(), pixels);
+            decodeNanos += System.nanoTime() - start;
+            decodedPixels += (long) strip.getWidth() * strip.getHeight();
+            consumer.accept(pixels, strip.getWidth(), y, strip.getHeight());
+            y += strip.getHeight();
+        }
+    }
+
+    /**
+     * Calculate the number of source rows for each strip. As source subsampling starts at the top of the source
+     * region, the number must be a multiple of the subsampling factor for the strips to use the same pixels as a full
+     * decode. When possible it is also a multiple of the tile height, so that no tile is decoded more than once.
+     * @param stripRows   the wanted number of decoded rows in each strip.
+     * @param subsampling the subsampling factor.
+     * @param tileHeight  the height of the tiles or strips in the encoded image.
+     * @param height      the height of the encoded image.
+     * @return the number of source rows in each strip.
+     */
+    static int getSourceRows(int stripRows, int subsampling, int tileHeight, int height) {
+        long sourceRows = (long) stripRows * subsampling;
+        if (tileHeight > 0 && tileHeight < height) {
+            long step = lcm(tileHeight, subsampling);
+            sourceRows = Math.max(step, sourceRows / step * step);
+        }
+        return (int) Math.min(height, sourceRows);
+    }
+
+    private static long lcm(int a, int b) {
+        int x = a;
+        int y = b;
+        while (y != 0) {
+            int t = x % y;
+            x = y;
+            y = t;
+        }
+        return (long) a / x * b;
+    }
+
+    /**
+     * Strip decoding is used for formats where the reader can decode regions directly, configured with
+     * {@code config.decode.streaming.formats}, when the decoded image holds at least
+     * {@code config.decode.streaming.minPixels} pixels.
+     * @return true if the image should be decoded with {@link #readStrips(StripConsumer)}.
+     */
+    public boolean isStripDecoding() throws IOException {
+        return (long) getWidth() * getHeight() >= ServiceConfig.getStreamingMinPixels() &&
+               ServiceConfig.getStreamingFormats().contains(getFormatName());
+    }
+
+    /**
+     * @return the name of the image format in lower case, e.g. {@code tif} or {@code jpeg}.
+     */
+    public String getFormatName() throws IOException {
+        return reader.getFormatName().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the width of the decoded image.
+     */
+    public int getWidth() {
+        return (originalWidth + subsampling - 1) / subsampling;
+    }
+
+    /**
+     * @return the height of the decoded image.
+     */
+    public int getHeight() {
+        return (originalHeight + subsampling - 1) / subsampling;
+    }
+
+    public int getOriginalWidth() {
+        return originalWidth;
+    }
+
+    public int getOriginalHeight() {
+        return originalHeight;
+    }
+
+    /**
+     * @return the subsampling factor used for decoding. 1 means full resolution, 4 means every 4th pixel
+     *         horizontally and vertically.
+     */
+    public int getSubsampling() {
+        return subsampling;
+    }
+
+    /**
+     * @return the scale as a fraction, e.g. {@code 1/4}.
+     */
+    public String getScale() {
+        return "1/" + subsampling;
+    }
+
+    /**
+     * The time spent reading the header and decoding pixels, excluding the time spent by the consumer of
+     * {@link #readStrips(StripConsumer)}. This is recorded as {@link ServiceMetrics.Stage#DECODE} when the decoder is
+     * closed.
+     * @return the time spent decoding so far in nanoseconds.
+     */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ServiceMetrics.Stage.DECODE.record(decodeNanos);
+        ServiceMetrics.Counter.DECODED_PIXELS.add(decodedPixels);
+        reader.dispose();
+        iis.close();
+    }
+
+    /**
+     * Calculate the smallest subsampling factor that brings an image within the pixel budget.
+     * @param width       the width of the full image.
+     * @param height      the height of the full image.
+     * @param pixelBudget the maximum number of pixels in the subsampled image. 0 or less means no limit.
+     * @return the subsampling factor, 1 meaning all pixels.
+     */
+    static int getSubsampling(int width, int height, long pixelBudget) {
+        if (pixelBudget <= 0) {
+            return 1;
+        }
+        int subsampling = (int) Math.max(1, Math.floor(Math.sqrt((double) width * height / pixelBudget)));
+        // Rounding in the square root can leave the image slightly above budget
+        while (subsampledPixels(width, height, subsampling) > pixelBudget &&
+               subsampling < Math.max(width, height)) {
+            subsampling++;
+        }
+        return subsampling;
+    }
+
+    private static long subsampledPixels(int width, int height, int subsampling) {
+        return (long) ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "ImageDecoder(%dx%d -> %dx%d, scale=%s)", originalWidth, originalHeight,
+                             getWidth(), getHeight(), getScale());
+    }
+
+    /**
+     * A decoded image together with the scale it was decoded at.
+     */
+    public static class Decoded {
+        private final BufferedImage image;
+        private final int subsampling;
+        private final int originalWidth;
+        private final int originalHeight;
+
+        Decoded(BufferedImage image, int subsampling, int originalWidth, int originalHeight) {
+            this.image = image;
+            this.subsampling = subsampling;
+            this.originalWidth = originalWidth;
+            this.originalHeight = originalHeight;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        /**
+         * @return the subsampling factor used for decoding. 1 means full resolution, 4 means every 4th pixel
+         *         horizontally and vertically.
+         */
+        public int getSubsampling() {
+            return subsampling;
+        }
+
+        public int getOriginalWidth() {
+            return originalWidth;
+        }
+
+        public int getOriginalHeight() {
+            return originalHeight;
+        }
+
+        /**
+         * @return the scale as a fraction, e.g. {@code 1/4}.
+         */
+        public String getScale() {
+            return "1/" + subsampling;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Decoded(%dx%d -> %dx%d, scale=%s)", originalWidth, originalHeight,
+                                 image.getWidth(), image.getHeight(), getScale());
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package dk.kb.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Encodes images directly to an {@link OutputStream}, such as the response of a webservice call.
+ * <p>
+ * {@link ImageIO#write(java.awt.image.RenderedImage, String, OutputStream)} looks up a new {@link ImageWriter} for
+ * each call, and with a {@link java.io.ByteArrayOutputStream} the full encoded image is held in memory, typically
+ * twice. Here the writers are kept in a small pool per format and the encoded bytes are passed on to the destination
+ * as they are produced, so only a small buffer is held regardless of the size of the output.
+ * </p>
+ */
+public class ImageEncoder {
+    private static final Logger log = LoggerFactory.getLogger(ImageEncoder.class);
+
+    /**
+     * The maximum number of idle writers kept for each format.
+     */
+    static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Encoded bytes for sequential formats are passed on when at least this many have been cached.
+     */
+    static final int FLUSH_BYTES = 8192;
+
+    private static final Map<Format, BlockingQueue<ImageWriter>> POOLS = new EnumMap<>(Format.class);
+    static {
+        for (Format format : Format.values()) {
+            POOLS.put(format, new ArrayBlockingQueue<>(POOL_SIZE));
+        }
+    }
+
+    /**
+     * The supported output formats.
+     */
+    public enum Format {
+        /**
+         * JPEG, which is written strictly sequentially. This is the default.
+         */
+        JPEG("jpeg", "image/jpeg", "jpg", true),
+        /**
+         * PNG, where the writer seeks back within each chunk and releases the chunk when it is complete.
+         */
+        PNG("png", "image/png", "png", false);
+
+        private final String formatName;
+        private final String mimeType;
+        private final String extension;
+        private final boolean sequential;
+
+        Format(String formatName, String mimeType, String extension, boolean sequential) {
+            this.formatName = formatName;
+            this.mimeType = mimeType;
+            this.extension = extension;
+            this.sequential = sequential;
+        }
+
+        /**
+         * @param format the name of the format, case insensitive. If null or empty, {@link #JPEG} is used.
+         * @return the format.
+         * @throws IllegalArgumentException if the format is unknown.
+         */
+        public static Format of(String format) {
+            if (format == null || format.isEmpty()) {
+                return JPEG;
+            }
+            String name = format.toLowerCase(Locale.ROOT);
+            for (Format candidate : values()) {
+                if (candidate.formatName.equals(name) || candidate.extension.equals(name)) {
+                    return candidate;
+                }
+            }
+            throw new IllegalArgumentException("Unknown output format '" + format + "'");
+        }
+
+        /**
+         * @return the MIME type for the Content-Type of responses.
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * @return the file extension, without the dot.
+         */
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private ImageEncoder() {
+    }
+
+    /**
+     * Encode the image to the stream. The stream is neither flushed nor closed.
+     * @param img     the image to encode.
+     * @param format  the output format.
+     * @param quality the compression quality from 0 (smallest) to 1 (best) for {@link Format#JPEG}.
+     *                If null, the default of the writer is used. Ignored for {@link Format#PNG}, which is lossless.
+     * @param out     the destination for the encoded image.
+     * @throws IllegalArgumentException if the quality is outside of 0-1.
+     */
+    public static void write(BufferedImage img, Format format, Float quality, OutputStream out) throws IOException {
+        checkQuality(quality);
+        long start = System.nanoTime();
+        ImageWriter writer = borrow(format);
+        boolean reusable = false;
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (quality != null && format == Format.JPEG && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            try (StreamingImageOutputStream ios = new StreamingImageOutputStream(out, format.sequential)) {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(img, null, null), param);
+                ServiceMetrics.Counter.ENCODED_BYTES.add(ios.length());
+            }
+            reusable = true;
+            ServiceMetrics.Stage.ENCODE.recordSince(start);
+        } finally {
+            release(format, writer, reusable);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the quality is not null and outside of 0-1.
+     */
+    public static void checkQuality(Float quality) {
+        if (quality != null && !(quality >= 0f && quality <= 1f)) {
+            throw new IllegalArgumentException("The quality must be between 0 and 1, but was " + quality);
+        }
+    }
+
+    /**
+     * @return an idle writer for the format from the pool, or a new writer if the pool is empty.
+     */
+    static ImageWriter borrow(Format format) throws IOException {
+        ImageWriter writer = POOLS.get(format).poll();
+        if (writer != null) {
+            return writer;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format.formatName);
+        if (!writers.hasNext()) {
+            throw new IOException("No ImageWriter available for " + format);
+        }
+        log.debug("Creating new ImageWriter for {}", format);
+        return writers.next();
+    }
+
+    /**
+     * Return the writer to the pool, or dispose it if the pool is full or the writer failed.
+     */
+    private static void release(Format format, ImageWriter writer, boolean reusable) {
+        if (reusable) {
+            writer.reset();
+            if (POOLS.get(format).offer(writer)) {
+                return;
+            }
+        }
+        writer.dispose();
+    }
+
+    /**
+     * @return the number of idle writers in the pool for the format.
+     */
+    static int getPooledWriters(Format format) {
+        return POOLS.get(format).size();
+    }
+
+    /**
+     * Passes bytes on to the destination as soon as the writer no longer needs them. Writers for non-sequential
+     * formats mark the bytes they are done with by {@link #flushBefore(long)}. For sequential formats the cached
+     * bytes are passed on when more than {@link #FLUSH_BYTES} have been written.
+     */
+    private static class StreamingImageOutputStream extends MemoryCacheImageOutputStream {
+        private final boolean sequential;
+
+        StreamingImageOutputStream(OutputStream out, boolean sequential) {
+            super(out);
+            this.sequential = sequential;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            super.write(b);
+            flushIfSequential();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            flushIfSequential();
+        }
+
+        private void flushIfSequential() throws IOException {
+            if (sequential && getStreamPosition() - getFlushedPosition() >= FLUSH_BYTES) {
+                flushBefore(getStreamPosition());
+            }
+        }
+    }
+}
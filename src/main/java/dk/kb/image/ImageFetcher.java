@@ -0,0 +1,376 @@
+package dk.kb.image;
+
+import dk.kb.image.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches images from remote sources, see {@link ImageSource}.
+ * <p>
+ * All fetches share a single {@link HttpClient}, which keeps connections to each host open between requests. Redirects
+ * are not followed, as they could lead to hosts that are not allowed. The content is read into an
+ * {@link UploadBuffer}, so the hash for the result caches is calculated while the image is received.
+ * </p>
+ * <p>
+ * A remote host cannot tie up the service with an endless or slow body: responses larger than
+ * {@code config.sources.maxBytes} are rejected, by the announced Content-Length or while reading, and the body must be
+ * received within {@code config.sources.readTimeoutSeconds}. The limits hold for each image, also when prefetching.
+ * </p>
+ * <p>
+ * For batches, {@link #prefetch(List)} fetches images in parallel ahead of their analysis, so that the network
+ * transfer of the next images overlaps with the decoding of the current ones.
+ * </p>
+ */
+public class ImageFetcher {
+    private static final Logger log = LoggerFactory.getLogger(ImageFetcher.class);
+
+    private static HttpClient client;
+    private static ExecutorService prefetcher;
+    private static ScheduledExecutorService watchdog;
+
+    /**
+     * Fetches a single image.
+     */
+    @FunctionalInterface
+    interface Fetcher {
+        UploadBuffer fetch(URI uri) throws IOException;
+    }
+
+    /**
+     * Fetch the image at the URL.
+     * @return the content, which must be closed after use.
+     * @throws FileNotFoundException if the server responded with 404, mirroring {@link java.net.HttpURLConnection}.
+     * @throws IOException           if the server could not be reached, responded with another status than 200,
+     *                               the content is larger than {@code config.sources.maxBytes} or it was not
+     *                               received within {@code config.sources.readTimeoutSeconds}.
+     */
+    public static UploadBuffer fetch(URI uri) throws IOException {
+        return fetch(uri, ServiceConfig.getSourceMaxBytes(),
+                     TimeUnit.SECONDS.toMillis(ServiceConfig.getSourceReadTimeoutSeconds()));
+    }
+
+    /**
+     * @param maxBytes      the maximum size of the content.
+     * @param readTimeoutMS the maximum time for receiving the content, after the response headers.
+     * @see #fetch(URI)
+     */
+    static UploadBuffer fetch(URI uri, long maxBytes, long readTimeoutMS) throws IOException {
+        long start = System.nanoTime();
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(ServiceConfig.getSourceTimeoutSeconds()))
+                .GET()
+                .build();
+        HttpResponse<InputStream> response;
+        try {
+            response = getClient().send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching '" + uri + "'");
+        }
+        try (InputStream body = response.body()) {
+            if (response.statusCode() == 404) {
+                throw new FileNotFoundException("The image '" + uri + "' was not found");
+            }
+            if (response.statusCode() != 200) {
+                throw new IOException("Fetching the image '" + uri + "' failed with HTTP status " +
+                                      response.statusCode());
+            }
+            long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            if (length > maxBytes) {
+                throw new IOException("The image '" + uri + "' is " + length + " bytes, more than the maximum of " +
+                                      maxBytes + " bytes");
+            }
+            LimitedBody limited = new LimitedBody(body, uri, maxBytes, readTimeoutMS);
+            // A read that is blocked waiting for the host does not see the deadline, so the body is closed at it
+            ScheduledFuture<?> expiry = getWatchdog().schedule(limited::expire, readTimeoutMS, TimeUnit.MILLISECONDS);
+            UploadBuffer upload;
+            try {
+                upload = UploadBuffer.read(limited, ServiceConfig.getUploadMemoryLimit());
+            } finally {
+                expiry.cancel(false);
+            }
+            log.debug("Fetched {} bytes from '{}'", upload.getSize(), uri);
+            ServiceMetrics.Counter.RECEIVED_BYTES.add(upload.getSize());
+            ServiceMetrics.Stage.FETCH.recordSince(start);
+            return upload;
+        }
+    }
+
+    /**
+     * Start fetching the remote images, at most {@code config.sources.prefetch} ahead of the ones that have been taken
+     * with {@link Prefetch#take(int)}.
+     * @param uris the URLs of the images, with null for images that are not remote.
+     * @return the running prefetch, which must be closed after use.
+     */
+    public static Prefetch prefetch(List<URI> uris) {
+        return new Prefetch(uris, ServiceConfig.getSourcePrefetch(), getPrefetcher(), ImageFetcher::fetch);
+    }
+
+    private static synchronized HttpClient getClient() {
+        if (client == null) {
+            client = HttpClient.newBuilder()
+                    .connectTimeout(Duration.ofSeconds(ServiceConfig.getSourceTimeoutSeconds()))
+                    .followRedirects(HttpClient.Redirect.NEVER)
+                    .build();
+        }
+        return client;
+    }
+
+    private static synchronized ExecutorService getPrefetcher() {
+        if (prefetcher == null) {
+            // The number of concurrent fetches is bounded by the prefetch of each batch
+            prefetcher = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "image-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return prefetcher;
+    }
+
+    private static synchronized ScheduledExecutorService getWatchdog() {
+        if (watchdog == null) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "image-fetch-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return watchdog;
+    }
+
+    /**
+     * Stop running prefetches and release the connections.
+     */
+    public static synchronized void shutdown() {
+        if (prefetcher != null) {
+            prefetcher.shutdownNow();
+            prefetcher = null;
+        }
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+            watchdog = null;
+        }
+        client = null;
+    }
+
+    /**
+     * The body of a response, failing when more than a maximum number of bytes is read or the deadline has passed.
+     * {@link #expire()} closes the body from another thread, so that a read blocked on a stalled host returns.
+     */
+    static class LimitedBody extends FilterInputStream {
+        private final URI uri;
+        private final long maxBytes;
+        private final long readTimeoutMS;
+        private final long deadline;
+        private volatile boolean expired = false;
+        private long read = 0;
+
+        LimitedBody(InputStream body, URI uri, long maxBytes, long readTimeoutMS) {
+            super(body);
+            this.uri = uri;
+            this.maxBytes = maxBytes;
+            this.readTimeoutMS = readTimeoutMS;
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMS);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkDeadline();
+            int count = super.read(b, off, len);
+            // A closed body may report the end of the content, so the deadline is checked again
+            checkDeadline();
+            if (count > 0) {
+                read += count;
+                if (read > maxBytes) {
+                    throw new IOException("The image '" + uri + "' is more than the maximum of " + maxBytes +
+                                          " bytes");
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must count towards the maximum too
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int count = read(buffer, 0, buffer.length);
+            return Math.max(0, count);
+        }
+
+        /**
+         * Mark the body as expired and close it, releasing a read that waits for the host.
+         */
+        void expire() {
+            expired = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.debug("Unable to close the expired body of '{}'", uri, e);
+            }
+        }
+
+        private void checkDeadline() throws IOException {
+            if (expired || System.nanoTime() - deadline > 0) {
+                throw new IOException("The image '" + uri + "' was not received within " + readTimeoutMS + " ms");
+            }
+        }
+    }
+
+    /**
+     * Remote images that are fetched in order, at most a fixed number ahead of the ones that have been taken.
+     */
+    public static class Prefetch implements Closeable {
+        private final List<URI> uris;
+        private final int ahead;
+        private final Executor executor;
+        private final Fetcher fetcher;
+        private final List<CompletableFuture<UploadBuffer>> fetches;
+        private final boolean[] taken;
+        private int next = 0;
+        private int started = 0;
+        private boolean closed = false;
+
+        /**
+         * @param uris     the URLs of the images, with null for images that are not remote.
+         * @param ahead    the maximum number of images to fetch before they are taken.
+         * @param executor runs the fetches.
+         * @param fetcher  fetches a single image.
+         */
+        Prefetch(List<URI> uris, int ahead, Executor executor, Fetcher fetcher) {
+            this.uris = uris;
+            this.ahead = Math.max(1, ahead);
+            this.executor = executor;
+            this.fetcher = fetcher;
+            fetches = new ArrayList<>(uris.size());
+            for (int i = 0; i < uris.size(); i++) {
+                fetches.add(new CompletableFuture<>());
+            }
+            taken = new boolean[uris.size()];
+            startFetches(-1);
+        }
+
+        /**
+         * Wait for the image to be fetched and start fetching the next.
+         * @param index the index of a remote image in the list.
+         * @return the content, which must be closed after use.
+         */
+        public UploadBuffer take(int index) throws IOException {
+            if (uris.get(index) == null) {
+                throw new IllegalArgumentException("The image at index " + index + " is not remote");
+            }
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("The prefetch has been closed");
+                }
+                taken[index] = true;
+                startFetches(index);
+            }
+            try {
+                return fetches.get(index).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for '" + uris.get(index) + "'");
+            } catch (CancellationException e) {
+                throw new IOException("The fetch of '" + uris.get(index) + "' was cancelled", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException("Unable to fetch '" + uris.get(index) + "'", e.getCause());
+            }
+        }
+
+        /**
+         * Start fetches in order until the image at the index has been started and at most {@link #ahead} images
+         * are fetched but not taken.
+         */
+        private synchronized void startFetches(int index) {
+            while (next < uris.size() && (next <= index || started - countTaken() < ahead)) {
+                if (uris.get(next) != null) {
+                    start(next);
+                    started++;
+                }
+                next++;
+            }
+        }
+
+        private int countTaken() {
+            int count = 0;
+            for (int i = 0; i < next; i++) {
+                if (taken[i]) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private void start(int index) {
+            CompletableFuture<UploadBuffer> fetch = fetches.get(index);
+            executor.execute(() -> {
+                if (fetch.isDone()) {
+                    return;
+                }
+                try {
+                    UploadBuffer upload = fetcher.fetch(uris.get(index));
+                    if (!fetch.complete(upload)) {
+                        // The prefetch was closed while fetching
+                        upload.close();
+                    }
+                } catch (Exception e) {
+                    fetch.completeExceptionally(e);
+                }
+            });
+        }
+
+        /**
+         * Cancel fetches that have not completed and delete the content of images that were fetched but not taken.
+         */
+        @Override
+        public synchronized void close() {
+            closed = true;
+            for (int i = 0; i < fetches.size(); i++) {
+                CompletableFuture<UploadBuffer> fetch = fetches.get(i);
+                if (!fetch.cancel(false) && !taken[i] && !fetch.isCompletedExceptionally()) {
+                    try {
+                        fetch.join().close();
+                    } catch (IOException e) {
+                        log.warn("Unable to delete the fetched content of '{}'", uris.get(i), e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package dk.kb.image;
+
+import dk.kb.image.config.ServiceConfig;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * An image to analyse that is read from a local path or fetched from a URL, instead of being uploaded.
+ * <p>
+ * Sources are restricted, so that clients can neither read arbitrary files nor make the service fetch from arbitrary
+ * hosts: Paths must be absolute and below one of the roots in {@code config.sources.allowedRoots}, also after
+ * symbolic links have been resolved, and URLs must be http or https on one of the hosts in
+ * {@code config.sources.allowedHosts}. Remote images are fetched with {@link ImageFetcher}.
+ * </p>
+ */
+public class ImageSource {
+    private final String source;
+    private final Path file;
+    private final URI uri;
+    private final List<Path> roots;
+
+    private ImageSource(String source, Path file, URI uri, List<Path> roots) {
+        this.source = source;
+        this.file = file;
+        this.uri = uri;
+        this.roots = roots;
+    }
+
+    /**
+     * Resolve a source with the roots and hosts from the configuration.
+     * @param source an absolute path or an http or https URL.
+     * @return the source.
+     * @throws IllegalArgumentException if the source is invalid or not allowed.
+     */
+    public static ImageSource of(String source) {
+        return of(source, ServiceConfig.getSourceRoots(), ServiceConfig.getSourceHosts());
+    }
+
+    /**
+     * Resolve a source. Whether a file exists, and whether it is below an allowed root after symbolic links have been
+     * resolved, is checked by {@link #getFile()}.
+     * @param source an absolute path or an http or https URL.
+     * @param roots  the directories that paths must be below.
+     * @param hosts  the hosts, in lower case and optionally with {@code :port}, that URLs must be on.
+     * @return the source.
+     * @throws IllegalArgumentException if the source is invalid or not allowed.
+     */
+    static ImageSource of(String source, List<Path> roots, Set<String> hosts) {
+        if (source == null || source.isEmpty()) {
+            throw new IllegalArgumentException("No source was given");
+        }
+        String lowerCase = source.toLowerCase(Locale.ROOT);
+        if (lowerCase.startsWith("http://") || lowerCase.startsWith("https://")) {
+            return new ImageSource(source, null, toUri(source, hosts), roots);
+        }
+        return new ImageSource(source, toPath(source, roots), null, roots);
+    }
+
+    private static URI toUri(String source, Set<String> hosts) {
+        URI uri;
+        try {
+            uri = new URI(source);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("The source '" + source + "' is not a valid URL: " + e.getMessage());
+        }
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("The URL '" + source + "' has no host");
+        }
+        String host = uri.getHost().toLowerCase(Locale.ROOT);
+        if (!hosts.contains(host) && !(uri.getPort() != -1 && hosts.contains(host + ":" + uri.getPort()))) {
+            throw new IllegalArgumentException("Images cannot be fetched from the host '" + host + "'");
+        }
+        return uri;
+    }
+
+    private static Path toPath(String source, List<Path> roots) {
+        Path path;
+        try {
+            path = Paths.get(source);
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("The source '" + source + "' is not a valid path: " + e.getMessage());
+        }
+        if (!path.isAbsolute()) {
+            throw new IllegalArgumentException("The path '" + source + "' must be absolute");
+        }
+        path = path.normalize();
+        if (!isBelowRoot(path, roots, false)) {
+            throw new IllegalArgumentException("The path '" + source + "' is not below an allowed root");
+        }
+        return path;
+    }
+
+    private static boolean isBelowRoot(Path path, List<Path> roots, boolean realRoots) {
+        for (Path root : roots) {
+            Path resolvedRoot = root.toAbsolutePath().normalize();
+            if (realRoots) {
+                try {
+                    resolvedRoot = root.toRealPath();
+                } catch (IOException e) {
+                    continue;
+                }
+            }
+            if (path.startsWith(resolvedRoot)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the source as given.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return true if the image is fetched from a URL, see {@link #getUri()}.
+     */
+    public boolean isRemote() {
+        return uri != null;
+    }
+
+    /**
+     * @return the URL of the image or null if the image is a local file.
+     */
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * Resolve symbolic links in the path and check that the file is still below an allowed root.
+     * @return the real path of the file.
+     * @throws NoSuchFileException      if the file does not exist.
+     * @throws IllegalArgumentException if the source is a URL, is not a regular file or a symbolic link points outside
+     *                                  the allowed roots.
+     */
+    public Path getFile() throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("The source '" + source + "' is not a local file");
+        }
+        Path real = file.toRealPath();
+        if (!isBelowRoot(real, roots, true)) {
+            throw new IllegalArgumentException("The path '" + source + "' is not below an allowed root");
+        }
+        if (!Files.isRegularFile(real)) {
+            throw new IllegalArgumentException("The path '" + source + "' is not a file");
+        }
+        return real;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageSource(" + source + ")";
+    }
+}
@@ -0,0 +1,331 @@
+package dk.kb.image;
+
+import dk.kb.image.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides {@link BucketLookup}s for {@link ColorPalette}s.
+ * <p>
+ * The SMK palette uses the bundled {@link BucketLookupTable#getOkLab()}. For other palettes a lookup table is
+ * generated in the background with {@link BucketLookupTableGenerator} and written to
+ * {@code config.lookupTable.cacheDir}, where it survives restarts. Mapped tables are kept in an LRU cache holding at
+ * most {@code config.lookupTable.maxCached} tables and the directory holds at most
+ * {@code config.lookupTable.maxOnDisk} tables, deleting the least recently used. Until the table for a palette is
+ * ready, an {@link ExactBucketLookup} is used.
+ * </p>
+ * <p>
+ * If {@code config.lookupTable.coarse} is true, the tables are converted to {@link CoarseBucketLookup}s, which give
+ * the same buckets in a fraction of the memory and with better cache locality.
+ * </p>
+ */
+public class LookupTableCache {
+    private static final Logger log = LoggerFactory.getLogger(LookupTableCache.class);
+
+    /**
+     * The states of the lookup table for a palette.
+     */
+    public enum Status {
+        /**
+         * The table is ready and lookups are fast.
+         */
+        READY,
+        /**
+         * The table is being generated and lookups use the exact, but slower, calculation.
+         */
+        GENERATING,
+        /**
+         * Generation of the table failed and lookups use the exact, but slower, calculation.
+         */
+        FAILED
+    }
+
+    private static Map<Long, BucketLookup> tables;
+    private static BucketLookup defaultLookup;
+    private static final Set<Long> generating = new HashSet<>();
+    private static final Set<Long> failed = new HashSet<>();
+    private static final Set<Long> discarded = new HashSet<>();
+    private static ExecutorService generator;
+
+    /**
+     * Get the fastest available lookup for the palette. If the table for the palette is neither cached nor on disk,
+     * generation is started in the background.
+     * @param palette the palette to bucket colors into.
+     * @return a table based lookup if available, else an exact lookup.
+     */
+    public static BucketLookup getLookup(ColorPalette palette) {
+        if (palette.getHash() == ColorPalette.getDefault().getHash()) {
+            return getDefaultLookup();
+        }
+        BucketLookup table = getTable(palette);
+        return table != null ? table : new ExactBucketLookup(palette.getOkLabColors());
+    }
+
+    /**
+     * Start generation of the table for the palette in the background, unless it is already available.
+     */
+    public static void prepare(ColorPalette palette) {
+        if (palette.getHash() != ColorPalette.getDefault().getHash()) {
+            getTable(palette);
+        }
+    }
+
+    /**
+     * Remove the table for a palette that is no longer registered from the cache and delete it from disk. If the table
+     * is being generated, it is deleted when the generation finishes.
+     */
+    public static synchronized void discard(ColorPalette palette) {
+        long hash = palette.getHash();
+        if (hash == ColorPalette.getDefault().getHash()) {
+            return;
+        }
+        getTables().remove(hash);
+        failed.remove(hash);
+        if (generating.contains(hash)) {
+            discarded.add(hash);
+            return;
+        }
+        delete(getFile(hash));
+    }
+
+    /**
+     * @return the state of the lookup table for the palette.
+     */
+    public static synchronized Status getStatus(ColorPalette palette) {
+        if (palette.getHash() == ColorPalette.getDefault().getHash() || getTable(palette) != null) {
+            return Status.READY;
+        }
+        return failed.contains(palette.getHash()) ? Status.FAILED : Status.GENERATING;
+    }
+
+    /**
+     * @return the lookup for the SMK palette, see {@link BucketLookupTable#getOkLab()}.
+     */
+    private static synchronized BucketLookup getDefaultLookup() {
+        if (defaultLookup == null) {
+            defaultLookup = compact(BucketLookupTable.getOkLab());
+        }
+        return defaultLookup;
+    }
+
+    /**
+     * @return a {@link CoarseBucketLookup} for the table if {@code config.lookupTable.coarse} is true, else the table.
+     */
+    private static BucketLookup compact(BucketLookupTable table) {
+        return ServiceConfig.isLookupTableCoarse() ? CoarseBucketLookup.of(table) : table;
+    }
+
+    /**
+     * Get the table from the cache or from disk, or start generating it.
+     * @return the table or null if it is not ready.
+     */
+    private static synchronized BucketLookup getTable(ColorPalette palette) {
+        long hash = palette.getHash();
+        // The palette is used again, so a running generation must not be deleted when it finishes
+        discarded.remove(hash);
+        BucketLookup table = getTables().get(hash);
+        if (table != null || generating.contains(hash) || failed.contains(hash)) {
+            return table;
+        }
+        Path file = getFile(hash);
+        if (Files.exists(file)) {
+            try {
+                table = compact(BucketLookupTable.open(file, palette.getOkLabColors()));
+                getTables().put(hash, table);
+                touch(file);
+                return table;
+            } catch (IOException | IllegalStateException e) {
+                log.warn("The bucket lookup table '{}' for {} is invalid and will be generated again", file, palette, e);
+            }
+        }
+        generating.add(hash);
+        getGenerator().submit(() -> generate(palette, file));
+        return null;
+    }
+
+    /**
+     * Generate the table for the palette and add it to the cache.
+     */
+    private static void generate(ColorPalette palette, Path file) {
+        long hash = palette.getHash();
+        try {
+            log.info("Generating bucket lookup table for {}", palette);
+            BucketLookupTableGenerator.writeTable(
+                    file, palette.getOkLabColors(), ServiceConfig.getLookupTableGeneratorThreads(), true);
+            BucketLookup table = compact(BucketLookupTable.open(file, palette.getOkLabColors()));
+            synchronized (LookupTableCache.class) {
+                if (discarded.remove(hash)) {
+                    delete(file);
+                } else {
+                    getTables().put(hash, table);
+                    pruneDisk();
+                }
+            }
+        } catch (Exception e) {
+            log.error("Unable to generate bucket lookup table for {}. Analysis will use exact lookups", palette, e);
+            synchronized (LookupTableCache.class) {
+                failed.add(hash);
+            }
+        } finally {
+            synchronized (LookupTableCache.class) {
+                generating.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used tables in the cache dir beyond {@code config.lookupTable.maxOnDisk}. Tables that
+     * are mapped or being generated are kept.
+     */
+    private static synchronized void pruneDisk() {
+        Set<Path> inUse = new HashSet<>();
+        for (Long hash : getTables().keySet()) {
+            inUse.add(getFile(hash));
+        }
+        for (Long hash : generating) {
+            inUse.add(getFile(hash));
+        }
+        pruneDisk(ServiceConfig.getLookupTableCacheDir(), ServiceConfig.getLookupTableMaxOnDisk(), inUse);
+    }
+
+    /**
+     * Delete the least recently used tables in the directory, judged by their modification time, so that at most
+     * maxOnDisk tables are left, not counting the ones in use.
+     * @param inUse tables that must not be deleted.
+     */
+    static void pruneDisk(Path dir, int maxOnDisk, Set<Path> inUse) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "palette-v*.lut")) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            log.warn("Unable to list the bucket lookup tables in '{}'", dir, e);
+            return;
+        }
+        Map<Path, Long> lastUsed = new HashMap<>();
+        for (Path file : files) {
+            try {
+                lastUsed.put(file, Files.getLastModifiedTime(file).toMillis());
+            } catch (IOException e) {
+                lastUsed.put(file, 0L);
+            }
+        }
+        files.sort(Comparator.comparing((Path file) -> lastUsed.get(file)).reversed());
+        int kept = 0;
+        for (Path file : files) {
+            if (inUse.contains(file)) {
+                continue;
+            }
+            if (kept < maxOnDisk) {
+                kept++;
+                continue;
+            }
+            log.info("Deleting the least recently used bucket lookup table '{}'", file);
+            delete(file);
+        }
+    }
+
+    /**
+     * Mark the table as recently used for {@link #pruneDisk()}.
+     */
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.debug("Unable to update the modification time of '{}'", file, e);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Unable to delete the bucket lookup table '{}'", file, e);
+        }
+    }
+
+    /**
+     * @return the file in the cache dir for the table for the palette with the given hash.
+     */
+    static Path getFile(long paletteHash) {
+        return ServiceConfig.getLookupTableCacheDir().resolve(String.format(
+                Locale.ROOT, "palette-v%d-%016x.lut", BucketLookupTable.VERSION, paletteHash));
+    }
+
+    private static Map<Long, BucketLookup> getTables() {
+        if (tables == null) {
+            int maxCached = ServiceConfig.getLookupTableMaxCached();
+            // Access order makes this an LRU cache. Evicted tables are unmapped when garbage collected but stay on disk
+            // until pruned
+            tables = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, BucketLookup> eldest) {
+                    return size() > maxCached;
+                }
+            };
+        }
+        return tables;
+    }
+
+    private static synchronized ExecutorService getGenerator() {
+        if (generator == null) {
+            // A single generation at a time, as each generation uses multiple threads itself
+            generator = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "lookup-table-generator");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return generator;
+    }
+
+    /**
+     * Wait for all started generations to finish. Used by tests.
+     * @param timeoutMS the maximum time to wait.
+     * @return true if no generations are running.
+     */
+    static boolean awaitGeneration(long timeoutMS) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMS;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (LookupTableCache.class) {
+                if (generating.isEmpty()) {
+                    return true;
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        return false;
+    }
+
+    /**
+     * Stop generation of tables and clear the cache.
+     */
+    public static synchronized void shutdown() {
+        if (generator != null) {
+            generator.shutdownNow();
+            generator = null;
+        }
+        tables = null;
+        defaultLookup = null;
+        generating.clear();
+        failed.clear();
+        discarded.clear();
+    }
+}
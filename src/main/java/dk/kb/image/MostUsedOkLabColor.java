@@ -14,38 +14,66 @@ import java.util.*;
 public class MostUsedOkLabColor extends TemplateMostUsedColors<Float> {
     private static final Logger log = LoggerFactory.getLogger(MostUsedOkLabColor.class);
 
-    static final byte[] entriesForAllRgbColors;
-    static {
-        try {
-            entriesForAllRgbColors = Thread.currentThread().getContextClassLoader().
-                    getResource("OklabBucketEntriesForAllRgbColors").openStream().readAllBytes();
-        } catch (IOException e) {
-            log.error("Bucket entries for RGB colors are not loaded from src/main/resources/OklabBucketEntriesForAllRgbColors.");
-            throw new RuntimeException(e);
-        }
+    private final ColorPalette palette;
+    private final BucketLookup lookup;
+
+    /**
+     * Analyse with the SMK palette.
+     */
+    public MostUsedOkLabColor() {
+        this(ColorPalette.getDefault());
+    }
+
+    /**
+     * @param palette the palette to bucket the colors of the image into.
+     */
+    public MostUsedOkLabColor(ColorPalette palette) {
+        this(palette, LookupTableCache.getLookup(palette));
+    }
+
+    /**
+     * @param palette the palette to bucket the colors of the image into.
+     * @param lookup  the lookup to use instead of the one from {@link LookupTableCache}, e.g. for evaluating
+     *                alternative lookups.
+     */
+    MostUsedOkLabColor(ColorPalette palette, BucketLookup lookup) {
+        this.palette = palette;
+        this.lookup = lookup;
     }
 
     /**
-     * Defines which color palette to use. This palette consists of 256 hex colors used by SMK (National Gallery of Denmark) converted to OKLab colorspace.
+     * Defines which color palette to use. The default palette consists of 256 hex colors used by SMK (National Gallery of Denmark) converted to OKLab colorspace.
      * It is not clear how this palette has been constructed in the first place.
      * @return the palette as a list of floats
      */
     @Override
     public List<Float> defineBuckets() {
-        List<Float> buckets = PalettePicker.smkOkLabBuckets();
+        List<Float> buckets = palette.getOkLabColors();
         return buckets;
     }
 
     @Override
     void updateBucketCounter(int pixel, List<Float> buckets, int[] bucketCounter) throws IOException {
 
-        int pixelNoAlpha = pixel & 0xFFFFFF;
-
-        int bestColor = Byte.toUnsignedInt(entriesForAllRgbColors[pixelNoAlpha]);
+        int bestColor = lookup.getBucket(pixel);
 
         bucketCounter[bestColor] ++;
     }
 
+    @Override
+    void updateBucketCounter(int[] pixels, int length, List<Float> buckets, int[] bucketCounter) {
+        lookup.countBuckets(pixels, length, bucketCounter);
+        ServiceMetrics.countLookups(lookup, length);
+    }
+
+    /**
+     * The lookup is resolved once when the analysis is created, so that a table that becomes ready during the
+     * analysis does not mix with exact lookups.
+     * @return the lookup for the palette, see {@link LookupTableCache#getLookup(ColorPalette)}.
+     */
+    BucketLookup getLookup() {
+        return lookup;
+    }
 
     /**
      * Calculate the colour difference value between two colours in a lab space.
@@ -60,23 +88,19 @@ public class MostUsedOkLabColor extends TemplateMostUsedColors<Float> {
     @Override
     double calculateDistance(int pixel, Float bucket) throws IOException {
 
-        int pixelNoAlpha = pixel & 0xFFFFFF;
-
-        int bestColor = Byte.toUnsignedInt(entriesForAllRgbColors[pixelNoAlpha]);
+        int bestColor = lookup.getBucket(pixel);
 
         return bestColor;
     }
 
-    /**
-     * Convert an entry<Float, Integer> containing OKlab float value and number of pixels with that color into JSON object
-     * containing the RGB hex value of the OKlab color  and the pixel value as percentage of the full picture.
-     * @param entry input entry containing Oklab float key and an integer value of pixels with the color of the key.
-     * @return a JSON object containing the String RGB hex value and a float with the percentage of pixels from the image with the given color.
-     */
     @Override
-    DominantColorDto entryToRGB(Map.Entry<Float, Integer> entry) {
-        String key = ColorConversion.convertOKlabToHex(entry.getKey());
-        float value = entry.getValue();
+    DominantColorDto bucketToDto(List<Float> buckets, int index, int count) {
+        return toDto(buckets.get(index), count);
+    }
+
+    private DominantColorDto toDto(float bucket, int count) {
+        String key = ColorConversion.convertOKlabToHex(bucket);
+        float value = count;
         float percentage = value/pixelCount*100;
 
         DominantColorDto response = new DominantColorDto();
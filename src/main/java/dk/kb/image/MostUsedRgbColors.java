@@ -10,6 +10,14 @@ import java.util.stream.Collectors;
  * The RGB colorspace works with integers.
  */
 public class MostUsedRgbColors extends TemplateMostUsedColors<Integer> {
+    /**
+     * The SMK palette is the same for every analysis, so it is only converted once.
+     */
+    private static final List<Integer> SMK_BUCKETS = Collections.unmodifiableList(PalettePicker.smkRgbBuckets());
+
+    private static RgbBucketIndex index;
+    private static List<Integer> indexedBuckets;
+
     /**
      * Defines which color palette to use. This palette consists of 256 hex colors used by SMK (National Gallery of Denmark) converted to RGB colorspace.
      * It is not clear how this palette has been constructed in the first place.
@@ -17,7 +25,7 @@ public class MostUsedRgbColors extends TemplateMostUsedColors<Integer> {
      */
     @Override
     public List<Integer> defineBuckets() {
-        List<Integer> buckets = PalettePicker.smkRgbBuckets();
+        List<Integer> buckets = SMK_BUCKETS;
         return buckets;
     }
 
@@ -38,6 +46,34 @@ public class MostUsedRgbColors extends TemplateMostUsedColors<Integer> {
         bucketCounter[bestColor] ++;
     }
 
+    /**
+     * Block version of {@link #updateBucketCounter(int, List, int[])}, using a {@link RgbBucketIndex} so that only the
+     * buckets that can be closest to a pixel are compared. The result is identical to the single pixel version.
+     */
+    @Override
+    void updateBucketCounter(int[] pixels, int length, List<Integer> buckets, int[] bucketCounter) {
+        getIndex(buckets).countBuckets(pixels, length, bucketCounter);
+    }
+
+    /**
+     * @return the index for the buckets of this analysis, see {@link #getIndex(List)}.
+     */
+    BucketLookup getLookup() {
+        return getIndex(defineBuckets());
+    }
+
+    /**
+     * The index for the most recently used buckets is shared between analyses.
+     * @return an index for the buckets.
+     */
+    static synchronized RgbBucketIndex getIndex(List<Integer> buckets) {
+        if (index == null || (buckets != indexedBuckets && !buckets.equals(indexedBuckets))) {
+            index = new RgbBucketIndex(buckets);
+            indexedBuckets = buckets == SMK_BUCKETS ? SMK_BUCKETS : new ArrayList<>(buckets);
+        }
+        return index;
+    }
+
     /**
      * Calculate Euclidean color distance between two RGB colors.
      * @param pixel RGB color of input pixel as integer.
@@ -64,16 +100,14 @@ public class MostUsedRgbColors extends TemplateMostUsedColors<Integer> {
 
     }
 
-    /**
-     * Convert an entry<Float, Integer> containing OKlab float value and number of pixels with that color into JSON object
-     * containing the RGB hex value of the OKlab color  and the pixel value as percentage of the full picture.
-     * @param entry input entry containing Oklab float key and an integer value of pixels with the color of the key.
-     * @return a JSON object containing the String RGB hex value and a float with the percentage of pixels from the image with the given color.
-     */
     @Override
-    DominantColorDto entryToRGB(Map.Entry<Integer, Integer> entry) {
-        String key = String.format(Locale.ROOT, "#%06X", (0xFFFFFF & entry.getKey()));
-        float value = entry.getValue();
+    DominantColorDto bucketToDto(List<Integer> buckets, int index, int count) {
+        return toDto(buckets.get(index), count);
+    }
+
+    private DominantColorDto toDto(int bucket, int count) {
+        String key = String.format(Locale.ROOT, "#%06X", (0xFFFFFF & bucket));
+        float value = count;
         float percentage = value/pixelCount*100;
 
         DominantColorDto response = new DominantColorDto();
@@ -0,0 +1,158 @@
+package dk.kb.image;
+
+import dk.kb.image.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * Multi-core processing of images, by splitting them into horizontal bands of rows that are processed on a shared
+ * {@link ForkJoinPool}. Each band produces a private result, e.g. an {@code int[]} histogram, and the results are
+ * merged when the bands have been processed.
+ * <p>
+ * The size of the pool and the minimum number of pixels in an image before parallel processing is used are set in
+ * the configuration with the keys {@code config.analysis.parallel.threads} and
+ * {@code config.analysis.parallel.minPixels}.
+ * </p>
+ */
+public class ParallelAnalysis {
+    private static final Logger log = LoggerFactory.getLogger(ParallelAnalysis.class);
+
+    /**
+     * The number of bands to create per thread in the pool. More bands than threads evens out the load when some
+     * parts of the image are slower to process than others.
+     */
+    static final int BANDS_PER_THREAD = 4;
+
+    private static ForkJoinPool pool;
+
+    /**
+     * Process a part of an image, defined as the rows from startRow (inclusive) to endRow (exclusive).
+     * @param <T> the result of processing the rows.
+     */
+    @FunctionalInterface
+    public interface BandTask<T> {
+        T process(int startRow, int endRow) throws IOException;
+    }
+
+    /**
+     * @return the shared pool for pixel analysis. The pool is created on first call.
+     */
+    public static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            int threads = ServiceConfig.getAnalysisThreads();
+            log.info("Creating pool with {} threads for pixel analysis", threads);
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    /**
+     * Shut down the shared pool. It will be re-created if {@link #getPool()} is called again.
+     */
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Check whether an image with the given number of pixels should be processed in parallel.
+     * @param pixels the number of pixels in the image.
+     * @return true if the image is large enough and the analysis pool has more than 1 thread.
+     */
+    public static boolean isParallel(long pixels) {
+        return pixels >= ServiceConfig.getParallelMinPixels() && getPool().getParallelism() > 1;
+    }
+
+    /**
+     * Split the rows {@code 0..height} into bands, process them on the shared pool and merge the results.
+     * @param height the number of rows in the image.
+     * @param width  the number of pixels in each row. Used for avoiding bands too small to be worth a task.
+     * @param task   the processing of a single band.
+     * @param merge  merges two band results into one. It is allowed to modify and return one of the inputs.
+     * @param <T>    the result of processing.
+     * @return the merged result of processing all bands.
+     */
+    public static <T> T reduceBands(int height, int width, BandTask<T> task, BinaryOperator<T> merge)
+            throws IOException {
+        int bands = getPool().getParallelism() * BANDS_PER_THREAD;
+        int bandRows = Math.max(RasterPixelReader.rowsPerBlock(width), (height + bands - 1) / bands);
+        return reduceBands(height, bandRows, task, merge, getPool());
+    }
+
+    /**
+     * Split the rows {@code 0..height} into bands of at most bandRows rows, process them on the given pool and merge
+     * the results.
+     * @param height   the number of rows in the image.
+     * @param bandRows the maximum number of rows in a band.
+     * @param task     the processing of a single band.
+     * @param merge    merges two band results into one. It is allowed to modify and return one of the inputs.
+     * @param pool     the pool to process the bands in.
+     * @param <T>      the result of processing.
+     * @return the merged result of processing all bands.
+     */
+    static <T> T reduceBands(int height, int bandRows, BandTask<T> task, BinaryOperator<T> merge, ForkJoinPool pool)
+            throws IOException {
+        try {
+            return pool.invoke(new BandReducer<>(0, height, Math.max(1, bandRows), task, merge));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Merges two bucket counters by adding the counts from the second to the first.
+     * @param counts1 the counter to add to.
+     * @param counts2 the counter to add from.
+     * @return counts1, updated with the counts from counts2.
+     */
+    public static int[] mergeCounts(int[] counts1, int[] counts2) {
+        for (int i = 0; i < counts1.length; i++) {
+            counts1[i] += counts2[i];
+        }
+        return counts1;
+    }
+
+    /**
+     * Recursively splits the row range in halves until the bands are small enough to be processed directly.
+     */
+    private static class BandReducer<T> extends RecursiveTask<T> {
+        private final int startRow;
+        private final int endRow;
+        private final int bandRows;
+        private final BandTask<T> task;
+        private final BinaryOperator<T> merge;
+
+        BandReducer(int startRow, int endRow, int bandRows, BandTask<T> task, BinaryOperator<T> merge) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.bandRows = bandRows;
+            this.task = task;
+            this.merge = merge;
+        }
+
+        @Override
+        protected T compute() {
+            if (endRow - startRow <= bandRows) {
+                try {
+                    return task.process(startRow, endRow);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int middle = startRow + (endRow - startRow) / 2;
+            BandReducer<T> upper = new BandReducer<>(startRow, middle, bandRows, task, merge);
+            BandReducer<T> lower = new BandReducer<>(middle, endRow, bandRows, task, merge);
+            lower.fork();
+            T upperResult = upper.compute();
+            return merge.apply(upperResult, lower.join());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package dk.kb.image;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ToLongFunction;
+
+/**
+ * LRU cache for results of expensive calculations, bounded by both the number of entries and their estimated size.
+ * <p>
+ * Concurrent requests for the same key are coalesced: the first caller calculates the result and the others wait
+ * for it, so a result is only calculated once. Failed calculations are not cached.
+ * </p>
+ * @param <V> the type of the results.
+ */
+public class ResultCache<V> {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ToLongFunction<V> weigher;
+
+    private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<V>> inFlight = new HashMap<>();
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long coalesced = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxEntries the maximum number of results to keep. If 0, nothing is cached, but concurrent
+     *                   calculations are still coalesced.
+     * @param maxBytes   the maximum total estimated size of the results.
+     * @param weigher    estimates the size in bytes of a result. The size of the key is added to this.
+     */
+    public ResultCache(int maxEntries, long maxBytes, ToLongFunction<V> weigher) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Get the cached result for the key or calculate it. If a calculation for the key is already running, wait for
+     * that instead of starting another.
+     * @param key        identifies the result, e.g. a content hash followed by the operation and its parameters.
+     * @param calculator calculates the result if it is not cached.
+     * @return the result, which is shared between callers and must not be modified.
+     * @throws Exception the exception thrown by the calculation, also for callers that waited for it.
+     */
+    public V get(String key, Callable<V> calculator) throws Exception {
+        CompletableFuture<V> future;
+        boolean calculate = false;
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry.value;
+            }
+            future = inFlight.get(key);
+            if (future == null) {
+                misses++;
+                future = new CompletableFuture<>();
+                inFlight.put(key, future);
+                calculate = true;
+            } else {
+                coalesced++;
+            }
+        }
+        if (!calculate) {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        V value;
+        try {
+            value = calculator.call();
+        } catch (Exception | Error e) {
+            synchronized (this) {
+                inFlight.remove(key);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            inFlight.remove(key);
+            put(key, value);
+        }
+        future.complete(value);
+        return value;
+    }
+
+    /**
+     * Add the result and evict the least recently used results until the cache is within its bounds.
+     */
+    private void put(String key, V value) {
+        if (maxEntries <= 0 || value == null) {
+            return;
+        }
+        long weight = weigher.applyAsLong(value) + 2L * key.length();
+        if (weight > maxBytes) {
+            return;
+        }
+        Entry<V> old = entries.put(key, new Entry<>(value, weight));
+        if (old != null) {
+            bytes -= old.weight;
+        }
+        bytes += weight;
+        Iterator<Entry<V>> lru = entries.values().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= lru.next().weight;
+            lru.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove all cached results. The counters are not reset.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the number of cached results.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total estimated size of the cached results in bytes.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of requests answered from the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of requests that started a calculation.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of requests that waited for a calculation started by another request.
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return the number of results that were removed to stay within the bounds.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "ResultCache(entries=%d/%d, bytes=%d/%d, hits=%d, misses=%d, " +
+                                          "coalesced=%d, evictions=%d)",
+                             entries.size(), maxEntries, bytes, maxBytes, hits, misses, coalesced, evictions);
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package dk.kb.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the bucket with the smallest Euclidean RGB distance, giving the same result as a linear scan over all
+ * buckets, see {@link MostUsedRgbColors#calculateDistance(int, Integer)}.
+ * <p>
+ * The RGB cube is divided into a grid of {@link #CELL_COUNT} cells. For each cell the buckets that can be the closest
+ * bucket for some color in the cell are precomputed: A bucket is a candidate if its minimum distance to the cell is no
+ * larger than the smallest maximum distance from the cell to any bucket. As the candidates are kept in palette order
+ * and compared with {@code <}, ties are resolved to the first bucket in the palette, as with the linear scan.
+ * </p>
+ * <p>
+ * The index is small enough to stay in the CPU caches and is cheap to build, so it works for any palette.
+ * </p>
+ */
+public class RgbBucketIndex implements BucketLookup {
+    private static final Logger log = LoggerFactory.getLogger(RgbBucketIndex.class);
+
+    /**
+     * The number of upper bits of each channel used for the grid.
+     */
+    static final int BITS_PER_CHANNEL = 4;
+    static final int CELL_COUNT = 1 << (3 * BITS_PER_CHANNEL);
+
+    private static final int CELL_WIDTH = 1 << (8 - BITS_PER_CHANNEL);
+    private static final int CHANNEL_MASK = (1 << BITS_PER_CHANNEL) - 1;
+
+    private final int[] reds;
+    private final int[] greens;
+    private final int[] blues;
+    /**
+     * The candidates for cell c are {@code candidates[cellStarts[c]]} to {@code candidates[cellStarts[c+1]-1]}.
+     */
+    private final int[] cellStarts;
+    private final int[] candidates;
+
+    /**
+     * @param buckets the RGB colors of the palette. Alpha is ignored.
+     */
+    public RgbBucketIndex(List<Integer> buckets) {
+        long startTime = System.nanoTime();
+        int bucketCount = buckets.size();
+        reds = new int[bucketCount];
+        greens = new int[bucketCount];
+        blues = new int[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            int bucket = buckets.get(i);
+            reds[i] = (bucket >> 16) & 0xFF;
+            greens[i] = (bucket >> 8) & 0xFF;
+            blues[i] = bucket & 0xFF;
+        }
+
+        cellStarts = new int[CELL_COUNT + 1];
+        int[] allCandidates = new int[CELL_COUNT * 4];
+        int[] minDistances = new int[bucketCount];
+        int size = 0;
+        for (int cell = 0; cell < CELL_COUNT; cell++) {
+            int red0 = (cell >>> (2 * BITS_PER_CHANNEL)) * CELL_WIDTH;
+            int green0 = ((cell >>> BITS_PER_CHANNEL) & CHANNEL_MASK) * CELL_WIDTH;
+            int blue0 = (cell & CHANNEL_MASK) * CELL_WIDTH;
+            // Every color in the cell is at most this far from its closest bucket
+            int bound = Integer.MAX_VALUE;
+            for (int i = 0; i < bucketCount; i++) {
+                minDistances[i] = minDistance(reds[i], red0) + minDistance(greens[i], green0) +
+                                  minDistance(blues[i], blue0);
+                bound = Math.min(bound, maxDistance(reds[i], red0) + maxDistance(greens[i], green0) +
+                                        maxDistance(blues[i], blue0));
+            }
+            cellStarts[cell] = size;
+            for (int i = 0; i < bucketCount; i++) {
+                if (minDistances[i] <= bound) {
+                    if (size == allCandidates.length) {
+                        allCandidates = Arrays.copyOf(allCandidates, allCandidates.length * 2);
+                    }
+                    allCandidates[size++] = i;
+                }
+            }
+        }
+        cellStarts[CELL_COUNT] = size;
+        candidates = Arrays.copyOf(allCandidates, size);
+        log.debug("Built {} in {} ms", this, (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    /**
+     * @return the smallest squared distance along one channel from the value to the cell starting at start.
+     */
+    private static int minDistance(int value, int start) {
+        int delta = value < start ? start - value : value > start + CELL_WIDTH - 1 ? value - (start + CELL_WIDTH - 1) : 0;
+        return delta * delta;
+    }
+
+    /**
+     * @return the largest squared distance along one channel from the value to the cell starting at start.
+     */
+    private static int maxDistance(int value, int start) {
+        int delta = Math.max(Math.abs(value - start), Math.abs(value - (start + CELL_WIDTH - 1)));
+        return delta * delta;
+    }
+
+    @Override
+    public int getBucket(int rgb) {
+        return closest(rgb, cellIndex(rgb));
+    }
+
+    @Override
+    public void countBuckets(int[] pixels, int length, int[] bucketCounter) {
+        for (int i = 0; i < length; i++) {
+            int pixel = pixels[i];
+            bucketCounter[closest(pixel, cellIndex(pixel))]++;
+        }
+    }
+
+    private int closest(int pixel, int cell) {
+        int start = cellStarts[cell];
+        int end = cellStarts[cell + 1];
+        if (end - start == 1) {
+            return candidates[start];
+        }
+        int pixelRed = (pixel >> 16) & 0xFF;
+        int pixelGreen = (pixel >> 8) & 0xFF;
+        int pixelBlue = pixel & 0xFF;
+        int bestColor = 0;
+        int minDistance = Integer.MAX_VALUE;
+        for (int c = start; c < end; c++) {
+            int i = candidates[c];
+            int distanceRed = reds[i] - pixelRed;
+            int distanceGreen = greens[i] - pixelGreen;
+            int distanceBlue = blues[i] - pixelBlue;
+            int totalDistance = distanceRed*distanceRed + distanceGreen*distanceGreen + distanceBlue*distanceBlue;
+            if (totalDistance < minDistance) {
+                minDistance = totalDistance;
+                bestColor = i;
+            }
+        }
+        return bestColor;
+    }
+
+    /**
+     * @return the index of the grid cell for the color, from the upper bits of each channel.
+     */
+    static int cellIndex(int rgb) {
+        return ((rgb >>> (24 - BITS_PER_CHANNEL)) & CHANNEL_MASK) << (2 * BITS_PER_CHANNEL) |
+               ((rgb >>> (16 - BITS_PER_CHANNEL)) & CHANNEL_MASK) << BITS_PER_CHANNEL |
+               ((rgb >>> (8 - BITS_PER_CHANNEL)) & CHANNEL_MASK);
+    }
+
+    /**
+     * @return the average number of candidate buckets per cell.
+     */
+    public double getAverageCandidates() {
+        return (double) candidates.length / CELL_COUNT;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "RgbBucketIndex(buckets=%d, cells=%d, candidates/cell=%.1f)",
+                             reds.length, CELL_COUNT, getAverageCandidates());
+    }
+}
@@ -0,0 +1,172 @@
+package dk.kb.image;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Settings for sampled color analysis, where only a subset of the pixels in an image are counted.
+ * <p>
+ * Two strategies are supported:
+ * </p>
+ * <ul>
+ *     <li>{@link Strategy#STRATIFIED}: The image is divided into a grid of cells and each round of sampling picks a
+ *     random pixel from every cell. After each round the counts are checked and sampling stops as soon as the ranking
+ *     of the top-x buckets is statistically stable and the error bound for each of them is within the precision.</li>
+ *     <li>{@link Strategy#STRIDE}: Every n'th pixel horizontally and vertically is counted. The stride is calculated
+ *     up front from the maximum number of samples or the precision, so this strategy is not adaptive.</li>
+ * </ul>
+ * <p>
+ * Error bounds are the half-width of the 95% confidence interval for the percentage of a bucket, in percentage points.
+ * </p>
+ */
+public class Sampling {
+    /**
+     * The z-value for a 95% confidence interval.
+     */
+    static final double Z = 1.96;
+
+    /**
+     * The maximum number of samples used if only the precision is specified.
+     */
+    public static final int DEFAULT_MAX_SAMPLES = 1_000_000;
+
+    /**
+     * The minimum number of samples before adaptive sampling is allowed to stop.
+     */
+    static final int MIN_SAMPLES = 10_000;
+
+    public enum Strategy {STRATIFIED, STRIDE}
+
+    private final Strategy strategy;
+    private final double precision;
+    private final int maxSamples;
+
+    /**
+     * Create settings for sampled color analysis.
+     * @param strategy   how to select the pixels to sample.
+     * @param precision  the maximum wanted error bound in percentage points for the top-x buckets. 0 means that the
+     *                   stopping criterion is only the stability of the ranking of the top-x buckets.
+     * @param maxSamples the maximum number of pixels to sample.
+     */
+    public Sampling(Strategy strategy, double precision, int maxSamples) {
+        if (precision < 0) {
+            throw new IllegalArgumentException("The precision must be positive but was " + precision);
+        }
+        if (maxSamples <= 0) {
+            throw new IllegalArgumentException("The maximum number of samples must be positive but was " + maxSamples);
+        }
+        this.strategy = strategy;
+        this.precision = precision;
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Create sampling settings from optional request parameters.
+     * @param precision  the maximum wanted error bound in percentage points. Can be null.
+     * @param maxSamples the maximum number of pixels to sample. Can be null.
+     * @param strategy   {@code stratified} or {@code stride}. If null, {@code stratified} is used.
+     * @return sampling settings or null if both precision and maxSamples are null, meaning that all pixels should
+     *         be counted.
+     * @throws IllegalArgumentException if any of the parameters are invalid.
+     */
+    public static Sampling of(Float precision, Integer maxSamples, String strategy) {
+        if (precision == null && maxSamples == null) {
+            return null;
+        }
+        Strategy parsedStrategy = Strategy.STRATIFIED;
+        if (strategy != null && !strategy.isEmpty()) {
+            try {
+                parsedStrategy = Strategy.valueOf(strategy.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown sampling strategy '" + strategy + "'");
+            }
+        }
+        return new Sampling(parsedStrategy,
+                            precision == null ? 0 : precision,
+                            maxSamples == null ? DEFAULT_MAX_SAMPLES : maxSamples);
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public double getPrecision() {
+        return precision;
+    }
+
+    public int getMaxSamples() {
+        return maxSamples;
+    }
+
+    /**
+     * Calculate the number of samples needed to reach the precision in the worst case, where a bucket holds 50% of the
+     * pixels. Used by the {@link Strategy#STRIDE} strategy.
+     * @return the number of samples to use, never more than {@link #getMaxSamples()}.
+     */
+    int getTargetSamples() {
+        if (precision <= 0) {
+            return maxSamples;
+        }
+        double fraction = precision / 100;
+        return (int) Math.min(maxSamples, Math.ceil(Z * Z * 0.25 / (fraction * fraction)));
+    }
+
+    /**
+     * Calculate the error bound for the percentage of a bucket.
+     * @param percent    the percentage of the samples that belongs to the bucket.
+     * @param samples    the number of samples.
+     * @param population the number of pixels in the image.
+     * @return the half-width of the 95% confidence interval in percentage points.
+     */
+    public static double errorBound(double percent, long samples, long population) {
+        if (samples <= 0 || samples >= population) {
+            return 0;
+        }
+        double p = percent / 100;
+        double finitePopulation = Math.sqrt((double) (population - samples) / (population - 1));
+        return Z * Math.sqrt(p * (1 - p) / samples) * finitePopulation * 100;
+    }
+
+    /**
+     * Check if sampling can stop: The ranking of the top-x buckets must be statistically stable, meaning that the
+     * difference between each bucket and the next in the ranking must be significant, and the error bound for each of
+     * the top-x buckets must be within the precision.
+     * @param bucketCount the number of samples in each bucket.
+     * @param samples     the total number of samples.
+     * @param x           the number of top buckets to check.
+     * @return true if the top-x ranking is stable and precise enough.
+     */
+    boolean isStable(int[] bucketCount, long samples, int x) {
+        if (samples < MIN_SAMPLES) {
+            return false;
+        }
+        int[] sorted = bucketCount.clone();
+        Arrays.sort(sorted);
+        int top = Math.min(x, sorted.length);
+        for (int rank = 0; rank < top; rank++) {
+            double p1 = (double) sorted[sorted.length - 1 - rank] / samples;
+            if (p1 == 0) {
+                // The remaining buckets are all empty, so their order does not matter
+                break;
+            }
+            if (precision > 0 && Z * Math.sqrt(p1 * (1 - p1) / samples) * 100 > precision) {
+                return false;
+            }
+            if (rank + 1 < sorted.length) {
+                // The variance of the difference between two multinomial proportions
+                double p2 = (double) sorted[sorted.length - 2 - rank] / samples;
+                double deviation = Math.sqrt((p1 + p2 - (p1 - p2) * (p1 - p2)) / samples);
+                if (p1 - p2 <= Z * deviation) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "Sampling(strategy=%s, precision=%.3f, maxSamples=%d)",
+                             strategy, precision, maxSamples);
+    }
+}
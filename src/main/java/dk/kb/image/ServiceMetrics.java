@@ -0,0 +1,384 @@
+package dk.kb.image;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters for the stages of the analysis pipeline, exposed in the Prometheus text format by
+ * {@link #toPrometheus()}.
+ * <p>
+ * Recording is lock-free and does not allocate: a histogram is a fixed array of {@link AtomicLongArray} buckets and
+ * the counters are {@link AtomicLong}s. Counters that grow with the number of pixels are updated once per strip or
+ * band, not once per pixel. The metrics are only read when rendered, which takes a consistent enough snapshot for
+ * monitoring without stopping the writers.
+ * </p>
+ * <p>
+ * The metrics are shared by the whole JVM, so the command line tools record to them as well.
+ * </p>
+ */
+public class ServiceMetrics {
+    /**
+     * Prefix for the names of all metrics.
+     */
+    static final String PREFIX = "imageanalysis_";
+
+    /**
+     * Content type of {@link #toPrometheus()}.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Upper bounds of the latency buckets in seconds, from 1 ms to 1 minute.
+     */
+    static final double[] BOUNDS_SECONDS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    /**
+     * The stages that an image passes through. Decoding and analysis are interleaved when an image is decoded in
+     * strips, so they are timed separately: the time spent in the decoder is {@link #DECODE} and the rest is
+     * {@link #ANALYSIS}.
+     */
+    public enum Stage {
+        /** Reading a posted image into an {@link UploadBuffer}. Unbuffered uploads are read while decoding. */
+        UPLOAD("upload"),
+        /** Fetching a remote image, see {@link ImageFetcher}. */
+        FETCH("fetch"),
+        /** Reading the header and the pixels of an image, see {@link ImageDecoder}. */
+        DECODE("decode"),
+        /** Analysing the decoded pixels. */
+        ANALYSIS("analysis"),
+        /** Encoding an image, see {@link ImageEncoder}. */
+        ENCODE("encode");
+
+        private final String label;
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @param nanos the duration of a single pass through the stage.
+         */
+        public void record(long nanos) {
+            latency.record(nanos);
+        }
+
+        /**
+         * Record the time since start.
+         * @param start the value of {@link System#nanoTime()} when the stage was entered.
+         */
+        public void recordSince(long start) {
+            latency.record(System.nanoTime() - start);
+        }
+
+        LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+
+    /**
+     * The instrumented endpoints, named by their {@code operationId} in the OpenAPI specification.
+     */
+    public enum Endpoint {
+        COLOR_COUNT("getColorCount"),
+        MAIN_RGB_COLORS("getMainRgbColors"),
+        MAIN_OKLAB_COLORS("getMainOkLabColors"),
+        MAIN_OKLAB_COLORS_FROM_SOURCE("getMainOkLabColorsFromSource"),
+        MAIN_OKLAB_COLORS_BATCH("getMainOkLabColorsBatch"),
+        MAIN_OKLAB_COLORS_BATCH_FROM_SOURCE("getMainOkLabColorsBatchFromSource"),
+        ANALYSE("getAnalysis"),
+        GREYSCALE("getGreyscale");
+
+        private final String label;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong inFlight = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        Endpoint(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Mark the start of a request. Every call must be followed by a call to {@link #end(long)}.
+         * @return the start time to pass to {@link #end(long)}.
+         */
+        public long begin() {
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /**
+         * Mark the end of a request. For endpoints that stream their response, this is when the response has been
+         * written.
+         * @param start the value returned by {@link #begin()}.
+         */
+        public void end(long start) {
+            latency.record(System.nanoTime() - start);
+            inFlight.decrementAndGet();
+        }
+
+        /**
+         * Count a request that failed. The request must still be ended with {@link #end(long)}.
+         */
+        public void failed() {
+            errors.incrementAndGet();
+        }
+
+        LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        long getInFlight() {
+            return inFlight.get();
+        }
+
+        long getErrors() {
+            return errors.get();
+        }
+    }
+
+    /**
+     * Counters for the amount of work done.
+     */
+    public enum Counter {
+        RECEIVED_BYTES("received_bytes_total", "Bytes of images received, posted or fetched from remote sources."),
+        ENCODED_BYTES("encoded_bytes_total", "Bytes of images encoded for responses."),
+        DECODED_PIXELS("decoded_pixels_total", "Pixels decoded from images, after subsampling."),
+        TABLE_LOOKUPS("oklab_table_lookups_total",
+                      "Pixels bucketed into an OKlab palette with a precalculated lookup table."),
+        FALLBACK_LOOKUPS("oklab_fallback_lookups_total",
+                         "Pixels bucketed into an OKlab palette without a lookup table, e.g. while the table loads.");
+
+        private final String name;
+        private final String help;
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name, String help) {
+            this.name = PREFIX + name;
+            this.help = help;
+        }
+
+        /**
+         * @param delta the amount to add to the counter.
+         */
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        long get() {
+            return value.get();
+        }
+    }
+
+    private ServiceMetrics() {
+    }
+
+    /**
+     * Count pixels that have been bucketed into an OKlab palette, split by whether a lookup table was used.
+     * Both the full {@link BucketLookupTable} and the {@link CoarseBucketLookup} count as tables; only the
+     * {@link ExactBucketLookup}, which calculates distances per color, is a fallback.
+     * @param lookup the lookup that bucketed the pixels.
+     * @param pixels the number of pixels.
+     */
+    public static void countLookups(BucketLookup lookup, long pixels) {
+        (lookup instanceof ExactBucketLookup ? Counter.FALLBACK_LOOKUPS : Counter.TABLE_LOOKUPS).add(pixels);
+    }
+
+    /**
+     * Count the bytes read from the stream as {@link Counter#RECEIVED_BYTES}.
+     * @param in a stream with an image from a client.
+     * @return a stream that counts the bytes as they are read. Closing it closes the given stream. The stream is the
+     *         only allocation for counting and is made once per image, not per read.
+     */
+    public static InputStream countReceived(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    Counter.RECEIVED_BYTES.add(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    Counter.RECEIVED_BYTES.add(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                Counter.RECEIVED_BYTES.add(skipped);
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Render all metrics, including the statistics of the {@link CachedAnalysis} cache and the
+     * {@link HistogramStore} if they are in use, in the
+     * <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus text format</a>.
+     * @return the metrics as text with content type {@link #CONTENT_TYPE}.
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder(16384);
+
+        String requestDuration = PREFIX + "request_duration_seconds";
+        header(out, requestDuration, "histogram", "Duration of requests, including streaming of the response.");
+        for (Endpoint endpoint : Endpoint.values()) {
+            endpoint.latency.appendTo(out, requestDuration, "endpoint", endpoint.label);
+        }
+        String inFlight = PREFIX + "requests_in_flight";
+        header(out, inFlight, "gauge", "Requests currently being processed.");
+        for (Endpoint endpoint : Endpoint.values()) {
+            sample(out, inFlight, "endpoint", endpoint.label, endpoint.getInFlight());
+        }
+        String errors = PREFIX + "request_errors_total";
+        header(out, errors, "counter", "Requests that failed.");
+        for (Endpoint endpoint : Endpoint.values()) {
+            sample(out, errors, "endpoint", endpoint.label, endpoint.getErrors());
+        }
+
+        String stageDuration = PREFIX + "stage_duration_seconds";
+        header(out, stageDuration, "histogram", "Duration of the stages of the analysis of a single image.");
+        for (Stage stage : Stage.values()) {
+            stage.latency.appendTo(out, stageDuration, "stage", stage.label);
+        }
+
+        for (Counter counter : Counter.values()) {
+            header(out, counter.name, "counter", counter.help);
+            sample(out, counter.name, null, null, counter.get());
+        }
+
+        ResultCache<CachedAnalysis> cache = CachedAnalysis.getCreatedCache();
+        if (cache != null) {
+            appendCounter(out, "result_cache_hits_total", "Results answered from the result cache.",
+                          cache.getHits());
+            appendCounter(out, "result_cache_misses_total", "Results that were calculated.", cache.getMisses());
+            appendCounter(out, "result_cache_coalesced_total",
+                          "Results that waited for the calculation of another request.", cache.getCoalesced());
+            appendCounter(out, "result_cache_evictions_total", "Results removed from the result cache.",
+                          cache.getEvictions());
+            appendGauge(out, "result_cache_bytes", "Estimated size of the cached results.", cache.getBytes());
+        }
+        HistogramStore store = HistogramStore.getOpenStore();
+        if (store != null) {
+            appendCounter(out, "histogram_store_hits_total", "Histograms found in the histogram store.",
+                          store.getHits());
+            appendCounter(out, "histogram_store_misses_total", "Histograms not found in the histogram store.",
+                          store.getMisses());
+            appendCounter(out, "histogram_store_compactions_total", "Completed compactions of the histogram store.",
+                          store.getCompactions());
+            appendGauge(out, "histogram_store_bytes", "Size of the histogram store file.", store.getBytes());
+        }
+        return out.toString();
+    }
+
+    private static void appendCounter(StringBuilder out, String name, String help, long value) {
+        header(out, PREFIX + name, "counter", help);
+        sample(out, PREFIX + name, null, null, value);
+    }
+
+    private static void appendGauge(StringBuilder out, String name, String help, long value) {
+        header(out, PREFIX + name, "gauge", help);
+        sample(out, PREFIX + name, null, null, value);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * @param label the name of the label, or null for a sample without labels.
+     */
+    private static void sample(StringBuilder out, String name, String label, String labelValue, long value) {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"").append(labelValue).append("\"}");
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Histogram of durations with the fixed buckets of {@link #BOUNDS_SECONDS}. The buckets are counted individually
+     * and made cumulative when rendered, so that each recording updates a single bucket.
+     */
+    static class LatencyHistogram {
+        private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+        static {
+            for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+                BOUNDS_NANOS[i] = Math.round(BOUNDS_SECONDS[i] * 1_000_000_000d);
+            }
+        }
+
+        /** The last bucket holds the durations above the largest bound. */
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        /**
+         * @param nanos a duration. Negative durations, from clock adjustments, are recorded as 0.
+         */
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            int index = Arrays.binarySearch(BOUNDS_NANOS, nanos);
+            buckets.incrementAndGet(index >= 0 ? index : -index - 1);
+            sumNanos.addAndGet(nanos);
+        }
+
+        /**
+         * @return the number of recorded durations.
+         */
+        long getCount() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * @return the number of recorded durations that were at most the bound with the given index in
+         *         {@link #BOUNDS_SECONDS}.
+         */
+        long getCumulativeCount(int bound) {
+            long count = 0;
+            for (int i = 0; i <= bound; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * @return the sum of the recorded durations in nanoseconds.
+         */
+        long getSumNanos() {
+            return sumNanos.get();
+        }
+
+        void appendTo(StringBuilder out, String name, String label, String labelValue) {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+                out.append(name).append("_bucket{").append(label).append("=\"").append(labelValue)
+                        .append("\",le=\"")
+                        .append(i < BOUNDS_SECONDS.length ? Double.toString(BOUNDS_SECONDS[i]) : "+Inf")
+                        .append("\"} ").append(count).append('\n');
+            }
+            out.append(name).append("_sum{").append(label).append("=\"").append(labelValue).append("\"} ")
+                    .append(sumNanos.get() / 1_000_000_000d).append('\n');
+            out.append(name).append("_count{").append(label).append("=\"").append(labelValue).append("\"} ")
+                    .append(count).append('\n');
+        }
+    }
+}
@@ -5,7 +5,6 @@ import dk.kb.image.model.v1.DominantColorDto;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * Template for color analysis. The template defines how the algorithm runs and the subclasses/implementations defines which colorspace to use.
@@ -15,6 +14,16 @@ import java.util.stream.Collectors;
 abstract class TemplateMostUsedColors<C> {
     int pixelCount = 0;
 
+    /**
+     * The number of cells in the grid used for stratified sampling, which is also the number of samples per round.
+     */
+    static final int STRATA_PER_ROUND = 4096;
+
+    /**
+     * Fixed seed for stratified sampling, so that repeated analysis of the same image gives the same result.
+     */
+    static final long SAMPLING_SEED = 87;
+
     /**
      * Template for color analysis.
      * getMostUsedColors defines the template for the main method of the template class.
@@ -23,18 +32,106 @@ abstract class TemplateMostUsedColors<C> {
      * @return top x colors and their percentage of all pixels.
      */
     List<DominantColorDto> getMostUsedColors(BufferedImage img, int x) throws IOException {
+        return getMostUsedColors(img, x, null);
+    }
+
+    /**
+     * Template for color analysis, optionally only counting a sample of the pixels.
+     * The returned colors contain the number of counted pixels and the error bound for the percentage.
+     * @param x        defines how many results that gets returned.
+     * @param sampling settings for sampled analysis. If null, all pixels are counted.
+     * @return top x colors and their percentage of all pixels.
+     */
+    List<DominantColorDto> getMostUsedColors(BufferedImage img, int x, Sampling sampling) throws IOException {
+        long population = (long) img.getWidth() * img.getHeight();
         // Define buckets
         List<C> buckets = defineBuckets();
         // Create bucket counter
-        int[] bucketCount = getBucketCount(img, buckets);
-        // Create combined map of buckets and bucket count
-        Map<C, Integer> bucketsWithCount = combineBucketsAndBucketCount(buckets, bucketCount);
-        // Sort the map
-        List<Map.Entry<C, Integer>> sortedList = sortList(bucketsWithCount);
-        // Return results
-        return returnResult(sortedList, x);
+        int[] bucketCount = sampling == null ?
+                getBucketCount(img, buckets) :
+                getSampledBucketCount(img, buckets, sampling, x);
+        return toResult(buckets, bucketCount, x, population);
+    }
+
+    /**
+     * Template for color analysis of an image that is decoded in strips, so that only a single strip is held in
+     * memory at a time. All pixels are counted.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @param x       defines how many results that gets returned.
+     * @return top x colors and their percentage of all pixels.
+     */
+    List<DominantColorDto> getMostUsedColors(ImageDecoder decoder, int x) throws IOException {
+        ColorHistogram histogram = getHistogram(decoder);
+        return getMostUsedColors(histogram.getCounts(), x, histogram.getPixels());
+    }
+
+    /**
+     * Count all pixels of the image into the buckets, without creating a result. As with the other analysis methods,
+     * an instance should only be used for a single analysis.
+     * Large images are counted in parallel, see {@link #getBucketCount(BufferedImage, List)}.
+     * @return the count for each bucket in {@link #defineBuckets()}.
+     */
+    ColorHistogram getHistogram(BufferedImage img) throws IOException {
+        return new ColorHistogram(getBucketCount(img, defineBuckets()), (long) img.getWidth() * img.getHeight());
     }
 
+    /**
+     * Count all pixels of an image that is decoded in strips into the buckets, without creating a result.
+     * @param decoder delivers the pixels of the image, see {@link ImageDecoder#readStrips(ImageDecoder.StripConsumer)}.
+     * @return the count for each bucket in {@link #defineBuckets()}.
+     */
+    ColorHistogram getHistogram(ImageDecoder decoder) throws IOException {
+        List<C> buckets = defineBuckets();
+        // Create bucket counter and update it strip by strip
+        int[] bucketCount = new int[buckets.size()];
+        decoder.readStrips((pixels, width, y, rows) -> updateBucketCounter(pixels, width * rows, buckets, bucketCount));
+        return new ColorHistogram(bucketCount, (long) decoder.getWidth() * decoder.getHeight());
+    }
+
+    /**
+     * Create the result from bucket counts that were collected outside of the template, e.g. by {@link FusedAnalysis}.
+     * @param bucketCount the count for each bucket in {@link #defineBuckets()}.
+     * @param x           defines how many results that gets returned.
+     * @param pixels      the number of counted pixels, which must be all pixels in the image.
+     * @return top x colors and their percentage of all pixels.
+     */
+    List<DominantColorDto> getMostUsedColors(int[] bucketCount, int x, long pixels) {
+        pixelCount += (int) pixels;
+        return toResult(defineBuckets(), bucketCount, x, pixels);
+    }
+
+    /**
+     * Select the top x buckets and create the result for them. The buckets are selected directly from the counts, see
+     * {@link TopBuckets#select(int[], int)}, so result objects are only created for the returned buckets.
+     * @param buckets     list of bucket colors, type is defined by subclass.
+     * @param bucketCount the count for each bucket.
+     * @param x           defines how many results that gets returned.
+     * @param population  the number of pixels in the image, used for calculating error bounds for sampled counts.
+     * @return top x colors and their percentage of all pixels.
+     */
+    private List<DominantColorDto> toResult(List<C> buckets, int[] bucketCount, int x, long population) {
+        int[] top = TopBuckets.select(bucketCount, x);
+        List<DominantColorDto> result = new ArrayList<>(top.length);
+        for (int index : top) {
+            DominantColorDto color = bucketToDto(buckets, index, bucketCount[index]);
+            // Report how many pixels the percentages are based on and how precise they are
+            color.sampleSize((long) pixelCount);
+            color.errorBound((float) Sampling.errorBound(color.getPercent(), pixelCount, population));
+            result.add(color);
+        }
+        return result;
+    }
+
+    /**
+     * Create the result for a single bucket, containing the RGB hex value of the bucket color and the pixel count as
+     * percentage of the full picture.
+     * @param buckets list of bucket colors, type is defined by subclass.
+     * @param index   the index of the bucket.
+     * @param count   the number of pixels in the bucket.
+     * @return a JSON object containing the String RGB hex value and a float with the percentage of pixels from the image with the given color.
+     */
+    abstract DominantColorDto bucketToDto(List<C> buckets, int index, int count);
+
     /**
      * Defines which color palette to use and in which colorspace it should be represented.
      * @return the palette as a list of given type.
@@ -43,91 +140,182 @@ abstract class TemplateMostUsedColors<C> {
 
     /**
      * Loop through pixels of input image, get color in colorspace defined by subclass for pixel and +1 to bucket closest to pixel color.
+     * The pixels are read in blocks of rows directly from the raster of the image, see {@link RasterPixelReader}.
+     * Large images are split into bands of rows that are counted in parallel, see {@link ParallelAnalysis}.
      * @param buckets list of bucket colors, type is defined by subclass.
      * @return the integer array bucketCounter, which contains the count for each bucket for the input image,
      */
     int[] getBucketCount(BufferedImage img, List<C> buckets) throws IOException {
-        // Create bucket counter array
-        int[] bucketCounter = new int[buckets.size()];
-        // Loop over all pixels in image and get RGB color
-        int height = img.getHeight();
-        int width = img.getWidth();
-        for(int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                // Get RGB for each pixel
-                pixelCount ++;
-                int pixelRGB = img.getRGB(x, y);
-                updateBucketCounter(pixelRGB, buckets, bucketCounter);
-            }
+        RasterPixelReader reader = new RasterPixelReader(img);
+        int height = reader.getHeight();
+        int width = reader.getWidth();
+        int[] bucketCounter;
+        if (ParallelAnalysis.isParallel((long) width * height)) {
+            // Each band is counted into its own private counter, which are added together at the end
+            bucketCounter = ParallelAnalysis.reduceBands(
+                    height, width, (startRow, endRow) -> getBucketCount(reader, startRow, endRow, buckets),
+                    ParallelAnalysis::mergeCounts);
+        } else {
+            bucketCounter = getBucketCount(reader, 0, height, buckets);
         }
+        pixelCount += width * height;
         return bucketCounter;
     }
 
     /**
-     * Update count for the color bucket that is closest to the color of the input pixel, based on calculation from the method calculateDistance().
-     * @param pixel The current pixels color value in RGB colorspace.
-     * @param buckets List of color buckets of used type in the implementation.
-     * @param bucketCounter Integer array to store count of buckets.
+     * Count the buckets for a sample of the pixels in the input image. If the maximum number of samples is at least
+     * the number of pixels in the image, all pixels are counted.
+     * @param buckets  list of bucket colors, type is defined by subclass.
+     * @param sampling settings for the sampling.
+     * @param x        the number of top buckets that must have a stable ranking before adaptive sampling stops.
+     * @return the integer array bucketCounter, which contains the count for each bucket for the sampled pixels.
      */
-    abstract void updateBucketCounter(int pixel, List<C> buckets, int[] bucketCounter) throws IOException;
+    int[] getSampledBucketCount(BufferedImage img, List<C> buckets, Sampling sampling, int x) throws IOException {
+        RasterPixelReader reader = new RasterPixelReader(img);
+        long population = (long) reader.getWidth() * reader.getHeight();
+        if (sampling.getMaxSamples() >= population) {
+            return getBucketCount(img, buckets);
+        }
+        int[] bucketCounter = new int[buckets.size()];
+        long samples = sampling.getStrategy() == Sampling.Strategy.STRIDE ?
+                sampleStride(reader, buckets, sampling, bucketCounter) :
+                sampleStratified(reader, buckets, sampling, x, bucketCounter);
+        pixelCount += samples;
+        return bucketCounter;
+    }
 
     /**
-     * Calculate distance between two colors. When implementing this method it is possible to calculate colors in different ways.
-     * This can be achieved by implementing different calculations, for example euclidean distance or Delta E distance. <br/>
-     * If implementing a colorspace that works with colors as something else than integers,
-     * then implementations of this method has to convert the rgbPixel into the given colorspace before calculating distance.
-     * @param rgbPixel color of the input pixel.
-     * @param color in the implemented colorspace that we compare the input rgbPixel to.
-     * @return the calculated color distance between the inputted rgbPixel and color.
+     * Count every n'th pixel horizontally and every m'th vertically, with n and m calculated from the wanted number of
+     * samples, see {@link #getSamplingGrid(int, int, int)}.
+     * @return the number of sampled pixels.
      */
-    abstract double calculateDistance(int rgbPixel, C color) throws IOException;
+    private long sampleStride(RasterPixelReader reader, List<C> buckets, Sampling sampling, int[] bucketCounter)
+            throws IOException {
+        int width = reader.getWidth();
+        int height = reader.getHeight();
+        int[] grid = getSamplingGrid(width, height, sampling.getTargetSamples());
+        int strideX = (width + grid[0] - 1) / grid[0];
+        int strideY = (height + grid[1] - 1) / grid[1];
+
+        int[] row = null;
+        int[] rowSamples = new int[(width + strideX - 1) / strideX];
+        long samples = 0;
+        for (int y = Math.min(strideY / 2, height - 1); y < height; y += strideY) {
+            row = reader.readRows(y, 1, row);
+            int count = 0;
+            for (int x = Math.min(strideX / 2, width - 1); x < width; x += strideX) {
+                rowSamples[count++] = row[x];
+            }
+            updateBucketCounter(rowSamples, count, buckets, bucketCounter);
+            samples += count;
+        }
+        return samples;
+    }
 
     /**
-     * Combine list of color-buckets and bucketCount int[] into a map. The list holds the values of the palette colors and the int[] specifies how many times the given color has been used in the input image.
-     * The arrays get combined by index number.
-     * @param buckets list of palette colors in implemented colorspace.
-     * @param bucketCount int[] of how many times the color with same index has been used.
-     * @return a map consisting of color keys and number of uses as values.
+     * Divide the image into a grid of cells and count one random pixel from each cell per round.
+     * Stop when the top-x ranking is stable or when another round would exceed the maximum number of samples.
+     * @return the number of sampled pixels.
      */
-     protected Map<C, Integer> combineBucketsAndBucketCount(List<C> buckets, int[] bucketCount){
-         Map<C, Integer> bucketsWithCount = new HashMap<>();
-         for (int i=0; i<buckets.size(); i++) {
-             bucketsWithCount.put(buckets.get(i), bucketCount[i]);
-         }
-         return bucketsWithCount;
+    private long sampleStratified(RasterPixelReader reader, List<C> buckets, Sampling sampling, int x,
+                                  int[] bucketCounter) throws IOException {
+        int width = reader.getWidth();
+        int height = reader.getHeight();
+        int[] grid = getSamplingGrid(width, height, Math.min(STRATA_PER_ROUND, sampling.getMaxSamples()));
+        int cellWidth = (width + grid[0] - 1) / grid[0];
+        int cellHeight = (height + grid[1] - 1) / grid[1];
+        int cellsX = (width + cellWidth - 1) / cellWidth;
+        int cellsY = (height + cellHeight - 1) / cellHeight;
+
+        SplittableRandom random = new SplittableRandom(SAMPLING_SEED);
+        int[] round = new int[cellsX * cellsY];
+        int[] pixel = new int[1];
+        long samples = 0;
+        do {
+            int count = 0;
+            for (int cellY = 0; cellY < cellsY; cellY++) {
+                int y0 = cellY * cellHeight;
+                int rows = Math.min(cellHeight, height - y0);
+                for (int cellX = 0; cellX < cellsX; cellX++) {
+                    int x0 = cellX * cellWidth;
+                    int columns = Math.min(cellWidth, width - x0);
+                    reader.readBlock(x0 + random.nextInt(columns), y0 + random.nextInt(rows), 1, 1, pixel);
+                    round[count++] = pixel[0];
+                }
+            }
+            updateBucketCounter(round, count, buckets, bucketCounter);
+            samples += count;
+        } while (samples + round.length <= sampling.getMaxSamples() && !sampling.isStable(bucketCounter, samples, x));
+        return samples;
     }
 
     /**
-     * Method to sort a {@code map<C, Integer>} and have the key-value pair with the biggest value at index 0.
-     * @param bucketsWithCount of type map<C, Integer> to be sorted
-     * @return a list of entries of the type Entry<C, Integer> sorted after biggest value.
+     * Calculate a grid for sampling with about the same number of pixels in each direction of a cell and at most
+     * maxCells cells, also for images with an extreme aspect ratio.
+     * @param maxCells the maximum number of cells, at least 1.
+     * @return the number of cells horizontally and vertically.
      */
-    List<Map.Entry<C, Integer>> sortList(Map<C, Integer> bucketsWithCount){
-        List<Map.Entry<C, Integer>> sortedList = new ArrayList<>(bucketsWithCount.entrySet());
-        sortedList.sort(Map.Entry.comparingByValue());
-        Collections.reverse(sortedList);
+    static int[] getSamplingGrid(int width, int height, int maxCells) {
+        int cellsY = (int) Math.round(Math.sqrt((double) maxCells * height / width));
+        cellsY = Math.max(1, Math.min(Math.min(height, maxCells), cellsY));
+        int cellsX = Math.max(1, Math.min(width, maxCells / cellsY));
+        return new int[]{cellsX, cellsY};
+    }
 
-        return sortedList;
+    /**
+     * Count the pixels in the rows from startRow (inclusive) to endRow (exclusive) in a new bucket counter.
+     * @param reader   delivers the pixels of the image.
+     * @param startRow the first row to count.
+     * @param endRow   the row after the last row to count.
+     * @param buckets  list of bucket colors, type is defined by subclass.
+     * @return the integer array bucketCounter, which contains the count for each bucket for the given rows.
+     */
+    int[] getBucketCount(RasterPixelReader reader, int startRow, int endRow, List<C> buckets) throws IOException {
+        // Create bucket counter array
+        int[] bucketCounter = new int[buckets.size()];
+        int width = reader.getWidth();
+        int blockRows = RasterPixelReader.rowsPerBlock(width);
+        int[] pixels = null;
+        // Loop over all rows in blocks and update the bucket counter for each block of RGB pixels
+        for (int y = startRow; y < endRow; y += blockRows) {
+            int rows = Math.min(blockRows, endRow - y);
+            pixels = reader.readRows(y, rows, pixels);
+            updateBucketCounter(pixels, width * rows, buckets, bucketCounter);
+        }
+        return bucketCounter;
     }
 
     /**
-     * Return a JSON array with top X RGB colors and their percentage from input palette colors and their percentage.
-     * @param sortedList input list holding palette colors and their percentage to extract top x from.
-     * @param x integer to limit size of returned list.
-     * @return a JSON array containing the first x RGB colors and their percentage from the input list.
+     * Update the bucket counter for a block of pixels.
+     * The default implementation calls {@link #updateBucketCounter(int, List, int[])} for each pixel.
+     * Implementations should override this with a tight loop, as this is where the bulk of the processing time is spent.
+     * @param pixels        RGB colors of the pixels in the block.
+     * @param length        the number of pixels in the block, starting at index 0.
+     * @param buckets       List of color buckets of used type in the implementation.
+     * @param bucketCounter Integer array to store count of buckets.
      */
-    List<DominantColorDto> returnResult(List<Map.Entry<C, Integer>> sortedList, int x){
-        return sortedList.stream().
-                map(entry-> entryToRGB(entry)).
-                limit(x).
-                collect(Collectors.toList());
+    void updateBucketCounter(int[] pixels, int length, List<C> buckets, int[] bucketCounter) throws IOException {
+        for (int i = 0; i < length; i++) {
+            updateBucketCounter(pixels[i], buckets, bucketCounter);
+        }
     }
 
     /**
-     * Convert an entry<C,Integer> containing value and number of pixels with that color in the implemented colorspace into JSON object
-     * containing the RGB hex value of the color and the pixel value as percentage of the full picture.
-     * @param entry input entry containing key of implemented type and an integer value of pixels with the color of the key.
-     * @return a JSON object containing the String RGB hex value and a float with the percentage of pixels from the image with the given color.
+     * Update count for the color bucket that is closest to the color of the input pixel, based on calculation from the method calculateDistance().
+     * @param pixel The current pixels color value in RGB colorspace.
+     * @param buckets List of color buckets of used type in the implementation.
+     * @param bucketCounter Integer array to store count of buckets.
      */
-    abstract DominantColorDto entryToRGB(Map.Entry<C, Integer> entry);
+    abstract void updateBucketCounter(int pixel, List<C> buckets, int[] bucketCounter) throws IOException;
+
+    /**
+     * Calculate distance between two colors. When implementing this method it is possible to calculate colors in different ways.
+     * This can be achieved by implementing different calculations, for example euclidean distance or Delta E distance. <br/>
+     * If implementing a colorspace that works with colors as something else than integers,
+     * then implementations of this method has to convert the rgbPixel into the given colorspace before calculating distance.
+     * @param rgbPixel color of the input pixel.
+     * @param color in the implemented colorspace that we compare the input rgbPixel to.
+     * @return the calculated color distance between the inputted rgbPixel and color.
+     */
+    abstract double calculateDistance(int rgbPixel, C color) throws IOException;
 }
@@ -0,0 +1,92 @@
+package dk.kb.image;
+
+/**
+ * Selects the most used buckets directly from a histogram of bucket counts.
+ * <p>
+ * A bounded min-heap of the best x bucket indexes is kept while scanning the counts once, so selection takes
+ * O(n log x) time and only allocates the heap, instead of sorting all n buckets. Buckets with equal counts are
+ * ordered by index, so the result is deterministic.
+ * </p>
+ */
+public class TopBuckets {
+
+    private TopBuckets() {
+    }
+
+    /**
+     * Select the indexes of the buckets with the highest counts.
+     * @param counts the count for each bucket.
+     * @param x      the number of buckets to select.
+     * @return the indexes of the min(x, counts.length) buckets with the highest counts, highest count first.
+     *         Buckets with equal counts are ordered by index.
+     */
+    public static int[] select(int[] counts, int x) {
+        int size = Math.max(0, Math.min(x, counts.length));
+        // Min-heap with the worst of the selected buckets at the root
+        int[] heap = new int[size];
+        if (size == 0) {
+            return heap;
+        }
+        int heapSize = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (heapSize < size) {
+                heap[heapSize] = i;
+                siftUp(counts, heap, heapSize++);
+            } else if (isBetter(counts, i, heap[0])) {
+                heap[0] = i;
+                siftDown(counts, heap, size);
+            }
+        }
+        // Remove the worst bucket repeatedly, filling the result from the end
+        int[] result = new int[size];
+        for (int last = size - 1; last >= 0; last--) {
+            result[last] = heap[0];
+            heap[0] = heap[last];
+            siftDown(counts, heap, last);
+        }
+        return result;
+    }
+
+    /**
+     * @return true if bucket a ranks before bucket b: a higher count or an equal count and a lower index.
+     */
+    private static boolean isBetter(int[] counts, int a, int b) {
+        return counts[a] > counts[b] || (counts[a] == counts[b] && a < b);
+    }
+
+    private static void siftUp(int[] counts, int[] heap, int position) {
+        int bucket = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!isBetter(counts, heap[parent], bucket)) {
+                break;
+            }
+            heap[position] = heap[parent];
+            position = parent;
+        }
+        heap[position] = bucket;
+    }
+
+    private static void siftDown(int[] counts, int[] heap, int heapSize) {
+        if (heapSize == 0) {
+            return;
+        }
+        int bucket = heap[0];
+        int position = 0;
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && isBetter(counts, heap[child], heap[child + 1])) {
+                child++;
+            }
+            if (!isBetter(counts, bucket, heap[child])) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = bucket;
+    }
+}
@@ -0,0 +1,141 @@
+package dk.kb.image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Exact counting of unique ARGB colors with bitmaps instead of a {@code HashSet<Integer>}.
+ * <p>
+ * Opaque colors, which is all colors in images without alpha, are marked in a dense bitmap with a bit for each of the
+ * 2^24 RGB colors, taking 2 MB. Colors that are not fully opaque are marked in a paged bitmap over the full 32 bit
+ * ARGB space, where pages of {@link #PAGE_BITS} bits are only allocated when a color in the page is seen.
+ * The memory usage is therefore fixed for images without alpha, regardless of the number of pixels.
+ * </p>
+ * <p>
+ * Bits are set with atomic OR operations, so a single counter can be updated from multiple threads. Bits that are
+ * already set are detected with a plain read first, which avoids the atomic operation for repeated colors.
+ * The colors are counted with {@link Long#bitCount(long)} at the end.
+ * </p>
+ */
+public class UniqueColorCounter {
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * The number of colors covered by each page in the paged bitmap for colors that are not opaque.
+     */
+    static final int PAGE_BITS = 1 << 16;
+    private static final int PAGE_COUNT = (int) ((1L << 32) / PAGE_BITS);
+
+    private final long[] opaque = new long[(1 << 24) / Long.SIZE];
+    private final AtomicReferenceArray<long[]> translucent = new AtomicReferenceArray<>(PAGE_COUNT);
+
+    /**
+     * Count the unique colors in the image. Large images are counted in parallel bands, see {@link ParallelAnalysis}.
+     * @return the number of unique ARGB colors in the image.
+     */
+    public static long count(BufferedImage img) throws IOException {
+        RasterPixelReader reader = new RasterPixelReader(img);
+        UniqueColorCounter counter = new UniqueColorCounter();
+        if (ParallelAnalysis.isParallel((long) reader.getWidth() * reader.getHeight())) {
+            ParallelAnalysis.reduceBands(reader.getHeight(), reader.getWidth(),
+                                         (startRow, endRow) -> counter.addRows(reader, startRow, endRow),
+                                         (counter1, counter2) -> counter1);
+        } else {
+            counter.addRows(reader, 0, reader.getHeight());
+        }
+        return counter.getCount();
+    }
+
+    /**
+     * Count the unique colors in the image with bands of the given size on the given pool.
+     * @return the number of unique ARGB colors in the image.
+     */
+    static long count(BufferedImage img, int bandRows, ForkJoinPool pool) throws IOException {
+        RasterPixelReader reader = new RasterPixelReader(img);
+        UniqueColorCounter counter = new UniqueColorCounter();
+        ParallelAnalysis.reduceBands(reader.getHeight(), bandRows,
+                                     (startRow, endRow) -> counter.addRows(reader, startRow, endRow),
+                                     (counter1, counter2) -> counter1, pool);
+        return counter.getCount();
+    }
+
+    /**
+     * Mark the colors in the rows from startRow (inclusive) to endRow (exclusive).
+     * @return this counter.
+     */
+    UniqueColorCounter addRows(RasterPixelReader reader, int startRow, int endRow) {
+        int width = reader.getWidth();
+        int blockRows = RasterPixelReader.rowsPerBlock(width);
+        int[] pixels = null;
+        for (int y = startRow; y < endRow; y += blockRows) {
+            int rows = Math.min(blockRows, endRow - y);
+            pixels = reader.readRows(y, rows, pixels);
+            add(pixels, 0, width * rows);
+        }
+        return this;
+    }
+
+    /**
+     * Mark the colors of the pixels. Safe to call from multiple threads.
+     * @param pixels ARGB colors.
+     * @param offset the index of the first pixel.
+     * @param length the number of pixels.
+     */
+    public void add(int[] pixels, int offset, int length) {
+        final long[] bits = opaque;
+        for (int i = offset; i < offset + length; i++) {
+            int pixel = pixels[i];
+            if ((pixel >>> 24) == 0xFF) {
+                set(bits, pixel & 0xFFFFFF);
+            } else {
+                set(getPage(pixel >>> 16), pixel & (PAGE_BITS - 1));
+            }
+        }
+    }
+
+    /**
+     * Set the bit in the bitmap. As bits are only ever set, a bit seen as set by the plain read is guaranteed to be
+     * set, while a stale read only costs an unnecessary atomic operation.
+     */
+    private static void set(long[] bitmap, int bit) {
+        int index = bit >>> 6;
+        long mask = 1L << bit;
+        if ((bitmap[index] & mask) == 0) {
+            LONGS.getAndBitwiseOr(bitmap, index, mask);
+        }
+    }
+
+    private long[] getPage(int page) {
+        long[] bits = translucent.get(page);
+        if (bits == null) {
+            translucent.compareAndSet(page, null, new long[PAGE_BITS / Long.SIZE]);
+            bits = translucent.get(page);
+        }
+        return bits;
+    }
+
+    /**
+     * Count the marked colors. The result is only exact when all calls to {@link #add(int[], int, int)} have
+     * completed.
+     * @return the number of unique colors.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < opaque.length; i++) {
+            count += Long.bitCount((long) LONGS.getVolatile(opaque, i));
+        }
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            long[] bits = translucent.get(page);
+            if (bits != null) {
+                for (int i = 0; i < bits.length; i++) {
+                    count += Long.bitCount((long) LONGS.getVolatile(bits, i));
+                }
+            }
+        }
+        return count;
+    }
+}
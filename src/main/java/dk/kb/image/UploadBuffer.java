@@ -0,0 +1,188 @@
+package dk.kb.image;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the bytes of an uploaded image so that they can be decoded after a content hash has been calculated.
+ * <p>
+ * The hash is calculated while the upload is read, so a cached result for the content can be found without decoding
+ * the image. The bytes are kept in memory in chunks up to a limit, after which the rest of the upload is written to
+ * a temporary file. The buffer must be closed after use to delete that file.
+ * </p>
+ */
+public class UploadBuffer implements Closeable {
+    /**
+     * The algorithm for the content hash. SHA-256 has hardware support on common CPUs, and collisions are not a
+     * practical concern, so equal hashes can be treated as equal content.
+     */
+    static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private int lastChunkLength = 0;
+    private Path spillFile = null;
+    private long size = 0;
+    private String hash;
+
+    private UploadBuffer() {
+    }
+
+    /**
+     * Read the stream to the end and calculate the hash of the content. The stream is not closed.
+     * @param in          the upload.
+     * @param memoryLimit the maximum number of bytes to hold in memory. Bytes beyond this are written to a temporary
+     *                    file.
+     * @return a buffer holding the bytes of the upload.
+     */
+    public static UploadBuffer read(InputStream in, long memoryLimit) throws IOException {
+        UploadBuffer buffer = new UploadBuffer();
+        try {
+            buffer.fill(in, memoryLimit);
+        } catch (IOException | RuntimeException e) {
+            buffer.close();
+            throw e;
+        }
+        return buffer;
+    }
+
+    private void fill(InputStream in, long memoryLimit) throws IOException {
+        MessageDigest digest = newDigest();
+        OutputStream spill = null;
+        try {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = in.read(chunk, lastChunkLength, chunk.length - lastChunkLength)) != -1) {
+                digest.update(chunk, lastChunkLength, read);
+                size += read;
+                if (spill != null) {
+                    spill.write(chunk, 0, read);
+                    continue;
+                }
+                lastChunkLength += read;
+                if (lastChunkLength == chunk.length) {
+                    chunks.add(chunk);
+                    lastChunkLength = 0;
+                    if ((long) chunks.size() * CHUNK_SIZE >= memoryLimit) {
+                        spillFile = Files.createTempFile("upload-", ".tmp");
+                        spill = Files.newOutputStream(spillFile);
+                    }
+                    chunk = new byte[CHUNK_SIZE];
+                }
+            }
+            if (lastChunkLength > 0) {
+                chunks.add(chunk);
+            } else if (!chunks.isEmpty()) {
+                lastChunkLength = CHUNK_SIZE;
+            }
+        } finally {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+        hash = toHex(digest.digest());
+    }
+
+    /**
+     * @return the hash of the content as a lower case hex string.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return the number of bytes in the upload.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return true if part of the upload was written to a temporary file.
+     */
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * Open a stream with the content of the upload. Can be called multiple times.
+     * @return a stream that must be closed after use.
+     */
+    public InputStream openStream() throws IOException {
+        List<InputStream> streams = new ArrayList<>(chunks.size() + 1);
+        for (int i = 0; i < chunks.size(); i++) {
+            streams.add(new ByteArrayInputStream(chunks.get(i), 0, i == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE));
+        }
+        if (spillFile != null) {
+            streams.add(Files.newInputStream(spillFile));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * Delete the temporary file, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        chunks.clear();
+        if (spillFile != null) {
+            Files.deleteIfExists(spillFile);
+            spillFile = null;
+        }
+    }
+
+    /**
+     * Calculate the hash of the bytes, as {@link #getHash()} does for an upload.
+     */
+    public static String hash(byte[] bytes) {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    /**
+     * Calculate the hash of the content of the file, as {@link #getHash()} does for an upload. The file is read through
+     * a {@link FileChannel} into a direct buffer, so the content is not copied to the heap.
+     */
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " must be supported by all Java implementations", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -1,22 +1,55 @@
 package dk.kb.image.api.v1.impl;
 
+import dk.kb.image.BatchAnalysis;
+import dk.kb.image.CachedAnalysis;
+import dk.kb.image.ColorHistogram;
+import dk.kb.image.ColorPalette;
 import dk.kb.image.Facade;
+import dk.kb.image.FusedAnalysis;
+import dk.kb.image.GreyscaleConverter;
+import dk.kb.image.HistogramStore;
+import dk.kb.image.ImageDecoder;
+import dk.kb.image.ImageEncoder;
+import dk.kb.image.ImageFetcher;
+import dk.kb.image.ImageSource;
+import dk.kb.image.ResultCache;
+import dk.kb.image.Sampling;
+import dk.kb.image.ServiceMetrics;
+import dk.kb.image.UploadBuffer;
 import dk.kb.image.api.v1.*;
+import dk.kb.image.config.ServiceConfig;
+import dk.kb.image.model.v1.AnalysisDto;
+import dk.kb.image.model.v1.BatchResultDto;
 import dk.kb.image.model.v1.DominantColorDto;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
 
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.util.webservice.exception.NotFoundServiceException;
 import dk.kb.util.webservice.exception.ServiceException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 
 import dk.kb.util.webservice.ImplBase;
 
-import javax.imageio.ImageIO;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.apache.cxf.jaxrs.ext.multipart.*;
 import java.awt.image.BufferedImage;
@@ -30,8 +63,33 @@ import java.awt.image.BufferedImage;
 public class ColorAnalysisApiServiceImpl extends ImplBase implements ColorAnalysisApi {
     private Logger log = LoggerFactory.getLogger(this.toString());
 
-    InputStream in;
-    BufferedImage img;
+    /**
+     * Response header with the scale that the image was decoded at, e.g. {@code 1/4}.
+     */
+    static final String SCALE_HEADER = "X-Image-Scale";
+
+    /**
+     * Pixel budgets used if none are configured, see {@link ServiceConfig#getPixelBudget(String, long)}. Images are
+     * decoded in full resolution unless a budget is configured, as subsampling changes the results.
+     */
+    static final long DEFAULT_ANALYSIS_BUDGET = 0L;
+    static final long DEFAULT_COLOR_COUNT_BUDGET = 0L;
+
+    /**
+     * The analyses run by {@code /analyse} if none are specified.
+     */
+    static final String DEFAULT_ANALYSES = "colorcount,rgb,oklab";
+
+    /**
+     * Content type for newline delimited JSON.
+     */
+    static final String NDJSON = "application/x-ndjson";
+
+    /**
+     * Writes a single result per line, leaving out empty fields.
+     */
+    private static final ObjectMapper NDJSON_MAPPER = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
 
     /**
      * Count the unique colors in the given image.
@@ -47,25 +105,39 @@ public class ColorAnalysisApiServiceImpl extends ImplBase implements ColorAnalys
      */
     @Override
     public Integer getColorCount( Attachment imageDetail) throws ServiceException {
+        long start = ServiceMetrics.Endpoint.COLOR_COUNT.begin();
         // read image
         try {
             log.debug("getColorCount(...) called with call details: {}", getCallDetails());
-            in = imageDetail.getDataHandler().getInputStream();;
-            img = ImageIO.read(in);
-            int result = Facade.getColorCount(img);
-            String response = "There are " + Integer.toString(result) + " unique colors in this picture.";
-            return result;
+            long budget = ServiceConfig.getPixelBudget("colorCount", DEFAULT_COLOR_COUNT_BUDGET);
+            CachedAnalysis analysis = analyseCached(upload(imageDetail), "colorCount", budget, decoder -> {
+                if (decoder.isStripDecoding()) {
+                    return Facade.getColorCount(decoder);
+                }
+                BufferedImage img = decoder.readImage();
+                int result = Facade.getColorCount(img);
+                return result;
+            });
+            setScaleHeader(analysis.getScale());
+            return analysis.getResult();
         } catch (Exception f){
+            ServiceMetrics.Endpoint.COLOR_COUNT.failed();
             throw handleException(f);
-        }  
+        } finally {
+            ServiceMetrics.Endpoint.COLOR_COUNT.end(start);
+        }
     
     }
 
     /**
      * Get the most dominant color from an image. Calculated in OKlab colorspace and messured with deltaE.
      *
-     * @param image:      The image to analyse
-     * @param top-colors: Number of colors to return
+     * @param image:       The image to analyse
+     * @param top-colors:  Number of colors to return
+     * @param precision:   Maximum error bound in percentage points for sampled analysis
+     * @param max-samples: Maximum number of pixels to analyse for sampled analysis
+     * @param sampling:    Sampling strategy, stratified or stride
+     * @param palette:     Name of the palette to bucket the colors into
      * @return <ul>
      * <li>code = 200, message = "The dominant color", response = String.class</li>
      * </ul>
@@ -73,32 +145,706 @@ public class ColorAnalysisApiServiceImpl extends ImplBase implements ColorAnalys
      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public List<DominantColorDto> getMainOkLabColors(@Multipart(value = "image" ) Attachment imageDetail, @Multipart(value = "top-colors")  Integer topColors){
+    public List<DominantColorDto> getMainOkLabColors(@Multipart(value = "image" ) Attachment imageDetail, @Multipart(value = "top-colors")  Integer topColors,
+                                                     Float precision, Integer maxSamples, String sampling,
+                                                     String palette){
+        long start = ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS.begin();
     // read image
         try {
-            log.debug("getMainOkLabColors(..., topColors={}) called with call details: {}", topColors, getCallDetails());
-            in = imageDetail.getDataHandler().getInputStream();;
-            img = ImageIO.read(in);
-            List<DominantColorDto> response = Facade.getMostUsedOKLabColors(img, topColors);
-            return response;
+            log.debug("getMainOkLabColors(..., topColors={}, precision={}, maxSamples={}, sampling={}, palette={}) " +
+                      "called with call details: {}",
+                      topColors, precision, maxSamples, sampling, palette, getCallDetails());
+            return getMainOkLabColors(upload(imageDetail), topColors, precision, maxSamples, sampling, palette);
         } catch (Exception f){
+            ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS.failed();
             throw handleException(f);
+        } finally {
+            ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS.end(start);
         }
     
     }
 
+    /**
+     * Get the most dominant color from an image on shared storage or an image server. Calculated in OKlab colorspace
+     * and messured with deltaE.
+     *
+     * @param source:      Absolute path below an allowed root or URL on an allowed host
+     * @param top-colors:  Number of colors to return
+     * @param precision:   Maximum error bound in percentage points for sampled analysis
+     * @param max-samples: Maximum number of pixels to analyse for sampled analysis
+     * @param sampling:    Sampling strategy, stratified or stride
+     * @param palette:     Name of the palette to bucket the colors into
+     * @return <ul>
+     * <li>code = 200, message = "The RGB hex value of colors and percentage of image with given color.", response = DominantColorDto.class</li>
+     * </ul>
+     * @throws ServiceException when other http codes should be returned
+     * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public List<DominantColorDto> getMainOkLabColorsFromSource(String source, Integer topColors, Float precision,
+                                                               Integer maxSamples, String sampling, String palette) {
+        long start = ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_FROM_SOURCE.begin();
+        try {
+            log.debug("getMainOkLabColorsFromSource(source='{}', topColors={}, precision={}, maxSamples={}, " +
+                      "sampling={}, palette={}) called with call details: {}",
+                      source, topColors, precision, maxSamples, sampling, palette, getCallDetails());
+            ImageSource imageSource = toSource(source);
+            return getMainOkLabColors(fromSource(imageSource, null, 0), topColors, precision, maxSamples, sampling,
+                                      palette);
+        } catch (Exception f){
+            ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_FROM_SOURCE.failed();
+            throw handleException(f);
+        } finally {
+            ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_FROM_SOURCE.end(start);
+        }
+    }
+
+    private List<DominantColorDto> getMainOkLabColors(ImageInput image, Integer topColors, Float precision,
+                                                      Integer maxSamples, String sampling, String palette)
+            throws Exception {
+        Sampling samplingSettings = toSampling(precision, maxSamples, sampling);
+        ColorPalette colorPalette = toPalette(palette);
+        long budget = ServiceConfig.getPixelBudget("mainOkLabColors", DEFAULT_ANALYSIS_BUDGET);
+        String operation = okLabOperation(topColors, precision, maxSamples, sampling, colorPalette);
+        CachedAnalysis analysis = samplingSettings == null ?
+                analyseOkLabHistogram(image, operation, budget, topColors, colorPalette) :
+                analyseCached(image, operation, budget,
+                              decoder -> getMostUsedOKLabColors(decoder, topColors, samplingSettings, colorPalette));
+        setScaleHeader(analysis.getScale());
+        return analysis.getResult();
+    }
 
+    /**
+     * Get the dominant colors from many images in a single request. Calculated in OKlab colorspace.
+     *
+     * @param images:     The images to analyse
+     * @param top-colors: Number of colors to return for each image
+     * @param palette:    Name of the palette to bucket the colors into
+     * @return <ul>
+     * <li>code = 200, message = "A BatchResult as JSON on each line, one for each image.", response = BatchResultDto.class</li>
+     * </ul>
+     * @throws ServiceException when other http codes should be returned
+     * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
     @Override
-    public List<DominantColorDto> getMainRgbColors(Attachment imageDetail, Integer topColors) {
-        // read image
+    public javax.ws.rs.core.StreamingOutput getMainOkLabColorsBatch(List<Attachment> imagesDetail, Integer topColors,
+                                                                   String palette) {
+        long start = ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_BATCH.begin();
+        try {
+            log.debug("getMainOkLabColorsBatch({} images, topColors={}, palette={}) called with call details: {}",
+                      imagesDetail == null ? 0 : imagesDetail.size(), topColors, palette, getCallDetails());
+            if (imagesDetail == null || imagesDetail.isEmpty()) {
+                throw new InvalidArgumentServiceException("No images were posted");
+            }
+            ColorPalette colorPalette = toPalette(palette);
+            List<String> parts = new ArrayList<>(imagesDetail.size());
+            List<ImageInput> images = new ArrayList<>(imagesDetail.size());
+            for (int i = 0; i < imagesDetail.size(); i++) {
+                parts.add(getPartName(imagesDetail.get(i), i));
+                images.add(upload(imagesDetail.get(i)));
+            }
+            if (httpServletResponse != null) {
+                httpServletResponse.setContentType(NDJSON);
+            }
+            return output -> {
+                try {
+                    writeOkLabBatch(parts, images, topColors, colorPalette, output);
+                } catch (IOException | RuntimeException e) {
+                    ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_BATCH.failed();
+                    throw e;
+                } finally {
+                    ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_BATCH.end(start);
+                }
+            };
+        } catch (Exception f){
+            ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_BATCH.failed();
+            ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_BATCH.end(start);
+            throw handleException(f);
+        }
+    }
+
+    /**
+     * Get the dominant colors from many images on shared storage or an image server in a single request. Calculated
+     * in OKlab colorspace.
+     *
+     * @param source:     Absolute paths below an allowed root or URLs on allowed hosts
+     * @param top-colors: Number of colors to return for each image
+     * @param palette:    Name of the palette to bucket the colors into
+     * @return <ul>
+     * <li>code = 200, message = "A BatchResult as JSON on each line, one for each image.", response = BatchResultDto.class</li>
+     * </ul>
+     * @throws ServiceException when other http codes should be returned
+     * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public javax.ws.rs.core.StreamingOutput getMainOkLabColorsBatchFromSource(List<String> source, Integer topColors,
+                                                                             String palette) {
+        long start = ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_BATCH_FROM_SOURCE.begin();
+        try {
+            log.debug("getMainOkLabColorsBatchFromSource({} sources, topColors={}, palette={}) " +
+                      "called with call details: {}",
+                      source == null ? 0 : source.size(), topColors, palette, getCallDetails());
+            if (source == null || source.isEmpty()) {
+                throw new InvalidArgumentServiceException("No sources were given");
+            }
+            // All sources are checked before anything is fetched or written
+            List<ImageSource> sources = new ArrayList<>(source.size());
+            List<URI> uris = new ArrayList<>(source.size());
+            for (String s : source) {
+                ImageSource imageSource = toSource(s);
+                sources.add(imageSource);
+                uris.add(imageSource.getUri());
+            }
+            ColorPalette colorPalette = toPalette(palette);
+            if (httpServletResponse != null) {
+                httpServletResponse.setContentType(NDJSON);
+            }
+            return output -> {
+                try (ImageFetcher.Prefetch prefetch = ImageFetcher.prefetch(uris)) {
+                    List<ImageInput> images = new ArrayList<>(sources.size());
+                    for (int i = 0; i < sources.size(); i++) {
+                        images.add(fromSource(sources.get(i), prefetch, i));
+                    }
+                    writeOkLabBatch(source, images, topColors, colorPalette, output);
+                } catch (IOException | RuntimeException e) {
+                    ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_BATCH_FROM_SOURCE.failed();
+                    throw e;
+                } finally {
+                    ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_BATCH_FROM_SOURCE.end(start);
+                }
+            };
+        } catch (Exception f){
+            ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_BATCH_FROM_SOURCE.failed();
+            ServiceMetrics.Endpoint.MAIN_OKLAB_COLORS_BATCH_FROM_SOURCE.end(start);
+            throw handleException(f);
+        }
+    }
+
+    /**
+     * Analyse the images in parallel and write a {@link BatchResultDto} as a line of JSON for each image as soon as
+     * it is ready.
+     * @param parts  the names of the images in the results.
+     * @param images the images to analyse.
+     */
+    private void writeOkLabBatch(List<String> parts, List<ImageInput> images, Integer topColors,
+                                 ColorPalette colorPalette, OutputStream output) throws IOException {
+        long budget = ServiceConfig.getPixelBudget("mainOkLabColors", DEFAULT_ANALYSIS_BUDGET);
+        String operation = okLabOperation(topColors, null, null, null, colorPalette);
+        List<Callable<BatchResultDto>> tasks = new ArrayList<>(images.size());
+        for (int i = 0; i < images.size(); i++) {
+            ImageInput image = images.get(i);
+            String part = parts.get(i);
+            tasks.add(() -> {
+                CachedAnalysis analysis = analyseOkLabHistogram(image, operation, budget, topColors, colorPalette);
+                return new BatchResultDto()
+                        .part(part)
+                        .scale(analysis.getScale())
+                        .colors(analysis.getResult());
+            });
+        }
+        BatchAnalysis.process(tasks, (index, result, error) -> {
+            BatchResultDto record = error == null ? result : new BatchResultDto()
+                    .part(parts.get(index))
+                    .error(error.getMessage() == null ? error.getClass().getSimpleName() : error.getMessage());
+            output.write(NDJSON_MAPPER.writeValueAsBytes(record.index(index)));
+            output.write('\n');
+            // Deliver each result as soon as it is ready
+            output.flush();
+        });
+    }
+
+    /**
+     * Run several analyses of an image, decoding it once and reading the pixels in a single pass.
+     *
+     * @param image:          The image to analyse
+     * @param analyses:       Comma separated list of analyses: colorcount, rgb, oklab and greyscale
+     * @param top-colors:     Number of dominant colors to return for rgb and oklab
+     * @param palette:        Name of the palette for oklab
+     * @param greyscale-mode: How the grey value is calculated for greyscale
+     * @return <ul>
+     * <li>code = 200, message = "The results of the requested analyses.", response = AnalysisDto.class</li>
+     * </ul>
+     * @throws ServiceException when other http codes should be returned
+     * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public AnalysisDto getAnalysis(Attachment imageDetail, String analyses, Integer topColors, String palette,
+                                   String greyscaleMode) {
+        long start = ServiceMetrics.Endpoint.ANALYSE.begin();
         try {
-            log.debug("getMainRgbColors(..., topColors={}) called with call details: {}", topColors, getCallDetails());
-            in = imageDetail.getDataHandler().getInputStream();;
-            img = ImageIO.read(in);
-            List<DominantColorDto> response = Facade.getMostUsedRGBColors(img, topColors);
+            log.debug("getAnalysis(..., analyses={}, topColors={}, palette={}, greyscaleMode={}) " +
+                      "called with call details: {}", analyses, topColors, palette, greyscaleMode, getCallDetails());
+            Set<FusedAnalysis.Analysis> requested = toAnalyses(analyses);
+            ColorPalette colorPalette = toPalette(palette);
+            GreyscaleConverter.Mode mode = toGreyscaleMode(greyscaleMode);
+            FusedAnalysis.Result result;
+            try (InputStream imageStream = ServiceMetrics.countReceived(imageDetail.getDataHandler().getInputStream());
+                 ImageDecoder decoder = openImage(imageStream, getPixelBudget(requested))) {
+                result = (FusedAnalysis.Result) analyseTimed(decoder, d -> d.isStripDecoding() ?
+                        Facade.getAnalysis(d, requested, topColors, colorPalette, mode) :
+                        Facade.getAnalysis(d.readImage(), requested, topColors, colorPalette, mode));
+            }
+            AnalysisDto response = new AnalysisDto()
+                    .colorCount(result.getColorCount())
+                    .rgbColors(result.getRgbColors())
+                    .okLabColors(result.getOkLabColors());
+            if (result.getGreyscale() != null) {
+                ByteArrayOutputStream greyscale = new ByteArrayOutputStream();
+                ImageEncoder.write(result.getGreyscale(), ImageEncoder.Format.JPEG, null, greyscale);
+                response.greyscale(greyscale.toByteArray());
+            }
             return response;
         } catch (Exception f){
+            ServiceMetrics.Endpoint.ANALYSE.failed();
+            throw handleException(f);
+        } finally {
+            ServiceMetrics.Endpoint.ANALYSE.end(start);
+        }
+    }
+
+    /**
+     * The image is decoded once for all requested analyses, so it is decoded at the highest resolution needed by any
+     * of them. A budget of 0 means full resolution.
+     * @return the pixel budget for decoding.
+     */
+    private long getPixelBudget(Set<FusedAnalysis.Analysis> analyses) {
+        long budget = -1;
+        for (FusedAnalysis.Analysis analysis : analyses) {
+            long analysisBudget;
+            switch (analysis) {
+                case COLORCOUNT:
+                    analysisBudget = ServiceConfig.getPixelBudget("colorCount", DEFAULT_COLOR_COUNT_BUDGET);
+                    break;
+                case RGB:
+                    analysisBudget = ServiceConfig.getPixelBudget("mainRgbColors", DEFAULT_ANALYSIS_BUDGET);
+                    break;
+                case OKLAB:
+                    analysisBudget = ServiceConfig.getPixelBudget("mainOkLabColors", DEFAULT_ANALYSIS_BUDGET);
+                    break;
+                case GREYSCALE:
+                    analysisBudget = ServiceConfig.getPixelBudget(
+                            "greyscale", ImageManipulationApiServiceImpl.DEFAULT_GREYSCALE_BUDGET);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported analysis " + analysis);
+            }
+            budget = budget == -1 ? analysisBudget :
+                    budget == 0 || analysisBudget == 0 ? 0 : Math.max(budget, analysisBudget);
+        }
+        return budget;
+    }
+
+    /**
+     * Analyse the image with the given settings, decoding it in strips if the decoder is set up for that.
+     * @return the most used colors in the image.
+     */
+    private List<DominantColorDto> getMostUsedOKLabColors(ImageDecoder decoder, Integer topColors,
+                                                          Sampling samplingSettings, ColorPalette colorPalette)
+            throws IOException {
+        if (decoder.isStripDecoding()) {
+            // All pixels are counted when streaming, so sampling settings are not used
+            return Facade.getMostUsedOKLabColors(decoder, topColors, colorPalette);
+        }
+        BufferedImage img = decoder.readImage();
+        List<DominantColorDto> response = Facade.getMostUsedOKLabColors(img, topColors, samplingSettings, colorPalette);
+        return response;
+    }
+
+    /**
+     * @return the file name of the part, or {@code image-<index>} if it has none.
+     */
+    private static String getPartName(Attachment imageDetail, int index) {
+        ContentDisposition disposition = imageDetail.getContentDisposition();
+        String filename = disposition == null ? null : disposition.getParameter("filename");
+        return filename == null || filename.isEmpty() ? "image-" + index : filename;
+    }
+
+
+    @Override
+    public List<DominantColorDto> getMainRgbColors(Attachment imageDetail, Integer topColors,
+                                                   Float precision, Integer maxSamples, String sampling) {
+        long start = ServiceMetrics.Endpoint.MAIN_RGB_COLORS.begin();
+        // read image
+        try {
+            log.debug("getMainRgbColors(..., topColors={}, precision={}, maxSamples={}, sampling={}) called with call details: {}",
+                      topColors, precision, maxSamples, sampling, getCallDetails());
+            Sampling samplingSettings = toSampling(precision, maxSamples, sampling);
+            long budget = ServiceConfig.getPixelBudget("mainRgbColors", DEFAULT_ANALYSIS_BUDGET);
+            String operation = String.format(Locale.ROOT, "mainRgbColors|%d|%s|%s|%s",
+                                             topColors, precision, maxSamples, sampling);
+            CachedAnalysis analysis;
+            if (samplingSettings == null) {
+                analysis = analyseHistogram(
+                        upload(imageDetail), operation, budget, HistogramStore.Kind.RGB, ColorPalette.getDefault().getHash(),
+                        decoder -> decoder.isStripDecoding() ?
+                                Facade.getRGBHistogram(decoder) : Facade.getRGBHistogram(decoder.readImage()),
+                        histogram -> Facade.getMostUsedRGBColors(histogram, topColors));
+            } else {
+                analysis = analyseCached(upload(imageDetail), operation, budget, decoder -> {
+                    if (decoder.isStripDecoding()) {
+                        // All pixels are counted when streaming, so sampling settings are not used
+                        return Facade.getMostUsedRGBColors(decoder, topColors);
+                    }
+                    BufferedImage img = decoder.readImage();
+                    List<DominantColorDto> response = Facade.getMostUsedRGBColors(img, topColors, samplingSettings);
+                    return response;
+                });
+            }
+            setScaleHeader(analysis.getScale());
+            return analysis.getResult();
+        } catch (Exception f){
+            ServiceMetrics.Endpoint.MAIN_RGB_COLORS.failed();
             throw handleException(f);
+        } finally {
+            ServiceMetrics.Endpoint.MAIN_RGB_COLORS.end(start);
+        }
+    }
+
+    /**
+     * An analysis of a decoded image.
+     */
+    @FunctionalInterface
+    private interface DecoderAnalysis {
+        Object analyse(ImageDecoder decoder) throws IOException;
+    }
+
+    /**
+     * Analyse the image, or get the result from the cache if the same image has been analysed by the same operation
+     * before, see {@link CachedAnalysis}. The hash of the image is calculated while it is read, so a cached result is
+     * returned without decoding the image.
+     * @param operation   the name of the operation and the values of all parameters that affect the result.
+     * @param pixelBudget the maximum number of pixels to decode. 0 means full resolution.
+     * @param analysis    the analysis to run if the result is not cached.
+     * @return the result of the analysis and the scale the image was decoded at.
+     */
+    private CachedAnalysis analyseCached(ImageInput image, String operation, long pixelBudget,
+                                         DecoderAnalysis analysis) throws Exception {
+        return image.analyse(operation + "|" + pixelBudget, false,
+                             (opener, contentHash) -> analyse(opener, pixelBudget, analysis));
+    }
+
+    /**
+     * An analysis of all pixels of a decoded image into a histogram.
+     */
+    @FunctionalInterface
+    private interface HistogramAnalysis {
+        ColorHistogram analyse(ImageDecoder decoder) throws IOException;
+    }
+
+    /**
+     * Analyse all pixels of the image into a histogram and calculate the result from it. The result is cached
+     * as in {@link #analyseCached}, and the histogram is kept in the {@link HistogramStore}, which survives restarts.
+     * The store is checked before the image is decoded.
+     * @param operation   the name of the operation and the values of all parameters that affect the result.
+     * @param pixelBudget the maximum number of pixels to decode. 0 means full resolution.
+     * @param kind        the kind of histogram.
+     * @param paletteHash the hash of the palette that the histogram is for.
+     * @param analysis    creates the histogram if it is not stored.
+     * @param result      calculates the result from the histogram.
+     * @return the result and the scale the image was decoded at.
+     */
+    private CachedAnalysis analyseHistogram(ImageInput image, String operation, long pixelBudget,
+                                            HistogramStore.Kind kind, long paletteHash, HistogramAnalysis analysis,
+                                            Function<ColorHistogram, Object> result) throws Exception {
+        HistogramStore store = HistogramStore.getStore();
+        return image.analyse(operation + "|" + pixelBudget, store != null, (opener, contentHash) -> {
+            if (store != null) {
+                HistogramStore.Entry stored = store.get(contentHash, kind, paletteHash, pixelBudget);
+                if (stored != null) {
+                    return new CachedAnalysis(result.apply(stored.getHistogram()), stored.getScale());
+                }
+            }
+            ColorHistogram histogram;
+            String scale;
+            try (ImageDecoder decoder = opener.open(pixelBudget)) {
+                histogram = (ColorHistogram) analyseTimed(decoder, analysis::analyse);
+                scale = decoder.getScale();
+            }
+            if (store != null) {
+                store.put(contentHash, kind, paletteHash, pixelBudget, scale, histogram);
+            }
+            return new CachedAnalysis(result.apply(histogram), scale);
+        });
+    }
+
+    /**
+     * Analyse all pixels of the image in OKlab, see {@link #analyseHistogram}.
+     */
+    private CachedAnalysis analyseOkLabHistogram(ImageInput image, String operation, long pixelBudget,
+                                                 Integer topColors, ColorPalette palette) throws Exception {
+        return analyseHistogram(
+                image, operation, pixelBudget, HistogramStore.Kind.OKLAB, palette.getHash(),
+                decoder -> decoder.isStripDecoding() ?
+                        Facade.getOKLabHistogram(decoder, palette) : Facade.getOKLabHistogram(decoder.readImage(), palette),
+                histogram -> Facade.getMostUsedOKLabColors(histogram, topColors, palette));
+    }
+
+    /**
+     * Opens the image for decoding. Can only be called once.
+     */
+    @FunctionalInterface
+    private interface DecoderOpener {
+        /**
+         * @param pixelBudget the maximum number of pixels to decode. 0 means full resolution.
+         * @return a decoder for the image, which must be closed after use.
+         */
+        ImageDecoder open(long pixelBudget) throws IOException;
+    }
+
+    /**
+     * An analysis of an image.
+     */
+    @FunctionalInterface
+    private interface UploadAnalysis {
+        /**
+         * @param contentHash the SHA-256 of the image, or null if it was not calculated.
+         */
+        CachedAnalysis analyse(DecoderOpener image, String contentHash) throws IOException;
+    }
+
+    /**
+     * An image to analyse: posted, read from a local file or fetched from a URL.
+     */
+    @FunctionalInterface
+    private interface ImageInput {
+        /**
+         * Analyse the image, or get the result from the {@link CachedAnalysis} cache if it is enabled.
+         * @param key          the operation, its parameters and the pixel budget.
+         * @param hashRequired if true, the hash of the image is calculated even if the cache is disabled.
+         * @param analysis     the analysis to run if the result is not cached.
+         */
+        CachedAnalysis analyse(String key, boolean hashRequired, UploadAnalysis analysis) throws Exception;
+    }
+
+    /**
+     * @return the posted image as input for analysis.
+     */
+    private ImageInput upload(Attachment imageDetail) {
+        return (key, hashRequired, analysis) -> analyseUpload(imageDetail, key, hashRequired, analysis);
+    }
+
+    /**
+     * @param prefetch the running prefetch of remote images in a batch, or null to fetch the image when it is
+     *                 analysed.
+     * @param index    the index of the image in the prefetch.
+     * @return the image from the source as input for analysis.
+     */
+    private ImageInput fromSource(ImageSource source, ImageFetcher.Prefetch prefetch, int index) {
+        return (key, hashRequired, analysis) -> {
+            try {
+                if (source.isRemote()) {
+                    try (UploadBuffer upload = prefetch == null ?
+                            ImageFetcher.fetch(source.getUri()) : prefetch.take(index)) {
+                        return analyseBuffer(upload, key, analysis);
+                    }
+                }
+                Path file;
+                try {
+                    file = source.getFile();
+                } catch (IllegalArgumentException e) {
+                    throw new InvalidArgumentServiceException(e.getMessage());
+                }
+                return analyseFile(file, key, hashRequired, analysis);
+            } catch (NoSuchFileException | FileNotFoundException e) {
+                throw new NotFoundServiceException("The image '" + source.getSource() + "' does not exist");
+            }
+        };
+    }
+
+    /**
+     * Analyse the posted image, see {@link ImageInput#analyse}.
+     */
+    private CachedAnalysis analyseUpload(Attachment imageDetail, String key, boolean hashRequired,
+                                         UploadAnalysis analysis) throws Exception {
+        try (InputStream imageStream = ServiceMetrics.countReceived(imageDetail.getDataHandler().getInputStream())) {
+            if (CachedAnalysis.getCache() == null && !hashRequired) {
+                return analysis.analyse(pixelBudget -> decode(imageStream, pixelBudget), null);
+            }
+            long start = System.nanoTime();
+            try (UploadBuffer upload = UploadBuffer.read(imageStream, ServiceConfig.getUploadMemoryLimit())) {
+                ServiceMetrics.Stage.UPLOAD.recordSince(start);
+                return analyseBuffer(upload, key, analysis);
+            }
+        }
+    }
+
+    /**
+     * Analyse the buffered image, see {@link ImageInput#analyse}. The hash has already been calculated.
+     */
+    private CachedAnalysis analyseBuffer(UploadBuffer upload, String key, UploadAnalysis analysis) throws Exception {
+        return cached(upload.getHash(), key, () -> {
+            try (InputStream uploadStream = upload.openStream()) {
+                return analysis.analyse(pixelBudget -> decode(uploadStream, pixelBudget), upload.getHash());
+            }
+        });
+    }
+
+    /**
+     * Analyse the local file, see {@link ImageInput#analyse}. The file is decoded directly and only read an extra
+     * time if the hash is needed.
+     */
+    private CachedAnalysis analyseFile(Path file, String key, boolean hashRequired, UploadAnalysis analysis)
+            throws Exception {
+        if (CachedAnalysis.getCache() == null && !hashRequired) {
+            return analysis.analyse(pixelBudget -> decode(file, pixelBudget), null);
+        }
+        String contentHash = UploadBuffer.hash(file);
+        return cached(contentHash, key, () -> analysis.analyse(pixelBudget -> decode(file, pixelBudget), contentHash));
+    }
+
+    /**
+     * Get the result from the {@link CachedAnalysis} cache or calculate it if the cache is disabled or does not hold
+     * it.
+     */
+    private CachedAnalysis cached(String contentHash, String key, Callable<CachedAnalysis> calculator)
+            throws Exception {
+        ResultCache<CachedAnalysis> cache = CachedAnalysis.getCache();
+        return cache == null ? calculator.call() : cache.get(contentHash + "|" + key, calculator);
+    }
+
+    private CachedAnalysis analyse(DecoderOpener image, long pixelBudget, DecoderAnalysis analysis)
+            throws IOException {
+        try (ImageDecoder decoder = image.open(pixelBudget)) {
+            return new CachedAnalysis(analyseTimed(decoder, analysis), decoder.getScale());
+        }
+    }
+
+    /**
+     * Run the analysis and record the time it took, without the time spent decoding, as
+     * {@link ServiceMetrics.Stage#ANALYSIS}.
+     * @return the result of the analysis.
+     */
+    private static Object analyseTimed(ImageDecoder decoder, DecoderAnalysis analysis) throws IOException {
+        long start = System.nanoTime();
+        long decodeStart = decoder.getDecodeNanos();
+        Object result = analysis.analyse(decoder);
+        ServiceMetrics.Stage.ANALYSIS.record(System.nanoTime() - start - (decoder.getDecodeNanos() - decodeStart));
+        return result;
+    }
+
+    /**
+     * @return the operation for the result cache for OKlab analysis with the given parameters. The hash of the
+     *         palette is included, as a palette can be replaced under the same name.
+     */
+    private static String okLabOperation(Integer topColors, Float precision, Integer maxSamples, String sampling,
+                                         ColorPalette palette) {
+        return String.format(Locale.ROOT, "mainOkLabColors|%d|%s|%s|%s|%s:%x",
+                             topColors, precision, maxSamples, sampling, palette.getName(), palette.getHash());
+    }
+
+    /**
+     * Report the scale that the image was decoded at in the {@link #SCALE_HEADER} response header.
+     */
+    private void setScaleHeader(String scale) {
+        if (httpServletResponse != null) {
+            httpServletResponse.setHeader(SCALE_HEADER, scale);
+        }
+    }
+
+    /**
+     * Open the posted image for decoding within the pixel budget and report the used scale in the
+     * {@link #SCALE_HEADER} response header.
+     * @param pixelBudget the maximum number of pixels to decode. 0 means full resolution.
+     * @return a decoder for the image, which must be closed after use.
+     * @throws InvalidArgumentServiceException if the image format is not supported.
+     */
+    private ImageDecoder openImage(InputStream imageStream, long pixelBudget) throws IOException {
+        ImageDecoder decoder = decode(imageStream, pixelBudget);
+        setScaleHeader(decoder.getScale());
+        return decoder;
+    }
+
+    /**
+     * Open the image for decoding within the pixel budget.
+     * @param pixelBudget the maximum number of pixels to decode. 0 means full resolution.
+     * @return a decoder for the image, which must be closed after use.
+     * @throws InvalidArgumentServiceException if the image format is not supported.
+     */
+    private ImageDecoder decode(InputStream imageStream, long pixelBudget) throws IOException {
+        return checkDecoder(ImageDecoder.open(imageStream, pixelBudget));
+    }
+
+    /**
+     * Open the image file for decoding within the pixel budget, see {@link ImageDecoder#open(Path, long)}.
+     * @param pixelBudget the maximum number of pixels to decode. 0 means full resolution.
+     * @return a decoder for the image, which must be closed after use.
+     * @throws InvalidArgumentServiceException if the image format is not supported.
+     */
+    private ImageDecoder decode(Path file, long pixelBudget) throws IOException {
+        return checkDecoder(ImageDecoder.open(file, pixelBudget));
+    }
+
+    private ImageDecoder checkDecoder(ImageDecoder decoder) {
+        if (decoder == null) {
+            throw new InvalidArgumentServiceException("The format of the image is not supported");
+        }
+        log.debug("Opened {}", decoder);
+        return decoder;
+    }
+
+    /**
+     * Resolve the palette from the optional request parameter.
+     * @param palette the name of the palette. If null or empty, the SMK palette is used.
+     * @throws InvalidArgumentServiceException if no palette with the name is registered.
+     */
+    private ColorPalette toPalette(String palette) {
+        if (palette == null || palette.isEmpty()) {
+            return ColorPalette.getDefault();
+        }
+        try {
+            return ColorPalette.get(palette);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage());
+        }
+    }
+
+    /**
+     * Resolve the source of an image from the request parameter, see {@link ImageSource}.
+     * @throws InvalidArgumentServiceException if the source is invalid or not allowed.
+     */
+    private ImageSource toSource(String source) {
+        try {
+            return ImageSource.of(source);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage());
+        }
+    }
+
+    /**
+     * Resolve the analyses from the request parameter.
+     * @throws InvalidArgumentServiceException if no analyses are given or an analysis is unknown.
+     */
+    private Set<FusedAnalysis.Analysis> toAnalyses(String analyses) {
+        try {
+            return FusedAnalysis.Analysis.of(Collections.singletonList(
+                    analyses == null ? DEFAULT_ANALYSES : analyses));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage());
+        }
+    }
+
+    /**
+     * Resolve the greyscale mode from the optional request parameter.
+     * @throws InvalidArgumentServiceException if the mode is unknown.
+     */
+    private GreyscaleConverter.Mode toGreyscaleMode(String mode) {
+        try {
+            return GreyscaleConverter.Mode.of(mode);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage());
+        }
+    }
+
+    /**
+     * Create sampling settings from the optional request parameters.
+     * @return the sampling settings or null if all pixels should be analysed.
+     * @throws InvalidArgumentServiceException if the parameters are invalid.
+     */
+    private Sampling toSampling(Float precision, Integer maxSamples, String sampling) {
+        try {
+            return Sampling.of(precision, maxSamples, sampling);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage());
         }
     }
 }
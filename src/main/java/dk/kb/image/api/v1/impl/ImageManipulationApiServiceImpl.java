@@ -1,17 +1,24 @@
 package dk.kb.image.api.v1.impl;
 
 import dk.kb.image.Facade;
+import dk.kb.image.GreyscaleConverter;
+import dk.kb.image.ImageDecoder;
+import dk.kb.image.ImageEncoder;
+import dk.kb.image.ServiceMetrics;
 import dk.kb.image.api.v1.*;
+import dk.kb.image.config.ServiceConfig;
 import java.io.File;
 import java.util.List;
 import java.util.Map;
 
 import dk.kb.util.webservice.exception.ServiceException;
 import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
@@ -54,13 +61,18 @@ import io.swagger.annotations.Api;
 public class ImageManipulationApiServiceImpl extends ImplBase implements ImageManipulationApi {
     private Logger log = LoggerFactory.getLogger(this.toString());
 
-    InputStream in;
-    BufferedImage img;
+    /**
+     * Pixel budget used if none is configured, see {@link ServiceConfig#getPixelBudget(String, long)}.
+     */
+    static final long DEFAULT_GREYSCALE_BUDGET = 0L;
 
     /**
      * Return image in grayscale
      * 
      * @param image: The image to analyse
+     * @param mode:  How the grey value is calculated: average, rec601, rec709 or oklab
+     * @param format: The output format: jpeg or png
+     * @param quality: The JPEG quality from 0 to 1
      * 
      * @return <ul>
       *   <li>code = 200, message = "Greyscale version of image.", response = File.class</li>
@@ -70,20 +82,89 @@ public class ImageManipulationApiServiceImpl extends ImplBase implements ImageMa
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public javax.ws.rs.core.StreamingOutput getGreyscale( Attachment imageDetail) throws ServiceException {
+    public javax.ws.rs.core.StreamingOutput getGreyscale( Attachment imageDetail, String mode, String format,
+                                                          Float quality) throws ServiceException {
+        long start = ServiceMetrics.Endpoint.GREYSCALE.begin();
         // read image
         try {
-            log.debug("getGreyscale(...) called with call details: {}", getCallDetails());
-            in = imageDetail.getDataHandler().getInputStream();;
-            img = ImageIO.read(in);
+            log.debug("getGreyscale(..., mode={}, format={}, quality={}) called with call details: {}",
+                      mode, format, quality, getCallDetails());
+            GreyscaleConverter.Mode greyscaleMode = toMode(mode);
+            ImageEncoder.Format outputFormat = toFormat(format);
+            checkQuality(quality);
+            BufferedImage grey;
+            try (InputStream imageStream = ServiceMetrics.countReceived(imageDetail.getDataHandler().getInputStream());
+                 ImageDecoder decoder = ImageDecoder.open(
+                         imageStream, ServiceConfig.getPixelBudget("greyscale", DEFAULT_GREYSCALE_BUDGET))) {
+                if (decoder == null) {
+                    throw new InvalidArgumentServiceException("The format of the image is not supported");
+                }
+                long analysisStart = System.nanoTime();
+                long decodeStart = decoder.getDecodeNanos();
+                grey = decoder.isStripDecoding() ?
+                        Facade.getGreyscaleImage(decoder, greyscaleMode) :
+                        GreyscaleConverter.toGrey(decoder.readImage(), greyscaleMode);
+                // The conversion to grey is the analysis stage of this endpoint
+                ServiceMetrics.Stage.ANALYSIS.record(
+                        System.nanoTime() - analysisStart - (decoder.getDecodeNanos() - decodeStart));
+            }
+            if (httpServletResponse != null) {
+                httpServletResponse.setContentType(outputFormat.getMimeType());
+            }
             // Show download link in Swagger UI, inline when opened directly in browser
-            setFilename("output", false, false);
-            return output -> output.write(Facade.getGreyscale(img)); 
+            setFilename("output." + outputFormat.getExtension(), false, false);
+            // The encoded image is written directly to the response, without being held in memory
+            return output -> {
+                try {
+                    ImageEncoder.write(grey, outputFormat, quality, output);
+                } catch (IOException | RuntimeException e) {
+                    ServiceMetrics.Endpoint.GREYSCALE.failed();
+                    throw e;
+                } finally {
+                    ServiceMetrics.Endpoint.GREYSCALE.end(start);
+                }
+            };
         } catch (Exception e){
+            ServiceMetrics.Endpoint.GREYSCALE.failed();
+            ServiceMetrics.Endpoint.GREYSCALE.end(start);
             throw handleException(e);
         }
     
     }
 
+    /**
+     * Resolve the greyscale mode from the optional request parameter.
+     * @throws InvalidArgumentServiceException if the mode is unknown.
+     */
+    private GreyscaleConverter.Mode toMode(String mode) {
+        try {
+            return GreyscaleConverter.Mode.of(mode);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage());
+        }
+    }
+
+    /**
+     * Resolve the output format from the optional request parameter.
+     * @throws InvalidArgumentServiceException if the format is unknown.
+     */
+    private ImageEncoder.Format toFormat(String format) {
+        try {
+            return ImageEncoder.Format.of(format);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage());
+        }
+    }
+
+    /**
+     * @throws InvalidArgumentServiceException if the quality is outside of 0-1.
+     */
+    private void checkQuality(Float quality) {
+        try {
+            ImageEncoder.checkQuality(quality);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage());
+        }
+    }
 
 }
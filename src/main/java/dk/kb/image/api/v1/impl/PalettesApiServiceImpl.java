@@ -0,0 +1,65 @@
+package dk.kb.image.api.v1.impl;
+
+import dk.kb.image.ColorPalette;
+import dk.kb.image.LookupTableCache;
+import dk.kb.image.api.v1.PalettesApi;
+import dk.kb.image.model.v1.PaletteDto;
+import dk.kb.util.webservice.ImplBase;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.util.webservice.exception.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Management of the palettes used for OKlab color analysis, see {@link ColorPalette}.
+ */
+public class PalettesApiServiceImpl extends ImplBase implements PalettesApi {
+    private static final Logger log = LoggerFactory.getLogger(PalettesApiServiceImpl.class);
+
+    /**
+     * List the palettes available for OKlab color analysis.
+     */
+    @Override
+    public List<PaletteDto> getPalettes() throws ServiceException {
+        try {
+            log.debug("getPalettes() called with call details: {}", getCallDetails());
+            return ColorPalette.list().stream().map(PalettesApiServiceImpl::toDto).collect(Collectors.toList());
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Add or replace a palette for OKlab color analysis. The lookup table for the palette is generated in the
+     * background.
+     */
+    @Override
+    public PaletteDto putPalette(String name, PaletteDto paletteDto) throws ServiceException {
+        try {
+            log.debug("putPalette(name='{}', ...) called with call details: {}", name, getCallDetails());
+            if (paletteDto == null) {
+                throw new InvalidArgumentServiceException("No palette was given");
+            }
+            ColorPalette palette;
+            try {
+                palette = ColorPalette.register(name, paletteDto.getColors());
+            } catch (IllegalArgumentException e) {
+                throw new InvalidArgumentServiceException(e.getMessage());
+            }
+            return toDto(palette);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    private static PaletteDto toDto(ColorPalette palette) {
+        return new PaletteDto()
+                .name(palette.getName())
+                .colors(palette.getHexColors())
+                .lookupTable(LookupTableCache.getStatus(palette).name().toLowerCase(Locale.ROOT));
+    }
+}
@@ -1,5 +1,6 @@
 package dk.kb.image.api.v1.impl;
 
+import dk.kb.image.ServiceMetrics;
 import dk.kb.image.api.v1.ServiceApi;
 import dk.kb.image.model.v1.StatusDto;
 import dk.kb.util.BuildInfoManager;
@@ -61,4 +62,20 @@ public class ServiceApiServiceImpl extends ImplBase implements ServiceApi {
             throw handleException(e);
         }
     }
+
+    /**
+     * Metrics for the service in the Prometheus text format, see {@link ServiceMetrics}.
+     */
+    @Override
+    public String metrics() {
+        try {
+            log.debug("metrics() called with call details: {}", getCallDetails());
+            if (httpServletResponse != null) {
+                httpServletResponse.setContentType(ServiceMetrics.CONTENT_TYPE);
+            }
+            return ServiceMetrics.toPrometheus();
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
 }
@@ -1,8 +1,16 @@
 package dk.kb.image.config;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import dk.kb.util.yaml.AutoYAML;
@@ -39,6 +47,8 @@ public class ServiceConfig extends AutoYAML {
     private static final boolean AUTO_UPDATE_DEFAULT = false;
     private static final long AUTO_UPDATE_MS_DEFAULT = 60*1000; // every minute
 
+    private static final List<String> DEFAULT_STREAMING_FORMATS = Arrays.asList("tif", "tiff");
+
     private static ServiceConfig instance;
 
     /**
@@ -87,4 +97,259 @@ public class ServiceConfig extends AutoYAML {
         return getConfig().getList("config.helloLines");
     }
 
+    /**
+     * @return the number of threads in the pool used for pixel analysis of large images.
+     *         If not specified or 0, the number of available processors is used.
+     */
+    public static int getAnalysisThreads() {
+        int threads = getInteger("config.analysis.parallel.threads", 0);
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the number of threads in the pool used for analysing the images of batch requests.
+     *         If not specified or 0, the number of available processors is used.
+     */
+    public static int getBatchThreads() {
+        int threads = getInteger("config.batch.threads", 0);
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the minimum number of pixels in an image before the pixel analysis is done in parallel.
+     */
+    public static long getParallelMinPixels() {
+        return getLong("config.analysis.parallel.minPixels", 2_000_000L);
+    }
+
+    /**
+     * The maximum number of pixels to decode for images sent to an endpoint. Larger images are subsampled while
+     * decoding. The budgets are set with {@code config.decode.pixelBudget.<endpoint>}.
+     * @param endpoint     the endpoint to get the budget for, e.g. {@code mainRgbColors}.
+     * @param defaultValue the budget to use if none is configured for the endpoint.
+     * @return the maximum number of pixels to decode. 0 means no limit.
+     */
+    public static long getPixelBudget(String endpoint, long defaultValue) {
+        return getLong("config.decode.pixelBudget." + endpoint, defaultValue);
+    }
+
+    /**
+     * @return the minimum number of decoded pixels in an image before it is decoded and analysed in strips.
+     */
+    public static long getStreamingMinPixels() {
+        return getLong("config.decode.streaming.minPixels", 16_000_000L);
+    }
+
+    /**
+     * @return the image formats, in lower case, that can be decoded efficiently in strips.
+     */
+    public static Set<String> getStreamingFormats() {
+        YAML yaml = getInstance().getYAML();
+        List<String> formats = yaml == null ?
+                DEFAULT_STREAMING_FORMATS :
+                yaml.getList("config.decode.streaming.formats", DEFAULT_STREAMING_FORMATS);
+        Set<String> lowerCase = new HashSet<>();
+        for (String format : formats) {
+            lowerCase.add(format.toLowerCase(Locale.ROOT));
+        }
+        return lowerCase;
+    }
+
+    /**
+     * @return the approximate number of pixels in each strip when decoding in strips.
+     */
+    public static long getStripPixels() {
+        return getLong("config.decode.streaming.stripPixels", 4_000_000L);
+    }
+
+    /**
+     * @return the directory that bucket lookup tables are extracted to, so that they can be memory mapped.
+     *         Set with {@code config.lookupTable.cacheDir}, defaulting to {@code ds-image-analysis} in the
+     *         temporary directory of the JVM.
+     */
+    public static Path getLookupTableCacheDir() {
+        String defaultDir = Paths.get(System.getProperty("java.io.tmpdir"), "ds-image-analysis").toString();
+        YAML yaml = getInstance().getYAML();
+        return Paths.get(yaml == null ? defaultDir : yaml.getString("config.lookupTable.cacheDir", defaultDir));
+    }
+
+    /**
+     * @return the maximum number of generated bucket lookup tables to keep mapped. Tables for palettes that are not
+     *         used recently are still kept on disk in {@link #getLookupTableCacheDir()}.
+     */
+    public static int getLookupTableMaxCached() {
+        return getInteger("config.lookupTable.maxCached", 4);
+    }
+
+    /**
+     * @return the maximum number of generated bucket lookup tables to keep in {@link #getLookupTableCacheDir()}.
+     *         The least recently used tables are deleted beyond this.
+     */
+    public static int getLookupTableMaxOnDisk() {
+        return getInteger("config.lookupTable.maxOnDisk", 32);
+    }
+
+    /**
+     * @return the number of threads used for generating a bucket lookup table for a palette.
+     *         If not specified or 0, the number of available processors is used.
+     */
+    public static int getLookupTableGeneratorThreads() {
+        int threads = getInteger("config.lookupTable.generatorThreads", 0);
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return true if bucket lookup tables should be converted to the compact
+     *         {@link dk.kb.image.CoarseBucketLookup} after loading. Set with {@code config.lookupTable.coarse}.
+     */
+    public static boolean isLookupTableCoarse() {
+        YAML yaml = getInstance().getYAML();
+        return yaml != null && yaml.getBoolean("config.lookupTable.coarse", false);
+    }
+
+    /**
+     * @return the maximum number of analysis results to keep in the result cache. 0 disables the cache.
+     */
+    public static int getResultCacheMaxEntries() {
+        return getInteger("config.resultCache.maxEntries", 10000);
+    }
+
+    /**
+     * @return the maximum total estimated size in bytes of the analysis results in the result cache.
+     */
+    public static long getResultCacheMaxBytes() {
+        return getLong("config.resultCache.maxBytes", 64L * 1024 * 1024);
+    }
+
+    /**
+     * @return the maximum number of bytes of an upload to hold in memory while its content hash is calculated for
+     *         the result cache. The rest of the upload is written to a temporary file.
+     */
+    public static long getUploadMemoryLimit() {
+        return getLong("config.resultCache.uploadMemoryBytes", 32L * 1024 * 1024);
+    }
+
+    /**
+     * @return the file for the persistent store of analysis histograms, see {@link dk.kb.image.HistogramStore}, or
+     *         null if {@code config.histogramStore.file} is not set, which disables the store. There is no default,
+     *         as the store is only of use on storage that survives restarts, which the temporary directory does not.
+     */
+    public static Path getHistogramStoreFile() {
+        YAML yaml = getInstance().getYAML();
+        return yaml == null || !yaml.containsKey("config.histogramStore.file") ?
+                null : Paths.get(yaml.getString("config.histogramStore.file"));
+    }
+
+    /**
+     * @return the size in bytes of the histogram store that triggers compaction, at most 2 GB. 0 disables the store.
+     */
+    public static long getHistogramStoreMaxBytes() {
+        return getLong("config.histogramStore.maxBytes", 1024L * 1024 * 1024);
+    }
+
+    /**
+     * @return the directories that images can be read from by path, see {@link dk.kb.image.ImageSource}.
+     *         Empty if no roots are configured in {@code config.sources.allowedRoots}.
+     */
+    public static List<Path> getSourceRoots() {
+        YAML yaml = getInstance().getYAML();
+        List<String> roots = yaml == null ?
+                Collections.emptyList() : yaml.getList("config.sources.allowedRoots", Collections.emptyList());
+        List<Path> paths = new ArrayList<>(roots.size());
+        for (String root : roots) {
+            paths.add(Paths.get(root));
+        }
+        return paths;
+    }
+
+    /**
+     * @return the hosts, in lower case, that images can be fetched from by URL, see {@link dk.kb.image.ImageSource}.
+     *         Empty if no hosts are configured in {@code config.sources.allowedHosts}.
+     */
+    public static Set<String> getSourceHosts() {
+        YAML yaml = getInstance().getYAML();
+        List<String> hosts = yaml == null ?
+                Collections.emptyList() : yaml.getList("config.sources.allowedHosts", Collections.emptyList());
+        Set<String> lowerCase = new HashSet<>();
+        for (String host : hosts) {
+            lowerCase.add(host.toLowerCase(Locale.ROOT));
+        }
+        return lowerCase;
+    }
+
+    /**
+     * @return the maximum number of images to fetch ahead of the analysis in a batch with remote sources.
+     */
+    public static int getSourcePrefetch() {
+        return getInteger("config.sources.prefetch", 8);
+    }
+
+    /**
+     * @return the timeout in seconds for connecting to and fetching an image from a remote source.
+     */
+    public static int getSourceTimeoutSeconds() {
+        return getInteger("config.sources.timeoutSeconds", 30);
+    }
+
+    /**
+     * @return the timeout in seconds for receiving the content of an image from a remote source, after the headers.
+     */
+    public static int getSourceReadTimeoutSeconds() {
+        return getInteger("config.sources.readTimeoutSeconds", 120);
+    }
+
+    /**
+     * @return the maximum size in bytes of an image from a remote source.
+     */
+    public static long getSourceMaxBytes() {
+        return getLong("config.sources.maxBytes", 256L * 1024 * 1024);
+    }
+
+    /**
+     * @return the maximum number of palettes that can be registered at runtime with
+     *         {@link dk.kb.image.ColorPalette#register(String, java.util.List)}. 0 disables registration.
+     */
+    public static int getMaxRegisteredPalettes() {
+        return getInteger("config.paletteRegistration.maxPalettes", 16);
+    }
+
+    /**
+     * @return the palettes defined in {@code config.palettes} as a map from name to a list of colors on the form
+     *         {@code #RRGGBB}. Empty if no palettes are defined.
+     */
+    public static Map<String, List<String>> getPalettes() {
+        Map<String, List<String>> palettes = new LinkedHashMap<>();
+        YAML yaml = getInstance().getYAML();
+        if (yaml == null || !yaml.containsKey("config.palettes")) {
+            return palettes;
+        }
+        YAML palettesYAML = yaml.getSubMap("config.palettes");
+        for (String name : palettesYAML.keySet()) {
+            palettes.put(name, palettesYAML.getList(name));
+        }
+        return palettes;
+    }
+
+    /**
+     * Lookup of an optional integer property that also works when no configuration has been loaded, e.g. for unit tests.
+     * @param path         the path to the property.
+     * @param defaultValue the value to return if the property or the configuration is not present.
+     * @return the value of the property or defaultValue.
+     */
+    private static int getInteger(String path, int defaultValue) {
+        YAML yaml = getInstance().getYAML();
+        return yaml == null ? defaultValue : yaml.getInteger(path, defaultValue);
+    }
+
+    /**
+     * Lookup of an optional long property that also works when no configuration has been loaded, e.g. for unit tests.
+     * @param path         the path to the property.
+     * @param defaultValue the value to return if the property or the configuration is not present.
+     * @return the value of the property or defaultValue.
+     */
+    private static long getLong(String path, long defaultValue) {
+        YAML yaml = getInstance().getYAML();
+        return yaml == null ? defaultValue : yaml.getLong(path, defaultValue);
+    }
+
 }
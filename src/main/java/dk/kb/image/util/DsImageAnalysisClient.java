@@ -16,6 +16,7 @@ package dk.kb.image.util;
 
 import dk.kb.image.client.v1.ColorAnalysisApi;
 import dk.kb.image.client.v1.ImageManipulationApi;
+import dk.kb.image.client.v1.PalettesApi;
 import dk.kb.image.invoker.v1.ApiClient;
 import dk.kb.image.invoker.v1.Configuration;
 import org.slf4j.Logger;
@@ -32,7 +33,7 @@ import java.net.URI;
  * The client is Thread safe and handles parallel requests independently.
  * It is recommended to persist the client and to re-use it between calls.
  * <p/>
- * Note that this client also handles {@link #manipulation} of images.
+ * Note that this client also handles {@link #manipulation} of images and management of {@link #palettes}.
  */
 public class DsImageAnalysisClient extends ColorAnalysisApi {
     private static final Logger log = LoggerFactory.getLogger(DsImageAnalysisClient.class);
@@ -42,6 +43,11 @@ public class DsImageAnalysisClient extends ColorAnalysisApi {
      */
     public final ImageManipulationApi manipulation;
 
+    /**
+     * Sub-client handling palettes for OKlab color analysis.
+     */
+    public final PalettesApi palettes;
+
     /**
      * Creates a client for the service.
      * @param serviceURI the URI for the service, e.g. {@code https://example.com/ds-ImageAnalysis/v1}.
@@ -50,6 +56,7 @@ public class DsImageAnalysisClient extends ColorAnalysisApi {
         super(createClient(serviceURI));
         ApiClient client = createClient(serviceURI);
         manipulation = new ImageManipulationApi(client);
+        palettes = new PalettesApi(client);
         log.info("Created OpenAPI client for '" + serviceURI + "'");
     }
 
@@ -9,6 +9,7 @@ import com.fasterxml.jackson.jaxrs.xml.JacksonXMLProvider;
 
 import dk.kb.image.api.v1.impl.ColorAnalysisApiServiceImpl;
 import dk.kb.image.api.v1.impl.ImageManipulationApiServiceImpl;
+import dk.kb.image.api.v1.impl.PalettesApiServiceImpl;
 import dk.kb.image.api.v1.impl.ServiceApiServiceImpl;
 
 
@@ -21,6 +22,7 @@ public class Application_v1 extends javax.ws.rs.core.Application {
                 JacksonXMLProvider.class,
                 ColorAnalysisApiServiceImpl.class,
                 ImageManipulationApiServiceImpl.class,
+                PalettesApiServiceImpl.class,
                 ServiceApiServiceImpl.class,
                 dk.kb.util.webservice.exception.ServiceExceptionMapper.class
         ));
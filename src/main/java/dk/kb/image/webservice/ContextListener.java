@@ -10,6 +10,13 @@ import javax.naming.NamingException;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import dk.kb.image.BatchAnalysis;
+import dk.kb.image.BucketLookupTable;
+import dk.kb.image.ColorPalette;
+import dk.kb.image.HistogramStore;
+import dk.kb.image.ImageFetcher;
+import dk.kb.image.ParallelAnalysis;
+import dk.kb.image.LookupTableCache;
 import dk.kb.image.config.ServiceConfig;
 import dk.kb.util.BuildInfoManager;
 import org.slf4j.Logger;
@@ -28,6 +35,8 @@ public class ContextListener implements ServletContextListener {
      * On context initialisation this
      * i) Initialises the logging framework (logback).
      * ii) Initialises the configuration class.
+     * iii) Maps the bucket lookup table for OKlab analysis.
+     * iv) Starts generation of lookup tables for configured palettes that are not cached on disk.
      * @param sce context provided by the web server upon initialization.
      * @throws java.lang.RuntimeException if anything at all goes wrong.
      */
@@ -47,6 +56,9 @@ public class ContextListener implements ServletContextListener {
             String configFile = (String) ctx.lookup("java:/comp/env/application-config");
             //TODO this should not refer to something in template. Should we perhaps use reflection here?
             ServiceConfig.getInstance().initialize(configFile);
+            // Fail fast if the lookup table does not match the palette and avoid the stall on the first request
+            BucketLookupTable.getOkLab();
+            ColorPalette.list().forEach(LookupTableCache::prepare);
         } catch (NamingException e) {
             throw new RuntimeException("Failed to lookup settings", e);
         } catch (IOException e) {
@@ -57,6 +69,11 @@ public class ContextListener implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        ParallelAnalysis.shutdown();
+        BatchAnalysis.shutdown();
+        LookupTableCache.shutdown();
+        HistogramStore.shutdown();
+        ImageFetcher.shutdown();
         ServiceConfig.getInstance().shutdown();
         log.debug("Service destroyed");
     }
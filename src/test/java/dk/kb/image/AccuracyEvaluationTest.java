@@ -0,0 +1,105 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kb.util.Resolver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+public class AccuracyEvaluationTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testComparison() {
+        AccuracyEvaluation.Comparison same = AccuracyEvaluation.Comparison.of(
+                new int[]{50, 30, 20, 0}, new int[]{5, 3, 2, 0}, 2);
+        assertEquals(1.0, same.getTopOverlap());
+        assertEquals(1.0, same.getRankAgreement());
+        assertEquals(0.0, same.getL1Distance(), 0.000001);
+
+        AccuracyEvaluation.Comparison swapped = AccuracyEvaluation.Comparison.of(
+                new int[]{50, 30, 20, 0}, new int[]{30, 50, 20, 0}, 2);
+        assertEquals(1.0, swapped.getTopOverlap(), "The top 2 buckets are the same, in another order");
+        assertEquals(0.0, swapped.getRankAgreement());
+        assertEquals(0.4, swapped.getL1Distance(), 0.000001);
+        assertEquals(20.0, swapped.getMaxBucketErrorPercent(), 0.000001);
+
+        AccuracyEvaluation.Comparison missing = AccuracyEvaluation.Comparison.of(
+                new int[]{60, 40, 0, 0}, new int[]{60, 0, 40, 0}, 10);
+        assertEquals(0.5, missing.getTopOverlap(), "Only the buckets with pixels should be ranked");
+        assertEquals(0.5, missing.getRankAgreement());
+        assertEquals(0.8, missing.getL1Distance(), 0.000001);
+
+        assertThrows(IllegalArgumentException.class,
+                     () -> AccuracyEvaluation.Comparison.of(new int[2], new int[3], 1));
+    }
+
+    @Test
+    public void testRun(@TempDir Path dir) throws IOException {
+        Path root = dir.resolve("corpus");
+        Files.createDirectories(root.resolve("sub"));
+        try (InputStream in = Resolver.resolveStream("flower.jpg")) {
+            Files.copy(in, root.resolve("flower.jpg"));
+        }
+        BufferedImage img = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.ORANGE, 400, 300, Color.BLUE));
+        g.fillRect(0, 0, 400, 300);
+        g.dispose();
+        ImageIO.write(img, "png", root.resolve("sub/gradient.png").toFile());
+        Files.write(root.resolve("broken.jpg"), new byte[]{1, 2, 3});
+
+        Path coarseOutput = dir.resolve("coarse.json");
+        Map<String, Object> coarse = AccuracyEvaluation.fromArgs(
+                root.toString(), "--output=" + coarseOutput, "--lookup=coarse", "--repetitions=1").run();
+        log.info("Coarse lookup: {}", coarse);
+        assertEquals(2, coarse.get("images"));
+        assertEquals(1.0, (double) coarse.get("minTopOverlap"), "The coarse lookup should give the same buckets");
+        assertEquals(0.0, (double) coarse.get("maxL1Distance"), 0.000001);
+
+        JsonNode report = new ObjectMapper().readTree(coarseOutput.toFile());
+        assertEquals("coarse", report.get("configuration").get("lookup").asText());
+        assertEquals("flower.jpg", report.get("images").get(0).get("path").asText());
+        assertEquals("sub/gradient.png", report.get("images").get(1).get("path").asText());
+        assertEquals("broken.jpg", report.get("failures").get(0).get("path").asText());
+
+        Map<String, Object> sampled = AccuracyEvaluation.fromArgs(
+                root.toString(), "--output=" + dir.resolve("sampled.json"), "--sampling=stride",
+                "--max-samples=2000", "--pixel-budget=50000", "--repetitions=1").run();
+        log.info("Sampled: {}", sampled);
+        assertTrue((double) sampled.get("meanL1Distance") > 0, "Sampling should change the histogram");
+        assertTrue((double) sampled.get("maxBucketErrorPercent") < 100);
+        assertTrue((double) sampled.get("speedup") > 0);
+    }
+
+    @Test
+    public void testArguments(@TempDir Path root) {
+        assertThrows(IllegalArgumentException.class, AccuracyEvaluation::fromArgs, "The root is required");
+        assertThrows(IllegalArgumentException.class,
+                     () -> AccuracyEvaluation.fromArgs(root.toString(), "--lookup=fuzzy"));
+        assertThrows(IllegalArgumentException.class,
+                     () -> AccuracyEvaluation.fromArgs(root.toString(), "--sampling=random"));
+        assertThrows(IllegalArgumentException.class,
+                     () -> AccuracyEvaluation.fromArgs(root.toString(), "--repetitions=0"));
+        assertThrows(IllegalArgumentException.class,
+                     () -> AccuracyEvaluation.fromArgs(root.toString(), "--unknown=1"));
+    }
+}
@@ -0,0 +1,126 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BatchAnalysisTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testCompletionOrder() throws IOException {
+        // The first task waits for the second, so the second must be delivered first
+        CountDownLatch secondDone = new CountDownLatch(1);
+        List<Callable<String>> tasks = Arrays.asList(
+                () -> {
+                    assertTrue(secondDone.await(10, TimeUnit.SECONDS));
+                    return "first";
+                },
+                () -> {
+                    secondDone.countDown();
+                    return "second";
+                });
+        List<String> delivered = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            BatchAnalysis.process(tasks, (index, result, error) -> delivered.add(index + ":" + result), executor, 2);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(Arrays.asList("1:second", "0:first"), delivered);
+    }
+
+    @Test
+    public void testFailedTask() throws IOException {
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            int value = i;
+            tasks.add(() -> {
+                if (value == 7) {
+                    throw new IOException("Broken image");
+                }
+                return value * 2;
+            });
+        }
+        int[] results = new int[tasks.size()];
+        List<Exception> errors = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            BatchAnalysis.process(tasks, (index, result, error) -> {
+                if (error == null) {
+                    results[index] = result;
+                } else {
+                    assertNull(result);
+                    assertEquals(7, index);
+                    errors.add(error);
+                }
+            }, executor, 4);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, errors.size());
+        assertEquals("Broken image", errors.get(0).getMessage());
+        for (int i = 0; i < results.length; i++) {
+            assertEquals(i == 7 ? 0 : i * 2, results[i], "Result for task " + i);
+        }
+    }
+
+    @Test
+    public void testInFlightLimit() throws IOException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            tasks.add(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(1);
+                running.decrementAndGet();
+                return 0;
+            });
+        }
+        AtomicInteger delivered = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            BatchAnalysis.process(tasks, (index, result, error) -> delivered.incrementAndGet(), executor, 3);
+        } finally {
+            executor.shutdownNow();
+        }
+        log.debug("At most {} tasks were running at the same time", maxRunning.get());
+        assertEquals(50, delivered.get());
+        assertTrue(maxRunning.get() <= 3, "At most 3 tasks should run at a time, but there were " + maxRunning.get());
+    }
+
+    @Test
+    public void testHandlerFailureStops() {
+        AtomicInteger started = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            tasks.add(started::incrementAndGet);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            assertThrows(IOException.class, () -> BatchAnalysis.process(tasks, (index, result, error) -> {
+                throw new IOException("Client went away");
+            }, executor, 4));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(started.get() <= 4, "Only the first tasks should be started, but " + started.get() + " were");
+    }
+}
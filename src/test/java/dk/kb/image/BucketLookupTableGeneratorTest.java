@@ -0,0 +1,45 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+public class BucketLookupTableGeneratorTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testPrimitiveCiede2000() {
+        List<Float> palette = PalettePicker.smkOkLabBuckets();
+        int pixel = new Color(240, 12, 140).getRGB();
+        float[] pixelLab = ColorConversion.convertOKlabFloatToFloatArray(ColorConversion.convertRGBtoOKlab(pixel));
+        for (Float bucket : palette) {
+            float[] bucketLab = ColorConversion.convertOKlabFloatToFloatArray(bucket);
+            assertEquals(ColorConversion.calculateCiede2000Distance(pixel, bucket),
+                         ColorConversion.calculateCiede2000Distance(pixelLab[0], pixelLab[1], pixelLab[2],
+                                                                    bucketLab[0], bucketLab[1], bucketLab[2]));
+        }
+    }
+
+    @Test
+    public void testSameAsReference() {
+        List<Float> palette = PalettePicker.smkOkLabBuckets();
+        BucketLookupTableGenerator.Buckets buckets = new BucketLookupTableGenerator.Buckets(palette);
+        byte[] entries = new byte[BucketLookupTable.ENTRY_COUNT];
+        // A prime step gives a spread of colors across all channels
+        int step = 4099;
+        for (int rgb = 0; rgb < BucketLookupTable.ENTRY_COUNT; rgb += step) {
+            BucketLookupTableGenerator.generate(buckets, entries, rgb, rgb + 1);
+
+            ByteArrayOutputStream reference = new ByteArrayOutputStream();
+            ColorConversion.writeEntryByteForColorToOutputStream(new Color(rgb), palette, reference);
+            assertEquals(reference.toByteArray()[0], entries[rgb], "Bucket for RGB " + Integer.toHexString(rgb));
+        }
+        log.info("Generated buckets are the same as the reference for every {}th RGB color", step);
+    }
+}
@@ -0,0 +1,92 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class BucketLookupTableTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    private static final List<Float> PALETTE = Arrays.asList(0.1f, 0.2f, 0.3f);
+
+    @Test
+    public void testPaletteHash() {
+        assertEquals(BucketLookupTable.paletteHash(PALETTE), BucketLookupTable.paletteHash(Arrays.asList(0.1f, 0.2f, 0.3f)));
+        assertNotEquals(BucketLookupTable.paletteHash(PALETTE), BucketLookupTable.paletteHash(Arrays.asList(0.1f, 0.3f, 0.2f)));
+    }
+
+    @Test
+    public void testLoad(@TempDir Path cacheDir) throws IOException {
+        byte[] table = createTable();
+        BucketLookupTable lookup = BucketLookupTable.load(new ByteArrayInputStream(table), cacheDir, "test", PALETTE);
+        assertEquals(3, lookup.getPaletteSize());
+        assertEquals(0, lookup.getBucket(0));
+        assertEquals(0xFFFFFF % 3, lookup.getBucket(0xFFFFFFFF));
+        assertEquals(0x123456 % 3, lookup.getBucket(0x80123456));
+
+        int[] pixels = {0x000000, 0x000001, 0x000002, 0x000003};
+        int[] bucketCounter = new int[3];
+        lookup.countBuckets(pixels, pixels.length, bucketCounter);
+        assertEquals(Arrays.toString(new int[]{2, 1, 1}), Arrays.toString(bucketCounter));
+
+        // The second load uses the extracted copy
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            assertEquals(1, files.count());
+        }
+        BucketLookupTable.load(new ByteArrayInputStream(new byte[0]), cacheDir, "test", PALETTE);
+        log.info("Lookup table loaded from cache dir '{}'", cacheDir);
+    }
+
+    @Test
+    public void testPaletteMismatch(@TempDir Path cacheDir) throws IOException {
+        byte[] table = createTable();
+        assertThrows(IllegalStateException.class, () -> BucketLookupTable.load(
+                new ByteArrayInputStream(table), cacheDir, "test", Arrays.asList(0.1f, 0.2f, 0.4f)));
+    }
+
+    @Test
+    public void testCorruptCache(@TempDir Path cacheDir) throws IOException {
+        byte[] table = createTable();
+        BucketLookupTable.load(new ByteArrayInputStream(table), cacheDir, "test", PALETTE);
+        Path cached;
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            cached = files.findFirst().orElseThrow();
+        }
+        byte[] corrupt = table.clone();
+        corrupt[BucketLookupTable.HEADER_SIZE + 87] ^= 1;
+        Files.write(cached, corrupt);
+        assertThrows(IOException.class, () -> BucketLookupTable.open(cached, PALETTE));
+
+        // Loading detects the corrupt copy and extracts the table again
+        BucketLookupTable lookup = BucketLookupTable.load(new ByteArrayInputStream(table), cacheDir, "test", PALETTE);
+        assertEquals(87 % 3, lookup.getBucket(87));
+    }
+
+    /**
+     * @return a table in the binary format where each RGB color maps to bucket {@code rgb % 3}.
+     */
+    private static byte[] createTable() throws IOException {
+        byte[] entries = new byte[BucketLookupTable.ENTRY_COUNT];
+        for (int rgb = 0; rgb < entries.length; rgb++) {
+            entries[rgb] = (byte) (rgb % 3);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BucketLookupTable.write(out, entries, PALETTE);
+        return out.toByteArray();
+    }
+}
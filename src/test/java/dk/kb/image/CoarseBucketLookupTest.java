@@ -0,0 +1,108 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+public class CoarseBucketLookupTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testIndexes() {
+        for (int rgb = 0; rgb < BucketLookupTable.ENTRY_COUNT; rgb++) {
+            int cell = CoarseBucketLookup.cellIndex(rgb);
+            int fine = CoarseBucketLookup.fineIndex(rgb);
+            if (CoarseBucketLookup.toRGB(cell, fine) != rgb) {
+                assertEquals(rgb, CoarseBucketLookup.toRGB(cell, fine), "Round trip for color " + rgb);
+            }
+        }
+        // Alpha is ignored
+        assertEquals(CoarseBucketLookup.cellIndex(0x123456), CoarseBucketLookup.cellIndex(0xFF123456));
+        assertEquals(CoarseBucketLookup.fineIndex(0x123456), CoarseBucketLookup.fineIndex(0xFF123456));
+    }
+
+    @Test
+    public void testExhaustiveNearestRgb() {
+        // A subset of the palette keeps the brute force source fast
+        BucketLookup source = new NearestRgb(Arrays.copyOf(PalettePicker.SMK_HEX_PALETTE, 32));
+        assertSameForAllColors(source, CoarseBucketLookup.of(source));
+    }
+
+    @Test
+    public void testExhaustiveOkLab() {
+        BucketLookupTable table = BucketLookupTable.getOkLab();
+        assertSameForAllColors(table, CoarseBucketLookup.of(table));
+    }
+
+    @Test
+    public void testSingleBucket() {
+        CoarseBucketLookup lookup = CoarseBucketLookup.of(new NearestRgb(new String[]{"#808080"}));
+        assertEquals(0, lookup.getMixedCells());
+        assertEquals(0, lookup.getBucket(0xFFFFFF));
+    }
+
+    /**
+     * Compare every RGB color, both through {@link BucketLookup#getBucket(int)} and through
+     * {@link BucketLookup#countBuckets(int[], int, int[])}.
+     */
+    private void assertSameForAllColors(BucketLookup expected, CoarseBucketLookup coarse) {
+        log.info("Comparing {} with the full lookup", coarse);
+        assertTrue(coarse.getSizeBytes() < BucketLookupTable.ENTRY_COUNT,
+                   "The coarse lookup should be smaller than the full table but was " + coarse.getSizeBytes() + " bytes");
+        int[] pixels = new int[1 << 16];
+        int[] expectedCount = new int[256];
+        int[] coarseCount = new int[256];
+        for (int start = 0; start < BucketLookupTable.ENTRY_COUNT; start += pixels.length) {
+            for (int i = 0; i < pixels.length; i++) {
+                int rgb = start + i;
+                pixels[i] = 0xFF000000 | rgb;
+                if (expected.getBucket(rgb) != coarse.getBucket(pixels[i])) {
+                    assertEquals(expected.getBucket(rgb), coarse.getBucket(pixels[i]), "Bucket for color " + rgb);
+                }
+            }
+            expected.countBuckets(pixels, pixels.length, expectedCount);
+            coarse.countBuckets(pixels, pixels.length, coarseCount);
+        }
+        assertTrue(Arrays.equals(expectedCount, coarseCount), "Bucket counts for all colors should be equal");
+    }
+
+    /**
+     * Euclidean nearest RGB bucket, which is cheap enough to evaluate for all colors.
+     */
+    private static class NearestRgb implements BucketLookup {
+        private final int[] palette;
+
+        NearestRgb(String[] hexPalette) {
+            palette = Arrays.stream(hexPalette).mapToInt(hex -> Integer.parseInt(hex.substring(1), 16)).toArray();
+        }
+
+        @Override
+        public int getBucket(int rgb) {
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < palette.length; i++) {
+                int red = ((rgb >> 16) & 0xFF) - ((palette[i] >> 16) & 0xFF);
+                int green = ((rgb >> 8) & 0xFF) - ((palette[i] >> 8) & 0xFF);
+                int blue = (rgb & 0xFF) - (palette[i] & 0xFF);
+                int distance = red * red + green * green + blue * blue;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public void countBuckets(int[] pixels, int length, int[] bucketCounter) {
+            for (int i = 0; i < length; i++) {
+                bucketCounter[getBucket(pixels[i])]++;
+            }
+        }
+    }
+}
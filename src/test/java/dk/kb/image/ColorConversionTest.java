@@ -67,21 +67,18 @@ public class ColorConversionTest {
 
     @Test
     public void testByteFile() throws IOException {
-        // Load OldOklabBucketEntriesForAllRgbColors
+        // Load OklabBucketEntriesForAllRgbColors.lut
         // The first color has RGB value 0,0,0. Then followed by 0,0,1.
-        byte[] test = Thread.currentThread().getContextClassLoader().getResource("OklabBucketEntriesForAllRgbColors").openStream().readAllBytes();
-        //System.out.println(Arrays.toString(test));
-        System.out.println(test.length);
+        BucketLookupTable table = BucketLookupTable.getOkLab();
+        System.out.println(table.getPaletteSize());
     }
 
     @Test
     public void testTripleLoop() throws IOException {
         Color in = new Color(240,12,140);
-        byte[] entriesForAllRgbColors = Thread.currentThread().getContextClassLoader().getResource("OklabBucketEntriesForAllRgbColors").openStream().readAllBytes();
+        BucketLookupTable table = BucketLookupTable.getOkLab();
 
-        int i = in.getRGB() & 0xFFFFFF;
-
-        int out = Byte.toUnsignedInt(entriesForAllRgbColors[i]);
+        int out = table.getBucket(in.getRGB());
         System.out.println(out);
 
         // How do I convert RGB values list of numbers
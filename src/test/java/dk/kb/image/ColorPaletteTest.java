@@ -0,0 +1,141 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+public class ColorPaletteTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testDefault() {
+        ColorPalette smk = ColorPalette.getDefault();
+        assertEquals(ColorPalette.DEFAULT_NAME, smk.getName());
+        assertEquals(PalettePicker.SMK_HEX_PALETTE.length, smk.getHexColors().size());
+        assertEquals(BucketLookupTable.paletteHash(PalettePicker.smkOkLabBuckets()), smk.getHash());
+    }
+
+    @Test
+    public void testInvalid() {
+        List<String> colors = Arrays.asList("#000000", "#FFFFFF");
+        assertThrows(IllegalArgumentException.class, () -> ColorPalette.create("no spaces", colors));
+        assertThrows(IllegalArgumentException.class, () -> ColorPalette.create("", colors));
+        assertThrows(IllegalArgumentException.class, () -> ColorPalette.create("empty", Arrays.asList()));
+        assertThrows(IllegalArgumentException.class, () -> ColorPalette.create("short", Arrays.asList("#FFF")));
+        assertThrows(IllegalArgumentException.class, () -> ColorPalette.create("notHex", Arrays.asList("#GG0000")));
+        assertThrows(IllegalArgumentException.class,
+                     () -> ColorPalette.create("duplicate", Arrays.asList("#ff0000", "#FF0000")));
+        assertThrows(IllegalArgumentException.class, () -> ColorPalette.register(ColorPalette.DEFAULT_NAME, colors));
+        assertThrows(IllegalArgumentException.class, () -> ColorPalette.get("unknown-palette"));
+    }
+
+    @Test
+    public void testRegistrationLimit() {
+        List<String> colors = Arrays.asList("#000000", "#FFFFFF");
+        IllegalArgumentException e = assertThrows(
+                IllegalArgumentException.class, () -> ColorPalette.register("over-the-limit", colors, 0));
+        log.debug("Registration over the limit gave: {}", e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> ColorPalette.get("over-the-limit"));
+    }
+
+    @Test
+    public void testDiscard() throws IOException {
+        ColorPalette palette = ColorPalette.create("discarded", Arrays.asList("#123456", "#654321"));
+        Path file = LookupTableCache.getFile(palette.getHash());
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[]{1, 2, 3});
+        LookupTableCache.discard(palette);
+        assertFalse(Files.exists(file), "The table for a discarded palette should be deleted");
+    }
+
+    @Test
+    public void testPruneDisk(@TempDir Path dir) throws IOException {
+        Path[] files = new Path[5];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = dir.resolve(String.format(Locale.ROOT, "palette-v1-%016x.lut", i));
+            Files.write(files[i], new byte[]{1});
+            // files[0] is the least recently used
+            Files.setLastModifiedTime(files[i], FileTime.fromMillis(1_000_000L * (i + 1)));
+        }
+        Path other = Files.write(dir.resolve("histograms.kbhs"), new byte[]{1});
+
+        LookupTableCache.pruneDisk(dir, 2, Collections.singleton(files[0]));
+        assertTrue(Files.exists(files[0]), "Tables in use should be kept");
+        assertFalse(Files.exists(files[1]));
+        assertFalse(Files.exists(files[2]));
+        assertTrue(Files.exists(files[3]), "The most recently used tables should be kept");
+        assertTrue(Files.exists(files[4]), "The most recently used tables should be kept");
+        assertTrue(Files.exists(other), "Other files should not be touched");
+    }
+
+    @Test
+    public void testHashDependsOnColors() {
+        ColorPalette bw = ColorPalette.create("bw", Arrays.asList("#000000", "#FFFFFF"));
+        ColorPalette wb = ColorPalette.create("bw", Arrays.asList("#FFFFFF", "#000000"));
+        assertNotEquals(bw.getHash(), wb.getHash());
+    }
+
+    @Test
+    public void testExactLookup() {
+        List<Float> palette = PalettePicker.smkOkLabBuckets();
+        ExactBucketLookup exact = new ExactBucketLookup(palette);
+        BucketLookupTableGenerator.Buckets buckets = new BucketLookupTableGenerator.Buckets(palette);
+        byte[] entries = new byte[BucketLookupTable.ENTRY_COUNT];
+        // More colors than the cache in countBuckets holds, so that slots are reused
+        int[] pixels = new int[2 * ExactBucketLookup.CACHE_SIZE];
+        int[] expected = new int[palette.size()];
+        for (int i = 0; i < pixels.length; i++) {
+            int rgb = (i * 4099) % BucketLookupTable.ENTRY_COUNT;
+            pixels[i] = new Color(rgb).getRGB();
+            BucketLookupTableGenerator.generate(buckets, entries, rgb, rgb + 1);
+            assertEquals(Byte.toUnsignedInt(entries[rgb]), exact.getBucket(pixels[i]));
+            expected[Byte.toUnsignedInt(entries[rgb])]++;
+        }
+        int[] counted = new int[palette.size()];
+        exact.countBuckets(pixels, pixels.length, counted);
+        assertTrue(Arrays.equals(expected, counted));
+    }
+
+    /**
+     * Generates a full lookup table, which takes a while on few cores.
+     */
+    @Tag("slow")
+    @Test
+    public void testCustomPalette() throws Exception {
+        ColorPalette palette = ColorPalette.register(
+                "test-rgb", Arrays.asList("#FF0000", "#00FF00", "#0000FF"));
+        assertEquals(palette.getHash(), ColorPalette.get("test-rgb").getHash());
+        assertTrue(ColorPalette.list().stream().anyMatch(p -> "test-rgb".equals(p.getName())));
+
+        // Lookups are available right away, exact until the table has been generated
+        BucketLookup before = LookupTableCache.getLookup(palette);
+        assertEquals(0, before.getBucket(new Color(250, 10, 10).getRGB()));
+        assertEquals(2, before.getBucket(new Color(10, 10, 250).getRGB()));
+
+        assertTrue(LookupTableCache.awaitGeneration(120_000), "The lookup table should be generated");
+        assertEquals(LookupTableCache.Status.READY, LookupTableCache.getStatus(palette));
+        BucketLookup after = LookupTableCache.getLookup(palette);
+        assertTrue(after instanceof BucketLookupTable, "The generated table should be used");
+        for (int rgb = 0; rgb < BucketLookupTable.ENTRY_COUNT; rgb += 65537) {
+            assertEquals(before.getBucket(rgb), after.getBucket(rgb), "Bucket for color " + rgb);
+        }
+    }
+}
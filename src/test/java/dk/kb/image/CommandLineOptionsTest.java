@@ -0,0 +1,45 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class CommandLineOptionsTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testOptions() {
+        CommandLineOptions options = CommandLineOptions.parse(
+                "usage", "root", "--threads=4", "/some/root", "--ratio=0.5", "--gc-log=", "--extensions=JPG, png,,");
+        assertEquals("/some/root", options.getArgument());
+        assertEquals(4, options.getInt("threads", 1));
+        assertEquals(7, options.getInt("queue", 7), "Missing options should give the default");
+        assertEquals(0.5, options.getNumber("ratio", 1.0));
+        assertEquals(2.0, options.getNumber("gc-log", 2.0), "Empty numbers should give the default");
+        assertEquals(new HashSet<>(Arrays.asList("jpg", "png")), options.getExtensions("extensions", "gif"));
+        options.checkAllRead();
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> CommandLineOptions.parse("usage", "root", "--threads"));
+        assertThrows(IllegalArgumentException.class, () -> CommandLineOptions.parse("usage", "root", "a", "b"));
+        assertThrows(IllegalArgumentException.class, () -> CommandLineOptions.parse("usage", null, "a"));
+        assertThrows(IllegalArgumentException.class, () -> CommandLineOptions.parse("usage", "root").getArgument());
+        assertThrows(IllegalArgumentException.class,
+                     () -> CommandLineOptions.parse("usage", null, "--threads=x").getInt("threads", 1));
+
+        CommandLineOptions unknown = CommandLineOptions.parse("usage", null, "--known=1", "--unknown=2");
+        unknown.getString("known", null);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, unknown::checkAllRead);
+        assertTrue(e.getMessage().contains("unknown") && e.getMessage().endsWith("usage"),
+                   "The message should name the unknown option and give the usage but was " + e.getMessage());
+    }
+}
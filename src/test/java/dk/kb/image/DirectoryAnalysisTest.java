@@ -0,0 +1,151 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+public class DirectoryAnalysisTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void testSortedWalk(@TempDir Path root) throws IOException {
+        for (String file : Arrays.asList("b/2.png", "b/10.png", "a.png", "b-c.png", "b/x/1.png", "c/readme.txt")) {
+            Files.createDirectories(root.resolve(file).getParent());
+            Files.write(root.resolve(file), new byte[]{1});
+        }
+        HashSet<String> extensions = new HashSet<>(Arrays.asList("png"));
+
+        assertEquals(Arrays.asList("a.png", "b/10.png", "b/2.png", "b/x/1.png", "b-c.png"),
+                     walk(root, extensions, null), "Directories should be walked in place of their name");
+        assertEquals(Arrays.asList("b/2.png", "b/x/1.png", "b-c.png"), walk(root, extensions, "b/10.png"));
+        assertEquals(Arrays.asList("b-c.png"), walk(root, extensions, "b/x/1.png"));
+        assertEquals(Arrays.asList(), walk(root, extensions, "b-c.png"));
+        assertEquals(Arrays.asList("b/x/1.png", "b-c.png"), walk(root, extensions, "b/3.png"),
+                     "A path that no longer exists should resume at the next path in the order");
+    }
+
+    @Test
+    public void testJsonl(@TempDir Path dir) throws IOException, InterruptedException {
+        Path root = createImages(dir.resolve("images"), "red/1.png", "red/2.png", "blue/1.png");
+        Files.write(root.resolve("broken.png"), "Not an image".getBytes(StandardCharsets.UTF_8));
+        Path output = dir.resolve("out.jsonl");
+
+        DirectoryAnalysis.Summary summary = DirectoryAnalysis.fromArgs(
+                root.toString(), "--output=" + output, "--analyses=colorcount,rgb", "--top-colors=1",
+                "--threads=2", "--queue=2").run();
+        log.info("Analysed {}", summary);
+        assertEquals(4, summary.getAnalysed());
+        assertEquals(1, summary.getErrors());
+
+        List<JsonNode> lines = readJson(output);
+        assertEquals(4, lines.size());
+        assertEquals("blue/1.png", lines.get(0).get("path").asText());
+        assertEquals(1, lines.get(0).get("colorCount").asInt());
+        assertEquals(100.0, lines.get(0).get("rgbColors").get(0).get("percent").asDouble(), 0.01);
+        assertNotEquals(lines.get(0).get("rgbColors").get(0).get("hexRGB"),
+                        lines.get(2).get("rgbColors").get(0).get("hexRGB"));
+        assertEquals("broken.png", lines.get(1).get("path").asText());
+        assertTrue(lines.get(1).has("error"));
+        assertEquals("red/2.png", lines.get(3).get("path").asText());
+        assertTrue(Files.exists(Paths.get(output + ".checkpoint")));
+    }
+
+    @Test
+    public void testResume(@TempDir Path dir) throws IOException, InterruptedException {
+        Path root = createImages(dir.resolve("images"), "a.png", "b,1.png");
+        Path output = dir.resolve("out.csv");
+        String[] args = {root.toString(), "--output=" + output, "--analyses=colorcount", "--threads=1"};
+
+        assertEquals(2, DirectoryAnalysis.fromArgs(args).run().getAnalysed());
+        // Simulate lines written after the last checkpoint by a run that was killed
+        Files.write(output, "c.png,1/1,1,\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        createImages(root, "c.png", "d.png");
+
+        DirectoryAnalysis.Summary summary = DirectoryAnalysis.fromArgs(args).run();
+        assertEquals(2, summary.getResumed());
+        assertEquals(2, summary.getAnalysed(), "Only the images after the checkpoint should be analysed");
+        assertEquals(Arrays.asList("path,scale,colorCount,error",
+                                   "a.png,1/1,1,", "\"b,1.png\",1/1,1,", "c.png,1/1,1,", "d.png,1/1,1,"),
+                     Files.readAllLines(output, StandardCharsets.UTF_8));
+
+        assertThrows(IllegalArgumentException.class,
+                     () -> DirectoryAnalysis.fromArgs(root.toString(), "--output=" + output, "--analyses=rgb").run(),
+                     "A checkpoint for other analyses should not be resumed");
+    }
+
+    @Test
+    public void testArguments(@TempDir Path root) {
+        assertThrows(IllegalArgumentException.class, () -> DirectoryAnalysis.fromArgs());
+        assertThrows(IllegalArgumentException.class, () -> DirectoryAnalysis.fromArgs(root.toString(), "--unknown=1"));
+        assertThrows(IllegalArgumentException.class, () -> DirectoryAnalysis.fromArgs(root.toString(), "--threads=x"));
+        assertThrows(IllegalArgumentException.class,
+                     () -> DirectoryAnalysis.fromArgs(root.toString(), "--analyses=greyscale"));
+        assertThrows(IllegalArgumentException.class,
+                     () -> DirectoryAnalysis.fromArgs(root.resolve("missing").toString()));
+    }
+
+    @Test
+    public void testFormatDuration() {
+        assertEquals("0:00:59", DirectoryAnalysis.formatDuration(59));
+        assertEquals("1:01:01", DirectoryAnalysis.formatDuration(3661));
+        assertEquals("100:00:00", DirectoryAnalysis.formatDuration(360_000));
+    }
+
+    private static List<String> walk(Path root, HashSet<String> extensions, String after) {
+        List<String> paths = new ArrayList<>();
+        new DirectoryAnalysis.SortedWalk(root, extensions, after)
+                .forEachRemaining(path -> paths.add(DirectoryAnalysis.toRelative(root.relativize(path))));
+        return paths;
+    }
+
+    /**
+     * Create single color images, blue if the path contains "blue" and red otherwise.
+     */
+    private static Path createImages(Path root, String... files) throws IOException {
+        for (String file : files) {
+            BufferedImage img = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = img.createGraphics();
+            g.setColor(file.contains("blue") ? Color.BLUE : Color.RED);
+            g.fillRect(0, 0, img.getWidth(), img.getHeight());
+            g.dispose();
+            Path path = root.resolve(file);
+            Files.createDirectories(path.getParent());
+            ImageIO.write(img, "png", path.toFile());
+        }
+        return root;
+    }
+
+    private static List<JsonNode> readJson(Path output) throws IOException {
+        List<JsonNode> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(output, StandardCharsets.UTF_8)) {
+            lines.add(MAPPER.readTree(line));
+        }
+        return lines;
+    }
+}
@@ -2,6 +2,7 @@ package dk.kb.image;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.Test;
@@ -14,6 +15,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import javax.imageio.ImageIO;
+import dk.kb.image.model.v1.DominantColorDto;
 import dk.kb.util.Resolver;
 
 import org.slf4j.Logger;
@@ -64,6 +66,34 @@ public class FacadeTest {
         log.info("The most used colors has been calculated");
     }
 
+    @Test
+    public void testHistogram() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        assertSameColors(Facade.getMostUsedRGBColors(img, 5),
+                         Facade.getMostUsedRGBColors(Facade.getRGBHistogram(img), 5));
+
+        ColorPalette palette = ColorPalette.create("histogram", Arrays.asList("#FF0000", "#00FF00", "#0000FF", "#FFFFFF"));
+        ColorHistogram histogram = Facade.getOKLabHistogram(img, palette);
+        assertEquals((long) img.getWidth() * img.getHeight(), histogram.getPixels());
+        assertSameColors(Facade.getMostUsedOKLabColors(img, 3, null, palette),
+                         Facade.getMostUsedOKLabColors(histogram, 3, palette));
+        assertThrows(IllegalArgumentException.class,
+                     () -> Facade.getMostUsedOKLabColors(histogram, 3, ColorPalette.create("other", Arrays.asList("#000000"))));
+    }
+
+    /**
+     * Assert that two results of dominant color analysis hold the same colors in the same order with the same
+     * percentages and sample sizes. Shared by tests that compare different ways of calculating the same result.
+     */
+    static void assertSameColors(List<DominantColorDto> expected, List<DominantColorDto> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getHexRGB(), actual.get(i).getHexRGB(), "Color #" + i);
+            assertEquals(expected.get(i).getPercent(), actual.get(i).getPercent(), 0.0001f, "Percent for color #" + i);
+            assertEquals(expected.get(i).getSampleSize(), actual.get(i).getSampleSize(), "Sample size for color #" + i);
+        }
+    }
+
     @Test
     public void testGetLargestBucket(){
         int[] testBuckets = {1,298,3,5,98};
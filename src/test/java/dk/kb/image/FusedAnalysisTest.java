@@ -0,0 +1,66 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.util.Resolver;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import javax.imageio.ImageIO;
+
+public class FusedAnalysisTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testSameAsSeparate() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        FusedAnalysis.Result result = Facade.getAnalysis(
+                img, EnumSet.allOf(FusedAnalysis.Analysis.class), 5, ColorPalette.getDefault(),
+                GreyscaleConverter.Mode.REC709);
+
+        assertEquals(Facade.getColorCount(img), result.getColorCount().intValue());
+        FacadeTest.assertSameColors(Facade.getMostUsedRGBColors(img, 5), result.getRgbColors());
+        FacadeTest.assertSameColors(Facade.getMostUsedOKLabColors(img, 5), result.getOkLabColors());
+        assertArrayEquals(greyPixels(GreyscaleConverter.toGrey(img, GreyscaleConverter.Mode.REC709)),
+                          greyPixels(result.getGreyscale()));
+    }
+
+    @Test
+    public void testOnlyRequested() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        FusedAnalysis.Result result = Facade.getAnalysis(
+                img, EnumSet.of(FusedAnalysis.Analysis.COLORCOUNT, FusedAnalysis.Analysis.RGB), 3,
+                ColorPalette.getDefault(), GreyscaleConverter.Mode.AVERAGE);
+        assertEquals(Facade.getColorCount(img), result.getColorCount().intValue());
+        FacadeTest.assertSameColors(Facade.getMostUsedRGBColors(img, 3), result.getRgbColors());
+        assertNull(result.getOkLabColors());
+        assertNull(result.getGreyscale());
+    }
+
+    @Test
+    public void testAnalysisNames() {
+        assertEquals(EnumSet.of(FusedAnalysis.Analysis.RGB, FusedAnalysis.Analysis.GREYSCALE),
+                     FusedAnalysis.Analysis.of(Collections.singletonList("rgb, Greyscale")));
+        assertEquals(EnumSet.of(FusedAnalysis.Analysis.COLORCOUNT, FusedAnalysis.Analysis.OKLAB),
+                     FusedAnalysis.Analysis.of(Arrays.asList("colorcount", "oklab,colorcount")));
+        assertThrows(IllegalArgumentException.class,
+                     () -> FusedAnalysis.Analysis.of(Collections.singletonList("rgb,histogram")));
+        assertThrows(IllegalArgumentException.class, () -> FusedAnalysis.Analysis.of(Collections.singletonList(",")));
+        assertThrows(IllegalArgumentException.class, () -> FusedAnalysis.Analysis.of(null));
+    }
+
+    private static byte[] greyPixels(BufferedImage grey) {
+        return ((DataBufferByte) grey.getRaster().getDataBuffer()).getData();
+    }
+}
@@ -0,0 +1,77 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.util.Resolver;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+public class GreyscaleConverterTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testSourceUntouched() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        int[] before = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+        for (GreyscaleConverter.Mode mode : GreyscaleConverter.Mode.values()) {
+            BufferedImage grey = GreyscaleConverter.toGrey(img, mode);
+            assertEquals(BufferedImage.TYPE_BYTE_GRAY, grey.getType());
+            assertEquals(img.getWidth(), grey.getWidth());
+            assertEquals(img.getHeight(), grey.getHeight());
+        }
+        int[] after = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+        assertTrue(Arrays.equals(before, after), "The source image should not be modified");
+    }
+
+    @Test
+    public void testAverage() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        BufferedImage grey = GreyscaleConverter.toGrey(img, GreyscaleConverter.Mode.AVERAGE);
+        for (int y = 0; y < img.getHeight(); y += 17) {
+            for (int x = 0; x < img.getWidth(); x += 13) {
+                int pixel = img.getRGB(x, y);
+                int average = (((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff)) / 3;
+                assertEquals(average, grey.getRaster().getSample(x, y, 0), "Grey value at " + x + ", " + y);
+            }
+        }
+    }
+
+    @Test
+    public void testModes() {
+        int[] pixels = {0xFFFFFFFF, 0xFF000000, 0xFF00FF00, 0xFF0000FF, 0xFF808080};
+        byte[] grey = new byte[pixels.length];
+        for (GreyscaleConverter.Mode mode : GreyscaleConverter.Mode.values()) {
+            GreyscaleConverter.convert(pixels, pixels.length, grey, 0, mode);
+            assertEquals(255, Byte.toUnsignedInt(grey[0]), "White in mode " + mode);
+            assertEquals(0, Byte.toUnsignedInt(grey[1]), "Black in mode " + mode);
+        }
+        GreyscaleConverter.convert(pixels, pixels.length, grey, 0, GreyscaleConverter.Mode.REC601);
+        assertEquals(149, Byte.toUnsignedInt(grey[2]));
+        assertEquals(29, Byte.toUnsignedInt(grey[3]));
+        GreyscaleConverter.convert(pixels, pixels.length, grey, 0, GreyscaleConverter.Mode.REC709);
+        assertEquals(182, Byte.toUnsignedInt(grey[2]));
+        assertEquals(19, Byte.toUnsignedInt(grey[3]));
+        // Green is perceived as lighter than blue
+        GreyscaleConverter.convert(pixels, pixels.length, grey, 0, GreyscaleConverter.Mode.OKLAB);
+        assertTrue(Byte.toUnsignedInt(grey[2]) > Byte.toUnsignedInt(grey[3]));
+        // Neutral grey keeps its OKlab lightness, which is not the sRGB value
+        assertEquals(Math.round(0.5999 * 255), Byte.toUnsignedInt(grey[4]), 1);
+    }
+
+    @Test
+    public void testModeNames() {
+        assertEquals(GreyscaleConverter.Mode.AVERAGE, GreyscaleConverter.Mode.of(null));
+        assertEquals(GreyscaleConverter.Mode.REC709, GreyscaleConverter.Mode.of("rec709"));
+        assertEquals(GreyscaleConverter.Mode.OKLAB, GreyscaleConverter.Mode.of("OKlab"));
+        assertThrows(IllegalArgumentException.class, () -> GreyscaleConverter.Mode.of("sepia"));
+    }
+}
@@ -0,0 +1,220 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+public class HistogramStoreTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    private static final long PALETTE = 0x1234L;
+    private static final long BUDGET = 4_000_000L;
+
+    @Test
+    public void testPutAndGet(@TempDir Path dir) throws IOException {
+        ColorHistogram histogram = randomHistogram(1);
+        try (HistogramStore store = HistogramStore.open(dir.resolve("store"), 1_000_000, Runnable::run)) {
+            String hash = contentHash(1);
+            assertTrue(store.put(hash, HistogramStore.Kind.OKLAB, PALETTE, BUDGET, "1/2", histogram));
+
+            HistogramStore.Entry stored = store.get(hash, HistogramStore.Kind.OKLAB, PALETTE, BUDGET);
+            assertStored(histogram, stored);
+            assertEquals("1/2", stored.getScale());
+            assertNull(store.get(hash, HistogramStore.Kind.RGB, PALETTE, BUDGET), "Another kind should not match");
+            assertNull(store.get(hash, HistogramStore.Kind.OKLAB, PALETTE + 1, BUDGET),
+                       "Another palette should not match");
+            assertNull(store.get(hash, HistogramStore.Kind.OKLAB, PALETTE, 0), "Another budget should not match");
+            assertNull(store.get(contentHash(2), HistogramStore.Kind.OKLAB, PALETTE, BUDGET),
+                       "Another image should not match");
+            assertEquals(1, store.getHits());
+            assertEquals(4, store.getMisses());
+        }
+    }
+
+    @Test
+    public void testReopen(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("store");
+        try (HistogramStore store = HistogramStore.open(file, 10_000_000, Runnable::run)) {
+            for (int i = 0; i < 2000; i++) {
+                store.put(contentHash(i), HistogramStore.Kind.RGB, PALETTE, BUDGET, "1/1", randomHistogram(i));
+            }
+        }
+        try (HistogramStore store = HistogramStore.open(file, 10_000_000, Runnable::run)) {
+            assertEquals(2000, store.size());
+            for (int i = 0; i < 2000; i++) {
+                assertStored(randomHistogram(i), store.get(contentHash(i), HistogramStore.Kind.RGB, PALETTE, BUDGET));
+            }
+        }
+    }
+
+    @Test
+    public void testPartialRecord(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("store");
+        long validBytes;
+        try (HistogramStore store = HistogramStore.open(file, 1_000_000, Runnable::run)) {
+            store.put(contentHash(1), HistogramStore.Kind.RGB, PALETTE, BUDGET, "1/1", randomHistogram(1));
+            validBytes = store.getBytes();
+        }
+        // Simulate a crash while a record was written
+        byte[] partial = HistogramStore.encode(HistogramStore.fromHex(contentHash(2)), HistogramStore.Kind.RGB,
+                                               PALETTE, BUDGET, "1/1", randomHistogram(2)).array();
+        Files.write(file, Arrays.copyOf(partial, partial.length / 2), StandardOpenOption.APPEND);
+
+        try (HistogramStore store = HistogramStore.open(file, 1_000_000, Runnable::run)) {
+            assertEquals(1, store.size());
+            assertEquals(validBytes, store.getBytes());
+            assertEquals(validBytes, Files.size(file), "The partial record should be truncated");
+            assertNotNull(store.get(contentHash(1), HistogramStore.Kind.RGB, PALETTE, BUDGET));
+            assertTrue(store.put(contentHash(2), HistogramStore.Kind.RGB, PALETTE, BUDGET, "1/1", randomHistogram(2)));
+        }
+        try (HistogramStore store = HistogramStore.open(file, 1_000_000, Runnable::run)) {
+            assertEquals(2, store.size());
+        }
+    }
+
+    @Test
+    public void testNotAStore(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("store");
+        Files.write(file, "Not a histogram store".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> HistogramStore.open(file, 1_000_000, Runnable::run));
+    }
+
+    @Test
+    public void testCompactBySize(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("store");
+        final long maxBytes = 100_000;
+        final int records = 1000;
+        try (HistogramStore store = HistogramStore.open(file, maxBytes, Runnable::run)) {
+            for (int i = 0; i < records; i++) {
+                store.put(contentHash(i), HistogramStore.Kind.OKLAB, PALETTE, BUDGET, "1/4", randomHistogram(i));
+                assertTrue(store.getBytes() <= maxBytes + 2000, "The store should stay near the maximum size");
+            }
+            assertTrue(store.getCompactions() > 0, "The store should have been compacted");
+            log.info("After {} records: {}", records, store);
+            assertNotNull(store.get(contentHash(records - 1), HistogramStore.Kind.OKLAB, PALETTE, BUDGET),
+                          "The newest record should be kept");
+            assertNull(store.get(contentHash(0), HistogramStore.Kind.OKLAB, PALETTE, BUDGET),
+                       "The oldest record should be removed");
+            assertEquals(store.getBytes(), Files.size(file));
+        }
+        try (HistogramStore store = HistogramStore.open(file, maxBytes, Runnable::run)) {
+            assertStored(randomHistogram(records - 1),
+                         store.get(contentHash(records - 1), HistogramStore.Kind.OKLAB, PALETTE, BUDGET));
+        }
+    }
+
+    @Test
+    public void testCompactReplaced(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("store");
+        try (HistogramStore store = HistogramStore.open(file, 10_000_000, Runnable::run)) {
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 10; i++) {
+                    store.put(contentHash(i), HistogramStore.Kind.RGB, PALETTE, BUDGET, "1/1", randomHistogram(round));
+                }
+            }
+            assertTrue(store.getCompactions() > 0, "Replaced records should trigger compaction");
+            store.compact();
+            assertEquals(10, store.size());
+            for (int i = 0; i < 10; i++) {
+                assertStored(randomHistogram(9), store.get(contentHash(i), HistogramStore.Kind.RGB, PALETTE, BUDGET));
+            }
+            assertTrue(store.getBytes() < 10 * 1000, "Only the newest record for each key should be kept");
+        }
+    }
+
+    @Test
+    public void testFailedCompaction(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("store");
+        try (HistogramStore store = HistogramStore.open(file, 10_000_000, Runnable::run)) {
+            store.put(contentHash(1), HistogramStore.Kind.RGB, PALETTE, BUDGET, "1/1", randomHistogram(1));
+            // The open file is unlinked and a non-empty directory takes its place, so the compacted file cannot be
+            // moved there
+            Files.delete(file);
+            Files.createDirectories(file.resolve("blocker"));
+            assertThrows(IOException.class, store::compact);
+
+            assertStored(randomHistogram(1), store.get(contentHash(1), HistogramStore.Kind.RGB, PALETTE, BUDGET));
+            assertTrue(store.put(contentHash(2), HistogramStore.Kind.RGB, PALETTE, BUDGET, "1/1", randomHistogram(2)),
+                       "The store should still be usable after a failed compaction");
+            assertStored(randomHistogram(2), store.get(contentHash(2), HistogramStore.Kind.RGB, PALETTE, BUDGET));
+        }
+    }
+
+    @Test
+    public void testAppendAfterOpen(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("store");
+        try (HistogramStore store = HistogramStore.open(file, 10_000_000, Runnable::run)) {
+            store.put(contentHash(0), HistogramStore.Kind.RGB, PALETTE, BUDGET, "1/1", randomHistogram(0));
+        }
+        try (HistogramStore store = HistogramStore.open(file, 10_000_000, Runnable::run)) {
+            // Records in the mapping of the opened file and records appended after it are read the same way
+            for (int i = 1; i < 100; i++) {
+                store.put(contentHash(i), HistogramStore.Kind.RGB, PALETTE, BUDGET, "1/1", randomHistogram(i));
+                for (int j = 0; j <= i; j += 7) {
+                    assertStored(randomHistogram(j),
+                                 store.get(contentHash(j), HistogramStore.Kind.RGB, PALETTE, BUDGET));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOffsetIndex() {
+        HistogramStore.OffsetIndex index = new HistogramStore.OffsetIndex();
+        Random random = new Random(87);
+        long[] fingerprints = new long[10_000];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = i == 0 ? 0 : random.nextLong();
+            assertEquals(-1, index.put(fingerprints[i], i));
+        }
+        assertEquals(fingerprints.length, index.size());
+        for (int i = 0; i < fingerprints.length; i++) {
+            assertEquals(i, index.get(fingerprints[i]));
+        }
+        assertEquals(5, index.put(fingerprints[5], 42));
+        assertEquals(42, index.get(fingerprints[5]));
+        assertEquals(fingerprints.length, index.size());
+    }
+
+    private static String contentHash(int id) {
+        return UploadBuffer.hash(Integer.toString(id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A histogram with mostly empty buckets and counts of all sizes, as for a real image.
+     */
+    private static ColorHistogram randomHistogram(int seed) {
+        Random random = new Random(seed);
+        int[] counts = new int[256];
+        long pixels = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (random.nextInt(4) == 0) {
+                counts[i] = random.nextInt(1 << random.nextInt(31));
+                pixels += counts[i];
+            }
+        }
+        return new ColorHistogram(counts, pixels);
+    }
+
+    private static void assertStored(ColorHistogram expected, HistogramStore.Entry actual) {
+        assertNotNull(actual, "The histogram should be stored");
+        assertArrayEquals(expected.getCounts(), actual.getHistogram().getCounts());
+        assertEquals(expected.getPixels(), actual.getHistogram().getPixels());
+    }
+}
@@ -0,0 +1,159 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dk.kb.image.model.v1.DominantColorDto;
+import dk.kb.util.Resolver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+public class ImageDecoderTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testSubsampling() {
+        assertEquals(1, ImageDecoder.getSubsampling(4000, 3000, 0));
+        assertEquals(1, ImageDecoder.getSubsampling(4000, 3000, 12_000_000));
+        assertEquals(2, ImageDecoder.getSubsampling(4000, 3000, 3_000_000));
+        assertEquals(4, ImageDecoder.getSubsampling(4000, 3000, 750_000));
+        // 1001x1001 at subsampling 2 is 501x501 pixels, which is above the budget
+        assertEquals(3, ImageDecoder.getSubsampling(1001, 1001, 250_000));
+    }
+
+    @Test
+    public void testFullResolution() throws IOException {
+        BufferedImage expected = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        try (InputStream in = Resolver.resolveStream("flower.jpg")) {
+            ImageDecoder.Decoded decoded = ImageDecoder.decode(in, 0);
+            assertEquals(1, decoded.getSubsampling());
+            assertEquals("1/1", decoded.getScale());
+            assertEquals(expected.getWidth(), decoded.getImage().getWidth());
+            assertEquals(expected.getHeight(), decoded.getImage().getHeight());
+            assertEquals(expected.getRGB(17, 42), decoded.getImage().getRGB(17, 42));
+        }
+    }
+
+    @Test
+    public void testPixelBudget() throws IOException {
+        BufferedImage full = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        // Every 4th pixel, rounded up for image sizes not divisible by 4
+        long budget = (long) ((full.getWidth() + 3) / 4) * ((full.getHeight() + 3) / 4);
+        try (InputStream in = Resolver.resolveStream("flower.jpg")) {
+            ImageDecoder.Decoded decoded = ImageDecoder.decode(in, budget);
+            log.info("Decoded flower.jpg with budget {}: {}", budget, decoded);
+            BufferedImage img = decoded.getImage();
+            assertEquals(4, decoded.getSubsampling());
+            assertEquals(full.getWidth(), decoded.getOriginalWidth());
+            assertTrue((long) img.getWidth() * img.getHeight() <= budget);
+
+            // The dominant colors barely change at 1/4 scale
+            List<DominantColorDto> expected = new MostUsedRgbColors().getMostUsedColors(full, 1);
+            List<DominantColorDto> subsampled = new MostUsedRgbColors().getMostUsedColors(img, 1);
+            assertEquals(expected.get(0).getHexRGB(), subsampled.get(0).getHexRGB());
+            assertEquals(expected.get(0).getPercent(), subsampled.get(0).getPercent(), 1.0);
+        }
+    }
+
+    @Test
+    public void testFromFile(@TempDir Path dir) throws IOException {
+        BufferedImage expected = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        Path file = dir.resolve("flower.jpg");
+        try (InputStream in = Resolver.resolveStream("flower.jpg")) {
+            Files.copy(in, file);
+        }
+        try (ImageDecoder decoder = ImageDecoder.open(file, 0)) {
+            BufferedImage img = decoder.readImage();
+            assertEquals("1/1", decoder.getScale());
+            assertEquals(expected.getWidth(), img.getWidth());
+            assertEquals(expected.getRGB(17, 42), img.getRGB(17, 42));
+        }
+
+        Path text = Files.write(dir.resolve("text.jpg"), "Not an image".getBytes(StandardCharsets.UTF_8));
+        assertNull(ImageDecoder.open(text, 0));
+    }
+
+    @Test
+    public void testUnsupportedFormat() throws IOException {
+        InputStream in = new ByteArrayInputStream("Not an image".getBytes(StandardCharsets.UTF_8));
+        assertNull(ImageDecoder.decode(in, 0));
+    }
+
+    @Test
+    public void testSourceRows() {
+        // Untiled image, so the rows are only adjusted for subsampling
+        assertEquals(30, ImageDecoder.getSourceRows(10, 3, 1000, 1000));
+        // Multiple of both tile height and subsampling
+        assertEquals(48, ImageDecoder.getSourceRows(10, 3, 16, 1000));
+        // Never less than a single tile
+        assertEquals(64, ImageDecoder.getSourceRows(1, 1, 64, 1000));
+        // Never more than the image
+        assertEquals(100, ImageDecoder.getSourceRows(1000, 2, 1, 100));
+    }
+
+    @Test
+    public void testStripsEqualFullDecode() throws IOException {
+        byte[] tiff = toTiff(ImageIO.read(Resolver.resolveStream("flower.jpg")));
+        for (long budget : new long[]{0, 20_000}) {
+            BufferedImage full;
+            try (ImageDecoder decoder = ImageDecoder.open(new ByteArrayInputStream(tiff), budget)) {
+                full = decoder.readImage();
+            }
+            int[] expected = full.getRGB(0, 0, full.getWidth(), full.getHeight(), null, 0, full.getWidth());
+            int[] actual = new int[expected.length];
+            try (ImageDecoder decoder = ImageDecoder.open(new ByteArrayInputStream(tiff), budget)) {
+                assertEquals("tif", decoder.getFormatName());
+                assertEquals(full.getWidth(), decoder.getWidth());
+                assertEquals(full.getHeight(), decoder.getHeight());
+                decoder.readStrips(7, (pixels, width, y, rows) ->
+                        System.arraycopy(pixels, 0, actual, y * width, width * rows));
+            }
+            assertArrayEquals(expected, actual, "Strip decoding with budget " + budget);
+        }
+    }
+
+    @Test
+    public void testStripAnalysis() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        byte[] tiff = toTiff(img);
+        try (ImageDecoder decoder = ImageDecoder.open(new ByteArrayInputStream(tiff), 0)) {
+            assertEquals(Facade.getColorCount(img), Facade.getColorCount(decoder));
+        }
+        try (ImageDecoder decoder = ImageDecoder.open(new ByteArrayInputStream(tiff), 0)) {
+            List<DominantColorDto> expected = Facade.getMostUsedRGBColors(img, 5);
+            List<DominantColorDto> actual = Facade.getMostUsedRGBColors(decoder, 5);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getHexRGB(), actual.get(i).getHexRGB());
+                assertEquals(expected.get(i).getPercent(), actual.get(i).getPercent());
+            }
+        }
+        try (ImageDecoder decoder = ImageDecoder.open(new ByteArrayInputStream(tiff), 0)) {
+            BufferedImage grey = ImageIO.read(new ByteArrayInputStream(Facade.getGreyscale(decoder)));
+            assertEquals(img.getWidth(), grey.getWidth());
+            assertEquals(img.getHeight(), grey.getHeight());
+            log.info("Strip decoded greyscale has {} bands", grey.getRaster().getNumBands());
+        }
+    }
+
+    private static byte[] toTiff(BufferedImage img) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(img, "tif", out), "A TIFF writer should be available");
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,126 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.util.Resolver;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+public class ImageEncoderTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testJpeg() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageEncoder.write(img, ImageEncoder.Format.JPEG, null, out);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(img.getWidth(), decoded.getWidth());
+        assertEquals(img.getHeight(), decoded.getHeight());
+    }
+
+    @Test
+    public void testPngLossless() throws IOException {
+        BufferedImage grey = noise(300, 200);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageEncoder.write(grey, ImageEncoder.Format.PNG, null, out);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertArrayEquals(((DataBufferByte) grey.getRaster().getDataBuffer()).getData(),
+                          ((DataBufferByte) decoded.getRaster().getDataBuffer()).getData());
+    }
+
+    @Test
+    public void testQuality() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        ByteArrayOutputStream low = new ByteArrayOutputStream();
+        ImageEncoder.write(img, ImageEncoder.Format.JPEG, 0.1f, low);
+        ByteArrayOutputStream high = new ByteArrayOutputStream();
+        ImageEncoder.write(img, ImageEncoder.Format.JPEG, 0.95f, high);
+        log.debug("JPEG size with quality 0.1: {} bytes, with quality 0.95: {} bytes", low.size(), high.size());
+        assertTrue(low.size() < high.size(), "Lower quality should give a smaller file");
+
+        assertThrows(IllegalArgumentException.class,
+                     () -> ImageEncoder.write(img, ImageEncoder.Format.JPEG, 1.5f, new ByteArrayOutputStream()));
+        assertThrows(IllegalArgumentException.class,
+                     () -> ImageEncoder.write(img, ImageEncoder.Format.JPEG, Float.NaN, new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testWritersReused() throws IOException {
+        BufferedImage grey = noise(50, 50);
+        for (int i = 0; i < 3; i++) {
+            ImageEncoder.write(grey, ImageEncoder.Format.PNG, null, new ByteArrayOutputStream());
+            assertTrue(ImageEncoder.getPooledWriters(ImageEncoder.Format.PNG) >= 1,
+                       "The writer should be returned to the pool");
+        }
+    }
+
+    @Test
+    public void testStreaming() throws IOException {
+        // Noise compresses poorly, so the encoded images are several MB
+        BufferedImage grey = noise(2000, 2000);
+        for (ImageEncoder.Format format : ImageEncoder.Format.values()) {
+            ChunkRecorder out = new ChunkRecorder();
+            ImageEncoder.write(grey, format, null, out);
+            log.debug("Wrote {} as {} bytes, {} of them at the end",
+                      format, out.total, out.closingBytes);
+            assertTrue(out.total > 1000000, "The " + format + " image should be large, but was " + out.total);
+            assertTrue(out.closingBytes <= 65536, "Encoded " + format + " bytes should be passed on during " +
+                                                  "encoding, but " + out.closingBytes + " were held until the end");
+        }
+    }
+
+    @Test
+    public void testFormatNames() {
+        assertEquals(ImageEncoder.Format.JPEG, ImageEncoder.Format.of(null));
+        assertEquals(ImageEncoder.Format.JPEG, ImageEncoder.Format.of("jpg"));
+        assertEquals(ImageEncoder.Format.PNG, ImageEncoder.Format.of("PNG"));
+        assertEquals("image/png", ImageEncoder.Format.PNG.getMimeType());
+        assertThrows(IllegalArgumentException.class, () -> ImageEncoder.Format.of("gif"));
+    }
+
+    private static BufferedImage noise(int width, int height) {
+        BufferedImage grey = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        new Random(87).nextBytes(((DataBufferByte) grey.getRaster().getDataBuffer()).getData());
+        return grey;
+    }
+
+    /**
+     * Counts the bytes instead of keeping them, recording how many were only passed on when the image output stream
+     * was flushed or closed at the end of encoding.
+     */
+    private static class ChunkRecorder extends OutputStream {
+        long total = 0;
+        long closingBytes = 0;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            total += len;
+            if (Arrays.stream(Thread.currentThread().getStackTrace())
+                    .map(StackTraceElement::getMethodName)
+                    .anyMatch(method -> method.equals("flush") || method.equals("close"))) {
+                closingBytes += len;
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ImageFetcherTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/image/", exchange -> {
+            requests.incrementAndGet();
+            byte[] body = content(exchange.getRequestURI().getPath());
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/chunked/", exchange -> {
+            // Length 0 means chunked, so the size is only known while reading
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(new byte[10_000]);
+            }
+        });
+        server.createContext("/stall/", exchange -> {
+            exchange.sendResponseHeaders(200, 10_000);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(new byte[100]);
+                out.flush();
+                Thread.sleep(5_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The client gave up
+            }
+        });
+        server.createContext("/error/", exchange -> {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.createContext("/redirect/", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/image/redirected");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testFetch() throws IOException {
+        try (UploadBuffer upload = ImageFetcher.fetch(uri("/image/a"))) {
+            byte[] expected = content("/image/a");
+            assertEquals(expected.length, upload.getSize());
+            assertEquals(UploadBuffer.hash(expected), upload.getHash());
+            try (InputStream in = upload.openStream()) {
+                assertArrayEquals(expected, in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testFetchErrors() {
+        // The server answers 404 for paths without a context
+        assertThrows(FileNotFoundException.class, () -> ImageFetcher.fetch(uri("/missing")));
+        assertThrows(IOException.class, () -> ImageFetcher.fetch(uri("/error/a")));
+        assertThrows(IOException.class, () -> ImageFetcher.fetch(uri("/redirect/a")),
+                     "Redirects should not be followed");
+    }
+
+    @Test
+    public void testLimits() throws IOException {
+        int length = content("/image/a").length;
+        try (UploadBuffer upload = ImageFetcher.fetch(uri("/image/a"), length, 10_000)) {
+            assertEquals(length, upload.getSize(), "Content of exactly the maximum size should be accepted");
+        }
+        assertThrows(IOException.class, () -> ImageFetcher.fetch(uri("/image/a"), length - 1, 10_000),
+                     "The Content-Length is above the maximum");
+        assertThrows(IOException.class, () -> ImageFetcher.fetch(uri("/chunked/a"), 5_000, 10_000),
+                     "The chunked content is above the maximum");
+
+        long start = System.nanoTime();
+        assertThrows(IOException.class, () -> ImageFetcher.fetch(uri("/stall/a"), 1_000_000, 300),
+                     "The body is not received within the deadline");
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(ms < 3_000, "A stalled body should be abandoned at the deadline, but it took " + ms + " ms");
+    }
+
+    @Test
+    public void testPrefetch() throws IOException {
+        List<URI> uris = Arrays.asList(uri("/image/0"), null, uri("/image/2"), uri("/image/3"), uri("/image/4"));
+        List<Runnable> queued = new ArrayList<>();
+        try (ImageFetcher.Prefetch prefetch = new ImageFetcher.Prefetch(uris, 2, queued::add, ImageFetcher::fetch)) {
+            assertEquals(2, queued.size(), "Only 2 images should be fetched ahead");
+
+            runAll(queued);
+            try (UploadBuffer upload = prefetch.take(0)) {
+                assertEquals(UploadBuffer.hash(content("/image/0")), upload.getHash());
+            }
+            assertEquals(1, queued.size(), "Taking an image should start the next fetch");
+
+            assertThrows(IllegalArgumentException.class, () -> prefetch.take(1), "A local source cannot be taken");
+
+            runAll(queued);
+            try (UploadBuffer upload = prefetch.take(3)) {
+                assertEquals(UploadBuffer.hash(content("/image/3")), upload.getHash());
+            }
+            runAll(queued);
+            assertEquals(4, requests.get(), "All remote images should have been fetched");
+        }
+    }
+
+    @Test
+    public void testPrefetchClose() throws IOException {
+        List<URI> uris = Arrays.asList(uri("/image/0"), uri("/image/1"));
+        List<UploadBuffer> fetched = Collections.synchronizedList(new ArrayList<>());
+        List<Runnable> queued = new ArrayList<>();
+        ImageFetcher.Prefetch prefetch = new ImageFetcher.Prefetch(uris, 2, queued::add, uri -> {
+            UploadBuffer upload = UploadBuffer.read(new ByteArrayInputStream(content(uri.getPath())), 0);
+            fetched.add(upload);
+            return upload;
+        });
+        queued.get(0).run();
+        prefetch.close();
+        // Runs after the prefetch was closed and should not fetch
+        queued.get(1).run();
+
+        assertEquals(1, fetched.size());
+        try (InputStream in = fetched.get(0).openStream()) {
+            assertEquals(0, in.readAllBytes().length, "The image that was not taken should have been closed");
+        }
+        assertThrows(IOException.class, () -> prefetch.take(0));
+    }
+
+    private static void runAll(List<Runnable> queued) {
+        List<Runnable> tasks = new ArrayList<>(queued);
+        queued.clear();
+        tasks.forEach(Runnable::run);
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path);
+    }
+
+    private static byte[] content(String path) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            content.append(path).append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,95 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+public class ImageSourceTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    private static final Set<String> HOSTS = new HashSet<>(Arrays.asList("images.example.org", "localhost:8080"));
+
+    @Test
+    public void testFileBelowRoot(@TempDir Path dir) throws IOException {
+        Path root = Files.createDirectory(dir.resolve("root"));
+        Path image = Files.write(root.resolve("image.jpg"), new byte[]{1, 2, 3});
+        List<Path> roots = Collections.singletonList(root);
+
+        ImageSource source = ImageSource.of(image.toString(), roots, HOSTS);
+        assertFalse(source.isRemote());
+        assertEquals(image.toRealPath(), source.getFile());
+
+        assertThrows(NoSuchFileException.class,
+                     () -> ImageSource.of(root.resolve("missing.jpg").toString(), roots, HOSTS).getFile());
+        assertThrows(IllegalArgumentException.class,
+                     () -> ImageSource.of(root.toString(), roots, HOSTS).getFile(),
+                     "A directory should not be accepted");
+    }
+
+    @Test
+    public void testFileOutsideRoot(@TempDir Path dir) throws IOException {
+        Path root = Files.createDirectory(dir.resolve("root"));
+        Path outside = Files.write(dir.resolve("secret.jpg"), new byte[]{1, 2, 3});
+        List<Path> roots = Collections.singletonList(root);
+
+        assertThrows(IllegalArgumentException.class, () -> ImageSource.of(outside.toString(), roots, HOSTS));
+        assertThrows(IllegalArgumentException.class,
+                     () -> ImageSource.of(root + "/../secret.jpg", roots, HOSTS),
+                     "Parent references should be resolved before checking the root");
+        assertThrows(IllegalArgumentException.class, () -> ImageSource.of("image.jpg", roots, HOSTS),
+                     "Relative paths should not be accepted");
+        assertThrows(IllegalArgumentException.class,
+                     () -> ImageSource.of(root.resolve("image.jpg").toString(), Collections.emptyList(), HOSTS),
+                     "No paths should be accepted without roots");
+    }
+
+    @Test
+    public void testSymbolicLinkOutsideRoot(@TempDir Path dir) throws IOException {
+        Path root = Files.createDirectory(dir.resolve("root"));
+        Path outside = Files.write(dir.resolve("secret.jpg"), new byte[]{1, 2, 3});
+        Path link;
+        try {
+            link = Files.createSymbolicLink(root.resolve("link.jpg"), outside);
+        } catch (UnsupportedOperationException | IOException e) {
+            log.info("Symbolic links are not supported here, skipping test: {}", e.getMessage());
+            return;
+        }
+
+        ImageSource source = ImageSource.of(link.toString(), Collections.singletonList(root), HOSTS);
+        assertThrows(IllegalArgumentException.class, source::getFile);
+    }
+
+    @Test
+    public void testUrl() {
+        List<Path> roots = Collections.emptyList();
+
+        ImageSource source = ImageSource.of("https://Images.Example.org/iiif/1/full/max/0/default.jpg", roots, HOSTS);
+        assertTrue(source.isRemote());
+        assertEquals("images.example.org", source.getUri().getHost().toLowerCase(Locale.ROOT));
+        assertThrows(IllegalArgumentException.class, source::getFile);
+
+        assertTrue(ImageSource.of("http://localhost:8080/image.jpg", roots, HOSTS).isRemote());
+        assertThrows(IllegalArgumentException.class, () -> ImageSource.of("http://localhost/image.jpg", roots, HOSTS),
+                     "Only the allowed port should be accepted");
+        assertThrows(IllegalArgumentException.class, () -> ImageSource.of("http://evil.example.org/", roots, HOSTS));
+        assertThrows(IllegalArgumentException.class, () -> ImageSource.of("https:///image.jpg", roots, HOSTS));
+        assertThrows(IllegalArgumentException.class, () -> ImageSource.of("", roots, HOSTS));
+    }
+}
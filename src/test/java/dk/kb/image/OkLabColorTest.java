@@ -61,10 +61,10 @@ public class OkLabColorTest {
 
     @Test
     public void testSortMap() throws IOException {
-        MostUsedOkLabColor myOkLabColor = new MostUsedOkLabColor();
         Map<Float, Integer>  testMap = OkLabColorTest.createTestMap();
-        List<Entry<Float, Integer>> sortedList = myOkLabColor.sortList(testMap);
-        assertEquals(testMap.get(1.2f), sortedList.get(0).getValue());
+        int[] counts = testMap.values().stream().mapToInt(Integer::intValue).toArray();
+        int[] sorted = TopBuckets.select(counts, counts.length);
+        assertEquals(testMap.get(1.2f).intValue(), counts[sorted[0]]);
         log.info("Map gets sorted.");
     }
 
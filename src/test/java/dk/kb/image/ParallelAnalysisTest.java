@@ -0,0 +1,76 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import dk.kb.util.Resolver;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+public class ParallelAnalysisTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testBandsCoverAllRows() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // Each band returns a histogram of the rows it was given, so every row must be counted exactly once
+            int[] rowCounts = ParallelAnalysis.reduceBands(1001, 17, (startRow, endRow) -> {
+                int[] counts = new int[1001];
+                for (int y = startRow; y < endRow; y++) {
+                    counts[y]++;
+                }
+                return counts;
+            }, ParallelAnalysis::mergeCounts, pool);
+            for (int count : rowCounts) {
+                assertEquals(1, count);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelBucketCount() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        MostUsedRgbColors rgbColors = new MostUsedRgbColors();
+        List<Integer> buckets = rgbColors.defineBuckets();
+        RasterPixelReader reader = new RasterPixelReader(img);
+
+        int[] sequential = rgbColors.getBucketCount(reader, 0, img.getHeight(), buckets);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            int[] parallel = ParallelAnalysis.reduceBands(
+                    img.getHeight(), 13, (startRow, endRow) -> rgbColors.getBucketCount(reader, startRow, endRow, buckets),
+                    ParallelAnalysis::mergeCounts, pool);
+            assertArrayEquals(sequential, parallel);
+        } finally {
+            pool.shutdown();
+        }
+        log.info("Parallel bucket count is the same as sequential.");
+    }
+
+    @Test
+    public void testIOExceptionPropagation() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertThrows(IOException.class, () -> ParallelAnalysis.reduceBands(100, 10, (startRow, endRow) -> {
+                if (startRow >= 50) {
+                    throw new IOException("Failing band " + startRow);
+                }
+                return 0;
+            }, Integer::sum, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
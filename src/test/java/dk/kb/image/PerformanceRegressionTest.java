@@ -0,0 +1,354 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Performance regression suite for the {@link Facade} operations.
+ * <p>
+ * A deterministic corpus covering the image types that {@link ImageIO#read(InputStream)} delivers is generated, and
+ * every operation is measured on every image: the fastest wall time and the fewest allocated bytes, summed over all
+ * threads with {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long[])} so the bands processed by
+ * {@link ParallelAnalysis} are included. The measurements are written to {@code target/performance-results.properties}
+ * and compared to the committed {@code src/test/resources/performance-baseline.properties}. The test fails if an
+ * operation is slower or allocates more than the baseline beyond the tolerances. Without a baseline, the
+ * measurements are only written.
+ * </p>
+ * <p>
+ * Both measurements depend on the environment: times on the machine, and allocations on the processor count, as
+ * {@link ParallelAnalysis} splits large images into bands with their own buffers and counts on machines with more than
+ * one processor, and on the Java version, as the JDK decoders allocate differently between versions. So regressions
+ * only fail the test when the processor count and Java version are the same as when the baseline was recorded.
+ * Otherwise they are logged as warnings. The committed baseline holds the allocations. After an intended change, or
+ * to add times on the build machine, the baseline is updated with
+ * </p>
+ * <pre>
+ * mvn test -PallTests -Dtest=PerformanceRegressionTest -Dperformance.updateBaseline=true
+ * </pre>
+ * <p>
+ * The tolerances are fractions, set with {@code -Dperformance.timeTolerance} (default 0.5) and
+ * {@code -Dperformance.allocationTolerance} (default 0.2). The suite is tagged slow and only runs with
+ * {@code -PallTests}.
+ * </p>
+ */
+@Tag("slow")
+public class PerformanceRegressionTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    static final String BASELINE_RESOURCE = "performance-baseline.properties";
+    static final Path BASELINE_SOURCE = Paths.get("src/test/resources", BASELINE_RESOURCE);
+    static final Path RESULTS = Paths.get("target/performance-results.properties");
+
+    private static final int WARMUPS = 2;
+    private static final int ITERATIONS = 3;
+    private static final int TOP_COLORS = 10;
+    /**
+     * Differences below these are ignored, as they are within the noise of small images.
+     */
+    private static final double TIME_SLACK_MS = 5;
+    private static final long ALLOCATION_SLACK_BYTES = 1024 * 1024;
+
+    /**
+     * An image of the corpus.
+     */
+    static class CorpusImage {
+        final String name;
+        final byte[] encoded;
+        final int expectedType;
+
+        CorpusImage(String name, byte[] encoded, int expectedType) {
+            this.name = name;
+            this.encoded = encoded;
+            this.expectedType = expectedType;
+        }
+    }
+
+    /**
+     * An operation to measure on a corpus image. The image is decoded outside of the measurement, except for the
+     * operations that decode in strips from the encoded bytes.
+     */
+    @FunctionalInterface
+    interface Operation {
+        Object run(CorpusImage image, BufferedImage decoded) throws IOException;
+    }
+
+    @Test
+    public void testPerformance() throws IOException {
+        Map<String, Operation> operations = createOperations();
+        Properties results = new Properties();
+        results.setProperty("environment.processors", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        results.setProperty("environment.java", System.getProperty("java.specification.version"));
+        for (CorpusImage image : createCorpus()) {
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(image.encoded));
+            assertNotNull(decoded, "The corpus image " + image.name + " should be decodable");
+            assertEquals(image.expectedType, decoded.getType(), "The decoded type of " + image.name);
+            for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+                Measurement measurement = measure(image, decoded, operation.getValue());
+                String key = image.name + "." + operation.getKey();
+                log.info("{}: {}", key, measurement);
+                results.setProperty(key + ".ms", String.format(Locale.ROOT, "%.2f", measurement.ms));
+                results.setProperty(key + ".allocated", Long.toString(measurement.allocated));
+            }
+        }
+        store(results, RESULTS);
+
+        if (Boolean.getBoolean("performance.updateBaseline")) {
+            store(results, BASELINE_SOURCE);
+            log.info("Updated the baseline {}", BASELINE_SOURCE);
+            return;
+        }
+        Properties baseline = new Properties();
+        try (InputStream in = PerformanceRegressionTest.class.getClassLoader().getResourceAsStream(BASELINE_RESOURCE)) {
+            if (in == null) {
+                log.warn("There is no baseline {}. Record it on the build machine with " +
+                         "-Dperformance.updateBaseline=true and commit it", BASELINE_SOURCE);
+                return;
+            }
+            baseline.load(in);
+        }
+        for (String key : results.stringPropertyNames()) {
+            if (key.endsWith(".allocated") && !baseline.containsKey(key)) {
+                log.warn("{} is not in the baseline. Update it with -Dperformance.updateBaseline=true", key);
+            }
+        }
+        List<String> regressions = new ArrayList<>();
+        regressions.addAll(compare(
+                baseline, results, ".allocated",
+                Double.parseDouble(System.getProperty("performance.allocationTolerance", "0.2")),
+                ALLOCATION_SLACK_BYTES));
+        regressions.addAll(compare(
+                baseline, results, ".ms",
+                Double.parseDouble(System.getProperty("performance.timeTolerance", "0.5")), TIME_SLACK_MS));
+        boolean sameMachine = isSame(baseline, results, "environment.java") &&
+                              isSame(baseline, results, "environment.processors");
+        if (!sameMachine && !regressions.isEmpty()) {
+            log.warn("The baseline was recorded with {} processors and Java {}, so regressions are not failures:\n{}",
+                     baseline.getProperty("environment.processors"), baseline.getProperty("environment.java"),
+                     String.join("\n", regressions));
+            return;
+        }
+        assertTrue(regressions.isEmpty(), "Performance regressions compared to " + BASELINE_SOURCE + ":\n" +
+                                          String.join("\n", regressions));
+    }
+
+    /**
+     * @return the operations of {@link Facade} by name, in the order they are measured.
+     */
+    static Map<String, Operation> createOperations() {
+        Map<String, Operation> operations = new LinkedHashMap<>();
+        operations.put("decode", (image, decoded) -> ImageIO.read(new ByteArrayInputStream(image.encoded)));
+        operations.put("greyscale", (image, decoded) -> Facade.getGreyscale(decoded));
+        operations.put("colorCount", (image, decoded) -> Facade.getColorCount(decoded));
+        operations.put("rgbColors", (image, decoded) -> Facade.getMostUsedRGBColors(decoded, TOP_COLORS));
+        operations.put("okLabColors", (image, decoded) -> Facade.getMostUsedOKLabColors(decoded, TOP_COLORS));
+        operations.put("analysis", (image, decoded) -> Facade.getAnalysis(
+                decoded, EnumSet.allOf(FusedAnalysis.Analysis.class), TOP_COLORS, ColorPalette.getDefault(),
+                GreyscaleConverter.Mode.AVERAGE));
+        operations.put("stripGreyscale", (image, decoded) -> {
+            try (ImageDecoder decoder = ImageDecoder.open(new ByteArrayInputStream(image.encoded), 0)) {
+                return Facade.getGreyscale(decoder);
+            }
+        });
+        operations.put("stripOkLabColors", (image, decoded) -> {
+            try (ImageDecoder decoder = ImageDecoder.open(new ByteArrayInputStream(image.encoded), 0)) {
+                return Facade.getMostUsedOKLabColors(decoder, TOP_COLORS);
+            }
+        });
+        operations.put("stripAnalysis", (image, decoded) -> {
+            try (ImageDecoder decoder = ImageDecoder.open(new ByteArrayInputStream(image.encoded), 0)) {
+                return Facade.getAnalysis(decoder, EnumSet.of(FusedAnalysis.Analysis.COLORCOUNT,
+                                                              FusedAnalysis.Analysis.RGB, FusedAnalysis.Analysis.OKLAB),
+                                          TOP_COLORS, ColorPalette.getDefault(), GreyscaleConverter.Mode.AVERAGE);
+            }
+        });
+        return operations;
+    }
+
+    /**
+     * Generate the corpus. The content is drawn from a fixed seed and the encoders are deterministic, so the corpus
+     * is the same for every run on the same Java version.
+     */
+    static List<CorpusImage> createCorpus() throws IOException {
+        List<CorpusImage> corpus = new ArrayList<>();
+        corpus.add(new CorpusImage("jpeg-rgb", encode(draw(2400, 1600, BufferedImage.TYPE_3BYTE_BGR, 1), "jpeg"),
+                                   BufferedImage.TYPE_3BYTE_BGR));
+        corpus.add(new CorpusImage("png-alpha", encode(draw(1200, 900, BufferedImage.TYPE_4BYTE_ABGR, 2), "png"),
+                                   BufferedImage.TYPE_4BYTE_ABGR));
+        corpus.add(new CorpusImage("gif-indexed", encode(draw(1000, 750, BufferedImage.TYPE_BYTE_INDEXED, 3), "gif"),
+                                   BufferedImage.TYPE_BYTE_INDEXED));
+        corpus.add(new CorpusImage("png-grey", encode(draw(2000, 1500, BufferedImage.TYPE_BYTE_GRAY, 4), "png"),
+                                   BufferedImage.TYPE_BYTE_GRAY));
+        // The TIFF reader delivers interleaved RGB as TYPE_CUSTOM rather than TYPE_3BYTE_BGR
+        corpus.add(new CorpusImage("tiff-large", encode(draw(5000, 4000, BufferedImage.TYPE_3BYTE_BGR, 5), "tiff"),
+                                   BufferedImage.TYPE_CUSTOM));
+        return corpus;
+    }
+
+    /**
+     * Draw gradients, overlapping translucent shapes and noise, giving smooth areas as well as many unique colors.
+     */
+    static BufferedImage draw(int width, int height, int type, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_DISABLE);
+            g.setPaint(new GradientPaint(0, 0, randomColor(random, 255), width, height, randomColor(random, 255)));
+            g.fillRect(0, 0, width, height);
+            for (int i = 0; i < 60; i++) {
+                g.setColor(randomColor(random, 64 + random.nextInt(160)));
+                int w = 1 + random.nextInt(width / 3);
+                int h = 1 + random.nextInt(height / 3);
+                g.fillOval(random.nextInt(width), random.nextInt(height), w, h);
+            }
+        } finally {
+            g.dispose();
+        }
+        if (type != BufferedImage.TYPE_BYTE_INDEXED) {
+            for (int i = 0; i < width * height / 20; i++) {
+                int x = random.nextInt(width);
+                int y = random.nextInt(height);
+                int argb = image.getRGB(x, y);
+                int alpha = type == BufferedImage.TYPE_4BYTE_ABGR ? (x * 255 / width) << 24 : argb & 0xFF000000;
+                image.setRGB(x, y, alpha | (argb ^ random.nextInt(0x080808)) & 0xFFFFFF);
+            }
+        }
+        return image;
+    }
+
+    private static Color randomColor(Random random, int alpha) {
+        return new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), alpha);
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, out)) {
+            throw new IllegalStateException("No ImageIO writer for " + format);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The fastest time and the fewest allocated bytes of the iterations of an operation.
+     */
+    static class Measurement {
+        double ms = Double.MAX_VALUE;
+        long allocated = Long.MAX_VALUE;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.2fms, %.1fMB allocated", ms, allocated / 1048576.0);
+        }
+    }
+
+    private static Measurement measure(CorpusImage image, BufferedImage decoded, Operation operation)
+            throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Measurement measurement = new Measurement();
+        for (int i = 0; i < WARMUPS + ITERATIONS; i++) {
+            long allocatedBefore = getAllocatedBytes(threads);
+            long start = System.nanoTime();
+            Object result = operation.run(image, decoded);
+            long ns = System.nanoTime() - start;
+            long allocated = getAllocatedBytes(threads) - allocatedBefore;
+            assertNotNull(result);
+            if (i >= WARMUPS) {
+                measurement.ms = Math.min(measurement.ms, ns / 1_000_000.0);
+                measurement.allocated = Math.min(measurement.allocated, allocated);
+            }
+        }
+        return measurement;
+    }
+
+    /**
+     * @return the bytes allocated by all live threads, including the pool of {@link ParallelAnalysis}.
+     */
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long sum = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            sum += Math.max(0, allocated);
+        }
+        return sum;
+    }
+
+    /**
+     * @param suffix    the measurements to compare, {@code .ms} or {@code .allocated}.
+     * @param tolerance the allowed increase as a fraction of the baseline.
+     * @param slack     the allowed increase in absolute terms, for measurements that are small.
+     * @return a description of each measurement that is worse than the baseline beyond the tolerance and slack.
+     */
+    static List<String> compare(Properties baseline, Properties results, String suffix, double tolerance,
+                                double slack) {
+        List<String> regressions = new ArrayList<>();
+        for (String key : new TreeSet<>(results.stringPropertyNames())) {
+            String expected = baseline.getProperty(key);
+            if (!key.endsWith(suffix) || expected == null) {
+                continue;
+            }
+            double base = Double.parseDouble(expected);
+            double actual = Double.parseDouble(results.getProperty(key));
+            double limit = Math.max(base * (1 + tolerance), base + slack);
+            if (actual > limit) {
+                regressions.add(String.format(Locale.ROOT, "%s: %.2f > %.2f (baseline %.2f, +%.0f%%)",
+                                              key, actual, limit, base, (actual / base - 1) * 100));
+            }
+        }
+        return regressions;
+    }
+
+    private static boolean isSame(Properties baseline, Properties results, String key) {
+        return results.getProperty(key).equals(baseline.getProperty(key));
+    }
+
+    private static void store(Properties properties, Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        // Properties sorted by key, so changes of the baseline are readable in diffs
+        StringBuilder content = new StringBuilder();
+        content.append("# Measured by PerformanceRegressionTest: fastest wall time in milliseconds and fewest bytes\n")
+                .append("# allocated over ").append(ITERATIONS).append(" iterations after ").append(WARMUPS)
+                .append(" warmups\n");
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            content.append(key).append('=').append(properties.getProperty(key)).append('\n');
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(content.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dk.kb.util.Resolver;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+public class RasterPixelReaderTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testDirectLayouts() {
+        int[] types = new int[]{
+                BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_BYTE_INDEXED
+        };
+        for (int type : types) {
+            BufferedImage img = createRandomImg(type, 123, 45);
+            assertTrue(new RasterPixelReader(img).isDirect(), "Image type " + type + " should be read directly");
+            assertSameAsGetRGB(img);
+        }
+        log.info("Direct raster access gives the same pixels as getRGB");
+    }
+
+    @Test
+    public void testGenericFallback() {
+        BufferedImage img = createRandomImg(BufferedImage.TYPE_USHORT_565_RGB, 67, 89);
+        assertFalse(new RasterPixelReader(img).isDirect());
+        assertSameAsGetRGB(img);
+    }
+
+    @Test
+    public void testSubImage() {
+        BufferedImage img = createRandomImg(BufferedImage.TYPE_3BYTE_BGR, 200, 100).getSubimage(13, 17, 101, 53);
+        assertSameAsGetRGB(img);
+        img = createRandomImg(BufferedImage.TYPE_INT_RGB, 200, 100).getSubimage(7, 3, 64, 90);
+        assertSameAsGetRGB(img);
+    }
+
+    @Test
+    public void testJpeg() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        assertTrue(new RasterPixelReader(img).isDirect());
+        assertSameAsGetRGB(img);
+        BufferedImage grey = ImageIO.read(Resolver.resolveStream("grey_flower.jpeg"));
+        assertSameAsGetRGB(grey);
+    }
+
+    @Test
+    public void testTiles() {
+        BufferedImage img = createRandomImg(BufferedImage.TYPE_4BYTE_ABGR, 100, 80);
+        RasterPixelReader reader = new RasterPixelReader(img);
+        int[] tile = reader.readBlock(30, 20, 16, 8, null);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 16; x++) {
+                assertEquals(img.getRGB(30 + x, 20 + y), tile[y * 16 + x]);
+            }
+        }
+    }
+
+    private static void assertSameAsGetRGB(BufferedImage img) {
+        RasterPixelReader reader = new RasterPixelReader(img);
+        int width = img.getWidth();
+        // An odd number of rows per block to hit the partial last block
+        int blockRows = 7;
+        int[] pixels = null;
+        for (int y = 0; y < img.getHeight(); y += blockRows) {
+            int rows = Math.min(blockRows, img.getHeight() - y);
+            pixels = reader.readRows(y, rows, pixels);
+            for (int row = 0; row < rows; row++) {
+                for (int x = 0; x < width; x++) {
+                    assertEquals(img.getRGB(x, y + row), pixels[row * width + x],
+                                 "Pixel (" + x + ", " + (y + row) + ") for image type " + img.getType());
+                }
+            }
+        }
+    }
+
+    private static BufferedImage createRandomImg(int type, int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Random random = new Random(87);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,151 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResultCacheTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        ResultCache<String> cache = new ResultCache<>(10, 10_000, String::length);
+        AtomicInteger calculations = new AtomicInteger();
+        assertEquals("a", cache.get("key", () -> {
+            calculations.incrementAndGet();
+            return "a";
+        }));
+        assertEquals("a", cache.get("key", () -> "b"));
+        assertEquals(1, calculations.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testEvictByEntries() throws Exception {
+        ResultCache<String> cache = new ResultCache<>(2, 10_000, String::length);
+        cache.get("a", () -> "a");
+        cache.get("b", () -> "b");
+        cache.get("a", () -> "a"); // a is now the most recently used
+        cache.get("c", () -> "c");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals("a", cache.get("a", () -> "new"), "The most recently used entry should be kept");
+        assertEquals("new", cache.get("b", () -> "new"), "The least recently used entry should be evicted");
+    }
+
+    @Test
+    public void testEvictByBytes() throws Exception {
+        // Each entry weighs 100 + 2 bytes for the key
+        ResultCache<String> cache = new ResultCache<>(100, 250, value -> 100);
+        cache.get("a", () -> "a");
+        cache.get("b", () -> "b");
+        cache.get("c", () -> "c");
+        assertEquals(2, cache.size());
+        assertEquals(204, cache.getBytes());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        ResultCache<String> cache = new ResultCache<>(0, 10_000, String::length);
+        assertEquals("a", cache.get("key", () -> "a"));
+        assertEquals("b", cache.get("key", () -> "b"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testFailureNotCached() throws Exception {
+        ResultCache<String> cache = new ResultCache<>(10, 10_000, String::length);
+        assertThrows(IOException.class, () -> cache.get("key", () -> {
+            throw new IOException("Unreadable image");
+        }));
+        assertEquals("a", cache.get("key", () -> "a"));
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final int threads = 8;
+        ResultCache<Object> cache = new ResultCache<>(10, 10_000, value -> 16);
+        AtomicInteger calculations = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Object result = new Object();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> cache.get("key", () -> {
+                calculations.incrementAndGet();
+                started.countDown();
+                release.await();
+                return result;
+            })));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            for (int i = 1; i < threads; i++) {
+                futures.add(executor.submit(() -> cache.get("key", () -> {
+                    calculations.incrementAndGet();
+                    return new Object();
+                })));
+            }
+            // Wait for the other requests to join the running calculation
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (cache.getCoalesced() < threads - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<Object> future : futures) {
+                assertSame(result, future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, calculations.get(), "The result should only be calculated once");
+        assertEquals(threads - 1, cache.getCoalesced());
+    }
+
+    @Test
+    public void testCoalescedFailure() throws Exception {
+        ResultCache<String> cache = new ResultCache<>(10, 10_000, String::length);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> cache.get("key", () -> {
+                started.countDown();
+                release.await();
+                throw new IOException("Unreadable image");
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<String> second = executor.submit(() -> cache.get("key", () -> "second"));
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (cache.getCoalesced() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<String> future : List.of(first, second)) {
+                Exception e = assertThrows(Exception.class, () -> future.get(10, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof IOException, "The cause should be the calculation failure");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, cache.size());
+    }
+}
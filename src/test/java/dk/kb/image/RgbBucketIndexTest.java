@@ -0,0 +1,84 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.util.Resolver;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+public class RgbBucketIndexTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testSmkPalette() {
+        List<Integer> buckets = PalettePicker.smkRgbBuckets();
+        RgbBucketIndex index = new RgbBucketIndex(buckets);
+        log.info("Built {}", index);
+        assertTrue(index.getAverageCandidates() < buckets.size() / 4.0,
+                   "The index should compare far fewer buckets than a linear scan");
+        // A prime step gives a spread of colors across all channels
+        assertSameAsLinearScan(buckets, index, 7);
+    }
+
+    @Test
+    public void testSimpleBucketsAllColors() {
+        List<Integer> buckets = PalettePicker.defineSimpleBuckets();
+        assertSameAsLinearScan(buckets, new RgbBucketIndex(buckets), 1);
+    }
+
+    @Test
+    public void testTies() {
+        // Duplicates and colors at equal distance must resolve to the first bucket, as with the linear scan
+        List<Integer> buckets = Arrays.asList(0x000000, 0x000000, 0x202020, 0x404040, 0x202020, 0xFFFFFF);
+        RgbBucketIndex index = new RgbBucketIndex(buckets);
+        assertEquals(0, index.getBucket(0x000000));
+        assertEquals(0, index.getBucket(0x101010));
+        assertEquals(2, index.getBucket(0x202020));
+        assertEquals(2, index.getBucket(0x303030));
+        assertSameAsLinearScan(buckets, index, 1);
+    }
+
+    @Test
+    public void testImageCounts() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        List<Integer> buckets = PalettePicker.smkRgbBuckets();
+        MostUsedRgbColors rgbColors = new MostUsedRgbColors();
+        int[] pixels = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+
+        int[] expected = new int[buckets.size()];
+        for (int pixel : pixels) {
+            rgbColors.updateBucketCounter(pixel, buckets, expected);
+        }
+        int[] indexed = new int[buckets.size()];
+        rgbColors.updateBucketCounter(pixels, pixels.length, buckets, indexed);
+        assertTrue(Arrays.equals(expected, indexed), "Block counting should match single pixel counting");
+    }
+
+    /**
+     * Compare the index with {@link MostUsedRgbColors#updateBucketCounter(int, List, int[])} for every step'th color.
+     */
+    private void assertSameAsLinearScan(List<Integer> buckets, RgbBucketIndex index, int step) {
+        MostUsedRgbColors rgbColors = new MostUsedRgbColors();
+        int[] counter = new int[buckets.size()];
+        for (int rgb = 0; rgb < 1 << 24; rgb += step) {
+            Arrays.fill(counter, 0);
+            rgbColors.updateBucketCounter(0xFF000000 | rgb, buckets, counter);
+            int expected = 0;
+            while (counter[expected] == 0) {
+                expected++;
+            }
+            if (expected != index.getBucket(0xFF000000 | rgb)) {
+                assertEquals(expected, index.getBucket(0xFF000000 | rgb), "Bucket for color " + rgb);
+            }
+        }
+    }
+}
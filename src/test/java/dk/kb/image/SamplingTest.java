@@ -0,0 +1,95 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dk.kb.image.model.v1.DominantColorDto;
+import dk.kb.util.Resolver;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+public class SamplingTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testOf() {
+        assertNull(Sampling.of(null, null, "stride"));
+        assertEquals(Sampling.Strategy.STRATIFIED, Sampling.of(1f, null, null).getStrategy());
+        assertEquals(Sampling.DEFAULT_MAX_SAMPLES, Sampling.of(1f, null, null).getMaxSamples());
+        assertEquals(Sampling.Strategy.STRIDE, Sampling.of(null, 1000, "stride").getStrategy());
+        assertThrows(IllegalArgumentException.class, () -> Sampling.of(1f, null, "random"));
+        assertThrows(IllegalArgumentException.class, () -> Sampling.of(-1f, null, null));
+        assertThrows(IllegalArgumentException.class, () -> Sampling.of(null, 0, null));
+    }
+
+    @Test
+    public void testErrorBound() {
+        assertEquals(0.0, Sampling.errorBound(50, 1000, 1000));
+        // 1.96 * sqrt(0.5 * 0.5 / 10000) = 0.98 percentage points for an infinite population
+        assertEquals(0.98, Sampling.errorBound(50, 10_000, Long.MAX_VALUE), 0.001);
+        assertTrue(Sampling.errorBound(50, 10_000, 20_000) < 0.98);
+    }
+
+    @Test
+    public void testSampledRgbColors() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        List<DominantColorDto> exact = new MostUsedRgbColors().getMostUsedColors(img, 3);
+        assertEquals(0.0f, exact.get(0).getErrorBound().floatValue());
+        assertEquals((long) img.getWidth() * img.getHeight(), exact.get(0).getSampleSize().longValue());
+
+        for (Sampling.Strategy strategy : Sampling.Strategy.values()) {
+            Sampling sampling = new Sampling(strategy, 1, 50_000);
+            List<DominantColorDto> sampled = new MostUsedRgbColors().getMostUsedColors(img, 3, sampling);
+            log.info("{} gave {}", sampling, sampled);
+            assertTrue(sampled.get(0).getSampleSize() <= 50_000);
+            assertTrue(sampled.get(0).getErrorBound() > 0);
+            assertEquals(exact.get(0).getHexRGB(), sampled.get(0).getHexRGB());
+            assertEquals(exact.get(0).getPercent(), sampled.get(0).getPercent(), 2 * sampled.get(0).getErrorBound());
+        }
+    }
+
+    @Test
+    public void testExtremeAspectRatio() throws IOException {
+        for (int[] size : new int[][]{{10_000, 3}, {3, 10_000}, {100_000, 1}}) {
+            BufferedImage img = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++) {
+                    img.setRGB(x, y, x % 2 == 0 ? 0xFF0000 : 0x0000FF);
+                }
+            }
+            for (Sampling.Strategy strategy : Sampling.Strategy.values()) {
+                Sampling sampling = new Sampling(strategy, 1, 100);
+                List<DominantColorDto> sampled = new MostUsedRgbColors().getMostUsedColors(img, 2, sampling);
+                log.debug("{} for {}x{} gave {}", sampling, size[0], size[1], sampled);
+                long samples = sampled.get(0).getSampleSize();
+                assertTrue(samples > 0 && samples <= 100,
+                           "Sampling " + size[0] + "x" + size[1] + " with " + strategy + " should use at most 100 " +
+                           "samples, but used " + samples);
+            }
+        }
+    }
+
+    @Test
+    public void testSamplingGrid() {
+        for (int[] size : new int[][]{{4000, 3000}, {10_000, 3}, {3, 10_000}, {1, 1}, {7, 5}}) {
+            for (int maxCells : new int[]{1, 100, 4096}) {
+                int[] grid = TemplateMostUsedColors.getSamplingGrid(size[0], size[1], maxCells);
+                assertTrue(grid[0] >= 1 && grid[1] >= 1);
+                assertTrue(grid[0] <= size[0] && grid[1] <= size[1]);
+                assertTrue((long) grid[0] * grid[1] <= maxCells,
+                           "The grid " + grid[0] + "x" + grid[1] + " has more than " + maxCells + " cells");
+            }
+        }
+        int[] grid = TemplateMostUsedColors.getSamplingGrid(4000, 3000, 4096);
+        assertEquals(4.0 / 3, (double) grid[0] / grid[1], 0.1, "Cells should be about square");
+    }
+}
@@ -0,0 +1,169 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class ServiceMetricsTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    /**
+     * A sample line in the Prometheus text format: a name, optional labels and a value.
+     */
+    private static final Pattern SAMPLE = Pattern.compile(
+            "[a-z_]+(\\{[a-z]+=\"[^\"]*\"(,[a-z]+=\"[^\"]*\")*})? [-+0-9.E]+");
+
+    @Test
+    public void testHistogram() {
+        ServiceMetrics.LatencyHistogram histogram = new ServiceMetrics.LatencyHistogram();
+        histogram.record(500_000L);          // 0.5 ms
+        histogram.record(1_000_000L);        // exactly 1 ms, the bounds are inclusive
+        histogram.record(3_000_000L);        // 3 ms
+        histogram.record(120_000_000_000L);  // 2 minutes, above the largest bound
+        histogram.record(-5L);               // clock adjustment
+
+        assertEquals(5, histogram.getCount());
+        assertEquals(3, histogram.getCumulativeCount(0), "Durations up to 1 ms");
+        assertEquals(3, histogram.getCumulativeCount(1), "Durations up to 2.5 ms");
+        assertEquals(4, histogram.getCumulativeCount(2), "Durations up to 5 ms");
+        assertEquals(4, histogram.getCumulativeCount(ServiceMetrics.BOUNDS_SECONDS.length - 1),
+                     "Durations up to 60 s");
+        assertEquals(500_000L + 1_000_000L + 3_000_000L + 120_000_000_000L, histogram.getSumNanos());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        ServiceMetrics.LatencyHistogram histogram = new ServiceMetrics.LatencyHistogram();
+        int threads = 4;
+        int perThread = 100_000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            workers.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(random.nextInt(100_000_000));
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals((long) threads * perThread, histogram.getCount(), "No recordings should be lost");
+    }
+
+    @Test
+    public void testEndpoint() {
+        ServiceMetrics.Endpoint endpoint = ServiceMetrics.Endpoint.GREYSCALE;
+        long inFlight = endpoint.getInFlight();
+        long count = endpoint.getLatency().getCount();
+        long errors = endpoint.getErrors();
+
+        long start = endpoint.begin();
+        assertEquals(inFlight + 1, endpoint.getInFlight());
+        endpoint.failed();
+        endpoint.end(start);
+
+        assertEquals(inFlight, endpoint.getInFlight());
+        assertEquals(count + 1, endpoint.getLatency().getCount());
+        assertEquals(errors + 1, endpoint.getErrors());
+    }
+
+    @Test
+    public void testDecodeAndEncode() throws IOException {
+        BufferedImage img = noise(400, 300);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        long encodes = ServiceMetrics.Stage.ENCODE.getLatency().getCount();
+        long encodedBytes = ServiceMetrics.Counter.ENCODED_BYTES.get();
+        ImageEncoder.write(img, ImageEncoder.Format.PNG, null, png);
+        assertEquals(encodes + 1, ServiceMetrics.Stage.ENCODE.getLatency().getCount());
+        assertEquals(encodedBytes + png.size(), ServiceMetrics.Counter.ENCODED_BYTES.get(),
+                     "All bytes should be counted, also those flushed while encoding");
+
+        long decodes = ServiceMetrics.Stage.DECODE.getLatency().getCount();
+        long pixels = ServiceMetrics.Counter.DECODED_PIXELS.get();
+        long received = ServiceMetrics.Counter.RECEIVED_BYTES.get();
+        try (InputStream in = ServiceMetrics.countReceived(new ByteArrayInputStream(png.toByteArray()))) {
+            ImageDecoder.decode(in, 30_000);
+            // Drain the rest, as the decoder does not necessarily read to the end
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // Only the count matters
+            }
+        }
+        assertEquals(decodes + 1, ServiceMetrics.Stage.DECODE.getLatency().getCount());
+        assertEquals(pixels + 200 * 150, ServiceMetrics.Counter.DECODED_PIXELS.get(),
+                     "The pixels after subsampling should be counted");
+        assertEquals(received + png.size(), ServiceMetrics.Counter.RECEIVED_BYTES.get());
+    }
+
+    @Test
+    public void testLookupClassification() {
+        BucketLookup halves = new BucketLookup() {
+            @Override
+            public int getBucket(int rgb) {
+                return (rgb >> 23) & 1;
+            }
+
+            @Override
+            public void countBuckets(int[] pixels, int length, int[] bucketCounter) {
+                for (int i = 0; i < length; i++) {
+                    bucketCounter[getBucket(pixels[i])]++;
+                }
+            }
+        };
+        long table = ServiceMetrics.Counter.TABLE_LOOKUPS.get();
+        long fallback = ServiceMetrics.Counter.FALLBACK_LOOKUPS.get();
+
+        ServiceMetrics.countLookups(CoarseBucketLookup.of(halves), 10);
+        assertEquals(table + 10, ServiceMetrics.Counter.TABLE_LOOKUPS.get(),
+                     "The coarse lookup is a table and should not be counted as a fallback");
+        assertEquals(fallback, ServiceMetrics.Counter.FALLBACK_LOOKUPS.get());
+
+        ServiceMetrics.countLookups(new ExactBucketLookup(PalettePicker.smkOkLabBuckets()), 7);
+        assertEquals(fallback + 7, ServiceMetrics.Counter.FALLBACK_LOOKUPS.get());
+    }
+
+    @Test
+    public void testPrometheus() {
+        ServiceMetrics.Stage.ANALYSIS.record(2_000_000L);
+        String metrics = ServiceMetrics.toPrometheus();
+        log.debug("Metrics:\n{}", metrics);
+
+        for (String line : metrics.split("\n")) {
+            assertTrue(line.startsWith("# HELP imageanalysis_") || line.startsWith("# TYPE imageanalysis_") ||
+                       SAMPLE.matcher(line).matches(),
+                       "The line '" + line + "' should be a comment or a sample");
+        }
+        assertTrue(metrics.contains("# TYPE imageanalysis_stage_duration_seconds histogram\n"));
+        assertTrue(metrics.contains("imageanalysis_stage_duration_seconds_bucket{stage=\"analysis\",le=\"+Inf\"} "));
+        assertTrue(metrics.contains("imageanalysis_request_duration_seconds_count{endpoint=\"getColorCount\"} "));
+        assertTrue(metrics.contains("imageanalysis_requests_in_flight{endpoint=\"getAnalysis\"} "));
+        assertTrue(metrics.contains("# TYPE imageanalysis_decoded_pixels_total counter\n"));
+    }
+
+    private static BufferedImage noise(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(87);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, random.nextInt(0xFFFFFF));
+            }
+        }
+        return img;
+    }
+}
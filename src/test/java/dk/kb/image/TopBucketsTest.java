@@ -0,0 +1,47 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+public class TopBucketsTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testSelect() {
+        int[] counts = {5, 0, 9, 3, 9, 1};
+        assertTrue(Arrays.equals(new int[]{2, 4, 0}, TopBuckets.select(counts, 3)));
+        assertTrue(Arrays.equals(new int[]{2, 4, 0, 3, 5, 1}, TopBuckets.select(counts, 10)));
+        assertEquals(0, TopBuckets.select(counts, 0).length);
+        assertEquals(0, TopBuckets.select(new int[0], 5).length);
+    }
+
+    @Test
+    public void testSameAsSort() {
+        Random random = new Random(87);
+        for (int run = 0; run < 100; run++) {
+            int[] counts = new int[1 + random.nextInt(5000)];
+            // Few distinct values gives many ties
+            int maxCount = 1 + random.nextInt(run % 2 == 0 ? 10 : 1_000_000);
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = random.nextInt(maxCount);
+            }
+            int x = random.nextInt(counts.length + 5);
+            int[] expected = IntStream.range(0, counts.length).boxed()
+                    .sorted(Comparator.<Integer>comparingInt(i -> -counts[i]).thenComparingInt(i -> i))
+                    .limit(x)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            assertTrue(Arrays.equals(expected, TopBuckets.select(counts, x)),
+                       "Selection of " + x + " from " + counts.length + " counts should match a full sort");
+        }
+    }
+}
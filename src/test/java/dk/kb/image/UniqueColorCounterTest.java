@@ -0,0 +1,71 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.util.Resolver;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+public class UniqueColorCounterTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testSameAsHashSet() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        assertEquals(countWithHashSet(img), UniqueColorCounter.count(img));
+    }
+
+    @Test
+    public void testAlpha() throws IOException {
+        BufferedImage img = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(87);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                // Few alpha values and colors, so that both bitmaps get repeated colors
+                int alpha = new int[]{0xFF, 0x80, 0x01}[random.nextInt(3)];
+                img.setRGB(x, y, alpha << 24 | random.nextInt(1 << 12) << 6);
+            }
+        }
+        assertEquals(countWithHashSet(img), UniqueColorCounter.count(img));
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+        BufferedImage img = ImageIO.read(Resolver.resolveStream("flower.jpg"));
+        long expected = countWithHashSet(img);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(expected, UniqueColorCounter.count(img, 7, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testOffset() {
+        UniqueColorCounter counter = new UniqueColorCounter();
+        int[] pixels = {0xFF000001, 0xFF000002, 0xFF000003, 0x00000003, 0xFF000002};
+        counter.add(pixels, 1, 3);
+        assertEquals(3, counter.getCount());
+        counter.add(pixels, 0, pixels.length);
+        assertEquals(4, counter.getCount());
+    }
+
+    private long countWithHashSet(BufferedImage img) {
+        int[] pixels = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+        Set<Integer> colors = new HashSet<>();
+        Arrays.stream(pixels).forEach(colors::add);
+        return colors.size();
+    }
+}
@@ -0,0 +1,88 @@
+package dk.kb.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+public class UploadBufferTest {
+    private Logger log = LoggerFactory.getLogger(this.toString());
+
+    @Test
+    public void testInMemory() throws IOException {
+        byte[] content = randomBytes(100_000);
+        try (UploadBuffer upload = UploadBuffer.read(new ByteArrayInputStream(content), 1024 * 1024)) {
+            assertFalse(upload.isSpilled());
+            assertEquals(content.length, upload.getSize());
+            assertEquals(UploadBuffer.hash(content), upload.getHash());
+            assertArrayEquals(content, readAll(upload));
+            assertArrayEquals(content, readAll(upload), "The content should be readable more than once");
+        }
+    }
+
+    @Test
+    public void testSpilled() throws IOException {
+        byte[] content = randomBytes(300_000);
+        try (UploadBuffer upload = UploadBuffer.read(new ByteArrayInputStream(content), 100_000)) {
+            assertTrue(upload.isSpilled());
+            assertEquals(content.length, upload.getSize());
+            assertEquals(UploadBuffer.hash(content), upload.getHash());
+            assertArrayEquals(content, readAll(upload));
+            assertArrayEquals(content, readAll(upload), "The content should be readable more than once");
+        }
+    }
+
+    @Test
+    public void testChunkBoundaries() throws IOException {
+        for (int length : new int[]{0, 1, 65535, 65536, 65537, 131072}) {
+            byte[] content = randomBytes(length);
+            try (UploadBuffer upload = UploadBuffer.read(new ByteArrayInputStream(content), 65536)) {
+                assertEquals(UploadBuffer.hash(content), upload.getHash(), "Hash for length " + length);
+                assertArrayEquals(content, readAll(upload), "Content for length " + length);
+            }
+        }
+    }
+
+    @Test
+    public void testDifferentContent() throws IOException {
+        byte[] content = randomBytes(1000);
+        String hash = UploadBuffer.hash(content);
+        content[500]++;
+        assertNotEquals(hash, UploadBuffer.hash(content));
+    }
+
+    @Test
+    public void testHashFile(@TempDir Path dir) throws IOException {
+        for (int length : new int[]{0, 65536, 200_001}) {
+            byte[] content = randomBytes(length);
+            Path file = Files.write(dir.resolve("content-" + length), content);
+            assertEquals(UploadBuffer.hash(content), UploadBuffer.hash(file), "Hash for length " + length);
+        }
+    }
+
+    private static byte[] readAll(UploadBuffer upload) throws IOException {
+        try (InputStream in = upload.openStream()) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(87).nextBytes(bytes);
+        return bytes;
+    }
+}